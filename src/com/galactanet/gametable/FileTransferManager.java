@@ -0,0 +1,488 @@
+/*
+ * FileTransferManager.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.OutboundFrame;
+import com.galactanet.gametable.util.UtilityFunctions;
+
+
+
+/**
+ * Streams pog images between peers in chunks rather than as one big PACKET_FILE. The sender announces a transfer with
+ * PACKET_FILE_OPEN, then reads the file a chunk at a time and sends each as a PACKET_FILE_CHUNK, never having more than
+ * WINDOW chunks unacknowledged. The receiver appends each chunk to a temporary file next to the target, answers each
+ * with a PACKET_FILE_ACK, and on PACKET_FILE_COMPLETE moves the finished file into place. Since only a few chunks are
+ * ever queued on a connection at once, everything else sent to that peer goes out between them.
+ *
+ * All of this runs on the event thread; transfers are driven forward from GametableFrame.tick().
+ *
+ * @author iffy
+ */
+public class FileTransferManager
+{
+    /**
+     * A file we are sending.
+     */
+    private static class OutgoingTransfer
+    {
+        public FileChannel      channel;
+        public final Connection connection;
+        public final String     filename;
+        public final int        id;
+        public int              inFlight = 0;
+        public long             position = 0;
+        public final long       size;
+
+        public OutgoingTransfer(final int transferId, final Connection conn, final String name, final FileChannel chan,
+            final long length)
+        {
+            id = transferId;
+            connection = conn;
+            filename = name;
+            channel = chan;
+            size = length;
+        }
+    }
+
+    /**
+     * A file we are receiving. If the transfer was refused, channel is null and incoming chunks are just acknowledged and
+     * dropped.
+     */
+    private static class IncomingTransfer
+    {
+        public FileChannel  channel;
+        public final String filename;
+        public long         received = 0;
+        public final long   size;
+        public final File   target;
+        public final File   temp;
+
+        public IncomingTransfer(final String name, final File targetFile, final File tempFile, final FileChannel chan,
+            final long length)
+        {
+            filename = name;
+            target = targetFile;
+            temp = tempFile;
+            channel = chan;
+            size = length;
+        }
+    }
+
+    /**
+     * Bytes of file data per chunk.
+     */
+    public static final int         CHUNK_SIZE       = 32 * 1024;
+
+    /**
+     * Most chunks of one transfer that may be sent but not yet acknowledged.
+     */
+    public static final int         WINDOW           = 8;
+
+    private static final Map        g_incoming       = new HashMap();
+    private static int              g_nextTransferId = 1;
+    private static final List       g_outgoing       = new ArrayList();
+    private static final ByteBuffer g_readBuffer     = ByteBuffer.allocate(CHUNK_SIZE);
+
+    /**
+     * Starts sending a png file to the given connection.
+     *
+     * @param conn Connection to send to.
+     * @param file File to read the image from.
+     * @param filename Local path the peer should save the image as.
+     * @return False if the file could not be opened.
+     */
+    public static boolean sendPng(final Connection conn, final File file, final String filename)
+    {
+        if (!file.isFile())
+        {
+            return false;
+        }
+
+        final FileChannel channel;
+        try
+        {
+            channel = new FileInputStream(file).getChannel();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return false;
+        }
+
+        final OutgoingTransfer transfer;
+        try
+        {
+            transfer = new OutgoingTransfer(g_nextTransferId++, conn, filename, channel, channel.size());
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            closeQuietly(channel);
+            return false;
+        }
+
+        Log.log(Log.NET, "Sending " + filename + " (" + transfer.size + " bytes) as transfer " + transfer.id);
+        conn.sendPacket(PacketManager.makeFileOpenPacket(transfer.id, "image/png", filename, transfer.size));
+        g_outgoing.add(transfer);
+        pump(transfer);
+        return true;
+    }
+
+    /**
+     * Sends more chunks on every outgoing transfer that has room in its window.
+     */
+    public static void tick()
+    {
+        for (int i = 0; i < g_outgoing.size(); i++)
+        {
+            pump((OutgoingTransfer)g_outgoing.get(i));
+        }
+
+        removeFinished();
+    }
+
+    /**
+     * Called when a peer acknowledges a chunk.
+     */
+    public static void ackReceived(final Connection conn, final int id)
+    {
+        for (int i = 0; i < g_outgoing.size(); i++)
+        {
+            final OutgoingTransfer transfer = (OutgoingTransfer)g_outgoing.get(i);
+            if ((transfer.connection == conn) && (transfer.id == id))
+            {
+                transfer.inFlight--;
+                pump(transfer);
+                break;
+            }
+        }
+
+        removeFinished();
+    }
+
+    /**
+     * Called when a peer announces a file it is about to send.
+     */
+    public static void openReceived(final Connection conn, final int id, final String mimeType, final String path,
+        final long size)
+    {
+        final String filename = UtilityFunctions.getLocalPath(path);
+        File target = null;
+        File temp = null;
+        FileChannel channel = null;
+        if (mimeType.equals("image/png"))
+        {
+            target = PacketManager.getPngTarget(filename);
+        }
+        else
+        {
+            Log.log(Log.NET, "Refusing transfer of unknown type: " + mimeType);
+        }
+
+        if (target != null)
+        {
+            try
+            {
+                final File parentDir = target.getAbsoluteFile().getParentFile();
+                if (!parentDir.exists())
+                {
+                    parentDir.mkdirs();
+                }
+                temp = File.createTempFile("gametable", ".part", parentDir);
+                channel = new FileOutputStream(temp).getChannel();
+            }
+            catch (final IOException ex)
+            {
+                Log.log(Log.SYS, ex);
+                if (temp != null)
+                {
+                    temp.delete();
+                }
+                temp = null;
+            }
+        }
+
+        // a refused transfer is still tracked so that its chunks get acknowledged and the sender doesn't stall
+        getIncoming(conn).put(new Integer(id), new IncomingTransfer(filename, target, temp, channel, size));
+    }
+
+    /**
+     * Called with each chunk of an incoming file.
+     */
+    public static void chunkReceived(final Connection conn, final int id, final byte[] data, final int length)
+    {
+        final IncomingTransfer transfer = (IncomingTransfer)getIncoming(conn).get(new Integer(id));
+        if (transfer == null)
+        {
+            return;
+        }
+
+        if (transfer.channel != null)
+        {
+            try
+            {
+                if ((transfer.received == 0) && ((length < 8) || !UtilityFunctions.isPngData(data)))
+                {
+                    GametableFrame.getGametableFrame().logAlertMessage(
+                        "Illegal pog data: \"" + transfer.filename + "\", aborting transfer.");
+                    discard(transfer);
+                }
+                else if (transfer.received + length > transfer.size)
+                {
+                    Log.log(Log.NET, "Transfer " + id + " ran past its announced size");
+                    discard(transfer);
+                }
+                else
+                {
+                    transfer.channel.write(ByteBuffer.wrap(data, 0, length));
+                    transfer.received += length;
+                }
+            }
+            catch (final IOException ex)
+            {
+                Log.log(Log.SYS, ex);
+                discard(transfer);
+            }
+        }
+
+        if (conn != null)
+        {
+            conn.sendPacket(PacketManager.makeFileAckPacket(id));
+        }
+    }
+
+    /**
+     * Called when a peer has sent a chunk whose length can't be right. The transfer is abandoned; the rest of it is
+     * acknowledged and thrown away, as for any other transfer that went wrong.
+     */
+    public static void chunkRejected(final Connection conn, final int id)
+    {
+        final IncomingTransfer transfer = (IncomingTransfer)getIncoming(conn).get(new Integer(id));
+        if ((transfer != null) && (transfer.channel != null))
+        {
+            Log.log(Log.NET, "Transfer " + id + " sent a malformed chunk");
+            discard(transfer);
+        }
+
+        if (conn != null)
+        {
+            conn.sendPacket(PacketManager.makeFileAckPacket(id));
+        }
+    }
+
+    /**
+     * Called when a peer has sent the last chunk of a file.
+     */
+    public static void completeReceived(final Connection conn, final int id, final boolean success)
+    {
+        final IncomingTransfer transfer = (IncomingTransfer)getIncoming(conn).remove(new Integer(id));
+        if ((transfer == null) || (transfer.channel == null))
+        {
+            return;
+        }
+
+        if (!success || (transfer.received != transfer.size))
+        {
+            Log.log(Log.NET, "Transfer of " + transfer.filename + " failed after " + transfer.received + " of "
+                + transfer.size + " bytes");
+            discard(transfer);
+            return;
+        }
+
+        try
+        {
+            transfer.channel.close();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            discard(transfer);
+            return;
+        }
+
+        if (transfer.target.exists())
+        {
+            transfer.target.delete();
+        }
+        if (!transfer.temp.renameTo(transfer.target))
+        {
+            GametableFrame.getGametableFrame().logAlertMessage("Unable to save \"" + transfer.filename + "\".");
+            transfer.temp.delete();
+            return;
+        }
+
+        PacketManager.pngReceived(transfer.filename);
+    }
+
+    /**
+     * Abandons every transfer to or from the given connection.
+     */
+    public static void connectionDropped(final Connection conn)
+    {
+        final Iterator iterator = g_outgoing.iterator();
+        while (iterator.hasNext())
+        {
+            final OutgoingTransfer transfer = (OutgoingTransfer)iterator.next();
+            if (transfer.connection == conn)
+            {
+                closeQuietly(transfer.channel);
+                iterator.remove();
+            }
+        }
+
+        final Map incoming = (Map)g_incoming.remove(conn);
+        if (incoming != null)
+        {
+            final Iterator incomingIterator = incoming.values().iterator();
+            while (incomingIterator.hasNext())
+            {
+                discard((IncomingTransfer)incomingIterator.next());
+            }
+        }
+    }
+
+    /**
+     * Abandons every transfer.
+     */
+    public static void reset()
+    {
+        final Iterator iterator = g_outgoing.iterator();
+        while (iterator.hasNext())
+        {
+            closeQuietly(((OutgoingTransfer)iterator.next()).channel);
+        }
+        g_outgoing.clear();
+
+        final Iterator connIterator = g_incoming.values().iterator();
+        while (connIterator.hasNext())
+        {
+            final Iterator incomingIterator = ((Map)connIterator.next()).values().iterator();
+            while (incomingIterator.hasNext())
+            {
+                discard((IncomingTransfer)incomingIterator.next());
+            }
+        }
+        g_incoming.clear();
+    }
+
+    private static void pump(final OutgoingTransfer transfer)
+    {
+        if (transfer.channel == null)
+        {
+            return;
+        }
+
+        if (transfer.connection.isDead())
+        {
+            closeQuietly(transfer.channel);
+            transfer.channel = null;
+            return;
+        }
+
+        try
+        {
+            while ((transfer.inFlight < WINDOW) && (transfer.position < transfer.size))
+            {
+                g_readBuffer.clear();
+                final int read = transfer.channel.read(g_readBuffer, transfer.position);
+                if (read <= 0)
+                {
+                    throw new EOFException(transfer.filename + " is shorter than " + transfer.size + " bytes");
+                }
+
+                final OutboundFrame frame = PacketManager.makeFileChunkFrame(transfer.id, g_readBuffer.array(), read);
+                if (frame == null)
+                {
+                    throw new IOException("Unable to make chunk of " + transfer.filename);
+                }
+                transfer.connection.sendPacket(frame);
+                frame.release();
+                transfer.position += read;
+                transfer.inFlight++;
+            }
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            transfer.connection.sendPacket(PacketManager.makeFileCompletePacket(transfer.id, false));
+            closeQuietly(transfer.channel);
+            transfer.channel = null;
+            return;
+        }
+
+        if (transfer.position >= transfer.size)
+        {
+            // the acks for the tail don't matter; the receiver has everything it needs once this arrives
+            transfer.connection.sendPacket(PacketManager.makeFileCompletePacket(transfer.id, true));
+            closeQuietly(transfer.channel);
+            transfer.channel = null;
+        }
+    }
+
+    private static void removeFinished()
+    {
+        final Iterator iterator = g_outgoing.iterator();
+        while (iterator.hasNext())
+        {
+            if (((OutgoingTransfer)iterator.next()).channel == null)
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static Map getIncoming(final Connection conn)
+    {
+        Map retVal = (Map)g_incoming.get(conn);
+        if (retVal == null)
+        {
+            retVal = new HashMap();
+            g_incoming.put(conn, retVal);
+        }
+        return retVal;
+    }
+
+    private static void discard(final IncomingTransfer transfer)
+    {
+        closeQuietly(transfer.channel);
+        transfer.channel = null;
+        if (transfer.temp != null)
+        {
+            transfer.temp.delete();
+        }
+    }
+
+    private static void closeQuietly(final FileChannel channel)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+        }
+    }
+
+    // --- Constructors ----------------------------------------------------------------------------------------------
+
+    // prevent instantiation
+    private FileTransferManager()
+    {
+        throw new RuntimeException("FileTransferManager should not be instantiated!");
+    }
+}
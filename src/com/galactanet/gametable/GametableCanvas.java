@@ -98,8 +98,18 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
     private Point              m_mouseModelFloat;
 
     private boolean            m_newPogIsBeingDragged;
+
+    /**
+     * Pogs being dragged on the public map, by us or by others.
+     */
+    private PogDragStream      m_pogDragStream        = new PogDragStream(this);
     private Pog                m_pogMouseOver;
     private Image              m_pointingImage;
+
+    /**
+     * Our cursor going out and other players' cursors coming in.
+     */
+    private PointerStream      m_pointerStream        = new PointerStream(this);
     /**
      * the id of the tool that we switched out of to go to hand tool for a right-click
      */
@@ -625,6 +635,24 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
         repaint();
     }
 
+    /**
+     * Adds many pogs at once, refreshing the pog list only once at the end.
+     */
+    public void doAddPogs(final Pog[] toAdd, final boolean bPublicLayerPog)
+    {
+        GametableMap map = m_privateMap;
+        if (bPublicLayerPog)
+        {
+            map = m_publicMap;
+        }
+        for (int i = 0; i < toAdd.length; i++)
+        {
+            map.addPog(toAdd[i]);
+        }
+        m_gametableFrame.refreshActivePogList();
+        repaint();
+    }
+
     public void doErase(final Rectangle r, boolean bColorSpecific, final int color, final int authorID,
         final int stateID)
     {
@@ -695,6 +723,7 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
         }
 
         toMove.setPosition(newX, newY);
+        m_pogDragStream.stopped(id);
 
         // this pog moves to the end of the array
         getActiveMap().removePog(toMove);
@@ -748,6 +777,7 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
         if (toRemove != null)
         {
             getActiveMap().removePog(toRemove);
+            m_pogDragStream.stopped(id);
         }
         m_gametableFrame.refreshActivePogList();
         repaint();
@@ -1317,6 +1347,7 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
         m_mouseModelFloat = viewToModel(e.getX(), e.getY());
         if (isPointing())
         {
+            pointAt(m_mouseModelFloat);
             return;
         }
         m_gametableFrame.getToolManager().mouseMoved(m_mouseModelFloat.x, m_mouseModelFloat.y, getModifierFlags());
@@ -1390,6 +1421,49 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
         repaint();
     }
 
+    /**
+     * Tells other players where a pog being dragged on the public map is now, at most rate times a second.
+     */
+    public void dragPog(final int id, final int newX, final int newY, final int rate)
+    {
+        if (isPublicMap())
+        {
+            m_pogDragStream.dragged(id, newX, newY, rate);
+        }
+    }
+
+    /**
+     * Ends the drag started by dragPog().
+     * 
+     * @param moved True if the pog has been moved or removed, which ends the drag for everyone else too.
+     */
+    public void endPogDrag(final boolean moved)
+    {
+        m_pogDragStream.dropped(moved);
+    }
+
+    /**
+     * Called when another player drags a pog on the public map.
+     */
+    public void pogDragReceived(final int id, final int x, final int y, final boolean bDragging)
+    {
+        m_pogDragStream.received(id, x, y, bDragging);
+        if (!bDragging)
+        {
+            repaint();
+        }
+    }
+
+    /**
+     * Forgets every pog drag in progress and every other player's cursor, on leaving a game.
+     */
+    public void resetNetworkState()
+    {
+        m_pogDragStream.reset();
+        m_pointerStream.reset();
+        repaint();
+    }
+
     public void movePog(final int id, final int newX, final int newY)
     {
         if (isPublicMap())
@@ -1593,6 +1667,12 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
             }
         }
 
+        // pogs other players are dragging
+        if (mapToDraw == m_publicMap)
+        {
+            m_pogDragStream.paint(g);
+        }
+
         // we don't draw the pog being dragged if we're not
         // drawing the current map
         if (mapToDraw == getActiveMap())
@@ -1743,24 +1823,79 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
     private void pointAt(final Point pointLocation)
     {
         final Player me = m_gametableFrame.getMyPlayer();
+        final Point oldPoint = (me.isPointing() ? me.getPoint() : null);
 
         if (pointLocation == null)
         {
             me.setPointing(false);
-            m_gametableFrame.send(PacketManager.makePointPacket(m_gametableFrame.getMyPlayerIndex(), 0, 0, false));
-            repaint();
+            m_pointerStream.stopped();
+            repaintPointer(me, oldPoint);
             return;
         }
 
         me.setPointing(true);
         me.setPoint(pointLocation);
+        if (oldPoint == null)
+        {
+            m_pointerStream.started(pointLocation.x, pointLocation.y);
+            setToolCursor(-1);
+        }
+        else
+        {
+            m_pointerStream.moved(pointLocation.x, pointLocation.y);
+        }
 
-        m_gametableFrame.send(PacketManager.makePointPacket(m_gametableFrame.getMyPlayerIndex(), me.getPoint().x, me
-            .getPoint().y, true));
+        repaintPointer(me, oldPoint);
+    }
 
-        setToolCursor(-1);
+    /**
+     * Called when another player points somewhere, moves the place they are pointing at, or stops pointing.
+     */
+    public void pointerReceived(final Player plr, final int modelX, final int modelY, final boolean bPointing)
+    {
+        m_pointerStream.received(plr, modelX, modelY, bPointing);
+    }
 
-        repaint();
+    /**
+     * Repaints the parts of the canvas a player's cursor has left and now covers.
+     * 
+     * @param plr Player pointing.
+     * @param oldModelPoint Where the cursor was drawn before, or null if it wasn't.
+     */
+    public void repaintPointer(final Player plr, final Point oldModelPoint)
+    {
+        if (oldModelPoint != null)
+        {
+            repaint(getPointerBounds(plr, oldModelPoint));
+        }
+
+        if (plr.isPointing() && (plr.getPoint() != null))
+        {
+            repaint(getPointerBounds(plr, plr.getPoint()));
+        }
+    }
+
+    /**
+     * @return The view area covered by a player's cursor and name when pointing at the given model point, as drawn by
+     *         paintMap().
+     */
+    private Rectangle getPointerBounds(final Player plr, final Point modelPoint)
+    {
+        final FontMetrics fm = getFontMetrics(MAIN_FONT);
+        final Point pointingAt = modelToDraw(modelPoint.x, modelPoint.y);
+        final int padding = 3;
+        final int top = pointingAt.y - 5 - fm.getHeight() - 2;
+        final int width = Math.max(fm.stringWidth(plr.getCharacterName()) + padding, m_pointingImage.getWidth(null));
+        final int bottom = pointingAt.y - 5 + Math.max(m_pointingImage.getHeight(null), 0);
+        final Rectangle bounds = new Rectangle(pointingAt.x - padding, top, width + padding, bottom - top);
+        bounds.grow(2, 2);
+
+        // the cursor is drawn on both layers, which needn't be scrolled alike
+        final Rectangle onPublic = new Rectangle(bounds);
+        onPublic.translate(-m_publicMap.getScrollX(), -m_publicMap.getScrollY());
+        final Rectangle onPrivate = new Rectangle(bounds);
+        onPrivate.translate(-m_privateMap.getScrollX(), -m_privateMap.getScrollY());
+        return onPublic.union(onPrivate);
     }
 
     public void recenterView(final int modelCenterX, final int modelCenterY, final int zoomLevel)
@@ -2062,6 +2197,13 @@ public class GametableCanvas extends JComponent implements MouseListener, MouseM
 
     public void tick(final long ms)
     {
+        m_pointerStream.tick();
+        if (m_pogDragStream.tick())
+        {
+            repaint();
+        }
+
+
         if (m_scrolling)
         {
             m_scrollTime += ms;
@@ -78,8 +78,8 @@ import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.SAXException;
 
 import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.Latency;
 import com.galactanet.gametable.net.NetworkThread;
-import com.galactanet.gametable.net.Packet;
 import com.galactanet.gametable.prefs.PreferenceDescriptor;
 import com.galactanet.gametable.prefs.Preferences;
 import com.galactanet.gametable.tools.ToolManager;
@@ -248,12 +248,45 @@ public class GametableFrame extends JFrame implements ActionListener
     public final static int       NETSTATE_JOINED          = 2;
     public final static int       NETSTATE_NONE            = 0;
 
+    /**
+     * Most packet types listed by /netprofile.
+     */
+    private final static int      NETPROFILE_LINES         = 10;
+
+    /**
+     * Most network worker threads /netthreads allows.
+     */
+    private final static int      MAX_NETWORK_WORKERS      = 16;
+
     public final static int       PING_INTERVAL            = 2500;
 
     public final static int       REJECT_INVALID_PASSWORD  = 0;
     public final static int       REJECT_VERSION_MISMATCH  = 1;
+    public final static int       REJECT_FRAME_TOO_LARGE   = Connection.REJECT_TOO_LARGE;
+    public final static int       REJECT_RESUME_FAILED     = 3;
 
     private final static boolean  SEND_PINGS               = true;
+
+    /**
+     * Least milliseconds between two PACKET_VIEWs from us.
+     */
+    private final static long     VIEW_INTERVAL            = 250;
+
+    /**
+     * Least milliseconds between two attempts to reconnect to the host after losing the connection.
+     */
+    private final static long     RESUME_INTERVAL          = 2000;
+
+    /**
+     * Where a game we host is journaled, and the snapshot the journal follows; see Journal.
+     */
+    private final static String   JOURNAL_FILE             = "journal.gtj";
+    private final static String   JOURNAL_SNAPSHOT_FILE    = "journal.grm";
+
+    /**
+     * Most milliseconds between two snapshots of a game we host.
+     */
+    private final static long     JOURNAL_COMPACT_INTERVAL = 5 * 60 * 1000;
 //    private final static boolean  USE_NEW_CHAT_PANE        = true;
 
     /**
@@ -308,10 +341,16 @@ public class GametableFrame extends JFrame implements ActionListener
     JTextField                      m_gridunitmultiplier;
     private final JCheckBoxMenuItem m_hexGridModeMenuItem    = new JCheckBoxMenuItem("Hex Grid");
 
+
+    /**
+     * Our connection to the host of the game we joined, or null if we haven't joined one.
+     */
+    private Connection              m_hostConnection         = null;
     private JMenuItem               m_hostMenuItem;
     public String                   m_ipAddress              = DEFAULT_SERVER;
     private JMenuItem               m_joinMenuItem;
     private long                    m_lastPingTime           = 0;
+    private int                     m_pingSequence           = 0;
 
     // the name of the last person who sent a private message
     public String                   m_lastPrivateMessageSender;
@@ -329,6 +368,15 @@ public class GametableFrame extends JFrame implements ActionListener
 
     private volatile NetworkThread  m_networkThread;
 
+    // decodes what m_networkThread receives so that tick() only has to apply it
+    private PacketDecoder           m_packetDecoder;
+
+    // true while tick() is applying a batch of received packets
+    private boolean                 m_bApplyingPackets       = false;
+
+    // true if the pog list was changed while applying packets and needs refreshing afterwards
+    private boolean                 m_bActivePogListStale    = false;
+
     // the id that will be assigned to the next player to join
     public int                      m_nextPlayerId;
 
@@ -351,8 +399,60 @@ public class GametableFrame extends JFrame implements ActionListener
     
 
     public int                      m_port                   = DEFAULT_PORT;
+
+    /**
+     * Number of network worker threads to host with; see /netthreads. 0 hosts with a single network thread.
+     */
+    private int                     m_networkWorkers         = 0;
     private final Preferences       m_preferences            = new Preferences();
 
+    /**
+     * The public map as a PACKET_SNAPSHOT for players joining, or null if the map has changed since it was last made.
+     */
+    private byte[]                  m_snapshotPacket         = null;
+
+    /**
+     * Journal of the changes to the public map of a game we host, or null if we aren't hosting or journaling failed.
+     */
+    private Journal                 m_journal                = null;
+    private long                    m_journalCompactTime     = 0;
+
+    /**
+     * A new connection to the host, made to resume our lost one, waiting to be added to the network thread; see
+     * tryResume().
+     */
+    private volatile Connection     m_resumeConnected        = null;
+    private volatile boolean        m_resumeConnecting       = false;
+
+    /**
+     * The new connection to the host waiting for its PACKET_RESUME to be answered, or null.
+     */
+    private Connection              m_resumeConnection       = null;
+    private long                    m_resumeTime             = 0;
+
+    /**
+     * Holds back changes from players of a game we host who can't see them.
+     */
+    private final InterestFilter    m_interestFilter         = new InterestFilter();
+
+    /**
+     * True to join games as a spectator, who watches but can't change anything; set from the join dialog.
+     */
+    public boolean                  m_spectating             = false;
+
+    /**
+     * Keeps the spectators of a game we host up to date.
+     */
+    private final SpectatorFeed     m_spectatorFeed          = new SpectatorFeed(new SpectatorFeed.Source()
+    {
+        public List getSpectatorState()
+        {
+            final List retVal = new ArrayList();
+            retVal.add(getSnapshotPacket());
+            return retVal;
+        }
+    });
+
     private final JCheckBox         m_showNamesCheckbox      = new JCheckBox("Show pog names");
     private final JCheckBoxMenuItem m_squareGridModeMenuItem = new JCheckBoxMenuItem("Square Grid");
     
@@ -370,6 +470,13 @@ public class GametableFrame extends JFrame implements ActionListener
 
     private final ToolManager       m_toolManager            = new ToolManager();
     private final List              m_typing                 = new ArrayList();
+
+    /**
+     * The part of the map we last told the host we can see, or null if we haven't yet.
+     */
+    private Rectangle               m_viewSent               = null;
+    private long                    m_viewSentTime           = 0;
+
     // window size and position
     private Point                   m_windowPos;
     private Dimension               m_windowSize;
@@ -681,8 +788,24 @@ public class GametableFrame extends JFrame implements ActionListener
      */
     public void connectionDropped(final Connection conn)
     {
+        FileTransferManager.connectionDropped(conn);
+
         if (m_netStatus == NETSTATE_JOINED) // if we were connected before
         {
+            if (conn == m_resumeConnection)
+            {
+                // that attempt to reconnect failed; tick() tries again
+                m_resumeConnection = null;
+                return;
+            }
+
+            if (conn.isSuspended())
+            {
+                logAlertMessage("Your connection to the host was lost. Reconnecting...");
+                m_resumeTime = 0;
+                return;
+            }
+
             // we lost our connection to the host
             logAlertMessage("Your connection to the host was lost.");
             disconnect(); // do any disconnection processing
@@ -691,9 +814,26 @@ public class GametableFrame extends JFrame implements ActionListener
             return;
         }
 
+        if (!conn.isSuspended())
+        {
+            m_interestFilter.connectionDropped(conn);
+        }
+        final Player spectator = m_spectatorFeed.spectatorLeft(conn);
+        if (spectator != null)
+        {
+            logSystemMessage(spectator.getPlayerName() + " stopped watching.");
+            return;
+        }
+
         // find the player who owns that connection
         final Player dead = getPlayerFromConnection(conn);
-        if (dead != null) // if we found the player
+        if ((dead != null) && conn.isSuspended())
+        {
+            // keep their place; nothing changes for anyone else unless they don't come back
+            postSystemMessage(dead.getPlayerName() + " lost their connection. Holding their place for "
+                + Connection.getResumeGrace() / 1000 + " seconds.");
+        }
+        else if (dead != null) // if we found the player
         {
             // remove this player
             m_players.remove(dead);
@@ -1109,6 +1249,15 @@ public class GametableFrame extends JFrame implements ActionListener
             m_networkThread.interrupt();
             m_networkThread = null;
         }
+        m_hostConnection = null;
+        m_resumeConnection = null;
+        m_resumeConnected = null;
+        closeJournal();
+        stopPacketDecoder();
+        FileTransferManager.reset();
+        m_spectatorFeed.reset();
+        m_interestFilter.reset();
+        getGametableCanvas().resetNetworkState();
 
         m_hostMenuItem.setEnabled(true); // enable the menu item to host a game
         m_joinMenuItem.setEnabled(true); // enable the menu item to join an existing game
@@ -2468,11 +2617,15 @@ public class GametableFrame extends JFrame implements ActionListener
         me.setHostPlayer(true);
         m_myPlayerIndex = 0;
 
-        m_networkThread = new NetworkThread(m_port);
+        m_networkThread = new NetworkThread(m_port, m_networkWorkers);
         m_networkThread.start();
+        startPacketDecoder();
         // TODO: fix hosting failure detection
 
         m_netStatus = NETSTATE_HOST; // our status is now hosting
+        m_snapshotPacket = null; // the map may have changed while we were offline
+        m_spectatorFeed.reset();
+        m_interestFilter.reset();
         final String message = "Hosting on port: " + m_port;
         logSystemMessage(message);
 
@@ -2491,6 +2644,8 @@ public class GametableFrame extends JFrame implements ActionListener
         // also, all decks clear
         m_decks.clear();
         m_cards.clear();
+
+        openJournal();
     }
 
     /**
@@ -2501,6 +2656,7 @@ public class GametableFrame extends JFrame implements ActionListener
         logAlertMessage("Failed to host.");
         m_networkThread.interrupt();
         m_networkThread = null;
+        stopPacketDecoder();
         disconnect();
     }
 
@@ -2674,6 +2830,7 @@ public class GametableFrame extends JFrame implements ActionListener
 
         getGametableCanvas().setActiveMap(getGametableCanvas().getPublicMap());
         loadState(new File("autosave.grm"));
+        offerRecovery();
         loadPrefs();
 
         addPlayer(new Player(m_playerName, m_characterName, -1));
@@ -2927,8 +3084,10 @@ public class GametableFrame extends JFrame implements ActionListener
         {
             m_networkThread = new NetworkThread();
             m_networkThread.start();
+            startPacketDecoder();
             final Connection conn = new Connection(m_ipAddress, m_port);
             m_networkThread.add(conn);
+            m_hostConnection = conn;
 
             // now that we've successfully made a connection, let the host know
             // who we are
@@ -2939,6 +3098,7 @@ public class GametableFrame extends JFrame implements ActionListener
             m_myPlayerIndex = 0;
 
             // reset game data
+            m_viewSent = null;
             getGametableCanvas().getPublicMap().setScroll(0, 0);
             getGametableCanvas().getPublicMap().clearPogs();
             getGametableCanvas().getPublicMap().clearLines();
@@ -2948,19 +3108,19 @@ public class GametableFrame extends JFrame implements ActionListener
             while (!conn.isConnected()) // this waits until the connection is established
             {
             }
-            conn.sendPacket(PacketManager.makePlayerPacket(me, m_password)); // send my data to the host
+            conn.sendPacket(PacketManager.makePlayerPacket(me, m_password, m_spectating)); // send my data to the host
 
             PacketSourceState.beginHostDump();
 
             // and now we're ready to pay attention
             m_netStatus = NETSTATE_JOINED;
 
-            logSystemMessage("Joined game");
+            logSystemMessage(m_spectating ? "Joined game as a spectator" : "Joined game");
 
             m_hostMenuItem.setEnabled(false); // disable the host menu item
             m_joinMenuItem.setEnabled(false); // disable the join menu item
             m_disconnectMenuItem.setEnabled(true); // enable the disconnect menu item
-            setTitle(GametableApp.VERSION + " - " + me.getCharacterName());
+            setTitle(GametableApp.VERSION + " - " + me.getCharacterName() + (m_spectating ? " (watching)" : ""));
         }
         catch (final Exception ex)
         {
@@ -3426,7 +3586,7 @@ public class GametableFrame extends JFrame implements ActionListener
     public void lockAllPogPacketReceived(final boolean lock) {
         lockMap(getGametableCanvas().getPublicMap(),lock);
         if(m_netStatus == NETSTATE_HOST) {
-            m_networkThread.send(PacketManager.makeLockAllPogPacket(lock));
+            send(PacketManager.makeLockAllPogPacket(lock));
         }
     }
 
@@ -3519,6 +3679,17 @@ public class GametableFrame extends JFrame implements ActionListener
         return newPog;
     }
 
+    public void dragPogPacketReceived(final int id, final int x, final int y, final boolean bDragging)
+    {
+        getGametableCanvas().pogDragReceived(id, x, y, bDragging);
+
+        if (m_netStatus == NETSTATE_HOST)
+        {
+            // pass it on to everyone else who can show it
+            sendToCapable(PacketManager.makeDragPogPacket(id, x, y, bDragging), Connection.CAPABILITY_DRAG);
+        }
+    }
+
     public void movePogPacketReceived(final int id, final int newX, final int newY)
     {
         getGametableCanvas().doMovePog(id, newX, newY);
@@ -3530,12 +3701,152 @@ public class GametableFrame extends JFrame implements ActionListener
         }
     }
 
+    /**
+     * Handles a PACKET_RESUME: as host, a player taking their place back on a new connection; as a player, the host
+     * granting us a session token, or answering our attempt to resume.
+     */
+    public void resumePacketReceived(final Connection conn, final long token, final long framesReceived)
+    {
+        if (m_netStatus == NETSTATE_HOST)
+        {
+            final Connection old = m_networkThread.getSuspended(token);
+            final Player player = (old == null ? null : getPlayerFromConnection(old));
+            if ((player == null) || (framesReceived < 0)
+                || !m_networkThread.resume(old, conn, framesReceived, PacketManager.makeResumePacket(token, old
+                    .getFramesReceived())))
+            {
+                kick(conn, REJECT_RESUME_FAILED);
+                return;
+            }
+
+            player.setConnection(conn);
+            m_interestFilter.connectionResumed(old, conn);
+            postSystemMessage(player.getPlayerName() + " is back.");
+            return;
+        }
+
+        if (m_netStatus != NETSTATE_JOINED)
+        {
+            return;
+        }
+
+        if (framesReceived < 0)
+        {
+            // the host lets us resume this connection if it is lost
+            conn.setSessionToken(token);
+            return;
+        }
+
+        if ((conn != m_resumeConnection) || (m_hostConnection == null) || (token != m_hostConnection.getSessionToken())
+            || !m_networkThread.resume(m_hostConnection, conn, framesReceived, null))
+        {
+            logAlertMessage("Could not pick up where the lost connection left off.");
+            disconnect();
+            return;
+        }
+
+        m_hostConnection = conn;
+        m_resumeConnection = null;
+        m_viewSent = null;
+        logSystemMessage("Reconnected to the host.");
+    }
+
+    /**
+     * While our connection to the host is suspended, keeps trying to make a new one to resume it on. Connecting is done
+     * on another thread, so that an unreachable host doesn't hold up the event thread.
+     */
+    private void tryResume()
+    {
+        final Connection old = m_hostConnection;
+        if ((old == null) || !old.isSuspended())
+        {
+            return;
+        }
+
+        final Connection connected = m_resumeConnected;
+        if (connected != null)
+        {
+            m_resumeConnected = null;
+            m_resumeConnection = connected;
+            m_networkThread.addForResume(connected);
+            connected.sendPacket(PacketManager.makeResumePacket(old.getSessionToken(), old.getFramesReceived()));
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (m_resumeConnecting || (m_resumeConnection != null) || (now - m_resumeTime < RESUME_INTERVAL))
+        {
+            return;
+        }
+
+        m_resumeTime = now;
+        m_resumeConnecting = true;
+        final String address = m_ipAddress;
+        final int port = m_port;
+        new Thread("Reconnect")
+        {
+            public void run()
+            {
+                try
+                {
+                    m_resumeConnected = new Connection(address, port);
+                }
+                catch (final IOException ex)
+                {
+                    Log.log(Log.NET, ex);
+                }
+                finally
+                {
+                    m_resumeConnecting = false;
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Notes the part of the map a player can see.
+     */
+    public void viewPacketReceived(final Connection conn, final Rectangle view)
+    {
+        if (m_netStatus == NETSTATE_HOST)
+        {
+            m_interestFilter.setView(conn, view, m_networkThread);
+        }
+    }
+
+    /**
+     * Tells the host what part of the map we can see, if it has changed and the host wants to know.
+     */
+    private void sendView()
+    {
+        final long now = System.currentTimeMillis();
+        if (m_spectating || PacketSourceState.isHostDumping() || (now - m_viewSentTime < VIEW_INTERVAL))
+        {
+            return;
+        }
+
+        final Rectangle view = getGametableCanvas().getVisibleCanvasRect(getGametableCanvas().m_zoom);
+        if (view.equals(m_viewSent))
+        {
+            return;
+        }
+
+        m_viewSent = view;
+        m_viewSentTime = now;
+        sendToCapable(PacketManager.makeViewPacket(view), Connection.CAPABILITY_VIEW);
+    }
+
     public void packetReceived(final Connection conn, final byte[] packet)
+    {
+        packetReceived(conn, packet, packet.length);
+    }
+
+    public void packetReceived(final Connection conn, final byte[] packet, final int length)
     {
         // synch here. after we get the packet, but before we process it.
         // this is all the synching we need on the comm end of things.
         // we will also need to synch every user entry point
-        PacketManager.readPacket(conn, packet);
+        PacketManager.readPacket(conn, packet, length);
     }
 
     public void parseSlashCommand(final String text)
@@ -3587,6 +3898,16 @@ public class GametableFrame extends JFrame implements ActionListener
                 final Player player = (Player)m_players.get(i);
                 buffer.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;");
                 buffer.append(UtilityFunctions.emitUserLink(player.getCharacterName(), player.toString()));
+                final Latency latency = getLatency(player);
+                if (latency != null)
+                {
+                    buffer.append(" - ping ");
+                    buffer.append(latency);
+                    buffer.append(", clock ");
+                    buffer.append(latency.getClockOffset() >= 0 ? "+" : "");
+                    buffer.append(latency.getClockOffset());
+                    buffer.append(" ms");
+                }
                 buffer.append("<br>");
             }
             buffer.append("<b>");
@@ -3594,6 +3915,162 @@ public class GametableFrame extends JFrame implements ActionListener
             buffer.append(" player");
             buffer.append((m_players.size() > 1 ? "s" : ""));
             buffer.append("</b>");
+
+            final List spectators = m_spectatorFeed.getSpectators();
+            if (!spectators.isEmpty())
+            {
+                buffer.append("<br><b>Watching:</b> ");
+                for (int i = 0, size = spectators.size(); i < size; ++i)
+                {
+                    buffer.append(i > 0 ? ", " : "");
+                    buffer.append(((Player)spectators.get(i)).getPlayerName());
+                }
+            }
+            logSystemMessage(buffer.toString());
+        }
+        else if (words[0].equals("/netstat"))
+        {
+            final StringBuffer buffer = new StringBuffer();
+            buffer.append("<b><u>Network memory</u></b><br>");
+            long total = 0;
+            for (int i = 0, size = m_players.size(); i < size; ++i)
+            {
+                final Player player = (Player)m_players.get(i);
+                final Connection conn = player.getConnection();
+                if (conn == null)
+                {
+                    continue;
+                }
+
+                total += conn.getReceiveBufferSize();
+                buffer.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;");
+                buffer.append(player.getPlayerName());
+                buffer.append(": receive buffer ");
+                buffer.append(conn.getReceiveBufferSize() / 1024);
+                buffer.append(" KB, ");
+                buffer.append(conn.getQueuedBytes() / 1024);
+                buffer.append(" KB unread, ");
+                buffer.append(conn.getPendingBytes() / 1024);
+                buffer.append(" KB unsent");
+                if (conn.isReadPaused())
+                {
+                    buffer.append(" (reading paused)");
+                }
+                buffer.append("<br>");
+            }
+            buffer.append("<b>");
+            buffer.append(total / 1024);
+            buffer.append(" KB of direct buffers; frame limit ");
+            buffer.append(Connection.getMaxFrameSize() / 1024);
+            buffer.append(" KB</b>");
+            final NetworkThread thread = m_networkThread;
+            if (thread != null)
+            {
+                buffer.append("<br>");
+                buffer.append(thread.getBatch().getBatchedPacketCount());
+                buffer.append(" packets sent in ");
+                buffer.append(thread.getBatch().getBatchCount());
+                buffer.append(" batches");
+                if (thread.getWorkerCount() > 0)
+                {
+                    buffer.append(" by ");
+                    buffer.append(thread.getWorkerCount());
+                    buffer.append(" network threads");
+                }
+                if (thread.getEvictionCount() > 0)
+                {
+                    buffer.append("<br>");
+                    buffer.append(thread.getEvictionCount());
+                    buffer.append(" dead connections evicted, holding ");
+                    buffer.append(thread.getEvictedBytes() / 1024);
+                    buffer.append(" KB unsent");
+                }
+            }
+            if (m_interestFilter.getHeldCount() > 0)
+            {
+                buffer.append("<br>");
+                buffer.append(m_interestFilter.getHeldCount());
+                buffer.append(" changes held back from players who couldn't see them, ");
+                buffer.append(m_interestFilter.getSkippedCount());
+                buffer.append(" never needed; ");
+                buffer.append(m_interestFilter.getCatchUpCount());
+                buffer.append(" catch-ups, ");
+                buffer.append(m_interestFilter.getHoldingCount());
+                buffer.append(" changes waiting");
+            }
+            if (!m_spectatorFeed.getSpectators().isEmpty())
+            {
+                buffer.append("<br>");
+                buffer.append(m_spectatorFeed.getUpdateCount());
+                buffer.append(" updates of ");
+                buffer.append(m_spectatorFeed.getUpdateBytes() / 1024);
+                buffer.append(" KB in all shared by ");
+                buffer.append(m_spectatorFeed.getSpectators().size());
+                buffer.append(" spectators");
+            }
+            logSystemMessage(buffer.toString());
+        }
+        else if (words[0].equals("/netthreads"))
+        {
+            if (words.length > 1)
+            {
+                try
+                {
+                    final int workers = Integer.parseInt(words[1]);
+                    if ((workers < 0) || (workers > MAX_NETWORK_WORKERS))
+                    {
+                        throw new NumberFormatException();
+                    }
+                    m_networkWorkers = workers;
+                }
+                catch (final NumberFormatException nfe)
+                {
+                    logAlertMessage("/netthreads usage: /netthreads &lt;0 to " + MAX_NETWORK_WORKERS + "&gt;");
+                    return;
+                }
+            }
+
+            // 0 means the network thread does everything itself
+            logSystemMessage("Network worker threads to host with: " + m_networkWorkers
+                + " (0 for one thread; more help games with many players). Takes effect the next time you host.");
+        }
+        else if (words[0].equals("/netprofile"))
+        {
+            if ((words.length > 1) && words[1].equals("reset"))
+            {
+                PacketManager.resetHandlerCounters();
+                logSystemMessage("Packet profile cleared.");
+                return;
+            }
+
+            // batches are counted along with the packets inside them
+            final List handlers = PacketManager.getHandlersByCost();
+            final StringBuffer buffer = new StringBuffer();
+            buffer.append("<b><u>Received packets by cost</u></b><br>");
+            for (int i = 0, size = Math.min(handlers.size(), NETPROFILE_LINES); i < size; ++i)
+            {
+                final PacketHandler handler = (PacketHandler)handlers.get(i);
+                buffer.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;");
+                buffer.append(handler.getName());
+                buffer.append(": ");
+                buffer.append(handler.getInvocations());
+                buffer.append(" packets, ");
+                buffer.append(handler.getBytes() / 1024);
+                buffer.append(" KB, ");
+                buffer.append(handler.getTotalNanos() / 1000000);
+                buffer.append(" ms (decode ");
+                buffer.append(handler.getDecodeNanos() / 1000000);
+                buffer.append(" ms, apply ");
+                buffer.append(handler.getApplyNanos() / 1000000);
+                buffer.append(" ms), ");
+                buffer.append(handler.getTotalNanos() / 1000 / handler.getInvocations());
+                buffer.append(" us each<br>");
+            }
+            if (handlers.isEmpty())
+            {
+                buffer.append("&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;Nothing received yet.<br>");
+            }
+            buffer.append("<b>/netprofile reset</b> clears the counts");
             logSystemMessage(buffer.toString());
         }
         else if (words[0].equals("/roll") || words[0].equals("/proll"))
@@ -3895,16 +4372,38 @@ public class GametableFrame extends JFrame implements ActionListener
                 + "<b>/deck:</b> Various deck actions. type /deck for more details<br>"
                 + "<b>/emote:</b> Display an emote<br>" + "<b>/goto:</b> Centers a pog in the map view.<br>"
                 + "<b>/help:</b> list all slash commands<br>" + "<b>/macro:</b> macro a die roll<br>"
-                + "<b>/macrodelete:</b> deletes an unwanted macro<br>" + "<b>/poglist:</b> lists pogs by attribute<br>"
+                + "<b>/macrodelete:</b> deletes an unwanted macro<br>"
+                + "<b>/netprofile:</b> shows which received packet types cost the most time<br>"
+                + "<b>/netstat:</b> shows the memory used by each connection<br>"
+                + "<b>/netthreads:</b> sets how many network threads to host with<br>"
+                + "<b>/poglist:</b> lists pogs by attribute<br>"
                 + "<b>/proll:</b> roll dice privately<br>" + "<b>/roll:</b> roll dice<br>"
                 + "<b>/tell:</b> send a private message to another player<br>"
                 + "<b>/who:</b> lists connected players<br>" + "<b>//:</b> list all slash commands");
         }
     }
 
-    public void pingPacketReceived()
+    /**
+     * @return What the pings have measured about our connection to a player, or null if we have no connection to them
+     *         or no measurements yet. When we have joined a game, that is only the host.
+     */
+    public Latency getLatency(final Player player)
     {
-        // do nothing for now
+        Connection conn = null;
+        if (m_netStatus == NETSTATE_HOST)
+        {
+            conn = player.getConnection();
+        }
+        else if ((m_netStatus == NETSTATE_JOINED) && player.isHostPlayer())
+        {
+            conn = m_hostConnection;
+        }
+
+        if ((conn == null) || !conn.getLatency().hasSamples())
+        {
+            return null;
+        }
+        return conn.getLatency();
     }
 
     public void playerJoined(final Connection connection, final Player player, final String password)
@@ -3936,34 +4435,135 @@ public class GametableFrame extends JFrame implements ActionListener
         getGametableCanvas().clearUndoStacks();
 
         // tell the new guy the entire state of the game
-        // lines
-        final LineSegment[] lines = new LineSegment[getGametableCanvas().getPublicMap().getNumLines()];
-        for (int i = 0; i < getGametableCanvas().getPublicMap().getNumLines(); i++)
+        final boolean bSnapshot = connection.hasCapability(Connection.CAPABILITY_SNAPSHOT);
+        if (bSnapshot)
         {
-            lines[i] = getGametableCanvas().getPublicMap().getLineAt(i);
+            // all in one go: lines, pogs, grid mode and decks
+            send(getSnapshotPacket(), player);
         }
-        send(PacketManager.makeLinesPacket(lines, -1, -1), player);
-
-        // pogs
-        for (int i = 0; i < getGametableCanvas().getPublicMap().getNumPogs(); i++)
+        else
         {
-            final Pog pog = getGametableCanvas().getPublicMap().getPog(i);
-            send(PacketManager.makeAddPogPacket(pog), player);
+            // lines
+            final LineSegment[] lines = new LineSegment[getGametableCanvas().getPublicMap().getNumLines()];
+            for (int i = 0; i < getGametableCanvas().getPublicMap().getNumLines(); i++)
+            {
+                lines[i] = getGametableCanvas().getPublicMap().getLineAt(i);
+            }
+            send(PacketManager.makeLinesPacket(lines, -1, -1), player);
+
+            // pogs
+            for (int i = 0; i < getGametableCanvas().getPublicMap().getNumPogs(); i++)
+            {
+                final Pog pog = getGametableCanvas().getPublicMap().getPog(i);
+                send(PacketManager.makeAddPogPacket(pog), player);
+            }
         }
 
         // finally, have the player recenter on the host's view
+        send(makeRecenterPacket(), player);
+
+        // let them know we're done sending them data from the login
+        send(PacketManager.makeLoginCompletePacket(), player);
+
+        if (connection.hasCapability(Connection.CAPABILITY_RESUME))
+        {
+            // lets them pick up where they left off if their connection drops
+            final long token = Connection.newSessionToken();
+            send(PacketManager.makeResumePacket(token, -1), connection);
+            connection.setSessionToken(token);
+        }
+
+        if (!bSnapshot)
+        {
+            // tell them the decks that are in play
+            sendDeckList();
+        }
+    }
+
+    /**
+     * Lets someone in to watch. A spectator gets the map as it is now, then only what the SpectatorFeed sends; nothing
+     * they send reaches the players.
+     */
+    public void spectatorJoined(final Connection connection, final Player spectator, final String password)
+    {
+        confirmHost();
+
+        if (!m_password.equals(password))
+        {
+            kick(connection, REJECT_INVALID_PASSWORD);
+            return;
+        }
+
+        // everything a spectator gets comes as snapshots and batches
+        if (!connection.hasCapability(Connection.CAPABILITY_SNAPSHOT)
+            || !connection.hasCapability(Connection.CAPABILITY_BATCH))
+        {
+            kick(connection, REJECT_VERSION_MISMATCH);
+            return;
+        }
+
+        connection.markSpectating();
+        spectator.setConnection(connection);
+        m_spectatorFeed.spectatorJoined(spectator);
+
+        send(getSnapshotPacket(), connection);
+        send(makeRecenterPacket(), connection);
+        send(PacketManager.makeLoginCompletePacket(), connection);
+
+        logSystemMessage(spectator.getPlayerName() + " is watching.");
+    }
+
+    /**
+     * @return A PACKET_RECENTER on the middle of our view.
+     */
+    private byte[] makeRecenterPacket()
+    {
         final int viewCenterX = getGametableCanvas().getWidth() / 2;
         final int viewCenterY = getGametableCanvas().getHeight() / 2;
 
         // convert to model coordinates
         final Point modelCenter = getGametableCanvas().viewToModel(viewCenterX, viewCenterY);
-        send(PacketManager.makeRecenterPacket(modelCenter.x, modelCenter.y, getGametableCanvas().m_zoom), player);
+        return PacketManager.makeRecenterPacket(modelCenter.x, modelCenter.y, getGametableCanvas().m_zoom);
+    }
 
-        // let them know we're done sending them data from the login
-        send(PacketManager.makeLoginCompletePacket(), player);
+    /**
+     * Loads the map sent by the host on joining, and for spectators every time it changes.
+     */
+    public void snapshotPacketReceived(final LineSegment[] lines, final Pog[] pogs, final int gridMode,
+        final String[] deckNames)
+    {
+        if (m_netStatus == NETSTATE_HOST)
+        {
+            // the host is the one that makes these
+            return;
+        }
+
+        if (m_spectating)
+        {
+            // each snapshot replaces the one before
+            getGametableCanvas().getPublicMap().clearLines();
+            getGametableCanvas().getPublicMap().clearPogs();
+        }
+
+        getGametableCanvas().doAddLineSegments(lines, -1, -1);
+
+        // see addPogPacketReceived()
+        getGametableCanvas().doAddPogs(pogs,
+            (getGametableCanvas().getActiveMap() == getGametableCanvas().getPublicMap()));
+        for (int i = 0; i < pogs.length; i++)
+        {
+            if (pogs[i].getId() >= Pog.g_nextId)
+            {
+                Pog.g_nextId = pogs[i].getId() + 5;
+            }
+            if (pogs[i].getSortOrder() >= Pog.g_nextSortId)
+            {
+                Pog.g_nextSortId = pogs[i].getSortOrder() + 1;
+            }
+        }
 
-        // tell them the decks that are in play
-        sendDeckList();
+        gridModePacketReceived(gridMode);
+        deckListPacketReceived(deckNames);
     }
 
     public void pogDataPacketReceived(final int id, final String s, final Map toAdd, final Set toDelete)
@@ -3972,7 +4572,7 @@ public class GametableFrame extends JFrame implements ActionListener
 
         if (m_netStatus == NETSTATE_HOST)
         {
-            m_networkThread.send(PacketManager.makePogDataPacket(id, s, toAdd, toDelete));
+            send(PacketManager.makePogDataPacket(id, s, toAdd, toDelete));
         }
     }
 
@@ -3981,7 +4581,7 @@ public class GametableFrame extends JFrame implements ActionListener
         getGametableCanvas().doPogReorder(changes);
         if (m_netStatus == NETSTATE_HOST)
         {
-            m_networkThread.send(PacketManager.makePogReorderPacket(changes));
+            send(PacketManager.makePogReorderPacket(changes));
         }
     }
 
@@ -3991,7 +4591,7 @@ public class GametableFrame extends JFrame implements ActionListener
 
         if (m_netStatus == NETSTATE_HOST)
         {
-            m_networkThread.send(PacketManager.makePogSizePacket(id, size));
+            send(PacketManager.makePogSizePacket(id, size));
         }
     }
 
@@ -4000,17 +4600,15 @@ public class GametableFrame extends JFrame implements ActionListener
         // we're not interested in point packets of our own hand
         if (plrIdx != getMyPlayerIndex())
         {
-            final Player plr = (Player)m_players.get(plrIdx);
-            plr.setPoint(x, y);
-            plr.setPointing(bPointing);
+            // the canvas repaints just around the cursor as it moves
+            getGametableCanvas().pointerReceived((Player)m_players.get(plrIdx), x, y, bPointing);
         }
 
         if (m_netStatus == NETSTATE_HOST)
         {
-            send(PacketManager.makePointPacket(plrIdx, x, y, bPointing));
+            // the sender already knows where it is pointing
+            sendToOthers(PacketManager.makePointPacket(plrIdx, x, y, bPointing));
         }
-
-        getGametableCanvas().repaint();
     }
 
     public void postAlertMessage(final String text)
@@ -4149,7 +4747,7 @@ public class GametableFrame extends JFrame implements ActionListener
 
         if (m_netStatus == NETSTATE_HOST)
         {
-            m_networkThread.send(PacketManager.makeRecenterPacket(x, y, zoom));
+            send(PacketManager.makeRecenterPacket(x, y, zoom));
         }
     }
 
@@ -4171,6 +4769,13 @@ public class GametableFrame extends JFrame implements ActionListener
      */
     public void refreshActivePogList()
     {
+        if (m_bApplyingPackets)
+        {
+            // tick() will do it once the whole batch is in
+            m_bActivePogListStale = true;
+            return;
+        }
+
         m_activePogsPanel.refresh();
     }
 
@@ -4185,6 +4790,13 @@ public class GametableFrame extends JFrame implements ActionListener
 
     public void rejectPacketReceived(final int reason)
     {
+        if ((reason == REJECT_FRAME_TOO_LARGE) && (m_netStatus == NETSTATE_HOST))
+        {
+            // a player's connection refused something we sent and is going away
+            logAlertMessage("A player could not accept a packet that large and has been disconnected.");
+            return;
+        }
+
         confirmJoined();
 
         // you got rejected!
@@ -4202,6 +4814,19 @@ public class GametableFrame extends JFrame implements ActionListener
                     + " Connection aborted.");
             }
             break;
+
+            case REJECT_FRAME_TOO_LARGE:
+            {
+                logAlertMessage("The host refused a packet over " + Connection.getMaxFrameSize() / 1024
+                    + " KB. Connection aborted.");
+            }
+            break;
+
+            case REJECT_RESUME_FAILED:
+            {
+                logAlertMessage("The host could not pick up where your lost connection left off. Please join again.");
+            }
+            break;
         }
         disconnect();
     }
@@ -4338,6 +4963,8 @@ public class GametableFrame extends JFrame implements ActionListener
      */
     private void saveAll()
     {
+        // the autosave has everything the journal does
+        closeJournal();
         saveState(getGametableCanvas().getPublicMap(), new File("autosave.grm"));
         saveState(getGametableCanvas().getPrivateMap(), new File("autosavepvt.grm"));
         savePrefs();
@@ -4423,6 +5050,32 @@ public class GametableFrame extends JFrame implements ActionListener
     }
 
     public void saveState(final GametableMap mapToSave, final File file)
+    {
+        final byte[] saveFile = makeSaveFile(mapToSave);
+        if (saveFile == null)
+        {
+            // failed to save. give up
+            return;
+        }
+
+        try
+        {
+            final FileOutputStream output = new FileOutputStream(file);
+            output.write(saveFile);
+            output.close();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            // failed to save. give up
+        }
+    }
+
+    /**
+     * @param mapToSave Map to save.
+     * @return The whole of a save file for the map, or null if it couldn't be made.
+     */
+    private byte[] makeSaveFile(final GametableMap mapToSave)
     {
         // save out all our data. The best way to do this is with packets, cause they're
         // already designed to pass data around.
@@ -4455,20 +5108,19 @@ public class GametableFrame extends JFrame implements ActionListener
             dos.write(gridModePacket);
 
             final byte[] saveFileData = baos.toByteArray();
-            final FileOutputStream output = new FileOutputStream(file);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(saveFileData.length + 8);
             final DataOutputStream fileOut = new DataOutputStream(output);
             fileOut.writeInt(COMM_VERSION);
             fileOut.writeInt(saveFileData.length);
             fileOut.write(saveFileData);
-            output.close();
             fileOut.close();
-            baos.close();
             dos.close();
+            return output.toByteArray();
         }
         catch (final IOException ex)
         {
             Log.log(Log.SYS, ex);
-            // failed to save. give up
+            return null;
         }
     }
 
@@ -4487,6 +5139,21 @@ public class GametableFrame extends JFrame implements ActionListener
     {
         if (m_networkThread != null)
         {
+            if (m_spectating && (m_netStatus == NETSTATE_JOINED)
+                && !PacketManager.allowedFromSpectator(PacketManager.getPacketType(packet)))
+            {
+                // spectators only watch; the host would ignore it anyway
+                return;
+            }
+
+            checkSnapshot(packet);
+            if (m_netStatus == NETSTATE_HOST)
+            {
+                journal(packet);
+                m_spectatorFeed.packetBroadcast(packet);
+                m_interestFilter.broadcast(packet, null, m_networkThread);
+                return;
+            }
             m_networkThread.send(packet);
         }
     }
@@ -4508,6 +5175,186 @@ public class GametableFrame extends JFrame implements ActionListener
         send(packet, player.getConnection());
     }
 
+    /**
+     * Sends a packet to everyone except the connection the packet currently being processed came from. Used by the host
+     * when relaying packets the sender has no need to see echoed back.
+     * 
+     * @param packet Packet to send.
+     */
+    public void sendToOthers(final byte[] packet)
+    {
+        if (m_networkThread != null)
+        {
+            checkSnapshot(packet);
+            if (m_netStatus == NETSTATE_HOST)
+            {
+                journal(packet);
+                m_spectatorFeed.packetBroadcast(packet);
+            }
+            m_networkThread.broadcast(packet, PacketSourceState.getNetPacketSource());
+        }
+    }
+
+    /**
+     * Sends a packet right away to everyone that has agreed to the given capability, except the connection the packet
+     * currently being processed came from.
+     * 
+     * @param packet Packet to send.
+     * @param capability Capability bit the recipients must have.
+     */
+    public void sendToCapable(final byte[] packet, final int capability)
+    {
+        if (m_networkThread != null)
+        {
+            m_networkThread.broadcastToCapable(packet, capability, PacketSourceState.getNetPacketSource());
+        }
+    }
+
+    /**
+     * Everything the host does to the public map is broadcast, so this is where the cached snapshot finds out it is
+     * stale.
+     * 
+     * @param packet Packet being broadcast.
+     */
+    private void checkSnapshot(final byte[] packet)
+    {
+        if ((m_snapshotPacket != null) && PacketManager.changesMap(packet))
+        {
+            m_snapshotPacket = null;
+        }
+    }
+
+    /**
+     * @return The public map, grid mode and decks as a PACKET_SNAPSHOT, made afresh only if the map has changed since
+     *         the last call.
+     */
+    private byte[] getSnapshotPacket()
+    {
+        if (m_snapshotPacket == null)
+        {
+            m_snapshotPacket = PacketManager.makeSnapshotPacket(getGametableCanvas().getPublicMap(),
+                getGametableCanvas().getGridModeId(), m_decks);
+        }
+        return m_snapshotPacket;
+    }
+
+    /**
+     * Appends a packet we are broadcasting to the journal, if it changes the public map.
+     * 
+     * @param packet Packet being broadcast.
+     */
+    private void journal(final byte[] packet)
+    {
+        if ((m_journal != null) && PacketManager.isJournaled(packet))
+        {
+            m_journal.append(packet);
+        }
+    }
+
+    /**
+     * Starts journaling the game we are hosting, so it can be recovered if we go down without disconnecting.
+     */
+    private void openJournal()
+    {
+        final byte[] saveFile = makeSaveFile(getGametableCanvas().getPublicMap());
+        if (saveFile == null)
+        {
+            return;
+        }
+
+        final Journal journal = new Journal(new File(JOURNAL_FILE), new File(JOURNAL_SNAPSHOT_FILE));
+        try
+        {
+            journal.open(saveFile, Journal.DEFAULT_CAPACITY);
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            logAlertMessage("Unable to journal this game; it can't be recovered if Gametable stops unexpectedly.");
+            return;
+        }
+        m_journal = journal;
+        m_journalCompactTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Replaces the journal with a new snapshot of the public map, if it is time to or the journal is half full.
+     */
+    private void compactJournal()
+    {
+        if (m_journal == null)
+        {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long appended = m_journal.getAppendedBytes();
+        if (((appended == 0) || (now - m_journalCompactTime < JOURNAL_COMPACT_INTERVAL))
+            && (appended < m_journal.getCapacity() / 2))
+        {
+            return;
+        }
+
+        final byte[] saveFile = makeSaveFile(getGametableCanvas().getPublicMap());
+        if (saveFile != null)
+        {
+            m_journal.compact(saveFile);
+            m_journalCompactTime = now;
+        }
+    }
+
+    /**
+     * Stops journaling. A game that was disconnected from has nothing to recover.
+     */
+    private void closeJournal()
+    {
+        if (m_journal != null)
+        {
+            m_journal.close();
+            m_journal = null;
+        }
+    }
+
+    /**
+     * If we went down while hosting, offers to bring the public map back from the journal: the last snapshot, and the
+     * changes made after it.
+     */
+    private void offerRecovery()
+    {
+        final File journalFile = new File(JOURNAL_FILE);
+        final File snapshotFile = new File(JOURNAL_SNAPSHOT_FILE);
+        final List packets = Journal.recover(journalFile, snapshotFile);
+        if (packets == null)
+        {
+            Journal.discard(journalFile, snapshotFile);
+            return;
+        }
+
+        if (JOptionPane.showConfirmDialog(this, "Gametable stopped unexpectedly while hosting a game.\n"
+            + "Do you want to recover the map? (" + packets.size() + " changes since the last snapshot)",
+            "Recover Game", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION)
+        {
+            final GametableMap map = getGametableCanvas().getPublicMap();
+            map.clearPogs();
+            map.clearLines();
+            loadState(snapshotFile);
+
+            PacketSourceState.beginFileLoad();
+            for (int i = 0; i < packets.size(); i++)
+            {
+                PacketManager.readPacket(null, (byte[])packets.get(i));
+            }
+            PacketSourceState.endFileLoad();
+
+            // the undo stacks refer to changes the snapshot has forgotten the origins of
+            getGametableCanvas().clearUndoStacks();
+            repaint();
+            refreshPogList();
+            Log.log(Log.SYS, "Recovered the map from " + snapshotFile + " and " + packets.size() + " journaled changes");
+        }
+        Journal.discard(journalFile, snapshotFile);
+    }
+
     public void sendCastInfo()
     {
         // and we have to push this data out to everyone
@@ -4594,6 +5441,69 @@ public class GametableFrame extends JFrame implements ActionListener
         }
     }
 
+    /**
+     * Applies everything the packet decoder has decoded since the last tick as one batch, refreshing the pog list and
+     * repainting once at the end rather than once per packet.
+     */
+    private void applyPackets()
+    {
+        final PacketDecoder decoder = m_packetDecoder;
+        if (decoder == null)
+        {
+            return;
+        }
+
+        final List commands = decoder.takeCommands();
+        if (commands.isEmpty())
+        {
+            return;
+        }
+
+        m_bApplyingPackets = true;
+        try
+        {
+            final Iterator iterator = commands.iterator();
+            while (iterator.hasNext())
+            {
+                try
+                {
+                    ((Runnable)iterator.next()).run();
+                }
+                catch (final RuntimeException ex)
+                {
+                    Log.log(Log.SYS, ex);
+                }
+            }
+        }
+        finally
+        {
+            m_bApplyingPackets = false;
+        }
+
+        if (m_bActivePogListStale)
+        {
+            m_bActivePogListStale = false;
+            refreshActivePogList();
+        }
+        m_gametableCanvas.repaint();
+    }
+
+    private void startPacketDecoder()
+    {
+        stopPacketDecoder();
+        m_packetDecoder = new PacketDecoder(m_networkThread);
+        m_packetDecoder.start();
+    }
+
+    private void stopPacketDecoder()
+    {
+        if (m_packetDecoder != null)
+        {
+            m_packetDecoder.interrupt();
+            m_packetDecoder = null;
+        }
+    }
+
     private void tick()
     {
         final long now = System.currentTimeMillis();
@@ -4620,12 +5530,20 @@ public class GametableFrame extends JFrame implements ActionListener
                 connectionDropped(connection);
             }
 
-            final List packets = thread.getPackets();
-            iterator = packets.iterator();
-            while (iterator.hasNext())
+            applyPackets();
+
+            // keep any streamed file transfers moving
+            FileTransferManager.tick();
+
+            if (m_netStatus == NETSTATE_HOST)
+            {
+                m_spectatorFeed.tick(System.currentTimeMillis(), thread);
+                compactJournal();
+            }
+            else if (m_netStatus == NETSTATE_JOINED)
             {
-                final Packet packet = (Packet)iterator.next();
-                packetReceived(packet.getSource(), packet.getData());
+                sendView();
+                tryResume();
             }
 
             if (SEND_PINGS)
@@ -4633,10 +5551,13 @@ public class GametableFrame extends JFrame implements ActionListener
                 m_lastPingTime += ms;
                 if (m_lastPingTime >= PING_INTERVAL)
                 {
-                    send(PacketManager.makePingPacket());
+                    send(PacketManager.makePingPacket(m_pingSequence++));
                     m_lastPingTime -= PING_INTERVAL;
                 }
             }
+
+            // everything sent this tick goes out together
+            thread.flush();
             updateStatus();
         }
         m_gametableCanvas.tick(ms);
@@ -4677,7 +5598,7 @@ public class GametableFrame extends JFrame implements ActionListener
 
         if (m_netStatus == NETSTATE_HOST)
         {
-            send(PacketManager.makeTypingPacket(playerName, typing));
+            sendToOthers(PacketManager.makeTypingPacket(playerName, typing));
         }
     }
 
@@ -4767,6 +5688,26 @@ public class GametableFrame extends JFrame implements ActionListener
         {
             m_status.setText(m_status.getText() + m_players.size() + " player" + (m_players.size() == 1 ? "" : "s")
                 + " connected. ");
+            if (!m_spectatorFeed.getSpectators().isEmpty())
+            {
+                m_status.setText(m_status.getText() + m_spectatorFeed.getSpectators().size() + " watching. ");
+            }
+
+            // the slowest round trip is the one the table waits on
+            Latency slowest = null;
+            for (int i = 0, size = m_players.size(); i < size; ++i)
+            {
+                final Latency latency = getLatency((Player)m_players.get(i));
+                if ((latency != null) && ((slowest == null) || (latency.getRoundTrip() > slowest.getRoundTrip())))
+                {
+                    slowest = latency;
+                }
+            }
+            if (slowest != null)
+            {
+                m_status.setText(m_status.getText() + (m_netStatus == NETSTATE_HOST ? "Slowest ping " : "Ping ")
+                    + slowest + ". ");
+            }
             switch (m_typing.size())
             {
                 case 0:
@@ -0,0 +1,1311 @@
+/*
+ * GametableServer.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+
+import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.Latency;
+import com.galactanet.gametable.net.NetworkThread;
+import com.galactanet.gametable.net.Packet;
+import com.galactanet.gametable.util.UtilityFunctions;
+
+
+
+/**
+ * Dedicated host for a table, without any user interface. It owns the public map, the decks, the player list and the
+ * network thread, relays what players do to each other just as a hosting GametableFrame does, and saves the map every
+ * so often in the usual save file format. Every player, GMs included, joins it as an ordinary client.
+ *
+ * Usage: GametableServer [-port port] [-password password] [-file table.grm] [-autosave seconds] [-threads count]
+ * [-timeout seconds]
+ *
+ * The timeout is how long a player may go without sending anything, or without taking what is sent to them, before
+ * they are taken to have gone; 0 waits forever.
+ *
+ * While it runs, commands typed at the console are carried out; type "help" for the list. Decks are created from the
+ * console, since only the host can create them. Cards drawn are dealt into the player's hand, but without card pogs,
+ * which need the user interface to make.
+ *
+ * Spectators are kept up to date by a SpectatorFeed, as they are by a hosting GametableFrame.
+ *
+ * Pog images are kept in the pogs and underlays directories under the working directory, as for the application. An
+ * image the server doesn't have is asked for from the player who placed the pog.
+ *
+ * @author iffy
+ */
+public class GametableServer
+{
+    /**
+     * Seconds between saves of a changed map, unless given on the command line.
+     */
+    private static final int    DEFAULT_AUTOSAVE     = 60;
+
+    private static final String DEFAULT_FILE         = "server.grm";
+
+    /**
+     * Name of the networking log file
+     */
+    private static final String NET_LOG_FILE         = "gt.server.net.log";
+
+    /**
+     * What we tell players we support. Pog images are only received as single PACKET_FILEs.
+     */
+    private static final int    SERVER_CAPABILITIES  = Connection.LOCAL_CAPABILITIES & ~Connection.CAPABILITY_CHUNKED;
+
+    /**
+     * Most milliseconds between looks at the network, when nothing arrives sooner.
+     */
+    private static final long   TICK                 = 25;
+
+    private final long          autosaveInterval;
+
+    /**
+     * Lines typed at the console, waiting to be carried out by the server thread.
+     */
+    private final List          consoleCommands      = new ArrayList();
+    private final List          decks                = new ArrayList();
+    private boolean             dirty                = false;
+
+    /**
+     * Whether chat, comings and goings and replies to commands are printed on the console.
+     */
+    private volatile boolean    echo                 = true;
+    private final File          file;
+
+    /**
+     * Holds back changes from players who can't see them.
+     */
+    private final InterestFilter interestFilter     = new InterestFilter();
+    private long                lastPing;
+    private int                 pingSequence         = 0;
+    private long                lastSave;
+    private final ServerMap     map                  = new ServerMap();
+    private final NetworkThread network;
+    private int                 nextPlayerId         = 0;
+
+    /**
+     * Packets handled from players since the server started.
+     */
+    private long                packetCount          = 0;
+    private final String        password;
+    private final List          players              = new ArrayList();
+
+    /**
+     * Connections waiting for a pog image we don't have yet, as Sets keyed by file name.
+     */
+    private final Map           pngRequests          = new HashMap();
+
+    /**
+     * File names of images we have asked players for.
+     */
+    private final Set           pngRequested         = new HashSet();
+    private final int           port;
+
+    /**
+     * When the packet being handled was read off the network, by Latency.now().
+     */
+    private long                receivedAt;
+    private byte[]              recenterPacket       = null;
+    private volatile boolean    running              = true;
+
+    /**
+     * The map as a PACKET_SNAPSHOT, or null if it has changed since the last one was made.
+     */
+    private byte[]              snapshotPacket       = null;
+
+    /**
+     * Keeps the spectators up to date: the snapshot, then the changes made to pogs since they were added.
+     */
+    private final SpectatorFeed spectatorFeed        = new SpectatorFeed(new SpectatorFeed.Source()
+    {
+        public List getSpectatorState()
+        {
+            final List retVal = new ArrayList();
+            retVal.add(getSnapshotPacket());
+            retVal.addAll(map.getUpdatePackets());
+            return retVal;
+        }
+    });
+
+    /**
+     * Constructor.
+     *
+     * @param serverPort Port to listen on.
+     * @param serverPassword Password players must give.
+     * @param saveFile File the map is loaded from and saved to.
+     * @param autosaveSeconds Seconds between saves of a changed map; 0 saves only on the way out.
+     * @param networkWorkers Network worker threads; see NetworkThread.
+     */
+    public GametableServer(final int serverPort, final String serverPassword, final File saveFile,
+        final int autosaveSeconds, final int networkWorkers)
+    {
+        port = serverPort;
+        password = serverPassword;
+        file = saveFile;
+        autosaveInterval = autosaveSeconds * 1000L;
+        network = new NetworkThread(port, networkWorkers);
+    }
+
+    /**
+     * Main method
+     */
+    public static void main(final String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        int serverPort = GametableFrame.DEFAULT_PORT;
+        String serverPassword = "";
+        String saveFile = DEFAULT_FILE;
+        int autosave = DEFAULT_AUTOSAVE;
+        int networkWorkers = 0;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (i + 1 >= args.length)
+                {
+                    throw new IllegalArgumentException(args[i]);
+                }
+
+                if (args[i].equals("-port"))
+                {
+                    serverPort = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-password"))
+                {
+                    serverPassword = args[++i];
+                }
+                else if (args[i].equals("-file"))
+                {
+                    saveFile = args[++i];
+                }
+                else if (args[i].equals("-autosave"))
+                {
+                    autosave = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-threads"))
+                {
+                    networkWorkers = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-timeout"))
+                {
+                    final int timeout = Integer.parseInt(args[++i]) * 1000;
+                    Connection.setReadTimeout(timeout);
+                    Connection.setWriteTimeout(timeout);
+                }
+                else
+                {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            System.err.println("Usage: GametableServer [-port port] [-password password] [-file table.grm]"
+                + " [-autosave seconds] [-threads count] [-timeout seconds]");
+            return;
+        }
+
+        try
+        {
+            Log.initializeLog(Log.NET, NET_LOG_FILE);
+            Log.log(Log.SYS, GametableApp.VERSION + " server");
+
+            final GametableServer server = new GametableServer(serverPort, serverPassword, new File(saveFile),
+                autosave, networkWorkers);
+            server.load();
+            server.run();
+        }
+        catch (final Throwable t)
+        {
+            Log.log(Log.SYS, t);
+        }
+    }
+
+    /**
+     * Loads the map from the save file, if there is one.
+     */
+    public synchronized void load() throws IOException
+    {
+        final List packets = ServerMap.readSaveFile(file);
+        if (packets == null)
+        {
+            console("No " + file + " yet; starting with an empty map.");
+            return;
+        }
+
+        for (int i = 0; i < packets.size(); i++)
+        {
+            handlePacket(null, (byte[])packets.get(i));
+        }
+        dirty = false;
+        console("Loaded " + file + ": " + map.getNumLines() + " lines, " + map.getNumPogs() + " pogs.");
+    }
+
+    /**
+     * Saves the map to the save file.
+     */
+    public synchronized void save()
+    {
+        try
+        {
+            map.save(file);
+            dirty = false;
+            lastSave = System.currentTimeMillis();
+            Log.log(Log.NET, "Saved " + file);
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            console("Could not save " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @param b False to print nothing on the console, as when the server is under test.
+     */
+    public void setEcho(final boolean b)
+    {
+        echo = b;
+    }
+
+    /**
+     * Makes run() return once the current tick is done.
+     */
+    public void stop()
+    {
+        running = false;
+    }
+
+    /**
+     * @return The network thread serving the players.
+     */
+    public NetworkThread getNetworkThread()
+    {
+        return network;
+    }
+
+    /**
+     * @return The number of packets handled from players so far.
+     */
+    public synchronized long getPacketCount()
+    {
+        return packetCount;
+    }
+
+    /**
+     * Serves the table until told to quit.
+     */
+    public void run() throws InterruptedException
+    {
+        network.start();
+        lastSave = lastPing = System.currentTimeMillis();
+        console("Hosting on port " + port + ". Type \"help\" for commands.");
+
+        // save what we have if we are killed
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            public void run()
+            {
+                if (dirty)
+                {
+                    save();
+                }
+            }
+        });
+        startConsole();
+
+        while (running)
+        {
+            network.waitForPackets(TICK);
+            tick();
+        }
+
+        network.closeAllConnections();
+        network.interrupt();
+        save();
+    }
+
+    /**
+     * Does everything that has come up since the last tick.
+     */
+    private synchronized void tick()
+    {
+        runConsoleCommands();
+
+        final Iterator lost = network.getLostConnections().iterator();
+        while (lost.hasNext())
+        {
+            connectionDropped((Connection)lost.next());
+        }
+
+        final List packets = network.getPackets();
+        for (int i = 0, size = packets.size(); i < size; ++i)
+        {
+            final Packet packet = (Packet)packets.get(i);
+            final byte[] data = new byte[packet.getLength()];
+            System.arraycopy(packet.getBuffer(), 0, data, 0, data.length);
+            final Connection source = packet.getSource();
+            receivedAt = packet.getReceivedAt();
+            packet.release();
+            packetCount++;
+
+            try
+            {
+                handlePacket(source, data);
+            }
+            catch (final IOException ex)
+            {
+                Log.log(Log.NET, ex);
+            }
+            catch (final RuntimeException ex)
+            {
+                Log.log(Log.SYS, ex);
+            }
+            catch (final Error err)
+            {
+                // one player's bad packet mustn't shut the server down
+                Log.log(Log.SYS, err);
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - lastPing >= GametableFrame.PING_INTERVAL)
+        {
+            lastPing = now;
+            broadcast(PacketManager.makePingPacket(pingSequence++));
+        }
+
+        spectatorFeed.tick(now, network);
+
+        if (dirty && (autosaveInterval > 0) && (now - lastSave >= autosaveInterval))
+        {
+            save();
+        }
+
+        network.flush();
+    }
+
+    // --- Packets ---
+
+    /**
+     * Carries out a packet from a player, or from the save file if the connection is null.
+     */
+    private void handlePacket(final Connection conn, final byte[] packet) throws IOException
+    {
+        if (packet.length < 4)
+        {
+            return;
+        }
+
+        final int type = PacketManager.getPacketType(packet);
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 4, packet.length - 4));
+        final Player player = (conn == null ? null : getPlayerFromConnection(conn));
+        if ((conn != null) && conn.isSpectating())
+        {
+            if (!PacketManager.allowedFromSpectator(type))
+            {
+                return;
+            }
+        }
+        else if ((conn != null) && (player == null) && (type != PacketManager.PACKET_PLAYER)
+            && (type != PacketManager.PACKET_PING) && (type != PacketManager.PACKET_RESUME))
+        {
+            // nothing but logging in until they have
+            return;
+        }
+
+        if (PacketManager.changesMap(packet))
+        {
+            snapshotPacket = null;
+            dirty = true;
+        }
+
+        switch (type)
+        {
+            case PacketManager.PACKET_PLAYER:
+            {
+                playerJoined(conn, dis);
+            }
+            break;
+
+            case PacketManager.PACKET_BATCH:
+            {
+                final int numPackets = dis.readInt();
+                for (int i = 0; i < numPackets; i++)
+                {
+                    final int length = dis.readInt();
+                    if ((length <= 0) || (length > dis.available()))
+                    {
+                        throw new IOException("Bad packet length in batch: " + length);
+                    }
+
+                    final byte[] inner = new byte[length];
+                    dis.readFully(inner);
+                    handlePacket(conn, inner);
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_TEXT:
+            {
+                final String text = dis.readUTF();
+                console(text);
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_PRIVATE_TEXT:
+            {
+                final String fromName = dis.readUTF();
+                final String toName = dis.readUTF();
+                for (int i = 0; i < players.size(); i++)
+                {
+                    final Player recipient = (Player)players.get(i);
+                    if (recipient.hasName(toName))
+                    {
+                        network.send(packet, recipient.getConnection());
+                    }
+                }
+                Log.log(Log.NET, "Private text from " + fromName + " to " + toName);
+            }
+            break;
+
+            case PacketManager.PACKET_TYPING:
+            case PacketManager.PACKET_POINT:
+            {
+                // the sender already knows
+                network.broadcast(packet, conn);
+            }
+            break;
+
+            case PacketManager.PACKET_DRAGPOG:
+            {
+                network.broadcastToCapable(packet, Connection.CAPABILITY_DRAG, conn);
+            }
+            break;
+
+            case PacketManager.PACKET_LINES:
+            {
+                final int authorId = dis.readInt();
+                dis.readInt(); // the sender's state id; we give out the real one
+                final LineSegment[] lines = new LineSegment[PacketManager.readCount(dis, 20)];
+                for (int i = 0; i < lines.length; i++)
+                {
+                    lines[i] = new LineSegment(dis);
+                }
+                final int stateId = map.addLines(lines, authorId);
+                broadcast(PacketManager.makeLinesPacket(lines, authorId, stateId));
+            }
+            break;
+
+            case PacketManager.PACKET_ERASE:
+            {
+                final int authorId = dis.readInt();
+                dis.readInt(); // the sender's state id
+                final Rectangle r = new Rectangle(dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt());
+                final boolean bColorSpecific = dis.readBoolean();
+                final int color = dis.readInt();
+                final int stateId = map.erase(r, bColorSpecific, color, authorId);
+                broadcast(PacketManager.makeErasePacket(r, bColorSpecific, color, authorId, stateId));
+            }
+            break;
+
+            case PacketManager.PACKET_UNDO:
+            {
+                map.undo(dis.readInt());
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_REDO:
+            {
+                map.redo(dis.readInt());
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_ADDPOG:
+            {
+                if (!dis.readBoolean())
+                {
+                    // only the host sends pogs for the private layer
+                    break;
+                }
+                map.addPog(packet);
+                broadcast(packet);
+                if (conn != null)
+                {
+                    requestPogImage(conn, packet);
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_MOVEPOG:
+            case PacketManager.PACKET_ROTATEPOG:
+            case PacketManager.PACKET_FLIPPOG:
+            case PacketManager.PACKET_POG_SIZE:
+            case PacketManager.PACKET_LOCKPOG:
+            case PacketManager.PACKET_POGDATA:
+            {
+                // each of these starts with the id of the pog
+                map.updatePog(dis.readInt(), packet);
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_POG_REORDER:
+            {
+                // kept pog by pog, so that each pog's record holds only its own latest order
+                final int numChanges = dis.readInt();
+                for (int i = 0; i < numChanges; ++i)
+                {
+                    final int id = dis.readInt();
+                    final Map change = new HashMap();
+                    change.put(new Integer(id), new Long(dis.readLong()));
+                    map.updatePog(id, PacketManager.makePogReorderPacket(change));
+                }
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_LOCKALLPOG:
+            {
+                map.lockAllPogs(dis.readBoolean());
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_REMOVEPOGS:
+            {
+                final int numPogs = dis.readInt();
+                for (int i = 0; i < numPogs; i++)
+                {
+                    map.removePog(dis.readInt());
+                }
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_HEX_MODE:
+            {
+                map.setGridMode(dis.readInt());
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_RECENTER:
+            {
+                recenterPacket = packet;
+                broadcast(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_PNGREQUEST:
+            {
+                final String filename = dis.readUTF();
+                final String hash = (dis.available() > 0 ? dis.readUTF() : "");
+                sendPogImage(conn, filename, hash);
+            }
+            break;
+
+            case PacketManager.PACKET_FILE:
+            {
+                if (dis.readUTF().equals("image/png"))
+                {
+                    pogImageReceived(packet, dis);
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_DECK_REQUEST_CARDS:
+            {
+                final String deckName = dis.readUTF();
+                final DeckData.Card[] cards = drawCards(deckName, dis.readInt());
+                if (cards != null)
+                {
+                    network.send(PacketManager.makeReceiveCardsPacket(cards), conn);
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_DECK_DISCARD_CARDS:
+            {
+                final String playerName = dis.readUTF();
+                final DeckData.Card[] cards = new DeckData.Card[PacketManager.readCount(dis, 16)];
+                for (int i = 0; i < cards.length; i++)
+                {
+                    cards[i] = DeckData.createBlankCard();
+                    cards[i].read(dis);
+                    final Deck deck = getDeck(cards[i].m_deckName);
+                    if (deck != null)
+                    {
+                        deck.discard(cards[i]);
+                    }
+                }
+
+                if (cards.length == 1)
+                {
+                    postSystemMessage(playerName + " discards: " + cards[0].m_cardName);
+                }
+                else if (cards.length > 1)
+                {
+                    postSystemMessage(playerName + " discards " + cards.length + " cards.");
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_PING:
+            {
+                if ((conn == null) || (dis.available() == 0))
+                {
+                    // older versions send empty pings, just to show they are alive
+                    break;
+                }
+
+                final int sequence = dis.readInt();
+                final long sentAt = dis.readLong();
+                if (dis.readBoolean())
+                {
+                    final long holdTime = dis.readLong();
+                    conn.getLatency().replyReceived(sequence, sentAt, holdTime, dis.readLong(), receivedAt);
+                }
+                else
+                {
+                    network.send(PacketManager.makePingReplyPacket(sequence, sentAt, receivedAt, System
+                        .currentTimeMillis()), conn);
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_RESUME:
+            {
+                if (conn != null)
+                {
+                    resume(conn, dis.readLong(), dis.readLong());
+                }
+            }
+            break;
+
+            case PacketManager.PACKET_VIEW:
+            {
+                final Rectangle view = new Rectangle(dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt());
+                interestFilter.setView(conn, view, network);
+            }
+            break;
+
+            default:
+            {
+                Log.log(Log.NET, "Server ignored " + PacketManager.getPacketName(type));
+            }
+            break;
+        }
+    }
+
+    private void playerJoined(final Connection conn, final DataInputStream dis) throws IOException
+    {
+        if (dis.readInt() != GametableFrame.COMM_VERSION)
+        {
+            kick(conn, GametableFrame.REJECT_VERSION_MISMATCH);
+            return;
+        }
+
+        final String givenPassword = dis.readUTF();
+        final String characterName = dis.readUTF();
+        final String playerName = dis.readUTF();
+        dis.readBoolean(); // whether they think they are the host; nobody is
+        if (dis.available() >= 4)
+        {
+            conn.setPeerCapabilities(dis.readInt());
+        }
+
+        final boolean bSpectator = (dis.available() > 0) && dis.readBoolean();
+
+        if (!password.equals(givenPassword))
+        {
+            kick(conn, GametableFrame.REJECT_INVALID_PASSWORD);
+            return;
+        }
+
+        if (bSpectator)
+        {
+            spectatorJoined(conn, new Player(playerName, characterName, -1));
+            return;
+        }
+
+        conn.markLoggedIn();
+        final Player player = new Player(playerName, characterName, nextPlayerId++);
+        player.setConnection(conn);
+        players.add(player);
+        postSystemMessage(playerName + " has joined the session");
+        sendCastInfo();
+
+        // all the undo stacks clear
+        map.clearUndos();
+
+        // tell the new guy the entire state of the game
+        final boolean bSnapshot = conn.hasCapability(Connection.CAPABILITY_SNAPSHOT);
+        final List packets;
+        if (bSnapshot)
+        {
+            network.send(getSnapshotPacket(), conn);
+            packets = map.getUpdatePackets();
+        }
+        else
+        {
+            packets = map.getStatePackets();
+            packets.add(PacketManager.makeGridModePacket(map.getGridMode()));
+        }
+
+        for (int i = 0; i < packets.size(); i++)
+        {
+            network.send((byte[])packets.get(i), conn);
+        }
+
+        if (recenterPacket != null)
+        {
+            network.send(recenterPacket, conn);
+        }
+        network.send(PacketManager.makeLoginCompletePacket(), conn);
+
+        if (!bSnapshot)
+        {
+            network.send(PacketManager.makeDeckListPacket(decks), conn);
+        }
+
+        if (conn.hasCapability(Connection.CAPABILITY_RESUME))
+        {
+            final long token = Connection.newSessionToken();
+            network.send(PacketManager.makeResumePacket(token, -1), conn);
+            conn.setSessionToken(token);
+        }
+    }
+
+    /**
+     * Puts a player whose connection was lost back on a new one; see GametableFrame.resumePacketReceived().
+     */
+    private void resume(final Connection conn, final long token, final long framesReceived)
+    {
+        final Connection old = network.getSuspended(token);
+        final Player player = (old == null ? null : getPlayerFromConnection(old));
+        if ((player == null) || (framesReceived < 0)
+            || !network.resume(old, conn, framesReceived, PacketManager.makeResumePacket(token, old
+                .getFramesReceived())))
+        {
+            kick(conn, GametableFrame.REJECT_RESUME_FAILED);
+            return;
+        }
+
+        player.setConnection(conn);
+        interestFilter.connectionResumed(old, conn);
+        console(player.getPlayerName() + " is back.");
+    }
+
+    /**
+     * Lets someone in to watch; see GametableFrame.spectatorJoined().
+     */
+    private void spectatorJoined(final Connection conn, final Player spectator)
+    {
+        if (!conn.hasCapability(Connection.CAPABILITY_SNAPSHOT) || !conn.hasCapability(Connection.CAPABILITY_BATCH))
+        {
+            kick(conn, GametableFrame.REJECT_VERSION_MISMATCH);
+            return;
+        }
+
+        conn.markSpectating();
+        spectator.setConnection(conn);
+        spectatorFeed.spectatorJoined(spectator);
+
+        network.send(getSnapshotPacket(), conn);
+        final List packets = map.getUpdatePackets();
+        for (int i = 0; i < packets.size(); i++)
+        {
+            network.send((byte[])packets.get(i), conn);
+        }
+        if (recenterPacket != null)
+        {
+            network.send(recenterPacket, conn);
+        }
+        network.send(PacketManager.makeLoginCompletePacket(), conn);
+
+        console(spectator.getPlayerName() + " is watching.");
+    }
+
+    private void connectionDropped(final Connection conn)
+    {
+        final Iterator iterator = pngRequests.values().iterator();
+        while (iterator.hasNext())
+        {
+            ((Set)iterator.next()).remove(conn);
+        }
+        if (!conn.isSuspended())
+        {
+            interestFilter.connectionDropped(conn);
+        }
+
+        final Player spectator = spectatorFeed.spectatorLeft(conn);
+        if (spectator != null)
+        {
+            console(spectator.getPlayerName() + " stopped watching.");
+            return;
+        }
+
+        final Player dead = getPlayerFromConnection(conn);
+        if (dead == null)
+        {
+            Log.log(Log.NET, "Someone tried to log in, but was rejected.");
+            return;
+        }
+
+        if (conn.isSuspended())
+        {
+            // hold their place in case they come back
+            console(dead.getPlayerName() + " lost their connection.");
+            return;
+        }
+
+        players.remove(dead);
+        sendCastInfo();
+        postSystemMessage(dead.getPlayerName() + " has left the session");
+    }
+
+    /**
+     * Sends a packet to every player who needs it, and to the spectators in due course.
+     */
+    private void broadcast(final byte[] packet)
+    {
+        spectatorFeed.packetBroadcast(packet);
+        interestFilter.broadcast(packet, null, network);
+    }
+
+    /**
+     * @return The map as a PACKET_SNAPSHOT, made afresh only if it has changed since the last call.
+     */
+    private byte[] getSnapshotPacket()
+    {
+        if (snapshotPacket == null)
+        {
+            snapshotPacket = map.makeSnapshotPacket(getDeckNames());
+        }
+        return snapshotPacket;
+    }
+
+    private void kick(final Connection conn, final int reason)
+    {
+        network.send(PacketManager.makeRejectPacket(reason), conn);
+        conn.close();
+    }
+
+    private Player getPlayerFromConnection(final Connection conn)
+    {
+        for (int i = 0; i < players.size(); i++)
+        {
+            final Player player = (Player)players.get(i);
+            if (player.getConnection() == conn)
+            {
+                return player;
+            }
+        }
+        return null;
+    }
+
+    private void sendCastInfo()
+    {
+        for (int i = 0; i < players.size(); i++)
+        {
+            final Player recipient = (Player)players.get(i);
+            network.send(makeCastPacket(i), recipient.getConnection());
+        }
+    }
+
+    /**
+     * Makes the list of players for one of them, as PacketManager.makeCastPacket() does for a hosting GametableFrame.
+     *
+     * @param recipientIndex Index of the player it is for.
+     */
+    private byte[] makeCastPacket(final int recipientIndex)
+    {
+        try
+        {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream dos = new DataOutputStream(baos);
+
+            dos.writeInt(PacketManager.PACKET_CAST);
+            dos.writeInt(players.size());
+            for (int i = 0; i < players.size(); i++)
+            {
+                final Player player = (Player)players.get(i);
+                dos.writeUTF(player.getCharacterName());
+                dos.writeUTF(player.getPlayerName());
+                dos.writeInt(player.getId());
+                dos.writeBoolean(false);
+            }
+            dos.writeInt(recipientIndex);
+            dos.writeInt(SERVER_CAPABILITIES);
+
+            return baos.toByteArray();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Sends a chat message to everyone.
+     */
+    private void postSystemMessage(final String text)
+    {
+        console(text);
+        broadcast(PacketManager.makeTextPacket(GametableFrame.SYSTEM_MESSAGE_FONT + text
+            + GametableFrame.END_SYSTEM_MESSAGE_FONT));
+    }
+
+    // --- Pog Images ---
+
+    /**
+     * Asks the player who placed a pog for its image, if we don't have it.
+     */
+    private void requestPogImage(final Connection conn, final byte[] addPacket) throws IOException
+    {
+        final String filename = UtilityFunctions.getLocalPath(ServerMap.getPogFilename(addPacket));
+        if (new File(filename).exists() || pngRequested.contains(filename))
+        {
+            return;
+        }
+
+        pngRequested.add(filename);
+        network.send(PacketManager.makePngRequestPacket(filename), conn);
+    }
+
+    /**
+     * Sends a pog image to a player who asked for it, or notes the request until we have it.
+     */
+    private void sendPogImage(final Connection conn, final String universalName, final String hash)
+    {
+        final String filename = UtilityFunctions.getLocalPath(universalName);
+        File source = ImageCache.find(hash);
+        if (source == null)
+        {
+            source = new File(filename);
+        }
+
+        if (source.exists())
+        {
+            final byte[] packet = PacketManager.makePngPacket(filename, source);
+            if (packet != null)
+            {
+                network.send(packet, conn);
+                return;
+            }
+        }
+
+        Set waiting = (Set)pngRequests.get(filename);
+        if (waiting == null)
+        {
+            waiting = new HashSet();
+            pngRequests.put(filename, waiting);
+        }
+        waiting.add(conn);
+    }
+
+    /**
+     * Saves a pog image a player has sent and passes it on to anyone waiting for it.
+     *
+     * @param packet The whole PACKET_FILE.
+     * @param dis The packet, positioned after the mime type.
+     */
+    private void pogImageReceived(final byte[] packet, final DataInputStream dis) throws IOException
+    {
+        final String filename = UtilityFunctions.getLocalPath(dis.readUTF());
+        final int length = dis.readInt();
+        if ((length <= 0) || (length > dis.available()) || (length > Connection.getMaxFrameSize()))
+        {
+            throw new IOException("Bad pog image length: " + length);
+        }
+
+        final byte[] pngFile = new byte[length];
+        dis.readFully(pngFile);
+
+        final File here = new File("").getAbsoluteFile();
+        final File target = new File(filename).getAbsoluteFile();
+        if (!UtilityFunctions.isPngData(pngFile) || !UtilityFunctions.isAncestorFile(here, target))
+        {
+            Log.log(Log.NET, "Refused pog image \"" + filename + "\"");
+            return;
+        }
+
+        target.getParentFile().mkdirs();
+        final OutputStream os = new BufferedOutputStream(new FileOutputStream(target));
+        try
+        {
+            os.write(pngFile);
+        }
+        finally
+        {
+            os.close();
+        }
+        ImageCache.store(filename);
+        pngRequested.remove(filename);
+
+        final Set waiting = (Set)pngRequests.remove(filename);
+        if (waiting != null)
+        {
+            final Iterator iterator = waiting.iterator();
+            while (iterator.hasNext())
+            {
+                network.send(packet, (Connection)iterator.next());
+            }
+        }
+    }
+
+    // --- Decks ---
+
+    private Deck getDeck(final String name)
+    {
+        for (int i = 0; i < decks.size(); i++)
+        {
+            final Deck deck = (Deck)decks.get(i);
+            if (deck.m_name.equals(name))
+            {
+                return deck;
+            }
+        }
+        return null;
+    }
+
+    private List getDeckNames()
+    {
+        final List retVal = new ArrayList();
+        for (int i = 0; i < decks.size(); i++)
+        {
+            retVal.add(((Deck)decks.get(i)).m_name);
+        }
+        return retVal;
+    }
+
+    private DeckData.Card[] drawCards(final String deckName, final int num)
+    {
+        final Deck deck = getDeck(deckName);
+        if ((deck == null) || (num <= 0))
+        {
+            return null;
+        }
+
+        final DeckData.Card[] retVal = new DeckData.Card[Math.min(num, deck.cardsRemaining())];
+        for (int i = 0; i < retVal.length; i++)
+        {
+            retVal[i] = deck.drawCard();
+        }
+
+        if (deck.cardsRemaining() == 0)
+        {
+            postSystemMessage("The " + deckName + " deck is out of cards.");
+        }
+        return retVal;
+    }
+
+    private void sendDeckList()
+    {
+        snapshotPacket = null;
+        broadcast(PacketManager.makeDeckListPacket(decks));
+    }
+
+    // --- Console ---
+
+    private void console(final String text)
+    {
+        if (!echo)
+        {
+            return;
+        }
+
+        // chat arrives as html
+        System.out.println(text.replaceAll("<[^>]*>", ""));
+    }
+
+    private void startConsole()
+    {
+        final Thread thread = new Thread(GametableServer.class.getName() + " console")
+        {
+            public void run()
+            {
+                try
+                {
+                    final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                    String line;
+                    while ((line = in.readLine()) != null)
+                    {
+                        synchronized (consoleCommands)
+                        {
+                            consoleCommands.add(line);
+                        }
+                    }
+                }
+                catch (final IOException ex)
+                {
+                    Log.log(Log.SYS, ex);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runConsoleCommands()
+    {
+        final List commands;
+        synchronized (consoleCommands)
+        {
+            if (consoleCommands.isEmpty())
+            {
+                return;
+            }
+            commands = new ArrayList(consoleCommands);
+            consoleCommands.clear();
+        }
+
+        for (int i = 0; i < commands.size(); i++)
+        {
+            final String line = ((String)commands.get(i)).trim();
+            final String[] words = line.split("\\s+");
+            if (line.length() == 0)
+            {
+                continue;
+            }
+
+            if (words[0].equals("help"))
+            {
+                console("help, who, say <text>, save, deck <create|destroy|shuffle|list> ..., quit");
+            }
+            else if (words[0].equals("who"))
+            {
+                for (int p = 0; p < players.size(); p++)
+                {
+                    final Player player = (Player)players.get(p);
+                    final Connection conn = player.getConnection();
+                    console(player.getCharacterName() + " (" + player.getPlayerName() + "), "
+                        + (conn.isSuspended() ? "reconnecting" : "ping " + conn.getLatency()));
+                }
+                console(players.size() + " player" + (players.size() == 1 ? "" : "s") + ", "
+                    + spectatorFeed.getSpectators().size() + " watching");
+                if (network.getEvictionCount() > 0)
+                {
+                    console(network.getEvictionCount() + " dead connections evicted, holding "
+                        + network.getEvictedBytes() / 1024 + " KB unsent; " + network.getPendingBytes() / 1024
+                        + " KB unsent now");
+                }
+            }
+            else if (words[0].equals("say"))
+            {
+                postSystemMessage(line.substring(words[0].length()).trim());
+            }
+            else if (words[0].equals("save"))
+            {
+                save();
+                console("Saved " + file);
+            }
+            else if (words[0].equals("deck"))
+            {
+                deckCommand(words);
+            }
+            else if (words[0].equals("quit"))
+            {
+                running = false;
+            }
+            else
+            {
+                console("Unknown command \"" + words[0] + "\"; type \"help\" for the list.");
+            }
+        }
+    }
+
+    private void deckCommand(final String[] words)
+    {
+        final String command = (words.length > 1 ? words[1] : "");
+        if (command.equals("create") && (words.length >= 3))
+        {
+            final String deckName = (words.length > 3 ? words[3] : words[2]);
+            if (getDeck(deckName) != null)
+            {
+                console("There is already a deck named '" + deckName + "'.");
+                return;
+            }
+
+            final DeckData dd = new DeckData();
+            if (!dd.init(new File("decks" + UtilityFunctions.LOCAL_SEPARATOR + words[2] + ".xml")))
+            {
+                console("Could not create the deck.");
+                return;
+            }
+
+            final Deck deck = new Deck();
+            deck.init(dd, 0, deckName);
+            decks.add(deck);
+            sendDeckList();
+            postSystemMessage("The host creates a new " + words[2] + " deck named " + deckName);
+        }
+        else if (command.equals("destroy") && (words.length >= 3))
+        {
+            final Deck deck = getDeck(words[2]);
+            if (deck == null)
+            {
+                console("There is no deck named '" + words[2] + "'.");
+                return;
+            }
+
+            decks.remove(deck);
+            broadcast(PacketManager.makeClearDeckPacket(deck.m_name));
+            sendDeckList();
+            postSystemMessage("The host destroys the deck named " + deck.m_name);
+        }
+        else if (command.equals("shuffle") && (words.length >= 4))
+        {
+            final Deck deck = getDeck(words[2]);
+            if (deck == null)
+            {
+                console("There is no deck named '" + words[2] + "'.");
+                return;
+            }
+
+            if (words[3].equals("all"))
+            {
+                broadcast(PacketManager.makeClearDeckPacket(deck.m_name));
+                deck.shuffleAll();
+                postSystemMessage("The host collects all the cards from the " + deck.m_name
+                    + " deck from all players and shuffles them.");
+            }
+            else if (words[3].equals("discards"))
+            {
+                deck.shuffle();
+                postSystemMessage("The host shuffles the discards back into the " + deck.m_name + " deck.");
+            }
+            else
+            {
+                console("Shuffle either 'all' or 'discards'.");
+                return;
+            }
+            postSystemMessage(deck.m_name + " has " + deck.cardsRemaining() + " cards.");
+        }
+        else if (command.equals("list"))
+        {
+            for (int i = 0; i < decks.size(); i++)
+            {
+                final Deck deck = (Deck)decks.get(i);
+                console(deck.m_name + ": " + deck.cardsRemaining() + " cards left");
+            }
+            console(decks.size() + " deck" + (decks.size() == 1 ? "" : "s"));
+        }
+        else
+        {
+            console("deck create <type> [name], deck destroy <name>, deck shuffle <name> <all|discards>, deck list");
+        }
+    }
+}
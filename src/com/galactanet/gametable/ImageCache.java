@@ -0,0 +1,288 @@
+/*
+ * ImageCache.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.galactanet.gametable.util.UtilityFunctions;
+
+
+
+/**
+ * Keeps pog images by content hash so that an image only ever crosses the network once. Every image received from a
+ * peer is copied into the cache directory under the name of its hash, and that directory outlives the session. Pogs are
+ * sent with the hash of their image; a client that has the hash cached just copies the image into place instead of
+ * asking for it, and a host asked for a hash can answer from the cache or from any library image it has hashed.
+ *
+ * All of this runs on the event thread.
+ *
+ * @author iffy
+ */
+public class ImageCache
+{
+    /**
+     * What we know about one image file.
+     */
+    private static class Entry
+    {
+        public final String hash;
+        public final long   lastModified;
+        public final long   length;
+
+        public Entry(final String h, final long modified, final long len)
+        {
+            hash = h;
+            lastModified = modified;
+            length = len;
+        }
+    }
+
+    /**
+     * Directory holding the cached images, relative to the working directory like the pog libraries.
+     */
+    public static final String CACHE_DIRECTORY = "imagecache";
+
+    /**
+     * Hashes of the files we have looked at, by canonical file.
+     */
+    private static final Map   g_fileHashes    = new HashMap();
+
+    /**
+     * Files known to have a given hash, by hash.
+     */
+    private static final Map   g_hashFiles     = new HashMap();
+
+    /**
+     * Gets the content hash of an image file, computing it only if the file has changed since it was last hashed.
+     *
+     * @param filename Local path of the image.
+     * @return The hex encoded hash, or the empty string if the file can't be read.
+     */
+    public static String getHash(final String filename)
+    {
+        final File file = UtilityFunctions.getCanonicalFile(new File(filename));
+        if (!file.isFile())
+        {
+            return "";
+        }
+
+        Entry entry = (Entry)g_fileHashes.get(file);
+        if ((entry == null) || (entry.lastModified != file.lastModified()) || (entry.length != file.length()))
+        {
+            final String hash = computeHash(file);
+            if (hash == null)
+            {
+                return "";
+            }
+
+            entry = new Entry(hash, file.lastModified(), file.length());
+            g_fileHashes.put(file, entry);
+            g_hashFiles.put(hash, file);
+        }
+
+        return entry.hash;
+    }
+
+    /**
+     * Finds a local file with the given content.
+     *
+     * @param hash Hex encoded hash.
+     * @return The file, or null if we don't have it.
+     */
+    public static File find(final String hash)
+    {
+        if (!isValidHash(hash))
+        {
+            return null;
+        }
+
+        final File known = (File)g_hashFiles.get(hash);
+        if ((known != null) && hash.equals(getHash(known.getPath())))
+        {
+            return known;
+        }
+
+        g_hashFiles.remove(hash);
+        final File cached = getCacheFile(hash);
+        if (cached.isFile() && hash.equals(getHash(cached.getPath())))
+        {
+            return cached;
+        }
+
+        return null;
+    }
+
+    /**
+     * Copies a cached image into place as the given file.
+     *
+     * @param hash Hash of the wanted image.
+     * @param target Where the image is wanted.
+     * @return True if the image was cached and has been copied.
+     */
+    public static boolean restore(final String hash, final File target)
+    {
+        final File source = find(hash);
+        if (source == null)
+        {
+            return false;
+        }
+
+        final File parentDir = target.getAbsoluteFile().getParentFile();
+        if (!parentDir.exists())
+        {
+            parentDir.mkdirs();
+        }
+
+        if (!copy(source, target))
+        {
+            return false;
+        }
+
+        Log.log(Log.NET, "Restored " + target + " from image cache");
+        return true;
+    }
+
+    /**
+     * Adds an image to the cache.
+     *
+     * @param filename Local path of the image.
+     */
+    public static void store(final String filename)
+    {
+        final String hash = getHash(filename);
+        if (hash.length() == 0)
+        {
+            return;
+        }
+
+        final File cached = getCacheFile(hash);
+        if (cached.isFile())
+        {
+            return;
+        }
+
+        cached.getParentFile().mkdirs();
+        final File temp = new File(cached.getPath() + ".part");
+        if (copy(new File(filename), temp) && temp.renameTo(cached))
+        {
+            return;
+        }
+
+        temp.delete();
+    }
+
+    private static File getCacheFile(final String hash)
+    {
+        return new File(CACHE_DIRECTORY + File.separator + hash + ".png");
+    }
+
+    private static boolean isValidHash(final String hash)
+    {
+        if ((hash == null) || (hash.length() != 40))
+        {
+            return false;
+        }
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            if (Character.digit(hash.charAt(i), 16) < 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String computeHash(final File file)
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try
+            {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            final byte[] hash = digest.digest();
+            final StringBuffer retVal = new StringBuffer(hash.length * 2);
+            for (int i = 0; i < hash.length; i++)
+            {
+                retVal.append(Character.forDigit((hash[i] >> 4) & 0xF, 16));
+                retVal.append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return retVal.toString();
+        }
+        catch (final NoSuchAlgorithmException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    private static boolean copy(final File source, final File target)
+    {
+        try
+        {
+            final FileChannel in = new FileInputStream(source).getChannel();
+            try
+            {
+                final FileChannel out = new FileOutputStream(target).getChannel();
+                try
+                {
+                    final long size = in.size();
+                    long position = 0;
+                    while (position < size)
+                    {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return true;
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return false;
+        }
+    }
+
+    // --- Constructors ----------------------------------------------------------------------------------------------
+
+    // prevent instantiation
+    private ImageCache()
+    {
+        throw new RuntimeException("ImageCache should not be instantiated!");
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * InterestFilter.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.NetworkThread;
+
+
+
+/**
+ * Holds back the host's fine-grained map changes from players who can't see them.
+ *
+ * Players tell the host what part of the map they can see with PACKET_VIEW. A PACKET_LINES, PACKET_ERASE or
+ * PACKET_MOVEPOG that lands more than MARGIN outside a player's view is held back from that player and queued. The
+ * queue is sent as one catch-up once the player scrolls near anything in it, and before anything it has to come before:
+ * <ul>
+ * <li>Lines and erasures reach each player in the order the host made them, since undo restores the lines as each player
+ * had them. So a player's held back line changes go out before any line change they can see, once too many are held
+ * back, and before any PACKET_UNDO or PACKET_REDO.
+ * <li>Only the latest move of each pog is kept, since each move says where the pog is, not how far it went. A move the
+ * player can see replaces any held back move of the same pog.
+ * </ul>
+ *
+ * Players who have never sent their view get everything, as do spectators, whom the SpectatorFeed keeps up to date.
+ *
+ * The filter only looks at packets, so a hosting GametableFrame and GametableServer both use it.
+ *
+ * @author iffy
+ */
+public class InterestFilter
+{
+    /**
+     * What one player can see, and what they haven't been sent because of it.
+     */
+    private static class Interest
+    {
+        /**
+         * Bounds of everything held back, or null if nothing is.
+         */
+        public Rectangle  heldBounds;
+
+        /**
+         * Held back PACKET_LINES and PACKET_ERASE, in order.
+         */
+        public final List lineChanges = new ArrayList();
+
+        /**
+         * Held back PACKET_MOVEPOGs, keyed by pog id.
+         */
+        public final Map  moves       = new LinkedHashMap();
+
+        /**
+         * The player's view grown by MARGIN, or null if they haven't sent one.
+         */
+        public Rectangle  view;
+
+        public boolean isHolding()
+        {
+            return (heldBounds != null);
+        }
+
+        public void hold(final Rectangle bounds)
+        {
+            if (heldBounds == null)
+            {
+                heldBounds = new Rectangle(bounds);
+            }
+            else
+            {
+                heldBounds.add(bounds);
+            }
+        }
+    }
+
+    /**
+     * Model distance around a player's view within which changes are still sent, so that scrolling a little doesn't
+     * need a catch-up.
+     */
+    public static final int  MARGIN         = 4 * GametableCanvas.BASE_SQUARE_SIZE;
+
+    /**
+     * Most line changes held back for a player before they are sent anyway.
+     */
+    private static final int MAX_HELD_LINES = 256;
+
+    /**
+     * Interests keyed by Connection.
+     */
+    private final Map        interests      = new HashMap();
+
+    /**
+     * Where the host last sent each pog it has seen added or moved, as Rectangles keyed by pog id.
+     */
+    private final Map        pogBounds      = new HashMap();
+    private long             catchUps       = 0;
+    private long             heldCount      = 0;
+    private long             skippedCount   = 0;
+
+    /**
+     * Constructor.
+     */
+    public InterestFilter()
+    {
+    }
+
+    /**
+     * Notes the part of the map a player can see, sending them what has been held back if they can now see any of it.
+     *
+     * @param conn The player's connection.
+     * @param view The part of the map they can see.
+     * @param network Network thread to send through.
+     */
+    public void setView(final Connection conn, final Rectangle view, final NetworkThread network)
+    {
+        Interest interest = (Interest)interests.get(conn);
+        if (interest == null)
+        {
+            interest = new Interest();
+            interests.put(conn, interest);
+        }
+
+        interest.view = new Rectangle(view.x - MARGIN, view.y - MARGIN, view.width + MARGIN * 2, view.height + MARGIN
+            * 2);
+        if (interest.isHolding() && interest.view.intersects(interest.heldBounds))
+        {
+            catchUp(conn, interest, network);
+        }
+    }
+
+    /**
+     * Forgets a player who has left.
+     */
+    public void connectionDropped(final Connection conn)
+    {
+        interests.remove(conn);
+    }
+
+    /**
+     * Carries what a player can see, and what has been held back from them, over to the connection they resumed on.
+     */
+    public void connectionResumed(final Connection old, final Connection conn)
+    {
+        final Object interest = interests.remove(old);
+        if (interest != null)
+        {
+            interests.put(conn, interest);
+        }
+    }
+
+    /**
+     * Forgets everything, as when the host stops hosting.
+     */
+    public void reset()
+    {
+        interests.clear();
+        pogBounds.clear();
+    }
+
+    /**
+     * @return The number of packets held back so far.
+     */
+    public long getHeldCount()
+    {
+        return heldCount;
+    }
+
+    /**
+     * @return The number of held back packets never sent, because a later move of the same pog replaced them.
+     */
+    public long getSkippedCount()
+    {
+        return skippedCount;
+    }
+
+    /**
+     * @return The number of catch-ups sent so far.
+     */
+    public long getCatchUpCount()
+    {
+        return catchUps;
+    }
+
+    /**
+     * @return The number of packets being held back right now.
+     */
+    public int getHoldingCount()
+    {
+        int retVal = 0;
+        final Iterator iterator = interests.values().iterator();
+        while (iterator.hasNext())
+        {
+            final Interest interest = (Interest)iterator.next();
+            retVal += interest.lineChanges.size() + interest.moves.size();
+        }
+        return retVal;
+    }
+
+    /**
+     * Sends a packet to every player but one, holding it back from those who can't see it.
+     *
+     * @param packet Packet data to send.
+     * @param exclude Connection not to send to. May be null.
+     * @param network Network thread to send through.
+     */
+    public void broadcast(final byte[] packet, final Connection exclude, final NetworkThread network)
+    {
+        final int type = PacketManager.getPacketType(packet);
+        switch (type)
+        {
+            case PacketManager.PACKET_UNDO:
+            case PacketManager.PACKET_REDO:
+            {
+                // undo and redo refer to line changes by state id, so everyone must have them all first
+                catchUpAll(network);
+            }
+            break;
+
+            case PacketManager.PACKET_ADDPOG:
+            {
+                pogAdded(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_REMOVEPOGS:
+            {
+                pogsRemoved(packet);
+            }
+            break;
+
+            case PacketManager.PACKET_LINES:
+            case PacketManager.PACKET_ERASE:
+            case PacketManager.PACKET_MOVEPOG:
+            {
+                final Rectangle bounds = getBounds(type, packet);
+                if (!interests.isEmpty())
+                {
+                    route(type, packet, bounds, exclude, network);
+                    return;
+                }
+            }
+            break;
+
+            default:
+            break;
+        }
+
+        network.broadcast(packet, exclude);
+    }
+
+    /**
+     * @param bounds The part of the map the change touches, or null if everyone is to be sent it.
+     */
+    private void route(final int type, final byte[] packet, final Rectangle bounds, final Connection exclude,
+        final NetworkThread network)
+    {
+        final Integer pogId = (type == PacketManager.PACKET_MOVEPOG ? new Integer(getInt(packet, 4)) : null);
+        Set excluded = null;
+
+        final Iterator iterator = interests.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final Connection conn = (Connection)entry.getKey();
+            final Interest interest = (Interest)entry.getValue();
+            if ((conn == exclude) || (interest.view == null))
+            {
+                continue;
+            }
+
+            if ((bounds == null) || interest.view.intersects(bounds))
+            {
+                if (pogId != null)
+                {
+                    if (interest.moves.remove(pogId) != null)
+                    {
+                        skippedCount++;
+                    }
+                }
+                else if (!interest.lineChanges.isEmpty())
+                {
+                    // it mustn't overtake the line changes held back
+                    catchUp(conn, interest, network);
+                }
+                continue;
+            }
+
+            if (pogId != null)
+            {
+                if (interest.moves.put(pogId, packet) != null)
+                {
+                    skippedCount++;
+                }
+            }
+            else
+            {
+                interest.lineChanges.add(packet);
+            }
+            interest.hold(bounds);
+            heldCount++;
+
+            if (interest.lineChanges.size() > MAX_HELD_LINES)
+            {
+                // this packet goes out with the rest
+                catchUp(conn, interest, network);
+            }
+
+            if (excluded == null)
+            {
+                excluded = new HashSet();
+                if (exclude != null)
+                {
+                    excluded.add(exclude);
+                }
+            }
+            excluded.add(conn);
+        }
+
+        if (excluded == null)
+        {
+            network.broadcast(packet, exclude);
+        }
+        else
+        {
+            network.broadcast(packet, excluded);
+        }
+    }
+
+    /**
+     * Sends a player everything held back from them: the line changes in order, then the latest move of each pog.
+     * They go out together at the next flush.
+     */
+    private void catchUp(final Connection conn, final Interest interest, final NetworkThread network)
+    {
+        for (int i = 0; i < interest.lineChanges.size(); i++)
+        {
+            network.send((byte[])interest.lineChanges.get(i), conn);
+        }
+
+        final Iterator iterator = interest.moves.values().iterator();
+        while (iterator.hasNext())
+        {
+            network.send((byte[])iterator.next(), conn);
+        }
+
+        Log.log(Log.NET, "Catch-up: " + interest.lineChanges.size() + " line changes, " + interest.moves.size()
+            + " moves");
+        interest.lineChanges.clear();
+        interest.moves.clear();
+        interest.heldBounds = null;
+        catchUps++;
+    }
+
+    private void catchUpAll(final NetworkThread network)
+    {
+        final Iterator iterator = interests.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final Interest interest = (Interest)entry.getValue();
+            if (interest.isHolding())
+            {
+                catchUp((Connection)entry.getKey(), interest, network);
+            }
+        }
+    }
+
+    /**
+     * @return The part of the map a change touches, or null if it can't be told.
+     */
+    private Rectangle getBounds(final int type, final byte[] packet)
+    {
+        try
+        {
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 4, packet.length - 4));
+            switch (type)
+            {
+                case PacketManager.PACKET_LINES:
+                {
+                    dis.readInt(); // author
+                    dis.readInt(); // state id
+                    final int numLines = dis.readInt();
+                    Rectangle retVal = null;
+                    for (int i = 0; i < numLines; i++)
+                    {
+                        // see LineSegment.writeToPacket()
+                        final Rectangle line = new Rectangle(dis.readInt(), dis.readInt(), 0, 0);
+                        line.add(dis.readInt(), dis.readInt());
+                        dis.readInt(); // color
+
+                        if (retVal == null)
+                        {
+                            retVal = line;
+                        }
+                        else
+                        {
+                            retVal.add(line);
+                        }
+                    }
+                    return retVal;
+                }
+
+                case PacketManager.PACKET_ERASE:
+                {
+                    dis.readInt(); // author
+                    dis.readInt(); // state id
+                    return new Rectangle(dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt());
+                }
+
+                case PacketManager.PACKET_MOVEPOG:
+                {
+                    final Integer id = new Integer(dis.readInt());
+                    final Rectangle from = (Rectangle)pogBounds.get(id);
+                    final int size = (from == null ? GametableCanvas.BASE_SQUARE_SIZE : from.width);
+                    final Rectangle to = new Rectangle(dis.readInt(), dis.readInt(), size, size);
+                    pogBounds.put(id, to);
+                    if (from == null)
+                    {
+                        // we don't know where it was, so everyone who might have seen it needs the move
+                        return null;
+                    }
+
+                    final Rectangle retVal = new Rectangle(from);
+                    retVal.add(to);
+                    return retVal;
+                }
+
+                default:
+                {
+                    return null;
+                }
+            }
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.NET, ex);
+            return null;
+        }
+    }
+
+    private void pogAdded(final byte[] packet)
+    {
+        try
+        {
+            // see Pog.writeToPacket(): after the layer come the file name, x, y, face size and id
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 4, packet.length - 4));
+            if (!dis.readBoolean())
+            {
+                return;
+            }
+            dis.readUTF();
+            final int x = dis.readInt();
+            final int y = dis.readInt();
+            final int size = Math.max(dis.readInt(), 1) * GametableCanvas.BASE_SQUARE_SIZE;
+            pogBounds.put(new Integer(dis.readInt()), new Rectangle(x, y, size, size));
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.NET, ex);
+        }
+    }
+
+    private void pogsRemoved(final byte[] packet)
+    {
+        final int numPogs = getInt(packet, 4);
+        for (int i = 0; (i < numPogs) && (12 + i * 4 <= packet.length); i++)
+        {
+            pogBounds.remove(new Integer(getInt(packet, 8 + i * 4)));
+        }
+    }
+
+    private static int getInt(final byte[] data, final int offset)
+    {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+}
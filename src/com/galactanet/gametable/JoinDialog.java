@@ -44,6 +44,7 @@ public class JoinDialog extends JDialog implements FocusListener
     JTextField                m_passwordEntry   = new JTextField();
     JTextField                m_plrNameEntry    = new JTextField();
     JTextField                m_portEntry       = new JTextField();
+    JCheckBox                 m_spectateCheck   = new JCheckBox("Watch only");
     JTextField                m_textEntry       = new JTextField();
 
     public JoinDialog()
@@ -113,6 +114,7 @@ public class JoinDialog extends JDialog implements FocusListener
                 GametableFrame.getGametableFrame().m_playerName = m_plrNameEntry.getText();
                 GametableFrame.getGametableFrame().m_ipAddress = m_textEntry.getText();
                 GametableFrame.getGametableFrame().m_password = m_passwordEntry.getText();
+                GametableFrame.getGametableFrame().m_spectating = m_spectateCheck.isSelected();
                 getPort();
 
                 dispose();
@@ -175,6 +177,10 @@ public class JoinDialog extends JDialog implements FocusListener
         panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 0));
         panel.add(m_textEntry);
         nextBox.add(panel);
+        nextBox.add(Box.createVerticalStrut(PADDING));
+        panel = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 0));
+        panel.add(m_spectateCheck);
+        nextBox.add(panel);
         m_hostPanel.add(nextBox, "join");
 
         panel = new JPanel();
@@ -209,6 +215,7 @@ public class JoinDialog extends JDialog implements FocusListener
         m_textEntry.setText(GametableFrame.getGametableFrame().m_ipAddress);
         m_portEntry.setText(String.valueOf(GametableFrame.getGametableFrame().m_port));
         m_passwordEntry.setText(GametableFrame.getGametableFrame().m_password);
+        m_spectateCheck.setSelected(GametableFrame.getGametableFrame().m_spectating);
 
         // we want to know if any of those text entry areas get focus
         m_textEntry.addFocusListener(this);
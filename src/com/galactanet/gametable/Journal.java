@@ -0,0 +1,485 @@
+/*
+ * Journal.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * The host's write-ahead journal, so a game in progress survives the host crashing.
+ *
+ * Every packet the host broadcasts that changes the public map is appended to a journal file. Now and then the whole
+ * map is written out as a snapshot in the usual save file format and the journal starts over, so it only ever holds
+ * what happened since the last snapshot. If the host goes down without closing the journal, loading the snapshot and
+ * replaying the journal brings the map back.
+ *
+ * The journal file is preallocated and memory mapped, so appending is a copy into memory. Even that happens on a
+ * writer thread of its own: append() and compact() only queue their work and return, so the event thread never waits
+ * on the disk. The writer forces the mapping out at most once a second.
+ *
+ * The journal starts with a header holding the checksum of the snapshot it follows. Each record is the length of the
+ * packet, a checksum of the packet and the snapshot checksum together, and the packet. A record that doesn't check out
+ * ends the journal, so a half written record, or an old one left over from before the last snapshot, is never
+ * replayed. If the host dies after writing a new snapshot but before starting the journal over, the old journal no
+ * longer matches the snapshot and is ignored, since the snapshot already has everything in it.
+ *
+ * @author iffy
+ */
+public class Journal
+{
+    /**
+     * A snapshot waiting for the writer thread.
+     */
+    private static class Snapshot
+    {
+        final byte[] data;
+
+        Snapshot(final byte[] saveFileData)
+        {
+            data = saveFileData;
+        }
+    }
+
+    /**
+     * Default bytes preallocated for the journal. It grows by as much again if it fills up.
+     */
+    public static final int     DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    /**
+     * Milliseconds between forcing the journal out to the disk.
+     */
+    private static final long   FORCE_INTERVAL   = 1000;
+
+    private static final int    HEADER_SIZE      = 16;
+    private static final int    MAGIC            = 0x47544A4C;     // GTJL
+    private static final int    RECORD_OVERHEAD  = 8;
+
+    /**
+     * Queued to tell the writer thread to finish up.
+     */
+    private static final Object CLOSE            = new Object();
+
+    /**
+     * Reads back what a journal that was never closed holds.
+     *
+     * @param journalFile The journal file.
+     * @param snapshotFile The snapshot file the journal follows.
+     * @return The packets journaled since the snapshot, oldest first, or null if there is nothing to recover.
+     */
+    public static List recover(final File journalFile, final File snapshotFile)
+    {
+        if (!journalFile.exists() || !snapshotFile.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            final byte[] snapshot = readFile(snapshotFile);
+            final ByteBuffer journal = ByteBuffer.wrap(readFile(journalFile));
+            if ((journal.remaining() < HEADER_SIZE) || (journal.getInt() != MAGIC)
+                || (journal.getInt() != GametableFrame.COMM_VERSION))
+            {
+                Log.log(Log.SYS, "Ignoring " + journalFile + ": not a journal from this version");
+                return null;
+            }
+
+            final List packets = new ArrayList();
+            final long base = journal.getLong();
+            if (base != checksum(snapshot))
+            {
+                // a newer snapshot was written, the journal just hadn't started over yet
+                return packets;
+            }
+
+            final CRC32 crc = new CRC32();
+            while (journal.remaining() >= RECORD_OVERHEAD)
+            {
+                final int length = journal.getInt();
+                final int check = journal.getInt();
+                if ((length <= 0) || (length > journal.remaining()))
+                {
+                    break;
+                }
+
+                final byte[] packet = new byte[length];
+                journal.get(packet);
+                if (check != recordChecksum(crc, base, packet))
+                {
+                    break;
+                }
+                packets.add(packet);
+            }
+            return packets;
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Gets rid of a journal and its snapshot.
+     *
+     * @param journalFile The journal file.
+     * @param snapshotFile The snapshot file.
+     */
+    public static void discard(final File journalFile, final File snapshotFile)
+    {
+        journalFile.delete();
+        snapshotFile.delete();
+    }
+
+    private static long checksum(final byte[] data)
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static byte[] readFile(final File file) throws IOException
+    {
+        final DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            final byte[] data = new byte[(int)file.length()];
+            input.readFully(data);
+            return data;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private static int recordChecksum(final CRC32 crc, final long base, final byte[] packet)
+    {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            crc.update((int)(base >>> shift));
+        }
+        crc.update(packet);
+        return (int)crc.getValue();
+    }
+
+    private long                   appendedBytes    = 0;
+    private long                   base             = 0;
+    private MappedByteBuffer       buffer;
+    private int                    capacity;
+    private FileChannel            channel;
+    private boolean                closed           = false;
+    private final CRC32            crc              = new CRC32();
+    private boolean                dirty            = false;
+    private RandomAccessFile       file;
+    private final File             journalFile;
+    private long                   lastForce        = 0;
+
+    /**
+     * Work for the writer thread: packets to append, and Snapshots.
+     */
+    private final LinkedList       queue            = new LinkedList();
+    private final File             snapshotFile;
+    private Thread                 writer;
+
+    /**
+     * Constructor.
+     *
+     * @param journal Where to keep the journal.
+     * @param snapshot Where to keep the snapshot the journal follows.
+     */
+    public Journal(final File journal, final File snapshot)
+    {
+        journalFile = journal;
+        snapshotFile = snapshot;
+    }
+
+    /**
+     * Queues a packet to be appended to the journal. Does nothing once the journal is closed.
+     *
+     * @param packet A packet that changes the public map.
+     */
+    public void append(final byte[] packet)
+    {
+        synchronized (queue)
+        {
+            if (closed)
+            {
+                return;
+            }
+            appendedBytes += packet.length + RECORD_OVERHEAD;
+            queue.addLast(packet);
+            queue.notify();
+        }
+    }
+
+    /**
+     * Stops the writer thread once it has written everything queued, and deletes the journal and snapshot. A journal
+     * that is closed has nothing to recover.
+     */
+    public void close()
+    {
+        final Thread thread;
+        synchronized (queue)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            queue.addLast(CLOSE);
+            queue.notify();
+            thread = writer;
+        }
+
+        if (thread != null)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (final InterruptedException ex)
+            {
+                Log.log(Log.SYS, ex);
+            }
+        }
+        discard(journalFile, snapshotFile);
+    }
+
+    /**
+     * Queues a new snapshot, after which the journal starts over. Everything appended before the call is in the
+     * snapshot and everything appended after it goes in the new journal.
+     *
+     * @param saveFileData The public map, as a save file.
+     */
+    public void compact(final byte[] saveFileData)
+    {
+        synchronized (queue)
+        {
+            if (closed)
+            {
+                return;
+            }
+            appendedBytes = 0;
+            queue.addLast(new Snapshot(saveFileData));
+            queue.notify();
+        }
+    }
+
+    /**
+     * @return Bytes appended since the last snapshot was queued.
+     */
+    public long getAppendedBytes()
+    {
+        synchronized (queue)
+        {
+            return appendedBytes;
+        }
+    }
+
+    /**
+     * @return Bytes preallocated for the journal.
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Preallocates the journal file, writes the first snapshot and starts the writer thread.
+     *
+     * @param saveFileData The public map, as a save file.
+     * @param initialCapacity Bytes to preallocate for the journal.
+     * @throws IOException If the journal or the snapshot could not be written.
+     */
+    public void open(final byte[] saveFileData, final int initialCapacity) throws IOException
+    {
+        file = new RandomAccessFile(journalFile, "rw");
+        channel = file.getChannel();
+        try
+        {
+            map(initialCapacity);
+            writeSnapshot(saveFileData);
+        }
+        catch (final IOException ex)
+        {
+            closed = true;
+            file.close();
+            throw ex;
+        }
+
+        writer = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "Journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void write(final byte[] packet) throws IOException
+    {
+        final int end = buffer.position() + RECORD_OVERHEAD + packet.length;
+        if (end + RECORD_OVERHEAD > capacity)
+        {
+            map(Math.max(capacity * 2, end + RECORD_OVERHEAD));
+        }
+
+        // the record only counts once its length is in, so write that last
+        final int start = buffer.position();
+        buffer.position(start + RECORD_OVERHEAD);
+        buffer.put(packet);
+        buffer.putInt(0);
+        buffer.putInt(start + 4, recordChecksum(crc, base, packet));
+        buffer.putInt(start, packet.length);
+        buffer.position(end);
+        dirty = true;
+    }
+
+    private void force(final long now)
+    {
+        if (dirty)
+        {
+            buffer.force();
+            dirty = false;
+        }
+        lastForce = now;
+    }
+
+    /**
+     * Maps the journal file, growing it to the given size if it is smaller. Keeps the write position.
+     */
+    private void map(final int size) throws IOException
+    {
+        final int position = (buffer == null ? HEADER_SIZE : buffer.position());
+        if (file.length() < size)
+        {
+            file.setLength(size);
+        }
+        capacity = size;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+    }
+
+    private void writeLoop()
+    {
+        try
+        {
+            while (true)
+            {
+                final Object work;
+                synchronized (queue)
+                {
+                    while (queue.isEmpty())
+                    {
+                        final long wait = FORCE_INTERVAL - (System.currentTimeMillis() - lastForce);
+                        if (dirty && (wait <= 0))
+                        {
+                            break;
+                        }
+                        queue.wait(dirty ? wait : 0);
+                    }
+                    work = (queue.isEmpty() ? null : queue.removeFirst());
+                }
+
+                final long now = System.currentTimeMillis();
+                if (work == CLOSE)
+                {
+                    force(now);
+                    break;
+                }
+                if (work instanceof Snapshot)
+                {
+                    writeSnapshot(((Snapshot)work).data);
+                }
+                else if (work != null)
+                {
+                    write((byte[])work);
+                }
+
+                if (now - lastForce >= FORCE_INTERVAL)
+                {
+                    force(now);
+                }
+            }
+        }
+        catch (final InterruptedException ex)
+        {
+            Log.log(Log.SYS, ex);
+        }
+        catch (final IOException ex)
+        {
+            // the game carries on, it just can't be recovered any more
+            Log.log(Log.SYS, "Journal failed; stopped journaling");
+            Log.log(Log.SYS, ex);
+            synchronized (queue)
+            {
+                closed = true;
+                queue.clear();
+            }
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+                file.close();
+            }
+            catch (final IOException ex)
+            {
+                Log.log(Log.SYS, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot safely out to the disk, then starts the journal over to follow it.
+     */
+    private void writeSnapshot(final byte[] saveFileData) throws IOException
+    {
+        final File temp = new File(snapshotFile.getPath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(temp);
+        try
+        {
+            output.write(saveFileData);
+            output.getFD().sync();
+        }
+        finally
+        {
+            output.close();
+        }
+        if (!temp.renameTo(snapshotFile) && (!snapshotFile.delete() || !temp.renameTo(snapshotFile)))
+        {
+            throw new IOException("Unable to rename " + temp + " to " + snapshotFile);
+        }
+
+        base = checksum(saveFileData);
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, GametableFrame.COMM_VERSION);
+        buffer.putLong(8, base);
+        buffer.position(HEADER_SIZE);
+        buffer.force();
+        dirty = false;
+        lastForce = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,870 @@
+/*
+ * LoadTest.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.*;
+import java.net.ServerSocket;
+import java.util.*;
+
+import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.NetworkThread;
+import com.galactanet.gametable.net.Packet;
+
+
+
+/**
+ * Puts a host under the load of a full table, so that we find out how it copes before a game night does.
+ *
+ * A number of bots connect to the host over loopback through ordinary Connections, and log in with PACKET_PLAYER as
+ * players do. Once they are all in, they take turns doing something at the given rate between them: drawing lines,
+ * moving pogs, pointing, chatting and rolling dice, in the given mix. Each packet carries a sequence number, in the line
+ * colour, the pog or pointer position or the chat text, so every bot it reaches can tell how long it took to get there.
+ * Bots answer the host's pings, as players do, but never send their view, so every change reaches every bot.
+ *
+ * Unless another host is given, a GametableServer is started in the same process to be tested. At the end, the test
+ * prints what the host handled and delivered each second, the latency percentiles over every bot and their spread
+ * between bots, and the memory the host used. The heap is shared with the bots, so its figures include them.
+ *
+ * Usage: LoadTest [-bots count] [-rate actions per second per bot] [-seconds seconds] [-mix
+ * lines,moves,points,chat,dice] [-threads count] [-host address] [-port port] [-password password] [-maxp99 ms]
+ *
+ * The mix is relative weights. The threads are the host's network worker threads; see NetworkThread. With -maxp99, the
+ * test fails with exit status 1 if the 99th percentile latency is higher.
+ *
+ * @author iffy
+ */
+public class LoadTest
+{
+    /**
+     * A simulated player: a connection to the host and the latencies of the packets that reached it.
+     */
+    private static class Bot
+    {
+        public final Connection connection;
+        public final int        index;
+        public int[]            latencies    = new int[1024];
+        public int              latencyCount = 0;
+        public volatile boolean loggedIn     = false;
+        public final String     name;
+        public volatile int     playerId     = -1;
+        public volatile int     playerIndex  = 0;
+
+        public Bot(final int i, final Connection conn)
+        {
+            index = i;
+            name = "Bot" + i;
+            connection = conn;
+        }
+
+        public void record(final int micros)
+        {
+            if (latencyCount == latencies.length)
+            {
+                final int[] bigger = new int[latencies.length * 2];
+                System.arraycopy(latencies, 0, bigger, 0, latencyCount);
+                latencies = bigger;
+            }
+            latencies[latencyCount++] = micros;
+        }
+    }
+
+    // the actions bots take, indexes into the mix
+    private static final int       ACTION_LINES     = 0;
+    private static final int       ACTION_MOVE      = 1;
+    private static final int       ACTION_POINT     = 2;
+    private static final int       ACTION_CHAT      = 3;
+    private static final int       ACTION_DICE      = 4;
+
+    private static final String[]  ACTION_NAMES     = {
+        "lines", "moves", "points", "chat", "dice"
+    };
+
+    private static final String[]  CHAT             = {
+        "I open the door.", "Does anyone have a light?", "brb", "I'll take the goblin on the left.",
+        "What's the DC on that?", "lol", "Can I use my bonus action to hide?"
+    };
+
+    private static final int       DEFAULT_BOTS     = 30;
+    private static final int[]     DEFAULT_MIX      = {
+        30, 30, 30, 5, 5
+    };
+    private static final String    DEFAULT_PASSWORD = "loadtest";
+    private static final int       DEFAULT_RATE     = 10;
+    private static final int       DEFAULT_SECONDS  = 30;
+
+    private static final DiceMacro DICE             = new DiceMacro("2d6+3", "Attack");
+
+    /**
+     * Milliseconds given to packets still on their way once the bots stop.
+     */
+    private static final long      DRAIN            = 2000;
+
+    /**
+     * Milliseconds the bots may take to log in.
+     */
+    private static final long      LOGIN_TIMEOUT    = 30000;
+
+    /**
+     * Sequence numbers go in line colours, so they must fit in 24 bits.
+     */
+    private static final int       MAX_SEQUENCE     = 0xFFFFFF;
+
+    /**
+     * Separates a chat message from the sequence number after it.
+     */
+    private static final String    SEQUENCE_MARK    = " #";
+
+    /**
+     * Milliseconds the bots run before anything is counted, for warming up the JIT.
+     */
+    private static final long      WARMUP           = 3000;
+
+    /**
+     * Main method
+     */
+    public static void main(final String[] args)
+    {
+        final LoadTest test = new LoadTest();
+        String host = null;
+        int port = -1;
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if (i + 1 >= args.length)
+                {
+                    throw new IllegalArgumentException(args[i]);
+                }
+
+                if (args[i].equals("-bots"))
+                {
+                    test.botCount = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-rate"))
+                {
+                    test.rate = Double.parseDouble(args[++i]);
+                }
+                else if (args[i].equals("-seconds"))
+                {
+                    test.seconds = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-mix"))
+                {
+                    final StringTokenizer tokens = new StringTokenizer(args[++i], ",");
+                    if (tokens.countTokens() != ACTION_NAMES.length)
+                    {
+                        throw new IllegalArgumentException(args[i]);
+                    }
+                    for (int a = 0; a < test.mix.length; a++)
+                    {
+                        test.mix[a] = Integer.parseInt(tokens.nextToken().trim());
+                    }
+                }
+                else if (args[i].equals("-threads"))
+                {
+                    test.hostThreads = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-host"))
+                {
+                    host = args[++i];
+                }
+                else if (args[i].equals("-port"))
+                {
+                    port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-password"))
+                {
+                    test.password = args[++i];
+                }
+                else if (args[i].equals("-maxp99"))
+                {
+                    test.maxP99 = Double.parseDouble(args[++i]);
+                }
+                else
+                {
+                    throw new IllegalArgumentException(args[i]);
+                }
+            }
+
+            if ((test.botCount < 1) || (test.rate <= 0) || (test.seconds < 1) || (test.getMixTotal() <= 0)
+                || ((host != null) && (port < 0)))
+            {
+                throw new IllegalArgumentException();
+            }
+        }
+        catch (final IllegalArgumentException iae)
+        {
+            System.err.println("Usage: LoadTest [-bots count] [-rate actions per second per bot] [-seconds seconds]"
+                + " [-mix lines,moves,points,chat,dice] [-threads count] [-host address] [-port port]"
+                + " [-password password] [-maxp99 ms]");
+            System.exit(2);
+        }
+
+        try
+        {
+            final boolean passed = test.run(host, port);
+            System.exit(passed ? 0 : 1);
+        }
+        catch (final Throwable t)
+        {
+            Log.log(Log.SYS, t);
+            System.exit(1);
+        }
+    }
+
+    private int                    botCount         = DEFAULT_BOTS;
+    private Bot[]                  bots;
+
+    /**
+     * Bots keyed by their Connection.
+     */
+    private final Map              botsByConnection = new HashMap();
+
+    /**
+     * Packets bots were sent during the test, each counted once for every bot it should reach.
+     */
+    private long                   expected         = 0;
+    private long                   hostPackets      = 0;
+    private int                    hostThreads      = 0;
+    private long                   liveHeap         = 0;
+    private double                 maxP99           = -1;
+    private final int[]            mix              = (int[])DEFAULT_MIX.clone();
+    private NetworkThread          network;
+    private long                   peakHeap         = 0;
+    private long                   peakPending      = 0;
+    private String                 password         = DEFAULT_PASSWORD;
+    private final Random           random           = new Random();
+    private double                 rate             = DEFAULT_RATE;
+
+    /**
+     * Only packets sent between these times, by System.nanoTime(), are counted.
+     */
+    private volatile long          recordEnd        = Long.MAX_VALUE;
+    private volatile long          recordStart      = Long.MAX_VALUE;
+    private volatile int           rejections       = 0;
+    private int                    seconds          = DEFAULT_SECONDS;
+
+    /**
+     * When each packet was sent, by System.nanoTime(), indexed by sequence number.
+     */
+    private long[]                 sentAt;
+    private int                    sequence         = 1;
+    private final int[]            sentCounts       = new int[ACTION_NAMES.length];
+    private GametableServer        server;
+    private volatile boolean       stopping         = false;
+
+    /**
+     * Constructor.
+     */
+    public LoadTest()
+    {
+    }
+
+    /**
+     * Runs the test and prints the results.
+     *
+     * @param hostAddress Host to test, or null to start one here.
+     * @param hostPort Port the host listens on, or -1 to pick a free one for the host started here.
+     * @return False if the test failed: not every bot could log in, or the latency was too high.
+     */
+    public boolean run(final String hostAddress, final int hostPort) throws Exception
+    {
+        final String address = (hostAddress == null ? "127.0.0.1" : hostAddress);
+        int port = hostPort;
+        File saveFile = null;
+        Thread serverThread = null;
+        if (hostAddress == null)
+        {
+            if (port < 0)
+            {
+                final ServerSocket probe = new ServerSocket(0);
+                port = probe.getLocalPort();
+                probe.close();
+            }
+
+            saveFile = File.createTempFile("loadtest", ".grm");
+            saveFile.delete();
+            server = new GametableServer(port, password, saveFile, 0, hostThreads);
+            server.setEcho(false);
+            server.load();
+            serverThread = new Thread(GametableServer.class.getName())
+            {
+                public void run()
+                {
+                    try
+                    {
+                        server.run();
+                    }
+                    catch (final InterruptedException ie)
+                    {
+                        // stopped
+                    }
+                }
+            };
+            serverThread.start();
+
+            // wait for the server socket
+            for (int i = 0; (i < 100) && (server.getNetworkThread().getSelector() == null); i++)
+            {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+        }
+
+        final long expectedPackets = (long)(rate * botCount * (WARMUP / 1000 + seconds + 1));
+        sentAt = new long[(int)Math.min(expectedPackets * 2 + 1024, MAX_SEQUENCE + 1)];
+
+        System.out.println(botCount + " bots at " + rate + " actions a second each for " + seconds + " seconds: "
+            + describeMix());
+
+        network = new NetworkThread();
+        network.start();
+        final Thread reader = new Thread(LoadTest.class.getName() + " reader")
+        {
+            public void run()
+            {
+                read();
+            }
+        };
+        reader.start();
+
+        bots = new Bot[botCount];
+        for (int i = 0; i < bots.length; i++)
+        {
+            final Connection conn = new Connection(address, port);
+            bots[i] = new Bot(i, conn);
+            synchronized (botsByConnection)
+            {
+                botsByConnection.put(conn, bots[i]);
+            }
+            network.add(conn);
+            conn.sendPacket(PacketManager.makePlayerPacket(new Player(bots[i].name, bots[i].name, -1), password));
+        }
+
+        boolean passed = waitForLogins();
+        if (passed)
+        {
+            play();
+        }
+
+        stopping = true;
+        reader.join();
+        if (passed)
+        {
+            passed = report();
+        }
+
+        for (int i = 0; i < bots.length; i++)
+        {
+            bots[i].connection.close();
+        }
+        network.closeAllConnections();
+        network.interrupt();
+        network.join();
+
+        if (server != null)
+        {
+            server.stop();
+            serverThread.join();
+            saveFile.delete();
+        }
+
+        return passed;
+    }
+
+    /**
+     * @return False if some bots didn't get in.
+     */
+    private boolean waitForLogins() throws InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        while (true)
+        {
+            int loggedIn = 0;
+            for (int i = 0; i < bots.length; i++)
+            {
+                if (bots[i].loggedIn)
+                {
+                    loggedIn++;
+                }
+            }
+
+            if (loggedIn == bots.length)
+            {
+                System.out.println("All bots logged in after " + (System.currentTimeMillis() - start) + " ms");
+                return true;
+            }
+
+            if ((rejections > 0) || (System.currentTimeMillis() - start > LOGIN_TIMEOUT))
+            {
+                System.out.println("Only " + loggedIn + " of " + bots.length + " bots could log in"
+                    + (rejections > 0 ? "; the host turned " + rejections + " away" : ""));
+                return false;
+            }
+
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Has the bots act in turn at the given rate, warming up and then counting, and notes what the host did meanwhile.
+     */
+    private void play() throws InterruptedException
+    {
+        final NetworkThread hostNetwork = (server == null ? null : server.getNetworkThread());
+        final Runtime runtime = Runtime.getRuntime();
+        final long interval = (long)(1000000000L / (rate * bots.length));
+        final long start = System.nanoTime();
+        final long warm = start + WARMUP * 1000000L;
+        final long end = warm + seconds * 1000000000L;
+
+        long nextSample = warm;
+        long next = start;
+        int turn = 0;
+        while (true)
+        {
+            final long now = System.nanoTime();
+            if (now >= end)
+            {
+                break;
+            }
+
+            if ((now >= warm) && (recordStart == Long.MAX_VALUE))
+            {
+                if (server != null)
+                {
+                    hostPackets = server.getPacketCount();
+                }
+                recordStart = now;
+            }
+
+            if (now >= nextSample)
+            {
+                // once a second is enough to catch the peaks without getting in the way
+                nextSample += 1000000000L;
+                peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+                if (hostNetwork != null)
+                {
+                    peakPending = Math.max(peakPending, hostNetwork.getPendingBytes());
+                }
+            }
+
+            final long wait = next - now;
+            if (wait > 0)
+            {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                continue;
+            }
+            next += interval;
+
+            act(bots[turn], (now >= warm));
+            turn = (turn + 1) % bots.length;
+        }
+        recordEnd = System.nanoTime();
+
+        // let what is on its way arrive
+        Thread.sleep(DRAIN);
+
+        if (server != null)
+        {
+            hostPackets = server.getPacketCount() - hostPackets;
+        }
+        peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+        runtime.gc();
+        liveHeap = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Has a bot do something picked from the mix.
+     *
+     * @param counted True to count the packet towards the results.
+     */
+    private void act(final Bot bot, final boolean counted)
+    {
+        if (sequence >= sentAt.length)
+        {
+            // nothing left to number packets with; carry on with the load all the same
+            sequence = 1;
+        }
+        final int seq = sequence++;
+        final int action = pickAction();
+        final byte[] packet;
+        switch (action)
+        {
+            case ACTION_LINES:
+            {
+                // a short stroke, all in one colour that carries the sequence number
+                final Color color = new Color(seq);
+                final LineSegment[] lines = new LineSegment[1 + random.nextInt(8)];
+                int x = bot.index * 500 + random.nextInt(500);
+                int y = random.nextInt(2000);
+                for (int i = 0; i < lines.length; i++)
+                {
+                    final Point from = new Point(x, y);
+                    x += random.nextInt(41) - 20;
+                    y += random.nextInt(41) - 20;
+                    lines[i] = new LineSegment(from, new Point(x, y), color);
+                }
+                packet = PacketManager.makeLinesPacket(lines, bot.playerId, -1);
+            }
+            break;
+
+            case ACTION_MOVE:
+            {
+                // each bot has a few pogs of its own, which the host needn't know
+                final int pogId = 1000000 + bot.index * 4 + random.nextInt(4);
+                packet = PacketManager.makeMovePogPacket(pogId, seq, random.nextInt(2000));
+            }
+            break;
+
+            case ACTION_POINT:
+            {
+                packet = PacketManager.makePointPacket(bot.playerIndex, seq, random.nextInt(2000), true);
+            }
+            break;
+
+            case ACTION_CHAT:
+            {
+                packet = PacketManager.makeTextPacket(GametableFrame.SAY_MESSAGE_FONT + bot.name + ": "
+                    + GametableFrame.END_SAY_MESSAGE_FONT + CHAT[random.nextInt(CHAT.length)] + SEQUENCE_MARK + seq);
+            }
+            break;
+
+            default:
+            {
+                final DiceMacro.Result result = DICE.roll();
+                packet = PacketManager.makeTextPacket(bot.name + " rolls " + result.roll + ": [" + result.result
+                    + "] = " + GametableFrame.DIEROLL_MESSAGE_FONT + result.value
+                    + GametableFrame.END_DIEROLL_MESSAGE_FONT + SEQUENCE_MARK + seq);
+            }
+            break;
+        }
+
+        if (counted)
+        {
+            // the host sends pointing on to everyone but the pointer, and the rest to everyone
+            expected += (action == ACTION_POINT ? bots.length - 1 : bots.length);
+            sentCounts[action]++;
+        }
+
+        sentAt[seq] = System.nanoTime();
+        bot.connection.sendPacket(packet);
+    }
+
+    private int pickAction()
+    {
+        int pick = random.nextInt(getMixTotal());
+        for (int i = 0; i < mix.length; i++)
+        {
+            pick -= mix[i];
+            if (pick < 0)
+            {
+                return i;
+            }
+        }
+        return ACTION_CHAT;
+    }
+
+    private int getMixTotal()
+    {
+        int retVal = 0;
+        for (int i = 0; i < mix.length; i++)
+        {
+            retVal += Math.max(mix[i], 0);
+        }
+        return retVal;
+    }
+
+    private String describeMix()
+    {
+        final StringBuffer buffer = new StringBuffer();
+        for (int i = 0; i < mix.length; i++)
+        {
+            buffer.append(i > 0 ? ", " : "");
+            buffer.append(ACTION_NAMES[i]);
+            buffer.append(' ');
+            buffer.append(mix[i] * 100 / getMixTotal());
+            buffer.append('%');
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Takes what the host sends the bots off the network until the test stops.
+     */
+    private void read()
+    {
+        try
+        {
+            while (!stopping)
+            {
+                network.waitForPackets(25);
+                final List packets = network.getPackets();
+                final long now = System.nanoTime();
+                for (int i = 0, size = packets.size(); i < size; ++i)
+                {
+                    final Packet packet = (Packet)packets.get(i);
+                    final byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(packet.getBuffer(), 0, data, 0, data.length);
+                    final Connection source = packet.getSource();
+                    final long receivedAt = packet.getReceivedAt();
+                    packet.release();
+
+                    final Bot bot;
+                    synchronized (botsByConnection)
+                    {
+                        bot = (Bot)botsByConnection.get(source);
+                    }
+                    if (bot != null)
+                    {
+                        packetReceived(bot, data, now, receivedAt);
+                    }
+                }
+
+                if (!stopping && !network.getLostConnections().isEmpty())
+                {
+                    System.out.println("The host dropped a bot");
+                }
+            }
+        }
+        catch (final InterruptedException ie)
+        {
+            // stopped
+        }
+    }
+
+    private void packetReceived(final Bot bot, final byte[] packet, final long now, final long receivedAt)
+    {
+        if (packet.length < 4)
+        {
+            return;
+        }
+
+        try
+        {
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 4, packet.length - 4));
+            switch (PacketManager.getPacketType(packet))
+            {
+                case PacketManager.PACKET_BATCH:
+                {
+                    final int numPackets = dis.readInt();
+                    for (int i = 0; i < numPackets; i++)
+                    {
+                        final byte[] inner = new byte[dis.readInt()];
+                        dis.readFully(inner);
+                        packetReceived(bot, inner, now, receivedAt);
+                    }
+                }
+                break;
+
+                case PacketManager.PACKET_CAST:
+                {
+                    // see PacketManager.makeCastPacket()
+                    final int numPlayers = dis.readInt();
+                    final int[] ids = new int[numPlayers];
+                    for (int i = 0; i < numPlayers; i++)
+                    {
+                        dis.readUTF();
+                        dis.readUTF();
+                        ids[i] = dis.readInt();
+                        dis.readBoolean();
+                    }
+                    final int ourIdx = dis.readInt();
+                    if ((ourIdx >= 0) && (ourIdx < numPlayers))
+                    {
+                        bot.playerIndex = ourIdx;
+                        bot.playerId = ids[ourIdx];
+                    }
+                    if (dis.available() >= 4)
+                    {
+                        bot.connection.setPeerCapabilities(dis.readInt());
+                    }
+                }
+                break;
+
+                case PacketManager.PACKET_LOGIN_COMPLETE:
+                {
+                    bot.loggedIn = true;
+                }
+                break;
+
+                case PacketManager.PACKET_REJECT:
+                {
+                    rejections++;
+                }
+                break;
+
+                case PacketManager.PACKET_PING:
+                {
+                    if (dis.available() == 0)
+                    {
+                        break;
+                    }
+
+                    final int seq = dis.readInt();
+                    final long pingSentAt = dis.readLong();
+                    if (!dis.readBoolean())
+                    {
+                        bot.connection.sendPacket(PacketManager.makePingReplyPacket(seq, pingSentAt, receivedAt,
+                            System.currentTimeMillis()));
+                    }
+                }
+                break;
+
+                case PacketManager.PACKET_LINES:
+                {
+                    dis.readInt(); // author
+                    dis.readInt(); // state id
+                    if (dis.readInt() > 0)
+                    {
+                        // see LineSegment.writeToPacket()
+                        dis.skipBytes(16);
+                        arrived(bot, dis.readInt() & MAX_SEQUENCE, now);
+                    }
+                }
+                break;
+
+                case PacketManager.PACKET_MOVEPOG:
+                {
+                    dis.readInt(); // pog id
+                    arrived(bot, dis.readInt(), now);
+                }
+                break;
+
+                case PacketManager.PACKET_POINT:
+                {
+                    dis.readInt(); // player index
+                    arrived(bot, dis.readInt(), now);
+                }
+                break;
+
+                case PacketManager.PACKET_TEXT:
+                {
+                    final String text = dis.readUTF();
+                    final int mark = text.lastIndexOf(SEQUENCE_MARK);
+                    if (mark >= 0)
+                    {
+                        arrived(bot, Integer.parseInt(text.substring(mark + SEQUENCE_MARK.length())), now);
+                    }
+                }
+                break;
+
+                default:
+                break;
+            }
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.NET, ex);
+        }
+        catch (final NumberFormatException ex)
+        {
+            // chat that isn't ours
+        }
+    }
+
+    /**
+     * Notes how long a packet took to reach a bot, if it was sent while counting.
+     */
+    private void arrived(final Bot bot, final int seq, final long now)
+    {
+        if ((seq <= 0) || (seq >= sentAt.length))
+        {
+            return;
+        }
+
+        final long sent = sentAt[seq];
+        if ((sent < recordStart) || (sent > recordEnd))
+        {
+            return;
+        }
+        bot.record((int)((now - sent) / 1000));
+    }
+
+    /**
+     * Prints the results.
+     *
+     * @return False if the latency was too high.
+     */
+    private boolean report()
+    {
+        int delivered = 0;
+        for (int i = 0; i < bots.length; i++)
+        {
+            delivered += bots[i].latencyCount;
+        }
+
+        final int[] latencies = new int[delivered];
+        final int[] botP99s = new int[bots.length];
+        int pos = 0;
+        for (int i = 0; i < bots.length; i++)
+        {
+            final int[] own = new int[bots[i].latencyCount];
+            System.arraycopy(bots[i].latencies, 0, own, 0, own.length);
+            Arrays.sort(own);
+            botP99s[i] = percentile(own, 0.99);
+            System.arraycopy(own, 0, latencies, pos, own.length);
+            pos += own.length;
+        }
+        Arrays.sort(latencies);
+        Arrays.sort(botP99s);
+
+        final StringBuffer sent = new StringBuffer();
+        long sentTotal = 0;
+        for (int i = 0; i < sentCounts.length; i++)
+        {
+            sent.append(i > 0 ? ", " : "");
+            sent.append(sentCounts[i] / seconds);
+            sent.append(' ');
+            sent.append(ACTION_NAMES[i]);
+            sentTotal += sentCounts[i];
+        }
+
+        System.out.println("Sent " + sentTotal / seconds + " packets/s (" + sent + ")");
+        if (server != null)
+        {
+            System.out.println("Host handled " + hostPackets / seconds + " packets/s");
+        }
+        System.out.println("Bots got " + delivered / seconds + " packets/s of " + expected / seconds + " expected ("
+            + (expected == 0 ? 100 : delivered * 100 / expected) + "%; superseded pog moves may be skipped)");
+        System.out.println("Latency ms: p50 " + millis(percentile(latencies, 0.5)) + ", p90 "
+            + millis(percentile(latencies, 0.9)) + ", p99 " + millis(percentile(latencies, 0.99)) + ", p99.9 "
+            + millis(percentile(latencies, 0.999)) + ", max " + millis(percentile(latencies, 1)));
+        System.out.println("Latency p99 by bot ms: best " + millis(percentile(botP99s, 0)) + ", median "
+            + millis(percentile(botP99s, 0.5)) + ", worst " + millis(percentile(botP99s, 1)));
+        System.out.println("Heap (" + (server == null ? "bots" : "host and bots") + "): peak " + peakHeap / (1024 * 1024) + " MB, " + liveHeap
+            / (1024 * 1024) + " MB live after the test");
+        if (server != null)
+        {
+            final NetworkThread hostNetwork = server.getNetworkThread();
+            System.out.println("Host direct buffers: " + hostNetwork.getReceiveBufferBytes() / 1024 + " KB; unsent: "
+                + hostNetwork.getPendingBytes() / 1024 + " KB, peak " + peakPending / 1024 + " KB");
+        }
+
+        if ((maxP99 >= 0) && (percentile(latencies, 0.99) > maxP99 * 1000))
+        {
+            System.out.println("FAILED: p99 latency is over " + maxP99 + " ms");
+            return false;
+        }
+        return true;
+    }
+
+    private static int percentile(final int[] sorted, final double fraction)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))];
+    }
+
+    private static String millis(final int micros)
+    {
+        return (micros / 1000) + "." + ((micros / 100) % 10);
+    }
+}
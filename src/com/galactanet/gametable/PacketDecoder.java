@@ -0,0 +1,151 @@
+/*
+ * PacketDecoder.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.galactanet.gametable.net.NetworkThread;
+import com.galactanet.gametable.net.Packet;
+
+
+
+/**
+ * Takes received packets from the network thread and decodes them into commands, so that the event thread only has to
+ * apply them. GametableFrame.tick() takes every command that is ready and runs them as one batch.
+ *
+ * If the event thread falls behind, the decoder stops taking packets once MAX_PENDING commands are waiting, and never
+ * takes more than will fit under that limit. The packets then back up in their connections, which stop reading once
+ * their receive budget is used.
+ *
+ * @author iffy
+ */
+public class PacketDecoder extends Thread
+{
+    /**
+     * Most decoded commands that may wait for the event thread before decoding stops.
+     */
+    public static final int     MAX_PENDING = 512;
+
+    /**
+     * Milliseconds to wait for packets before checking the connections anyway.
+     */
+    private static final long   POLL_TIME   = 25;
+
+    private final NetworkThread network;
+
+    /**
+     * Decoded commands not yet taken by the event thread. Guarded by this.
+     */
+    private List                pending     = new ArrayList();
+
+    /**
+     * Constructor.
+     *
+     * @param networkThread Network thread to take packets from.
+     */
+    public PacketDecoder(final NetworkThread networkThread)
+    {
+        super(PacketDecoder.class.getName());
+        setDaemon(true);
+        network = networkThread;
+    }
+
+    /**
+     * Takes every command decoded so far, in the order their packets arrived.
+     *
+     * @return List of Runnables to run on the event thread.
+     */
+    public synchronized List takeCommands()
+    {
+        if (pending.isEmpty())
+        {
+            return Collections.EMPTY_LIST;
+        }
+
+        final List retVal = pending;
+        pending = new ArrayList();
+        notifyAll();
+        return retVal;
+    }
+
+    /*
+     * @see java.lang.Thread#run()
+     */
+    public void run()
+    {
+        // true if the last pass left packets behind, so there's no point waiting for more
+        boolean more = false;
+        try
+        {
+            while (!isInterrupted())
+            {
+                final int room;
+                synchronized (this)
+                {
+                    while (pending.size() >= MAX_PENDING)
+                    {
+                        wait();
+                    }
+                    room = MAX_PENDING - pending.size();
+                }
+
+                if (!more)
+                {
+                    network.waitForPackets(POLL_TIME);
+                }
+                final List packets = network.getPackets(room);
+                more = (packets.size() == room);
+                if (packets.isEmpty())
+                {
+                    continue;
+                }
+
+                final List commands = new ArrayList(packets.size());
+                final Iterator iterator = packets.iterator();
+                while (iterator.hasNext())
+                {
+                    final Packet packet = (Packet)iterator.next();
+                    try
+                    {
+                        final Runnable command = PacketManager.decodePacket(packet.getSource(), packet.getBuffer(),
+                            packet.getLength());
+                        if (command != null)
+                        {
+                            commands.add(command);
+                        }
+                    }
+                    catch (final RuntimeException ex)
+                    {
+                        Log.log(Log.NET, ex);
+                    }
+                    catch (final Error err)
+                    {
+                        // one bad packet mustn't stop everyone else's from being decoded
+                        Log.log(Log.NET, err);
+                    }
+                    finally
+                    {
+                        packet.release();
+                    }
+                }
+
+                synchronized (this)
+                {
+                    pending.addAll(commands);
+                }
+            }
+        }
+        catch (final InterruptedException ex)
+        {
+            // asked to stop
+        }
+
+        Log.log(Log.NET, "PacketDecoder interrupted, shutting down.");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * PacketHandler.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.galactanet.gametable.net.Connection;
+
+
+
+/**
+ * Handles received packets of one type. PacketManager keeps one handler per packet type, looked up by type, and counts
+ * how many packets each handler has seen, how many bytes they came to, and how long decoding and applying them took.
+ * The /netprofile command lists the handlers by that cost.
+ *
+ * Decoding may happen on the PacketDecoder thread while commands are applied on the event thread, so the counters are
+ * atomic.
+ *
+ * @author iffy
+ */
+public abstract class PacketHandler
+{
+    /**
+     * Orders handlers by total time spent on their packets, most expensive first.
+     */
+    public static final Comparator BY_COST     = new Comparator()
+                                               {
+                                                   public int compare(final Object a, final Object b)
+                                                   {
+                                                       final long costA = ((PacketHandler)a).getTotalNanos();
+                                                       final long costB = ((PacketHandler)b).getTotalNanos();
+                                                       return (costA > costB ? -1 : (costA < costB ? 1 : 0));
+                                                   }
+                                               };
+
+    private final AtomicLong      applyNanos  = new AtomicLong();
+    private final AtomicLong      bytes       = new AtomicLong();
+    private final AtomicLong      decodeNanos = new AtomicLong();
+    private final AtomicLong      invocations = new AtomicLong();
+    private final String          name;
+    private final int             type;
+
+    /**
+     * Constructor.
+     *
+     * @param packetType The packet type handled.
+     * @param packetName Name to show for the packet type.
+     */
+    public PacketHandler(final int packetType, final String packetName)
+    {
+        type = packetType;
+        name = packetName;
+    }
+
+    /**
+     * Turns a packet into a command that applies it to the model. May be called from any thread; the command is run
+     * on the event thread, inside begin/endNetPacketProcessing.
+     *
+     * @param conn Connection the packet came from, or null.
+     * @param dis Stream positioned just after the packet type.
+     * @return The command, or null if there is nothing to do.
+     */
+    public abstract Runnable decode(Connection conn, DataInputStream dis) throws IOException;
+
+    /**
+     * Counts one packet and the time taken to decode it.
+     */
+    void countDecode(final int length, final long nanos)
+    {
+        invocations.incrementAndGet();
+        bytes.addAndGet(length);
+        decodeNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Counts the time taken to apply one packet.
+     */
+    void countApply(final long nanos)
+    {
+        applyNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Zeroes the counters.
+     */
+    public void resetCounters()
+    {
+        invocations.set(0);
+        bytes.set(0);
+        decodeNanos.set(0);
+        applyNanos.set(0);
+    }
+
+    /**
+     * @return The nanoseconds spent running the commands for packets of this type.
+     */
+    public long getApplyNanos()
+    {
+        return applyNanos.get();
+    }
+
+    /**
+     * @return The number of bytes of packets of this type received.
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     * @return The nanoseconds spent decoding packets of this type.
+     */
+    public long getDecodeNanos()
+    {
+        return decodeNanos.get();
+    }
+
+    /**
+     * @return The number of packets of this type received.
+     */
+    public long getInvocations()
+    {
+        return invocations.get();
+    }
+
+    /**
+     * @return The name of the packet type.
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return The nanoseconds spent decoding and applying packets of this type.
+     */
+    public long getTotalNanos()
+    {
+        return getDecodeNanos() + getApplyNanos();
+    }
+
+    /**
+     * @return The packet type handled.
+     */
+    public int getType()
+    {
+        return type;
+    }
+}
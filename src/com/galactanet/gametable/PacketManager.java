@@ -8,8 +8,13 @@ package com.galactanet.gametable;
 import java.awt.Rectangle;
 import java.io.*;
 import java.util.*;
+import java.util.zip.*;
 
+import com.galactanet.gametable.net.BufferPool;
 import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.Latency;
+import com.galactanet.gametable.net.OutboundFrame;
+import com.galactanet.gametable.net.PacketWriter;
 import com.galactanet.gametable.util.UtilityFunctions;
 
 
@@ -22,6 +27,40 @@ import com.galactanet.gametable.util.UtilityFunctions;
  */
 public class PacketManager
 {
+    /**
+     * Handler for a rare packet that isn't worth decoding early: the packet is copied and read when its command runs
+     * on the event thread.
+     */
+    private abstract static class ReadHandler extends PacketHandler
+    {
+        public ReadHandler(final int packetType, final String packetName)
+        {
+            super(packetType, packetName);
+        }
+
+        public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+        {
+            final byte[] data = new byte[dis.available()];
+            dis.readFully(data);
+            return new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        read(conn, new DataInputStream(new ByteArrayInputStream(data)));
+                    }
+                    catch (final IOException ex)
+                    {
+                        Log.log(Log.SYS, ex);
+                    }
+                }
+            };
+        }
+
+        protected abstract void read(Connection conn, DataInputStream dis) throws IOException;
+    }
+
     // --- Constants -------------------------------------------------------------------------------------------------
 
     /**
@@ -34,9 +73,19 @@ public class PacketManager
      */
     private static Map      g_unfulfilledRequests     = new HashMap();
 
+    /**
+     * Most times larger than the largest frame a PACKET_SNAPSHOT may say its map is once inflated. Maps deflate to well
+     * under a tenth of their size, so this leaves plenty of room while keeping a host from making a joiner allocate
+     * gigabytes.
+     */
+    private static final int SNAPSHOT_MAX_EXPANSION   = 16;
+
     // Pog added
     public static final int PACKET_ADDPOG             = 5;
 
+    // several packets sent together in one frame
+    public static final int PACKET_BATCH              = 36;
+
     // Packet sent by the host telling all the players in the game
     public static final int PACKET_CAST               = 1;
 
@@ -59,12 +108,27 @@ public class PacketManager
     // sent by players who are trying to draw cards
     public static final int PACKET_DECK_REQUEST_CARDS = 23;
 
+    // a pog being dragged, sent a few times a second until it is dropped
+    public static final int PACKET_DRAGPOG            = 37;
+
     // Eraser used
     public static final int PACKET_ERASE              = 4;
 
     // png data transfer
     public static final int PACKET_FILE               = 12;
 
+    // acknowledges a chunk of a streamed file transfer
+    public static final int PACKET_FILE_ACK           = 34;
+
+    // a chunk of a streamed file transfer
+    public static final int PACKET_FILE_CHUNK         = 32;
+
+    // a streamed file transfer has finished
+    public static final int PACKET_FILE_COMPLETE      = 33;
+
+    // a streamed file transfer is starting
+    public static final int PACKET_FILE_OPEN          = 31;
+
     // notification of a hex mode / grid mode change
     public static final int PACKET_HEX_MODE           = 14;
 
@@ -81,7 +145,7 @@ public class PacketManager
     // Pog moved
     public static final int PACKET_MOVEPOG            = 7;
 
-    // host sends PING, client sends back PING
+    // either side sends PING; the other sends it back with its own timings. See Latency.
     public static final int PACKET_PING               = 16;
 
     // Packet sent by a new joiner as soon as he joins
@@ -117,9 +181,15 @@ public class PacketManager
     // Pog removed
     public static final int PACKET_REMOVEPOGS         = 6;
 
+    // host gives a player a session token; player gives it back on a new connection to pick up where a lost one left off
+    public static final int PACKET_RESUME             = 39;
+
     // Pog rotated
     public static final int PACKET_ROTATEPOG          = 27;
 
+    // the whole public map, sent to players joining
+    public static final int PACKET_SNAPSHOT           = 35;
+
     // Pog flipped
     public static final int PACKET_FLIPPOG            = 30;
 
@@ -137,6 +207,345 @@ public class PacketManager
     // an undo packet
     public static final int PACKET_UNDO               = 17;
 
+    // the part of the map a player can see, sent to the host whenever it changes
+    public static final int PACKET_VIEW               = 38;
+
+    /**
+     * Handler for each packet type, indexed by type; null where no packet type has that number.
+     */
+    private static PacketHandler[] g_handlers = new PacketHandler[0];
+
+    static
+    {
+        register(new PacketHandler(PACKET_ADDPOG, "PACKET_ADDPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeAddPogPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_BATCH, "PACKET_BATCH")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeBatchPacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_CAST, "PACKET_CAST")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readCastPacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_DECK_CLEAR_DECK, "PACKET_DECK_CLEAR_DECK")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readClearDeckPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_DECK_DISCARD_CARDS, "PACKET_DECK_DISCARD_CARDS")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readDiscardCardsPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_DECK_LIST, "PACKET_DECK_LIST")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readDeckListPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_DECK_RECEIVE_CARDS, "PACKET_DECK_RECEIVE_CARDS")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readReceiveCardsPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_DECK_REQUEST_CARDS, "PACKET_DECK_REQUEST_CARDS")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readRequestCardsPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_DRAGPOG, "PACKET_DRAGPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeDragPogPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_ERASE, "PACKET_ERASE")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeErasePacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_FILE, "PACKET_FILE")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readFilePacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_FILE_ACK, "PACKET_FILE_ACK")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readFileAckPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_FILE_CHUNK, "PACKET_FILE_CHUNK")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeFileChunkPacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_FILE_COMPLETE, "PACKET_FILE_COMPLETE")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readFileCompletePacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_FILE_OPEN, "PACKET_FILE_OPEN")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readFileOpenPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_FLIPPOG, "PACKET_FLIPPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeFlipPogPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_HEX_MODE, "PACKET_HEX_MODE")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readGridModePacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_LINES, "PACKET_LINES")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeLinesPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_LOCKALLPOG, "PACKET_LOCKALLPOG")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readLockAllPogPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_LOCKPOG, "PACKET_LOCKPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeLockPogPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_LOGIN_COMPLETE, "PACKET_LOGIN_COMPLETE")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readLoginCompletePacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_MOVEPOG, "PACKET_MOVEPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeMovePogPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_PING, "PACKET_PING")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePingPacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_PLAYER, "PACKET_PLAYER")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readPlayerPacket(conn, dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_PNGREQUEST, "PACKET_PNGREQUEST")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readPngRequestPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_POGDATA, "PACKET_POGDATA")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePogDataPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_POG_REORDER, "PACKET_POG_REORDER")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePogReorderPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_POG_SIZE, "PACKET_POG_SIZE")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePogSizePacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_POINT, "PACKET_POINT")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePointPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_PRIVATE_TEXT, "PACKET_PRIVATE_TEXT")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodePrivateTextPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_RECENTER, "PACKET_RECENTER")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeRecenterPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_REDO, "PACKET_REDO")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeRedoPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_REJECT, "PACKET_REJECT")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readRejectPacket(dis);
+            }
+        });
+
+        register(new ReadHandler(PACKET_RESUME, "PACKET_RESUME")
+        {
+            protected void read(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                readResumePacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_REMOVEPOGS, "PACKET_REMOVEPOGS")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeRemovePogsPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_ROTATEPOG, "PACKET_ROTATEPOG")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeRotatePogPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_SNAPSHOT, "PACKET_SNAPSHOT")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeSnapshotPacket(conn, dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_TEXT, "PACKET_TEXT")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeTextPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_TYPING, "PACKET_TYPING")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeTypingPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_UNDO, "PACKET_UNDO")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeUndoPacket(dis);
+            }
+        });
+
+        register(new PacketHandler(PACKET_VIEW, "PACKET_VIEW")
+        {
+            public Runnable decode(final Connection conn, final DataInputStream dis) throws IOException
+            {
+                return decodeViewPacket(conn, dis);
+            }
+        });
+    }
+
     // --- Static Methods --------------------------------------------------------------------------------------------
 
     private static void addUnfulfilledRequest(final String filename, final Connection connection)
@@ -151,86 +560,354 @@ public class PacketManager
         set.add(connection);
     }
 
-    public static String getPacketName(final byte[] packet)
+    /**
+     * Reads how many records follow in a packet, making sure that many could fit in what is left of it, so a bad count
+     * can't make us allocate more than the packet could ever fill.
+     * 
+     * @param dis Stream over the packet.
+     * @param minRecordSize Fewest bytes one record can take.
+     * @return The number of records.
+     * @throws IOException If the count is negative or more records than could fit.
+     */
+    static int readCount(final DataInputStream dis, final int minRecordSize) throws IOException
     {
-        try
+        final int count = dis.readInt();
+        if ((count < 0) || (count > dis.available() / minRecordSize))
         {
-            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet));
-            return getPacketName(dis.readInt());
+            throw new IOException("Bad record count: " + count + " with " + dis.available() + " bytes left");
         }
-        catch (final IOException ioe)
+        return count;
+    }
+
+    /**
+     * Figures out whether a packet merely carries the latest value of something, so that an older packet with the same
+     * key still waiting to go out can be dropped in its favor.
+     * 
+     * @param packet Array holding the packet data.
+     * @param offset Offset of the packet in the array.
+     * @param length Number of bytes of packet data.
+     * @return A key identifying what the packet updates, or null if the packet must always be delivered in order.
+     */
+    public static Object getCoalesceKey(final byte[] packet, final int offset, final int length)
+    {
+        // read straight from the array; this runs for every packet sent
+        if (length < 8)
         {
-            return "ERROR";
+            return null;
+        }
+
+        final int type = getInt(packet, offset);
+        switch (type)
+        {
+            case PACKET_DRAGPOG:
+            case PACKET_MOVEPOG:
+            case PACKET_ROTATEPOG:
+            case PACKET_POINT:
+            {
+                // keyed by pog id or player index, which is the first field of each
+                return new Long(((long)type << 32) | (getInt(packet, offset + 4) & 0xFFFFFFFFL));
+            }
+
+            case PACKET_VIEW:
+            {
+                // only the latest view matters
+                return new Long((long)type << 32);
+            }
+
+            case PACKET_TYPING:
+            {
+                // keyed by the encoded player name; only equality matters, so the bytes need not be decoded
+                final int nameLength = ((packet[offset + 4] & 0xFF) << 8) | (packet[offset + 5] & 0xFF);
+                if (nameLength + 6 > length)
+                {
+                    return null;
+                }
+                try
+                {
+                    return type + ":" + new String(packet, offset + 6, nameLength, "ISO-8859-1");
+                }
+                catch (final UnsupportedEncodingException ex)
+                {
+                    return null;
+                }
+            }
+
+            default:
+            {
+                return null;
+            }
         }
     }
 
-    public static String getPacketName(final int type)
+    private static int getInt(final byte[] data, final int offset)
+    {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Describes the fields of a packet for CompactCodec, which uses it to send the packet in fewer bytes to peers that
+     * have agreed to CAPABILITY_COMPACT. Each character is one field, in the order the make*Packet method writes them:
+     * 
+     * <pre>
+     * i  int            l  long           z  boolean        f  float          d  double
+     * x  int, x coordinate of a line point                  y  int, y coordinate of a line point
+     * c  int, color
+     * u  UTF string not worth remembering
+     * s  UTF string likely to be sent again, such as a filename or attribute name
+     * *( ... )  int count followed by that many of the fields in parentheses
+     * ?( ... )  boolean followed by the fields in parentheses if it is true
+     * p  int length followed by a whole packet, encoded by its own schema
+     * </pre>
+     * 
+     * A schema only needs to be right for the packets that are actually sent; CompactCodec copies whatever a schema
+     * doesn't describe, so a wrong one costs bytes but never breaks a packet. Changing a schema changes the wire format,
+     * though, and needs a new CAPABILITY_COMPACT version.
+     * 
+     * @param type Packet type.
+     * @return The schema, or null to send packets of this type as they are.
+     */
+    public static String getCompactSchema(final int type)
     {
         switch (type)
+        {
+            case PACKET_ADDPOG:
+                // layer, then Pog.writeToPacket(): cards have no schema, so the fields after one are just copied
+                return "zsiiiiluzfdiiz?()*(su)s";
+            case PACKET_BATCH:
+                return "*(p)";
+            case PACKET_DRAGPOG:
+                return "iiiz";
+            case PACKET_ERASE:
+                return "iiiiiizc";
+            case PACKET_FLIPPOG:
+                return "iii";
+            case PACKET_LINES:
+                return "ii*(xyxyc)";
+            case PACKET_LOCKPOG:
+                return "iz";
+            case PACKET_MOVEPOG:
+                return "iii";
+            case PACKET_POGDATA:
+                return "i?(u)*(s)*(su)";
+            case PACKET_POG_REORDER:
+                return "*(il)";
+            case PACKET_POG_SIZE:
+                return "if";
+            case PACKET_POINT:
+                return "iiiz";
+            case PACKET_PRIVATE_TEXT:
+                return "ssu";
+            case PACKET_REDO:
+                return "i";
+            case PACKET_REMOVEPOGS:
+                return "*(i)";
+            case PACKET_ROTATEPOG:
+                return "id";
+            case PACKET_TEXT:
+                return "u";
+            case PACKET_TYPING:
+                return "uz";
+            case PACKET_UNDO:
+                return "i";
+            case PACKET_VIEW:
+                return "iiii";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Figures out whether the host broadcasting a packet means the public map, grid mode or deck list has changed.
+     * 
+     * @param packet Packet data.
+     * @return False only for packets known to leave the map alone.
+     */
+    public static boolean changesMap(final byte[] packet)
+    {
+        if ((packet == null) || (packet.length < 4))
+        {
+            return false;
+        }
+
+        switch (getPacketType(packet))
         {
             case PACKET_PLAYER:
-                return "PACKET_PLAYER";
             case PACKET_REJECT:
-                return "PACKET_REJECT";
             case PACKET_CAST:
-                return "PACKET_CAST";
             case PACKET_TEXT:
-                return "PACKET_TEXT";
             case PACKET_TYPING:
-                return "PACKET_TYPING";
+            case PACKET_POINT:
+            case PACKET_DRAGPOG:
+            case PACKET_RECENTER:
+            case PACKET_PNGREQUEST:
+            case PACKET_LOGIN_COMPLETE:
+            case PACKET_PING:
+            case PACKET_PRIVATE_TEXT:
+            case PACKET_DECK_REQUEST_CARDS:
+            case PACKET_DECK_RECEIVE_CARDS:
+            case PACKET_FILE_OPEN:
+            case PACKET_FILE_CHUNK:
+            case PACKET_FILE_COMPLETE:
+            case PACKET_FILE_ACK:
+            case PACKET_SNAPSHOT:
+            case PACKET_VIEW:
+            case PACKET_RESUME:
+                return false;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Figures out whether a packet the host broadcasts belongs in the host's journal: whether it changes something a
+     * save file holds, so replaying it on top of a save file brings the public map up to date.
+     *
+     * @param packet Packet data.
+     * @return True for packets that change the lines, pogs or grid mode.
+     */
+    public static boolean isJournaled(final byte[] packet)
+    {
+        if ((packet == null) || (packet.length < 4))
+        {
+            return false;
+        }
+
+        switch (getPacketType(packet))
+        {
             case PACKET_LINES:
-                return "PACKET_LINES";
             case PACKET_ERASE:
-                return "PACKET_ERASE";
             case PACKET_ADDPOG:
-                return "PACKET_ADDPOG";
             case PACKET_REMOVEPOGS:
-                return "PACKET_REMOVEPOGS";
             case PACKET_MOVEPOG:
-                return "PACKET_MOVEPOG";
-            case PACKET_LOCKPOG:
-                return "PACKET_LOCKPOG";
-            case PACKET_LOCKALLPOG:
-                return "PACKET_LOCKALLPOG";
-            case PACKET_POINT:
-                return "PACKET_POINT";
             case PACKET_POGDATA:
-                return "PACKET_POGDATA";
-            case PACKET_RECENTER:
-                return "PACKET_RECENTER";
-            case PACKET_FILE:
-                return "PACKET_FILE";
-            case PACKET_PNGREQUEST:
-                return "PACKET_PNGREQUEST";
             case PACKET_HEX_MODE:
-                return "PACKET_HEX_MODE";
-            case PACKET_LOGIN_COMPLETE:
-                return "PACKET_LOGIN_COMPLETE";
-            case PACKET_PING:
-                return "PACKET_PING";
             case PACKET_UNDO:
-                return "PACKET_UNDO";
             case PACKET_REDO:
-                return "PACKET_REDO";
             case PACKET_POG_SIZE:
-                return "PACKET_POG_SIZE";
-            case PACKET_PRIVATE_TEXT:
-                return "PACKET_PRIVATE_TEXT";
             case PACKET_POG_REORDER:
-                return "PACKET_POG_REORDER";
-            case PACKET_DECK_LIST:
-                return "PACKET_DECK_LIST";
-            case PACKET_DECK_REQUEST_CARDS:
-                return "PACKET_DECK_REQUEST_CARDS";
-            case PACKET_DECK_RECEIVE_CARDS:
-                return "PACKET_DECK_RECEIVE_CARDS";
-            case PACKET_DECK_CLEAR_DECK:
-                return "PACKET_DECK_CLEAR_DECK";
-            case PACKET_DECK_DISCARD_CARDS:
-                return "PACKET_DECK_DISCARD_CARDS";
+            case PACKET_ROTATEPOG:
+            case PACKET_LOCKPOG:
+            case PACKET_FLIPPOG:
+            case PACKET_LOCKALLPOG:
+                return true;
+
             default:
-                return "PACKET_UNKNOWN";
+                return false;
+        }
+    }
+
+    /**
+     * Figures out whether a spectator may send a packet of the given type. Spectators only watch: they may keep the
+     * connection alive and fetch pog images, but nothing they send may change the table or reach the players.
+     * 
+     * @param type Packet type.
+     * @return True if the packet is allowed from a spectator.
+     */
+    public static boolean allowedFromSpectator(final int type)
+    {
+        switch (type)
+        {
+            case PACKET_PING:
+            case PACKET_PNGREQUEST:
+            case PACKET_FILE_ACK:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param packet Packet data, at least four bytes of it.
+     * @return The type of the packet.
+     */
+    public static int getPacketType(final byte[] packet)
+    {
+        return ((packet[0] & 0xFF) << 24) | ((packet[1] & 0xFF) << 16) | ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+    }
+
+    public static String getPacketName(final byte[] packet)
+    {
+        try
+        {
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet));
+            return getPacketName(dis.readInt());
+        }
+        catch (final IOException ioe)
+        {
+            return "ERROR";
+        }
+    }
+
+    public static String getPacketName(final int type)
+    {
+        final PacketHandler handler = getHandler(type);
+        return (handler == null ? "PACKET_UNKNOWN" : handler.getName());
+    }
+
+    /**
+     * @param type A packet type.
+     * @return The handler for that type of packet, or null if there is no such type.
+     */
+    public static PacketHandler getHandler(final int type)
+    {
+        if ((type < 0) || (type >= g_handlers.length))
+        {
+            return null;
+        }
+
+        return g_handlers[type];
+    }
+
+    /**
+     * @return The handlers of every packet type received so far, most expensive first.
+     */
+    public static List getHandlersByCost()
+    {
+        final List retVal = new ArrayList();
+        for (int i = 0; i < g_handlers.length; i++)
+        {
+            if ((g_handlers[i] != null) && (g_handlers[i].getInvocations() > 0))
+            {
+                retVal.add(g_handlers[i]);
+            }
+        }
+
+        Collections.sort(retVal, PacketHandler.BY_COST);
+        return retVal;
+    }
+
+    /**
+     * Zeroes the counters of every handler.
+     */
+    public static void resetHandlerCounters()
+    {
+        for (int i = 0; i < g_handlers.length; i++)
+        {
+            if (g_handlers[i] != null)
+            {
+                g_handlers[i].resetCounters();
+            }
+        }
+    }
+
+    private static void register(final PacketHandler handler)
+    {
+        final int type = handler.getType();
+        if (type >= g_handlers.length)
+        {
+            final PacketHandler[] bigger = new PacketHandler[type + 1];
+            System.arraycopy(g_handlers, 0, bigger, 0, g_handlers.length);
+            g_handlers = bigger;
         }
+
+        if (g_handlers[type] != null)
+        {
+            throw new IllegalStateException("Two handlers for packet type " + type);
+        }
+        g_handlers[type] = handler;
     }
 
     /* *********************** ADDPOG PACKET *********************************** */
@@ -246,14 +923,45 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_ADDPOG); // type
             dos.writeBoolean(bPublicLayerPog); // layer
             pog.writeToPacket(dos);
 
-            return baos.toByteArray();
+            // the content hash of the image, so the receiver can use a cached copy. Older versions ignore this.
+            dos.writeUTF(ImageCache.getHash(pog.getFilename()));
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /* *********************** BATCH PACKET *********************************** */
+
+    /**
+     * @param packets The packets to wrap, as byte arrays, in the order they are to be dispatched.
+     */
+    public static byte[] makeBatchPacket(final List packets)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_BATCH); // type
+            dos.writeInt(packets.size());
+            for (int i = 0; i < packets.size(); i++)
+            {
+                final byte[] packet = (byte[])packets.get(i);
+                dos.writeInt(packet.length);
+                dos.write(packet);
+            }
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -268,8 +976,7 @@ public class PacketManager
         {
             // create a packet with all the players in it
             final GametableFrame frame = GametableFrame.getGametableFrame();
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_CAST);
 
@@ -288,7 +995,10 @@ public class PacketManager
             final int whichPlayer = frame.getPlayerIndex(recipient);
             dos.writeInt(whichPlayer);
 
-            return baos.toByteArray();
+            // and what the host supports, for the recipient to use on the way back
+            dos.writeInt(Connection.LOCAL_CAPABILITIES);
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -304,13 +1014,12 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_DECK_CLEAR_DECK); // packet type
             dos.writeUTF(deckName); // the deck in question
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -324,8 +1033,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_DECK_LIST); // packet type
             dos.writeInt(decks.size()); // number of decks
@@ -334,7 +1042,7 @@ public class PacketManager
                 final Deck d = (Deck)decks.get(i);
                 dos.writeUTF(d.m_name); // the name of this deck
             }
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -346,12 +1054,85 @@ public class PacketManager
     /* *********************** TEXT PACKET *********************************** */
 
     /* ********************* DISCARD CARDS PACKET *********************************** */
+
+    public static byte[] makeSnapshotPacket(final GametableMap map, final int gridMode, final List decks)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            // lines
+            dos.writeInt(map.getNumLines());
+            for (int i = 0; i < map.getNumLines(); i++)
+            {
+                map.getLineAt(i).writeToPacket(dos);
+            }
+
+            // pogs, each followed by its image hash as in an add pog packet
+            dos.writeInt(map.getNumPogs());
+            for (int i = 0; i < map.getNumPogs(); i++)
+            {
+                final Pog pog = map.getPog(i);
+                pog.writeToPacket(dos);
+                dos.writeUTF(ImageCache.getHash(pog.getFilename()));
+            }
+
+            dos.writeInt(gridMode);
+
+            // deck names
+            dos.writeInt(decks.size());
+            for (int i = 0; i < decks.size(); i++)
+            {
+                dos.writeUTF(((Deck)decks.get(i)).m_name);
+            }
+            dos.flush();
+
+            final byte[] state = dos.finish();
+            final byte[] retVal = makeSnapshotPacket(state);
+            Log.log(Log.NET, "Snapshot: " + map.getNumLines() + " lines, " + map.getNumPogs() + " pogs, "
+                + state.length + " bytes, " + (retVal == null ? 0 : retVal.length) + " deflated");
+            return retVal;
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Wraps an already written snapshot state (lines, pogs, grid mode and deck names, laid out as by the other
+     * makeSnapshotPacket()) in a PACKET_SNAPSHOT.
+     * 
+     * @param state The state.
+     */
+    public static byte[] makeSnapshotPacket(final byte[] state)
+    {
+        try
+        {
+            // the snapshot is deflated whether or not the connection would do it for us
+            final PacketWriter packetOut = PacketWriter.acquire();
+            packetOut.writeInt(PACKET_SNAPSHOT); // type
+            packetOut.writeInt(state.length);
+            final Deflater deflater = new Deflater();
+            final DeflaterOutputStream deflated = new DeflaterOutputStream(packetOut, deflater);
+            deflated.write(state);
+            deflated.finish();
+            deflater.end();
+
+            return packetOut.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
     public static byte[] makeDiscardCardsPacket(final String playerName, final DeckData.Card cards[])
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_DECK_DISCARD_CARDS); // packet type
             dos.writeUTF(playerName); // the player doing the discarding
@@ -363,7 +1144,7 @@ public class PacketManager
                 cards[i].write(dos);
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -377,8 +1158,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_ERASE); // type
             dos.writeInt(authorPlayerID);
@@ -390,7 +1170,7 @@ public class PacketManager
             dos.writeBoolean(bColorSpecific);
             dos.writeInt(color);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -401,17 +1181,101 @@ public class PacketManager
 
     /* *********************** TYPING PACKET *********************************** */
 
+    public static byte[] makeFileAckPacket(final int transferId)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_FILE_ACK); // type
+            dos.writeInt(transferId);
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * File chunks are the biggest packets sent in any number, so they are written straight into a frame rather than
+     * copied out into an array first.
+     * 
+     * @return A new frame holding one reference on behalf of the caller, or null.
+     */
+    public static OutboundFrame makeFileChunkFrame(final int transferId, final byte[] data, final int length)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_FILE_CHUNK); // type
+            dos.writeInt(transferId);
+            dos.writeInt(length);
+            dos.write(data, 0, length);
+
+            return dos.finishFrame();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    public static byte[] makeFileCompletePacket(final int transferId, final boolean success)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_FILE_COMPLETE); // type
+            dos.writeInt(transferId);
+            dos.writeBoolean(success);
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    public static byte[] makeFileOpenPacket(final int transferId, final String mimeType, final String filename,
+        final long size)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_FILE_OPEN); // type
+            dos.writeInt(transferId);
+            dos.writeUTF(mimeType);
+            dos.writeUTF(UtilityFunctions.getUniversalPath(filename));
+            dos.writeLong(size);
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
     public static byte[] makeGridModePacket(final int hexMode)
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_HEX_MODE); // type
             dos.writeInt(hexMode); // type
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -425,8 +1289,7 @@ public class PacketManager
         // grmData will be the contents of the file
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             // write the packet type
             dos.writeInt(PACKET_FILE);
@@ -440,7 +1303,7 @@ public class PacketManager
             // and finally, the data itself
             dos.write(grmData);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -455,8 +1318,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_LINES); // type
             dos.writeInt(authorPlayerID);
@@ -467,7 +1329,7 @@ public class PacketManager
                 lines[i].writeToPacket(dos);
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -481,13 +1343,12 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_LOCKALLPOG); // type           
             dos.writeBoolean(newLocked);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -500,14 +1361,13 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_LOCKPOG); // type
             dos.writeInt(id);
             dos.writeBoolean(newLocked);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -522,13 +1382,33 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_LOGIN_COMPLETE); // type
             // there's actually no additional data. Just the info that the login is complete
 
-            return baos.toByteArray();
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    public static byte[] makeDragPogPacket(final int id, final int x, final int y, final boolean bDragging)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_DRAGPOG); // type
+            dos.writeInt(id);
+            dos.writeInt(x);
+            dos.writeInt(y);
+            dos.writeBoolean(bDragging);
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -541,15 +1421,14 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_MOVEPOG); // type
             dos.writeInt(id);
             dos.writeInt(newX);
             dos.writeInt(newY);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -560,17 +1439,54 @@ public class PacketManager
 
     /* *********************** ERASE PACKET *********************************** */
 
-    public static byte[] makePingPacket()
+    /**
+     * Makes a ping for the peer to send back.
+     * 
+     * @param sequence Sequence number of the ping.
+     */
+    public static byte[] makePingPacket(final int sequence)
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_PING); // type
-            // there's actually no additional data. Just the info that the login is complete
+            dos.writeInt(sequence);
+            dos.writeLong(Latency.now());
+            dos.writeBoolean(false); // not a reply
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Makes the reply to a ping.
+     * 
+     * @param sequence Sequence number of the ping.
+     * @param sentAt When the peer sent the ping, by its clock.
+     * @param receivedAt When the ping arrived, by Latency.now().
+     * @param wallReceived When the ping arrived, by our wall clock in milliseconds.
+     */
+    public static byte[] makePingReplyPacket(final int sequence, final long sentAt, final long receivedAt,
+        final long wallReceived)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
 
-            return baos.toByteArray();
+            dos.writeInt(PACKET_PING); // type
+            dos.writeInt(sequence);
+            dos.writeLong(sentAt);
+            dos.writeBoolean(true); // a reply
+            dos.writeLong(Latency.now() - receivedAt); // how long we held it
+            dos.writeLong(wallReceived);
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -580,11 +1496,18 @@ public class PacketManager
     }
 
     public static byte[] makePlayerPacket(final Player plr, final String password)
+    {
+        return makePlayerPacket(plr, password, false);
+    }
+
+    /**
+     * @param bSpectator True to join as a spectator, who sees the table but can't change it.
+     */
+    public static byte[] makePlayerPacket(final Player plr, final String password, final boolean bSpectator)
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_PLAYER);
             dos.writeInt(GametableFrame.COMM_VERSION);
@@ -593,7 +1516,13 @@ public class PacketManager
             dos.writeUTF(plr.getPlayerName());
             dos.writeBoolean(plr.isHostPlayer());
 
-            return baos.toByteArray();
+            // optional features we support. Older hosts just ignore this.
+            dos.writeInt(Connection.LOCAL_CAPABILITIES);
+
+            // whether we only want to watch
+            dos.writeBoolean(bSpectator);
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -603,9 +1532,14 @@ public class PacketManager
     }
 
     public static byte[] makePngPacket(final String filename)
+    {
+        return makePngPacket(filename, new File(filename));
+    }
+
+    public static byte[] makePngPacket(final String filename, final File source)
     {
         // load the entire png file
-        final byte[] pngFileData = UtilityFunctions.loadFileToArray(filename);
+        final byte[] pngFileData = UtilityFunctions.loadFileToArray(source);
 
         if (pngFileData == null)
         {
@@ -614,8 +1548,7 @@ public class PacketManager
 
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             // write the packet type
             dos.writeInt(PACKET_FILE);
@@ -632,7 +1565,7 @@ public class PacketManager
             // and finally, the data itself
             dos.write(pngFileData);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -642,16 +1575,21 @@ public class PacketManager
     }
 
     public static byte[] makePngRequestPacket(final String filename)
+    {
+        return makePngRequestPacket(filename, "");
+    }
+
+    public static byte[] makePngRequestPacket(final String filename, final String hash)
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_PNGREQUEST); // type
             dos.writeUTF(UtilityFunctions.getUniversalPath(filename));
+            dos.writeUTF(hash);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -669,8 +1607,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_POGDATA);
             dos.writeInt(id);
@@ -715,7 +1652,7 @@ public class PacketManager
                 }
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -730,8 +1667,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_POG_REORDER);
             dos.writeInt(changes.size());
@@ -744,7 +1680,7 @@ public class PacketManager
                 dos.writeLong(order.longValue());
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -757,14 +1693,13 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_POG_SIZE);
             dos.writeInt(id);
             dos.writeFloat(size);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -779,8 +1714,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_POINT); // type
             dos.writeInt(plrIdx);
@@ -788,7 +1722,7 @@ public class PacketManager
             dos.writeInt(y);
             dos.writeBoolean(bPointing);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -801,15 +1735,14 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_PRIVATE_TEXT); // type
             dos.writeUTF(fromName);
             dos.writeUTF(toName);
             dos.writeUTF(text);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -823,8 +1756,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_DECK_RECEIVE_CARDS); // packet type
             dos.writeInt(cards.length); // how many cards
@@ -835,7 +1767,7 @@ public class PacketManager
                 cards[i].write(dos);
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -848,15 +1780,14 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_RECENTER); // type
             dos.writeInt(x);
             dos.writeInt(y);
             dos.writeInt(zoom);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -869,13 +1800,12 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_REDO); // type
             dos.writeInt(stateID); // state ID
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -888,13 +1818,12 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_REJECT); // type
             dos.writeInt(reason); // type
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -909,8 +1838,7 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_REMOVEPOGS); // type
 
@@ -923,7 +1851,7 @@ public class PacketManager
                 dos.writeInt(ids[i]);
             }
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -937,14 +1865,13 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_DECK_REQUEST_CARDS); // packet type
             dos.writeUTF(deckName); // the deck
             dos.writeInt(numCards); // how many cards
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -960,14 +1887,13 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_ROTATEPOG); // type
             dos.writeInt(id);
             dos.writeDouble(newAngle);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -981,15 +1907,14 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_FLIPPOG); // type
             dos.writeInt(id);
             dos.writeInt(left);
             dos.writeInt(right);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -1002,13 +1927,12 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_TEXT); // type
             dos.writeUTF(text);
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -1021,14 +1945,78 @@ public class PacketManager
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_TYPING); // type
             dos.writeUTF(playerName);
             dos.writeBoolean(typing);
 
-            return baos.toByteArray();
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /* *********************** RESUME PACKET *********************************** */
+
+    /**
+     * Makes a PACKET_RESUME. The host sends one with no frame count to grant a session token once a player has logged
+     * in. A player whose connection was lost sends one on a new connection, and the host answers with one, each saying
+     * how many frames it read from the lost connection; see NetworkThread.resume().
+     * 
+     * @param token The session token.
+     * @param framesReceived Frames read from the lost connection, or -1 to grant the token.
+     */
+    public static byte[] makeResumePacket(final long token, final long framesReceived)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_RESUME); // type
+            dos.writeLong(token);
+            dos.writeLong(framesReceived);
+
+            return dos.finish();
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    public static void readResumePacket(final Connection conn, final DataInputStream dis) throws IOException
+    {
+        final long token = dis.readLong();
+        final long framesReceived = dis.readLong();
+
+        // tell the model
+        final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+        gtFrame.resumePacketReceived(conn, token, framesReceived);
+    }
+
+    /* *********************** VIEW PACKET *********************************** */
+
+    /**
+     * @param view The part of the public map we can see, in model coordinates.
+     */
+    public static byte[] makeViewPacket(final Rectangle view)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(PACKET_VIEW); // type
+            dos.writeInt(view.x);
+            dos.writeInt(view.y);
+            dos.writeInt(view.width);
+            dos.writeInt(view.height);
+
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -1037,19 +2025,33 @@ public class PacketManager
         }
     }
 
+    public static Runnable decodeViewPacket(final Connection conn, final DataInputStream dis) throws IOException
+    {
+        final Rectangle view = new Rectangle(dis.readInt(), dis.readInt(), dis.readInt(), dis.readInt());
+
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.viewPacketReceived(conn, view);
+            }
+        };
+    }
+
     /* *********************** RECENTER PACKET *********************************** */
 
     public static byte[] makeUndoPacket(final int stateID)
     {
         try
         {
-            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            final DataOutputStream dos = new DataOutputStream(baos);
+            final PacketWriter dos = PacketWriter.acquire();
 
             dos.writeInt(PACKET_UNDO); // type
             dos.writeInt(stateID); // state ID
 
-            return baos.toByteArray();
+            return dos.finish();
         }
         catch (final IOException ex)
         {
@@ -1058,44 +2060,88 @@ public class PacketManager
         }
     }
 
-    public static void readAddPogPacket(final Connection conn, final DataInputStream dis)
+    public static Runnable decodeAddPogPacket(final Connection conn, final DataInputStream dis) throws IOException
     {
-        try
+        final boolean bPublicLayerPog = dis.readBoolean(); // layer. true = public. false = private
+        //System.out.println(bPublicLayerPog);
+        
+        final Pog pog = Pog.readFromPacket(dis);
+        if (pog.m_bStillborn)
         {
-            final boolean bPublicLayerPog = dis.readBoolean(); // layer. true = public. false = private
-            //System.out.println(bPublicLayerPog);
-            
-            final Pog pog = new Pog(dis);
-            if (pog.m_bStillborn)
+            // for one reason or another, this pog is corrupt and should
+            // be ignored
+            return null;
+        }
+
+        final String hash = (dis.available() > 0 ? dis.readUTF() : "");
+
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
             {
-                // for one reason or another, this pog is corrupt and should
-                // be ignored
-                return;
+                pog.resolvePogType();
+                if (pog.isUnknown() && !restorePogImage(pog, hash))
+                {
+                    // we need this image
+                    requestPogImage(conn, pog, hash);
+                }
+
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.addPogPacketReceived(pog, bPublicLayerPog);
             }
+        };
+    }
+
+    /* *********************** UNDO PACKET *********************************** */
 
-            if (pog.isUnknown())
+    public static Runnable decodeBatchPacket(final Connection conn, final DataInputStream dis) throws IOException
+    {
+        final int numPackets = dis.readInt();
+        final List commands = new ArrayList();
+        for (int i = 0; i < numPackets; i++)
+        {
+            final int length = dis.readInt();
+            if ((length <= 0) || (length > dis.available()))
             {
-                // we need this image
-                requestPogImage(conn, pog);
+                throw new IOException("Bad packet length in batch: " + length);
             }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.addPogPacketReceived(pog, bPublicLayerPog);
+            final byte[] packet = new byte[length];
+            dis.readFully(packet);
+            final Runnable command = decodePacket(conn, packet, length);
+            if (command != null)
+            {
+                commands.add(command);
+            }
         }
-        catch (final IOException ex)
+
+        // tell the model, one packet at a time
+        return new Runnable()
         {
-            Log.log(Log.NET, ex);
-        }
+            public void run()
+            {
+                for (int i = 0; i < commands.size(); i++)
+                {
+                    try
+                    {
+                        ((Runnable)commands.get(i)).run();
+                    }
+                    catch (final RuntimeException ex)
+                    {
+                        Log.log(Log.SYS, ex);
+                    }
+                }
+            }
+        };
     }
 
-    /* *********************** UNDO PACKET *********************************** */
-
-    public static void readCastPacket(final DataInputStream dis)
+    public static void readCastPacket(final Connection conn, final DataInputStream dis)
     {
         try
         {
-            final int numPlayers = dis.readInt();
+            // two names, an id and a flag
+            final int numPlayers = readCount(dis, 9);
             final Player[] players = new Player[numPlayers];
             for (int i = 0; i < numPlayers; i++)
             {
@@ -1109,6 +2155,12 @@ public class PacketManager
             // get which index we are
             final int ourIdx = dis.readInt();
 
+            // older hosts don't send their capabilities
+            if ((conn != null) && (dis.available() >= 4))
+            {
+                conn.setPeerCapabilities(dis.readInt());
+            }
+
             // this is only ever received by players
             final GametableFrame gtFrame = GametableFrame.getGametableFrame();
             gtFrame.updateCast(players, ourIdx);
@@ -1141,7 +2193,7 @@ public class PacketManager
     {
         try
         {
-            final int numDecks = dis.readInt();
+            final int numDecks = readCount(dis, 2);
             final String[] deckNames = new String[numDecks];
 
             for (int i = 0; i < deckNames.length; i++)
@@ -1165,8 +2217,8 @@ public class PacketManager
             // who is discarding?
             final String playerName = dis.readUTF();
 
-            // how many cards are there?
-            final int numCards = dis.readInt();
+            // how many cards are there? each is four strings and two ints
+            final int numCards = readCount(dis, 16);
 
             // make the array
             final DeckData.Card cards[] = new DeckData.Card[numCards];
@@ -1189,26 +2241,108 @@ public class PacketManager
 
     /* *********************** REJECT PACKET *********************************** */
 
-    public static void readErasePacket(final DataInputStream dis)
+    public static Runnable decodeErasePacket(final DataInputStream dis) throws IOException
+    {
+        final int authorID = dis.readInt();
+        final int stateID = dis.readInt();
+
+        final Rectangle r = new Rectangle();
+        r.x = dis.readInt();
+        r.y = dis.readInt();
+        r.width = dis.readInt();
+        r.height = dis.readInt();
+
+        final boolean bColorSpecific = dis.readBoolean();
+        final int color = dis.readInt();
+
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.erasePacketReceived(r, bColorSpecific, color, authorID, stateID);
+            }
+        };
+    }
+
+    public static void readFileAckPacket(final Connection conn, final DataInputStream dis)
+    {
+        try
+        {
+            FileTransferManager.ackReceived(conn, dis.readInt());
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+        }
+    }
+
+    public static Runnable decodeFileChunkPacket(final Connection conn, final DataInputStream dis) throws IOException
     {
+        final int id = dis.readInt();
+        final int len = dis.readInt();
+        if ((len <= 0) || (len > FileTransferManager.CHUNK_SIZE) || (len > dis.available()))
+        {
+            return new Runnable()
+            {
+                public void run()
+                {
+                    FileTransferManager.chunkRejected(conn, id);
+                }
+            };
+        }
 
+        final byte[] data = BufferPool.acquire(len);
         try
         {
-            final int authorID = dis.readInt();
-            final int stateID = dis.readInt();
+            dis.readFully(data, 0, len);
+        }
+        catch (final IOException ex)
+        {
+            BufferPool.release(data);
+            throw ex;
+        }
 
-            final Rectangle r = new Rectangle();
-            r.x = dis.readInt();
-            r.y = dis.readInt();
-            r.width = dis.readInt();
-            r.height = dis.readInt();
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    FileTransferManager.chunkReceived(conn, id, data, len);
+                }
+                finally
+                {
+                    BufferPool.release(data);
+                }
+            }
+        };
+    }
 
-            final boolean bColorSpecific = dis.readBoolean();
-            final int color = dis.readInt();
+    public static void readFileCompletePacket(final Connection conn, final DataInputStream dis)
+    {
+        try
+        {
+            final int id = dis.readInt();
+            final boolean success = dis.readBoolean();
+            FileTransferManager.completeReceived(conn, id, success);
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+        }
+    }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.erasePacketReceived(r, bColorSpecific, color, authorID, stateID);
+    public static void readFileOpenPacket(final Connection conn, final DataInputStream dis)
+    {
+        try
+        {
+            final int id = dis.readInt();
+            final String mimeType = dis.readUTF();
+            final String filename = dis.readUTF();
+            final long size = dis.readLong();
+            FileTransferManager.openReceived(conn, id, mimeType, filename, size);
         }
         catch (final IOException ex)
         {
@@ -1283,27 +2417,27 @@ public class PacketManager
 
     /* *********************** FILE PACKET *********************************** */
 
-    public static void readLinesPacket(final DataInputStream dis)
+    public static Runnable decodeLinesPacket(final DataInputStream dis) throws IOException
     {
-        try
+        final int authorID = dis.readInt();
+        final int stateID = dis.readInt();
+        // each line is two points and a color
+        final int numLines = readCount(dis, 20);
+        final LineSegment[] lines = new LineSegment[numLines];
+        for (int i = 0; i < numLines; i++)
         {
-            final int authorID = dis.readInt();
-            final int stateID = dis.readInt();
-            final int numLines = dis.readInt();
-            final LineSegment[] lines = new LineSegment[numLines];
-            for (int i = 0; i < numLines; i++)
-            {
-                lines[i] = new LineSegment(dis);
-            }
-
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.linesPacketReceived(lines, authorID, stateID);
+            lines[i] = new LineSegment(dis);
         }
-        catch (final IOException ex)
+
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.linesPacketReceived(lines, authorID, stateID);
+            }
+        };
     }
 
     /* *********************** PNG PACKET *********************************** */
@@ -1324,21 +2458,20 @@ public class PacketManager
         }
     }
 
-    public static void readLockPogPacket(final DataInputStream dis)
+    public static Runnable decodeLockPogPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final int id = dis.readInt();
-            final boolean newLocked = dis.readBoolean();
+        final int id = dis.readInt();
+        final boolean newLocked = dis.readBoolean();
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.lockPogPacketReceived(id, newLocked);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.lockPogPacketReceived(id, newLocked);
+            }
+        };
     }
 
     public static void readLoginCompletePacket(final DataInputStream dis)
@@ -1352,254 +2485,136 @@ public class PacketManager
 
     /* *********************** GRM PACKET *********************************** */
 
-    public static void readMovePogPacket(final DataInputStream dis)
+    public static Runnable decodeDragPogPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final int id = dis.readInt();
-            final int newX = dis.readInt();
-            final int newY = dis.readInt();
+        final int id = dis.readInt();
+        final int x = dis.readInt();
+        final int y = dis.readInt();
+        final boolean bDragging = dis.readBoolean();
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.movePogPacketReceived(id, newX, newY);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.dragPogPacketReceived(id, x, y, bDragging);
+            }
+        };
     }
 
-    public static void readPacket(final Connection conn, final byte[] packet)
+    public static Runnable decodeMovePogPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet));
-            final int type = dis.readInt();
-
-            Log.log(Log.NET, "Received: " + getPacketName(type) + ", length = " + packet.length);
-            // find the player responsible for this
+        final int id = dis.readInt();
+        final int newX = dis.readInt();
+        final int newY = dis.readInt();
 
-            PacketSourceState.beginNetPacketProcessing();
-            switch (type)
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
             {
-                case PACKET_PLAYER:
-                {
-                    readPlayerPacket(conn, dis);
-                }
-                break;
-
-                case PACKET_REJECT:
-                {
-                    readRejectPacket(dis);
-                }
-                break;
-
-                case PACKET_CAST:
-                {
-                    readCastPacket(dis);
-                }
-                break;
-
-                case PACKET_TEXT:
-                {
-                    readTextPacket(dis);
-                }
-                break;
-
-                case PACKET_TYPING:
-                {
-                    readTypingPacket(dis);
-                }
-                break;
-
-                case PACKET_LINES:
-                {
-                    readLinesPacket(dis);
-                }
-                break;
-
-                case PACKET_ERASE:
-                {
-                    readErasePacket(dis);
-                }
-                break;
-
-                case PACKET_ADDPOG:
-                {
-                    readAddPogPacket(conn, dis);
-                }
-                break;
-
-                case PACKET_REMOVEPOGS:
-                {
-                    readRemovePogsPacket(dis);
-                }
-                break;
-
-                case PACKET_MOVEPOG:
-                {
-                    readMovePogPacket(dis);
-                }
-                break;
-
-                case PACKET_ROTATEPOG:
-                {
-                    readRotatePogPacket(dis);
-                }
-                break;
-
-                case PACKET_FLIPPOG:
-                {
-                    readFlipPogPacket(dis);
-                }
-                break;
-
-                case PACKET_LOCKPOG:
-                {
-                    readLockPogPacket(dis);
-                }
-                break;
-
-                case PACKET_LOCKALLPOG:
-                {
-                    readLockAllPogPacket(dis);
-                }
-                break;
-
-                case PACKET_POINT:
-                {
-                    readPointPacket(dis);
-                }
-                break;
-
-                case PACKET_POGDATA:
-                {
-                    readPogDataPacket(dis);
-                }
-                break;
-
-                case PACKET_RECENTER:
-                {
-                    readRecenterPacket(dis);
-                }
-                break;
-
-                case PACKET_FILE:
-                {
-                    readFilePacket(dis);
-                }
-                break;
-
-                case PACKET_PNGREQUEST:
-                {
-                    readPngRequestPacket(conn, dis);
-                }
-                break;
-
-                case PACKET_HEX_MODE:
-                {
-                    readGridModePacket(dis);
-                }
-                break;
-
-                case PACKET_LOGIN_COMPLETE:
-                {
-                    readLoginCompletePacket(dis);
-                }
-                break;
-
-                case PACKET_PING:
-                {
-                    readPingPacket(dis);
-                }
-                break;
-
-                case PACKET_UNDO:
-                {
-                    readUndoPacket(dis);
-                }
-                break;
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.movePogPacketReceived(id, newX, newY);
+            }
+        };
+    }
 
-                case PACKET_REDO:
-                {
-                    readRedoPacket(dis);
-                }
-                break;
+    public static void readPacket(final Connection conn, final byte[] packet)
+    {
+        readPacket(conn, packet, packet.length);
+    }
 
-                case PACKET_POG_SIZE:
-                {
-                    readPogSizePacket(dis);
-                }
-                break;
+    /**
+     * Dispatches a packet whose data is the first length bytes of the given array.
+     */
+    public static void readPacket(final Connection conn, final byte[] packet, final int length)
+    {
+        final Runnable command = decodePacket(conn, packet, length);
+        if (command != null)
+        {
+            command.run();
+        }
+    }
 
-                case PACKET_PRIVATE_TEXT:
-                {
-                    readPrivateTextPacket(dis);
-                }
-                break;
+    /**
+     * Turns a packet into a command that applies it to the model. This does the decoding (reading pogs, lines and
+     * strings out of the packet) and may be called from any thread; the command must be run on the event thread. Rare
+     * packets that aren't worth decoding early are copied and decoded when the command runs.
+     * 
+     * @param conn Connection the packet came from, or null.
+     * @param packet Array holding the packet data. It is not used after this returns.
+     * @param length Number of bytes of packet data in the array.
+     * @return The command, or null if there is nothing to apply.
+     */
+    public static Runnable decodePacket(final Connection conn, final byte[] packet, final int length)
+    {
+        final long start = System.nanoTime();
+        final PacketHandler handler;
+        final Runnable command;
+        final int type;
+        try
+        {
+            final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet, 0, length));
+            type = dis.readInt();
 
-                case PACKET_POG_REORDER:
-                {
-                    readPogReorderPacket(dis);
-                }
-                break;
+            Log.log(Log.NET, "Received: " + getPacketName(type) + ", length = " + length);
+            if ((conn != null) && conn.isSpectating() && !allowedFromSpectator(type))
+            {
+                Log.log(Log.NET, "Ignored from spectator: " + getPacketName(type));
+                return null;
+            }
 
-                case PACKET_DECK_LIST:
-                {
-                    readDeckListPacket(dis);
-                }
-                break;
+            handler = getHandler(type);
+            if (handler == null)
+            {
+                Log.log(Log.NET, "Unknown packet type: " + type);
+                return null;
+            }
 
-                case PACKET_DECK_REQUEST_CARDS:
-                {
-                    readRequestCardsPacket(conn, dis);
-                }
-                break;
+            command = handler.decode(conn, dis);
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
 
-                case PACKET_DECK_RECEIVE_CARDS:
-                {
-                    readReceiveCardsPacket(dis);
-                }
-                break;
+        handler.countDecode(length, System.nanoTime() - start);
+        if (command == null)
+        {
+            return null;
+        }
 
-                case PACKET_DECK_DISCARD_CARDS:
+        return new Runnable()
+        {
+            public void run()
+            {
+                // the connection may have become a spectator's since this was decoded
+                if ((conn != null) && conn.isSpectating() && !allowedFromSpectator(type))
                 {
-                    readDiscardCardsPacket(dis);
+                    Log.log(Log.NET, "Ignored from spectator: " + getPacketName(type));
+                    return;
                 }
-                break;
 
-                case PACKET_DECK_CLEAR_DECK:
+                // find the player responsible for this
+                PacketSourceState.beginNetPacketProcessing(conn);
+                final long applyStart = System.nanoTime();
+                try
                 {
-                    readClearDeckPacket(dis);
+                    command.run();
                 }
-                break;
-
-                default:
+                finally
                 {
-                    throw new IllegalArgumentException("Unknown packet");
+                    handler.countApply(System.nanoTime() - applyStart);
+                    PacketSourceState.endNetPacketProcessing();
                 }
             }
-        }
-        catch (final IOException ex)
-        {
-            Log.log(Log.SYS, ex);
-        }
-
-        PacketSourceState.endNetPacketProcessing();
+        };
     }
 
     /* *********************** PNG REQUEST PACKET *********************************** */
 
-    public static void readPingPacket(final DataInputStream dis)
-    {
-        // there's no data in a login_complete packet.
-
-        // tell the model
-        final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-        gtFrame.pingPacketReceived();
-    }
-
     public static void readPlayerPacket(final Connection conn, final DataInputStream dis)
     {
 
@@ -1621,7 +2636,18 @@ public class PacketManager
             final Player newPlayer = new Player(playerName, characterName, -1);
             newPlayer.setHostPlayer(dis.readBoolean());
 
+            // older clients don't send their capabilities
+            if (dis.available() >= 4)
+            {
+                conn.setPeerCapabilities(dis.readInt());
+            }
+
             // this is only ever received by the host
+            if ((dis.available() > 0) && dis.readBoolean())
+            {
+                gtFrame.spectatorJoined(conn, newPlayer, password);
+                return;
+            }
             gtFrame.playerJoined(conn, newPlayer, password);
         }
         catch (final IOException ex)
@@ -1644,40 +2670,23 @@ public class PacketManager
 
             // the file itself
             final byte[] pngFile = new byte[len];
-            dis.read(pngFile);
+            dis.readFully(pngFile);
 
             // validate PNG file
-            if (!UtilityFunctions.isPngData(pngFile))
+            if ((len < 8) || !UtilityFunctions.isPngData(pngFile))
             {
                 GametableFrame.getGametableFrame().logAlertMessage(
-                    "Illegal pog data: \"" + filename + "\", aborting transfer.");
-                return;
-            }
-
-            // validate file location
-            final File here = new File("").getAbsoluteFile();
-            File target = new File(filename).getAbsoluteFile();
-            if (!UtilityFunctions.isAncestorFile(here, target))
-            {
-                GametableFrame.getGametableFrame().logAlertMessage("Malicious pog path? \"" + filename + "\"");
-                final String temp = filename.toLowerCase();
-                if (temp.contains("underlay"))
-                {
-                    target = new File("underlays" + UtilityFunctions.LOCAL_SEPARATOR + target.getName());
-                }
-                else if (temp.contains("pog"))
-                {
-                    target = new File("pogs" + UtilityFunctions.LOCAL_SEPARATOR + target.getName());
-                }
-                else
-                {
-                    GametableFrame.getGametableFrame().logAlertMessage(
-                        "Illegal pog path: \"" + filename + "\", aborting transfer.");
-                    return;
-                }
+                    "Illegal pog data: \"" + filename + "\", aborting transfer.");
+                return;
+            }
+
+            final File target = getPngTarget(filename);
+            if (target == null)
+            {
+                return;
             }
 
-            final File parentDir = target.getParentFile();
+            final File parentDir = target.getAbsoluteFile().getParentFile();
             if (!parentDir.exists())
             {
                 parentDir.mkdirs();
@@ -1689,6 +2698,62 @@ public class PacketManager
             os.flush();
             os.close();
 
+            pngReceived(filename);
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+        }
+    }
+
+    /**
+     * Works out where a png sent to us by a peer should be saved, refusing paths that lead outside the pog and underlay
+     * directories.
+     * 
+     * @param filename Local form of the path the peer gave.
+     * @return The file to save to, or null if the transfer should be refused.
+     */
+    public static File getPngTarget(final String filename)
+    {
+        // validate file location
+        final File here = new File("").getAbsoluteFile();
+        File target = new File(filename).getAbsoluteFile();
+        if (!UtilityFunctions.isAncestorFile(here, target))
+        {
+            GametableFrame.getGametableFrame().logAlertMessage("Malicious pog path? \"" + filename + "\"");
+            final String temp = filename.toLowerCase();
+            if (temp.contains("underlay"))
+            {
+                target = new File("underlays" + UtilityFunctions.LOCAL_SEPARATOR + target.getName());
+            }
+            else if (temp.contains("pog"))
+            {
+                target = new File("pogs" + UtilityFunctions.LOCAL_SEPARATOR + target.getName());
+            }
+            else
+            {
+                GametableFrame.getGametableFrame().logAlertMessage(
+                    "Illegal pog path: \"" + filename + "\", aborting transfer.");
+                return null;
+            }
+        }
+
+        return target;
+    }
+
+    /**
+     * Called once a png from a peer has been saved: loads it and passes it on to anyone who asked us for it before we
+     * had it.
+     * 
+     * @param filename Local path of the file.
+     */
+    public static void pngReceived(final String filename)
+    {
+        try
+        {
+            // remember it for next time
+            ImageCache.store(filename);
+
             final PogType pogType = GametableFrame.getGametableFrame().getPogLibrary().getPog(filename);
             pogType.load();
 
@@ -1698,7 +2763,6 @@ public class PacketManager
             // Ok, now send the file out to any previously unfulfilled requests.
             final File providedFile = new File(filename).getCanonicalFile();
             final Iterator iterator = g_unfulfilledRequests.keySet().iterator();
-            byte[] packet = null;
             while (iterator.hasNext())
             {
                 final String requestedFilename = (String)iterator.next();
@@ -1712,23 +2776,15 @@ public class PacketManager
                 final File requestedFile = new File(requestedFilename).getCanonicalFile();
                 if (requestedFile.equals(providedFile))
                 {
-                    if (packet == null)
-                    {
-                        packet = makePngPacket(filename);
-                        if (packet == null)
-                        {
-                            // Still can't make packet
-                            // TODO: echo failure message to peoples?
-                            break;
-                        }
-                    }
-
                     // send to everyone asking for this file
                     final Iterator connectionIterator = connections.iterator();
                     while (connectionIterator.hasNext())
                     {
                         final Connection connection = (Connection)connectionIterator.next();
-                        connection.sendPacket(packet);
+                        if (sendPng(connection, filename, ""))
+                        {
+                            connectionIterator.remove();
+                        }
                     }
                 }
             }
@@ -1745,14 +2801,10 @@ public class PacketManager
         {
             // someone wants a png file from us.
             final String filename = UtilityFunctions.getLocalPath(dis.readUTF());
+            final String hash = (dis.available() > 0 ? dis.readUTF() : "");
 
-            // make a png packet and send it back
-            final byte[] packet = makePngPacket(filename);
-            if (packet != null)
-            {
-                conn.sendPacket(packet);
-            }
-            else
+            // send the png back
+            if (!sendPng(conn, filename, hash))
             {
                 addUnfulfilledRequest(filename, conn);
             }
@@ -1765,125 +2817,149 @@ public class PacketManager
 
     /* *********************** PING PACKET *********************************** */
 
-    public static void readPogDataPacket(final DataInputStream dis)
+    /**
+     * Replies are noted straight away, so that the time the event thread takes to get to them doesn't count.
+     */
+    public static Runnable decodePingPacket(final Connection conn, final DataInputStream dis) throws IOException
     {
-        try
+        final long receivedAt = Latency.now();
+        final long wallReceived = System.currentTimeMillis();
+        if ((conn == null) || (dis.available() == 0))
         {
-            final int id = dis.readInt();
-            String name = null;
-            if (dis.readBoolean())
-            {
-                name = dis.readUTF();
-            }
+            // older versions send empty pings, just to show they are alive
+            return null;
+        }
 
-            final Set toDelete = new HashSet();
-            final int numToDelete = dis.readInt();
-            for (int i = 0; i < numToDelete; ++i)
-            {
-                toDelete.add(dis.readUTF());
-            }
-            final Map toAdd = new HashMap();
-            final int numToAdd = dis.readInt();
-            for (int i = 0; i < numToAdd; ++i)
+        final int sequence = dis.readInt();
+        final long sentAt = dis.readLong();
+        if (dis.readBoolean())
+        {
+            final long holdTime = dis.readLong();
+            final long peerTime = dis.readLong();
+            conn.getLatency().replyReceived(sequence, sentAt, holdTime, peerTime, receivedAt);
+            return null;
+        }
+
+        return new Runnable()
+        {
+            public void run()
             {
-                final String key = dis.readUTF();
-                final String value = dis.readUTF();
-                toAdd.put(key, value);
+                // tell the model
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.send(makePingReplyPacket(sequence, sentAt, receivedAt, wallReceived), conn);
             }
+        };
+    }
 
-            // tell the model
-            GametableFrame.getGametableFrame().pogDataPacketReceived(id, name, toAdd, toDelete);
+    public static Runnable decodePogDataPacket(final DataInputStream dis) throws IOException
+    {
+        final int id = dis.readInt();
+        final String name = (dis.readBoolean() ? dis.readUTF() : null);
+
+        final Set toDelete = new HashSet();
+        final int numToDelete = dis.readInt();
+        for (int i = 0; i < numToDelete; ++i)
+        {
+            toDelete.add(dis.readUTF());
         }
-        catch (final IOException ex)
+        final Map toAdd = new HashMap();
+        final int numToAdd = dis.readInt();
+        for (int i = 0; i < numToAdd; ++i)
         {
-            Log.log(Log.SYS, ex);
+            final String key = dis.readUTF();
+            final String value = dis.readUTF();
+            toAdd.put(key, value);
         }
-    }
 
-    public static void readPogReorderPacket(final DataInputStream dis)
-    {
-        try
+        // tell the model
+        return new Runnable()
         {
-            final int numChanges = dis.readInt();
-            final Map changes = new HashMap();
-            for (int i = 0; i < numChanges; ++i)
+            public void run()
             {
-                final int id = dis.readInt();
-                final long order = dis.readLong();
-                changes.put(new Integer(id), new Long(order));
+                GametableFrame.getGametableFrame().pogDataPacketReceived(id, name, toAdd, toDelete);
             }
+        };
+    }
 
-            // tell the model
-            GametableFrame.getGametableFrame().pogReorderPacketReceived(changes);
-        }
-        catch (final IOException ex)
+    public static Runnable decodePogReorderPacket(final DataInputStream dis) throws IOException
+    {
+        final int numChanges = dis.readInt();
+        final Map changes = new HashMap();
+        for (int i = 0; i < numChanges; ++i)
         {
-            Log.log(Log.SYS, ex);
+            final int id = dis.readInt();
+            final long order = dis.readLong();
+            changes.put(new Integer(id), new Long(order));
         }
+
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
+            {
+                GametableFrame.getGametableFrame().pogReorderPacketReceived(changes);
+            }
+        };
     }
 
     /* *********************** POG_SIZE PACKET *********************************** */
 
-    public static void readPogSizePacket(final DataInputStream dis)
+    public static Runnable decodePogSizePacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final int id = dis.readInt();
-            final float size = dis.readFloat();
+        final int id = dis.readInt();
+        final float size = dis.readFloat();
 
-            // tell the model
-            GametableFrame.getGametableFrame().pogSizePacketReceived(id, size);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                GametableFrame.getGametableFrame().pogSizePacketReceived(id, size);
+            }
+        };
     }
 
-    public static void readPointPacket(final DataInputStream dis)
+    public static Runnable decodePointPacket(final DataInputStream dis) throws IOException
     {
+        final int plrIdx = dis.readInt();
+        final int x = dis.readInt();
+        final int y = dis.readInt();
+        final boolean bPointing = dis.readBoolean();
 
-        try
-        {
-            final int plrIdx = dis.readInt();
-            final int x = dis.readInt();
-            final int y = dis.readInt();
-            final boolean bPointing = dis.readBoolean();
-
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.pointPacketReceived(plrIdx, x, y, bPointing);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.pointPacketReceived(plrIdx, x, y, bPointing);
+            }
+        };
     }
 
-    public static void readPrivateTextPacket(final DataInputStream dis)
+    public static Runnable decodePrivateTextPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final String fromName = dis.readUTF();
-            final String toName = dis.readUTF();
-            final String text = dis.readUTF();
+        final String fromName = dis.readUTF();
+        final String toName = dis.readUTF();
+        final String text = dis.readUTF();
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.privateTextPacketReceived(fromName, toName, text);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.privateTextPacketReceived(fromName, toName, text);
+            }
+        };
     }
 
     public static void readReceiveCardsPacket(final DataInputStream dis)
     {
         try
         {
-            // how many cards are there?
-            final int numCards = dis.readInt();
+            // how many cards are there? each is four strings and two ints
+            final int numCards = readCount(dis, 16);
 
             // make the array
             final DeckData.Card cards[] = new DeckData.Card[numCards];
@@ -1904,38 +2980,36 @@ public class PacketManager
         }
     }
 
-    public static void readRecenterPacket(final DataInputStream dis)
+    public static Runnable decodeRecenterPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final int x = dis.readInt();
-            final int y = dis.readInt();
-            final int zoom = dis.readInt();
+        final int x = dis.readInt();
+        final int y = dis.readInt();
+        final int zoom = dis.readInt();
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.recenterPacketReceived(x, y, zoom);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.recenterPacketReceived(x, y, zoom);
+            }
+        };
     }
 
-    public static void readRedoPacket(final DataInputStream dis)
+    public static Runnable decodeRedoPacket(final DataInputStream dis) throws IOException
     {
-        try
-        {
-            final int stateID = dis.readInt();
+        final int stateID = dis.readInt();
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.redoPacketReceived(stateID);
-        }
-        catch (final IOException ex)
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.redoPacketReceived(stateID);
+            }
+        };
     }
 
     public static void readRejectPacket(final DataInputStream dis)
@@ -1955,27 +3029,26 @@ public class PacketManager
         }
     }
 
-    public static void readRemovePogsPacket(final DataInputStream dis)
+    public static Runnable decodeRemovePogsPacket(final DataInputStream dis) throws IOException
     {
-        try
+        // the number of pogs to be removed is first
+        final int ids[] = new int[readCount(dis, 4)];
+
+        // then the IDs of the pogs.
+        for (int i = 0; i < ids.length; i++)
         {
-            // the number of pogs to be removed is first
-            final int ids[] = new int[dis.readInt()];
+            ids[i] = dis.readInt();
+        }
 
-            // then the IDs of the pogs.
-            for (int i = 0; i < ids.length; i++)
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
             {
-                ids[i] = dis.readInt();
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.removePogsPacketReceived(ids);
             }
-
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.removePogsPacketReceived(ids);
-        }
-        catch (final IOException ex)
-        {
-            Log.log(Log.SYS, ex);
-        }
+        };
     }
 
     public static void readRequestCardsPacket(final Connection conn, final DataInputStream dis)
@@ -1997,95 +3070,225 @@ public class PacketManager
         }
     }
 
-    public static void readRotatePogPacket(final DataInputStream dis)
+    public static Runnable decodeRotatePogPacket(final DataInputStream dis) throws IOException
     {
-        try
+        final int id = dis.readInt();
+        final double newAngle = dis.readDouble();
+
+        // tell the model
+        return new Runnable()
         {
-            final int id = dis.readInt();
-            final double newAngle = dis.readDouble();
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.rotatePogPacketReceived(id, newAngle);
+            }
+        };
+    }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.rotatePogPacketReceived(id, newAngle);
-        }
-        catch (final IOException ex)
+    public static Runnable decodeFlipPogPacket(final DataInputStream dis) throws IOException
+    {
+        final int id = dis.readInt();
+        final int flipH = dis.readInt();
+        final int flipV = dis.readInt();
+
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.flipPogPacketReceived(id, flipH, flipV);
+            }
+        };
     }
 
-    public static void readFlipPogPacket(final DataInputStream dis)
+    public static Runnable decodeSnapshotPacket(final Connection conn, final DataInputStream dis) throws IOException
     {
-        try
+        final int length = dis.readInt();
+        if ((length < 0) || (length > (long)Connection.getMaxFrameSize() * SNAPSHOT_MAX_EXPANSION))
         {
-            final int id = dis.readInt();
-            final int flipH = dis.readInt();
-            final int flipV = dis.readInt();
+            throw new IOException("Refused a snapshot of " + length + " bytes");
+        }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.flipPogPacketReceived(id, flipH, flipV);
+        final byte[] state = new byte[length];
+        final Inflater inflater = new Inflater();
+        final DataInputStream in = new DataInputStream(new InflaterInputStream(dis, inflater));
+        try
+        {
+            in.readFully(state);
         }
-        catch (final IOException ex)
+        finally
         {
-            Log.log(Log.SYS, ex);
+            inflater.end();
         }
-    }
 
-    public static void readTextPacket(final DataInputStream dis)
-    {
+        final DataInputStream sis = new DataInputStream(new ByteArrayInputStream(state));
+        final LineSegment[] lines = new LineSegment[readCount(sis, 20)];
+        for (int i = 0; i < lines.length; i++)
+        {
+            lines[i] = new LineSegment(sis);
+        }
 
-        try
+        // a pog is at least a name, three ints, a long, its text and a flag, followed by its image hash
+        final int numPogs = readCount(sis, 31);
+        final List pogs = new ArrayList(numPogs);
+        final List hashes = new ArrayList(numPogs);
+        for (int i = 0; i < numPogs; i++)
         {
-            final String text = dis.readUTF();
+            final Pog pog = Pog.readFromPacket(sis);
+            final String hash = sis.readUTF();
+            if (pog.m_bStillborn)
+            {
+                // corrupt, as in decodeAddPogPacket()
+                continue;
+            }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.textPacketReceived(text);
+            pogs.add(pog);
+            hashes.add(hash);
         }
-        catch (final IOException ex)
+
+        final int gridMode = sis.readInt();
+        final String[] deckNames = new String[readCount(sis, 2)];
+        for (int i = 0; i < deckNames.length; i++)
         {
-            Log.log(Log.SYS, ex);
+            deckNames[i] = sis.readUTF();
         }
+
+        // tell the model
+        return new Runnable()
+        {
+            public void run()
+            {
+                for (int i = 0; i < pogs.size(); i++)
+                {
+                    final Pog pog = (Pog)pogs.get(i);
+                    pog.resolvePogType();
+                    final String hash = (String)hashes.get(i);
+                    if (pog.isUnknown() && !restorePogImage(pog, hash))
+                    {
+                        // we need this image
+                        requestPogImage(conn, pog, hash);
+                    }
+                }
+
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.snapshotPacketReceived(lines, (Pog[])pogs.toArray(new Pog[pogs.size()]), gridMode, deckNames);
+            }
+        };
     }
 
-    public static void readTypingPacket(final DataInputStream dis)
+    public static Runnable decodeTextPacket(final DataInputStream dis) throws IOException
     {
+        final String text = dis.readUTF();
 
-        try
+        // tell the model
+        return new Runnable()
         {
-            final String playerName = dis.readUTF();
-            final boolean typing = dis.readBoolean();
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.textPacketReceived(text);
+            }
+        };
+    }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.typingPacketReceived(playerName, typing);
-        }
-        catch (final IOException ex)
+    public static Runnable decodeTypingPacket(final DataInputStream dis) throws IOException
+    {
+        final String playerName = dis.readUTF();
+        final boolean typing = dis.readBoolean();
+
+        // tell the model
+        return new Runnable()
         {
-            Log.log(Log.SYS, ex);
-        }
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.typingPacketReceived(playerName, typing);
+            }
+        };
     }
 
     /* *********************** POG_SIZE PACKET *********************************** */
 
-    public static void readUndoPacket(final DataInputStream dis)
+    public static Runnable decodeUndoPacket(final DataInputStream dis) throws IOException
     {
-        try
+        final int stateID = dis.readInt();
+
+        // tell the model
+        return new Runnable()
         {
-            final int stateID = dis.readInt();
+            public void run()
+            {
+                final GametableFrame gtFrame = GametableFrame.getGametableFrame();
+                gtFrame.undoPacketReceived(stateID);
+            }
+        };
+    }
 
-            // tell the model
-            final GametableFrame gtFrame = GametableFrame.getGametableFrame();
-            gtFrame.undoPacketReceived(stateID);
+    /**
+     * Sends a png file to a peer, streamed in chunks if the peer understands that.
+     * 
+     * @param conn Connection to send to.
+     * @param filename Local path of the image.
+     * @param hash Content hash the peer asked for, or the empty string. If we have an image with this hash it is sent
+     *            in place of whatever is at filename.
+     * @return False if the file could not be read.
+     */
+    public static boolean sendPng(final Connection conn, final String filename, final String hash)
+    {
+        File source = ImageCache.find(hash);
+        if (source == null)
+        {
+            source = new File(filename);
         }
-        catch (final IOException ex)
+
+        if (conn.hasCapability(Connection.CAPABILITY_CHUNKED))
         {
-            Log.log(Log.SYS, ex);
+            return FileTransferManager.sendPng(conn, source, filename);
+        }
+
+        final byte[] packet = makePngPacket(filename, source);
+        if (packet == null)
+        {
+            return false;
+        }
+
+        conn.sendPacket(packet);
+        return true;
+    }
+
+    /**
+     * Fills in the image for a pog from the image cache, if it is there.
+     * 
+     * @param pog Pog whose image is missing.
+     * @param hash Content hash of the image, or the empty string if the sender didn't give one.
+     * @return True if the image was found.
+     */
+    public static boolean restorePogImage(final Pog pog, final String hash)
+    {
+        if (hash.length() == 0)
+        {
+            return false;
+        }
+
+        final String filename = pog.getFilename();
+        final File target = getPngTarget(filename);
+        if ((target == null) || !ImageCache.restore(hash, target))
+        {
+            return false;
         }
+
+        pngReceived(filename);
+        return true;
     }
 
     public static void requestPogImage(final Connection conn, final Pog pog)
+    {
+        requestPogImage(conn, pog, "");
+    }
+
+    public static void requestPogImage(final Connection conn, final Pog pog, final String hash)
     {
         final String desiredFile = pog.getFilename();
 
@@ -2104,7 +3307,7 @@ public class PacketManager
             return;
         }
 
-        conn.sendPacket(makePngRequestPacket(desiredFile));
+        conn.sendPacket(makePngRequestPacket(desiredFile, hash));
     }
 
     // --- Constructors ----------------------------------------------------------------------------------------------
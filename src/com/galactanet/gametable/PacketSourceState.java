@@ -9,6 +9,8 @@
 
 package com.galactanet.gametable;
 
+import com.galactanet.gametable.net.Connection;
+
 /**
  * 
  * @author sephalon
@@ -18,13 +20,16 @@ public class PacketSourceState
 {
     // this is true if we are in the process of receiving the
     // inital map data from the host after logging in.
-    private static boolean g_bInitalHostDumpInProgress;
+    private static boolean    g_bInitalHostDumpInProgress;
 
     // this is trus if we are processing an external network action
-    private static boolean g_bNetPacketInProgress;
+    private static boolean    g_bNetPacketInProgress;
+
+    // the connection the packet being processed came from, if any
+    private static Connection g_netPacketSource;
 
     // this is true if we're loading a file from disk to the private layer
-    private static boolean g_bPrivateFileLoadInProgress;
+    private static boolean    g_bPrivateFileLoadInProgress;
 
     // FILE LOAD
     public static void beginFileLoad()
@@ -40,8 +45,14 @@ public class PacketSourceState
 
     // NET PACKET
     public static void beginNetPacketProcessing()
+    {
+        beginNetPacketProcessing(null);
+    }
+
+    public static void beginNetPacketProcessing(final Connection source)
     {
         g_bNetPacketInProgress = true;
+        g_netPacketSource = source;
     }
 
     public static void endFileLoad()
@@ -57,6 +68,12 @@ public class PacketSourceState
     public static void endNetPacketProcessing()
     {
         g_bNetPacketInProgress = false;
+        g_netPacketSource = null;
+    }
+
+    public static Connection getNetPacketSource()
+    {
+        return g_netPacketSource;
     }
 
     public static boolean isFileLoading()
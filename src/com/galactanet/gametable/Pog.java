@@ -165,11 +165,20 @@ public class Pog implements Comparable
      */
     public BitSet              m_hitMap;
 
+    // what a pog read from a packet still needs to find its PogType
+    private String             m_pendingFilename          = null;
+    private int                m_pendingFaceSize          = 0;
+
     // --- Constructors ----------------------------------------------------------------------------------------------
 
     public Pog(final DataInputStream dis) throws IOException
     {
         initFromPacket(dis);
+        resolvePogType();
+    }
+
+    private Pog()
+    {
     }
 
     public Pog(final Pog toCopy)
@@ -186,6 +195,41 @@ public class Pog implements Comparable
 
     // --- Initialization ---
 
+    /**
+     * Reads a pog from a packet without looking up its PogType, so that it can be done off the event thread.
+     * resolvePogType() must be called on the event thread before the pog is used.
+     */
+    public static Pog readFromPacket(final DataInputStream dis) throws IOException
+    {
+        final Pog retVal = new Pog();
+        retVal.initFromPacket(dis);
+        return retVal;
+    }
+
+    /**
+     * Finds the PogType of a pog made by readFromPacket(), creating a placeholder if the image isn't in the library.
+     */
+    public void resolvePogType()
+    {
+        if (m_bStillborn || (m_pendingFilename == null))
+        {
+            return;
+        }
+
+        final PogLibrary lib = GametableFrame.getGametableFrame().getPogLibrary();
+        final String filename = UtilityFunctions.getRelativePath(lib.getLocation(), new File(m_pendingFilename));
+        m_pendingFilename = null;
+
+        stopDisplayPogDataChange();
+
+        PogType type = lib.getPog(filename);
+        if (type == null)
+        {
+            type = lib.createPlaceholder(filename, m_pendingFaceSize);
+        }
+        init(GametableFrame.getGametableFrame().getGametableCanvas(), type);
+    }
+
     public void assignUniqueId()
     {
         m_id = g_nextId++;
@@ -726,9 +770,7 @@ public class Pog implements Comparable
 
     private void initFromPacket(final DataInputStream dis) throws IOException
     {
-        String filename = UtilityFunctions.getLocalPath(dis.readUTF());
-        final PogLibrary lib = GametableFrame.getGametableFrame().getPogLibrary();
-        filename = UtilityFunctions.getRelativePath(lib.getLocation(), new File(filename));
+        final String filename = UtilityFunctions.getLocalPath(dis.readUTF());
 
         final int x = dis.readInt();
         final int y = dis.readInt();
@@ -810,14 +852,8 @@ public class Pog implements Comparable
             return;
         }
 
-        stopDisplayPogDataChange();
-
-        PogType type = lib.getPog(filename);
-        if (type == null)
-        {
-            type = lib.createPlaceholder(filename, size);
-        }
-        init(GametableFrame.getGametableFrame().getGametableCanvas(), type);
+        m_pendingFilename = filename;
+        m_pendingFaceSize = size;
     }
 
     public boolean isCardPog()
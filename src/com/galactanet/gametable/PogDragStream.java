@@ -0,0 +1,285 @@
+/*
+ * PogDragStream.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Graphics;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.galactanet.gametable.net.Connection;
+
+
+
+/**
+ * Shows other players a pog while it is being dragged on the public map, rather than only once it is dropped.
+ *
+ * While we drag, the latest position of the pog is sent as a PACKET_DRAGPOG at most a few times a second, however fast
+ * the mouse moves; anything newer than the last packet simply replaces the position waiting to go. The drop itself is
+ * still sent as the usual PACKET_MOVEPOG. A drag that ends without one sends a last PACKET_DRAGPOG saying so.
+ *
+ * For pogs others are dragging, a ghost of the pog glides from where it was shown to the latest position received,
+ * taking as long as the gap between the last two packets, so that it moves smoothly at any update rate. The ghost goes
+ * away when the pog is moved or removed, when the drag is called off, or if nothing is heard for DRAG_TIMEOUT.
+ *
+ * Everything here runs on the event thread.
+ *
+ * @author iffy
+ */
+public class PogDragStream
+{
+    /**
+     * A pog someone else is dragging.
+     */
+    private static class RemoteDrag
+    {
+        public long      duration = DEFAULT_DURATION;
+        public int       fromX;
+        public int       fromY;
+        public final Pog ghost;
+        public long      lastUpdate;
+        public long      start;
+        public int       toX;
+        public int       toY;
+
+        public RemoteDrag(final Pog pog, final long now)
+        {
+            ghost = new Pog(pog);
+            fromX = toX = pog.getX();
+            fromY = toY = pog.getY();
+            start = lastUpdate = now;
+        }
+
+        /**
+         * Moves the ghost to where it should be shown at the given time.
+         *
+         * @return True if it moved.
+         */
+        public boolean update(final long now)
+        {
+            final float pos = Math.min(1f, (now - start) / (float)duration);
+            final int x = fromX + Math.round((toX - fromX) * pos);
+            final int y = fromY + Math.round((toY - fromY) * pos);
+            if ((x == ghost.getX()) && (y == ghost.getY()))
+            {
+                return false;
+            }
+
+            ghost.setPosition(x, y);
+            return true;
+        }
+    }
+
+    /**
+     * Milliseconds a ghost takes to reach the first position received for it.
+     */
+    private static final long     DEFAULT_DURATION = 66;
+
+    /**
+     * Milliseconds without a packet after which a ghost is dropped, in case the end of its drag never arrives.
+     */
+    private static final long     DRAG_TIMEOUT     = 3000;
+
+    /**
+     * Longest a ghost takes to reach a new position, so that it doesn't crawl after a pause in the drag.
+     */
+    private static final long     MAX_DURATION     = 250;
+
+    /**
+     * Most positions sent per second, whatever rate is asked for.
+     */
+    private static final int      MAX_RATE         = 60;
+
+    private final GametableCanvas canvas;
+
+    /**
+     * Pogs others are dragging, as RemoteDrags keyed by pog id.
+     */
+    private final Map             remoteDrags      = new HashMap();
+
+    private int                   sendId           = -1;
+    private long                  sendInterval;
+    private boolean               sendPending;
+    private long                  sendTime;
+    private int                   sendX;
+    private int                   sendY;
+    private boolean               sent;
+
+    /**
+     * Constructor.
+     *
+     * @param gametableCanvas Canvas whose public map holds the pogs.
+     */
+    public PogDragStream(final GametableCanvas gametableCanvas)
+    {
+        canvas = gametableCanvas;
+    }
+
+    /**
+     * Notes where a pog we are dragging on the public map is now. The position goes out right away if the last one
+     * went out long enough ago, and from tick() otherwise.
+     *
+     * @param id Id of the pog.
+     * @param x New x position of the pog.
+     * @param y New y position of the pog.
+     * @param rate Most positions to send per second, up to MAX_RATE. Nothing is sent if this is not positive.
+     */
+    public void dragged(final int id, final int x, final int y, final int rate)
+    {
+        if (rate <= 0)
+        {
+            return;
+        }
+
+        if (id != sendId)
+        {
+            dropped(false);
+            sendId = id;
+        }
+
+        sendInterval = 1000 / Math.min(rate, MAX_RATE);
+        sendX = x;
+        sendY = y;
+        sendPending = true;
+        send(System.currentTimeMillis());
+    }
+
+    /**
+     * Ends the drag of our pog.
+     *
+     * @param moved True if a PACKET_MOVEPOG or PACKET_REMOVEPOGS for the pog has been sent, which tells everyone the
+     *            drag is over.
+     */
+    public void dropped(final boolean moved)
+    {
+        if ((sendId >= 0) && sent && !moved)
+        {
+            GametableFrame.getGametableFrame().sendToCapable(
+                PacketManager.makeDragPogPacket(sendId, sendX, sendY, false), Connection.CAPABILITY_DRAG);
+        }
+
+        sendId = -1;
+        sendPending = false;
+        sent = false;
+    }
+
+    /**
+     * Called when someone else drags a pog.
+     *
+     * @param id Id of the pog.
+     * @param x Latest position of the pog.
+     * @param y Latest position of the pog.
+     * @param dragging False if the drag has been called off.
+     */
+    public void received(final int id, final int x, final int y, final boolean dragging)
+    {
+        final Integer key = new Integer(id);
+        final Pog pog = canvas.getPublicMap().getPogByID(id);
+        if (!dragging || (pog == null))
+        {
+            remoteDrags.remove(key);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        RemoteDrag drag = (RemoteDrag)remoteDrags.get(key);
+        if (drag == null)
+        {
+            drag = new RemoteDrag(pog, now);
+            remoteDrags.put(key, drag);
+        }
+        else
+        {
+            // carry on from wherever the ghost is shown, taking as long as this packet took to follow the last
+            drag.update(now);
+            drag.fromX = drag.ghost.getX();
+            drag.fromY = drag.ghost.getY();
+            drag.duration = Math.max(1, Math.min(MAX_DURATION, now - drag.lastUpdate));
+        }
+
+        drag.toX = x;
+        drag.toY = y;
+        drag.start = drag.lastUpdate = now;
+    }
+
+    /**
+     * Drops the ghost of a pog, because it has been moved or removed.
+     *
+     * @param id Id of the pog.
+     */
+    public void stopped(final int id)
+    {
+        remoteDrags.remove(new Integer(id));
+    }
+
+    /**
+     * Sends our latest position if it is due, and moves the ghosts along.
+     *
+     * @return True if the map needs repainting.
+     */
+    public boolean tick()
+    {
+        final long now = System.currentTimeMillis();
+        send(now);
+
+        boolean retVal = false;
+        final Iterator iterator = remoteDrags.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final RemoteDrag drag = (RemoteDrag)entry.getValue();
+            if ((now - drag.lastUpdate > DRAG_TIMEOUT)
+                || (canvas.getPublicMap().getPogByID(((Integer)entry.getKey()).intValue()) == null))
+            {
+                iterator.remove();
+                retVal = true;
+            }
+            else if (drag.update(now))
+            {
+                retVal = true;
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Draws the ghosts of pogs others are dragging.
+     */
+    public void paint(final Graphics g)
+    {
+        final Iterator iterator = remoteDrags.values().iterator();
+        while (iterator.hasNext())
+        {
+            ((RemoteDrag)iterator.next()).ghost.drawGhostlyToCanvas(g);
+        }
+    }
+
+    /**
+     * Forgets every drag, ours and others'.
+     */
+    public void reset()
+    {
+        sendId = -1;
+        sendPending = false;
+        sent = false;
+        remoteDrags.clear();
+    }
+
+    private void send(final long now)
+    {
+        if (!sendPending || (now - sendTime < sendInterval))
+        {
+            return;
+        }
+
+        GametableFrame.getGametableFrame().sendToCapable(PacketManager.makeDragPogPacket(sendId, sendX, sendY, true),
+            Connection.CAPABILITY_DRAG);
+        sendTime = now;
+        sendPending = false;
+        sent = true;
+    }
+}
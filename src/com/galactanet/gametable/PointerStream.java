@@ -0,0 +1,258 @@
+/*
+ * PointerStream.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Point;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+
+
+/**
+ * Keeps the traffic from players pointing at the map down, and their cursors moving smoothly anyway.
+ *
+ * While we point, a PACKET_POINT goes out at most once every SEND_INTERVAL, and only once the cursor has moved at least
+ * MIN_MOVE from where it was last sent. Starting and stopping always go out at once.
+ *
+ * Each cursor another player is pointing with is drawn by dead reckoning: from the last two positions received we work
+ * out how fast it is moving, guess where it is now (for up to MAX_EXTRAPOLATION past the last packet), and every tick
+ * move the drawn cursor part of the way there. Only the parts of the canvas the cursor leaves and enters are repainted.
+ *
+ * Everything here runs on the event thread.
+ *
+ * @author iffy
+ */
+public class PointerStream
+{
+    /**
+     * A cursor another player is pointing with.
+     */
+    private static class Track
+    {
+        public long  sampleTime;
+        public int   sampleX;
+        public int   sampleY;
+        public float speedX;
+        public float speedY;
+        public float x;
+        public float y;
+
+        public Track(final int modelX, final int modelY, final long now)
+        {
+            x = sampleX = modelX;
+            y = sampleY = modelY;
+            sampleTime = now;
+        }
+    }
+
+    /**
+     * Milliseconds past the last packet for which a cursor keeps moving the way it was going. A cursor not heard from
+     * for longer goes back to the last position received.
+     */
+    private static final long     MAX_EXTRAPOLATION = 150;
+
+    /**
+     * Milliseconds between two packets beyond which the cursor is taken to have stopped in between, rather than to be
+     * moving slowly.
+     */
+    private static final long     MAX_SAMPLE_GAP    = 500;
+
+    /**
+     * Model distance the cursor must move before the new position is worth sending.
+     */
+    private static final int      MIN_MOVE          = 4;
+
+    /**
+     * Least milliseconds between two PACKET_POINTs from us.
+     */
+    private static final long     SEND_INTERVAL     = 100;
+
+    /**
+     * Part of the way to its estimated position that a drawn cursor moves each tick.
+     */
+    private static final float    SMOOTHING         = 0.5f;
+
+    private final GametableCanvas canvas;
+    private boolean               sendPending;
+    private long                  sendTime;
+    private int                   sentX;
+    private int                   sentY;
+
+    /**
+     * Cursors of other players, as Tracks keyed by Player.
+     */
+    private final Map             tracks            = new HashMap();
+
+    /**
+     * Constructor.
+     *
+     * @param gametableCanvas Canvas the cursors are drawn on.
+     */
+    public PointerStream(final GametableCanvas gametableCanvas)
+    {
+        canvas = gametableCanvas;
+    }
+
+    /**
+     * Called when we start pointing.
+     */
+    public void started(final int modelX, final int modelY)
+    {
+        sendPending = false;
+        send(modelX, modelY, true, System.currentTimeMillis());
+    }
+
+    /**
+     * Called when the place we are pointing at moves. The new position goes out now or from a later tick(), if it is
+     * far enough from the last one sent.
+     */
+    public void moved(final int modelX, final int modelY)
+    {
+        if ((Math.abs(modelX - sentX) < MIN_MOVE) && (Math.abs(modelY - sentY) < MIN_MOVE))
+        {
+            sendPending = false;
+            return;
+        }
+
+        sendPending = true;
+        sendDue(System.currentTimeMillis());
+    }
+
+    /**
+     * Called when we stop pointing.
+     */
+    public void stopped()
+    {
+        sendPending = false;
+        send(0, 0, false, System.currentTimeMillis());
+    }
+
+    /**
+     * Called when another player's cursor moves, starts or stops.
+     *
+     * @param plr Player pointing.
+     * @param modelX Where they are pointing.
+     * @param modelY Where they are pointing.
+     * @param bPointing False if they have stopped pointing.
+     */
+    public void received(final Player plr, final int modelX, final int modelY, final boolean bPointing)
+    {
+        final Point oldPoint = (plr.isPointing() ? plr.getPoint() : null);
+        if (!bPointing)
+        {
+            tracks.remove(plr);
+            plr.setPointing(false);
+            canvas.repaintPointer(plr, oldPoint);
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Track track = (Track)tracks.get(plr);
+        if ((track == null) || (oldPoint == null))
+        {
+            // a new cursor appears where it is, without gliding in from wherever it was last
+            tracks.put(plr, new Track(modelX, modelY, now));
+            plr.setPoint(modelX, modelY);
+            plr.setPointing(true);
+            canvas.repaintPointer(plr, oldPoint);
+            return;
+        }
+
+        final long gap = now - track.sampleTime;
+        if ((gap <= 0) || (gap > MAX_SAMPLE_GAP))
+        {
+            track.speedX = 0;
+            track.speedY = 0;
+        }
+        else
+        {
+            track.speedX = (modelX - track.sampleX) / (float)gap;
+            track.speedY = (modelY - track.sampleY) / (float)gap;
+        }
+        track.sampleX = modelX;
+        track.sampleY = modelY;
+        track.sampleTime = now;
+    }
+
+    /**
+     * Sends our latest position if it is due, and moves the other cursors along.
+     */
+    public void tick()
+    {
+        final long now = System.currentTimeMillis();
+        sendDue(now);
+
+        final Iterator iterator = tracks.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final Player plr = (Player)entry.getKey();
+            final Track track = (Track)entry.getValue();
+            if (!plr.isPointing())
+            {
+                iterator.remove();
+                continue;
+            }
+
+            // a cursor that has gone quiet has most likely stopped, so it settles where it was last seen
+            final long ahead = now - track.sampleTime;
+            float targetX = track.sampleX;
+            float targetY = track.sampleY;
+            if (ahead <= MAX_EXTRAPOLATION)
+            {
+                targetX += track.speedX * ahead;
+                targetY += track.speedY * ahead;
+            }
+            track.x += (targetX - track.x) * SMOOTHING;
+            track.y += (targetY - track.y) * SMOOTHING;
+            if ((Math.abs(targetX - track.x) < 0.5f) && (Math.abs(targetY - track.y) < 0.5f))
+            {
+                track.x = targetX;
+                track.y = targetY;
+            }
+
+            final Point oldPoint = plr.getPoint();
+            final int x = Math.round(track.x);
+            final int y = Math.round(track.y);
+            if ((x != oldPoint.x) || (y != oldPoint.y))
+            {
+                plr.setPoint(x, y);
+                canvas.repaintPointer(plr, oldPoint);
+            }
+        }
+    }
+
+    /**
+     * Forgets every cursor.
+     */
+    public void reset()
+    {
+        sendPending = false;
+        tracks.clear();
+    }
+
+    private void sendDue(final long now)
+    {
+        if (!sendPending || (now - sendTime < SEND_INTERVAL))
+        {
+            return;
+        }
+
+        final Point point = GametableFrame.getGametableFrame().getMyPlayer().getPoint();
+        sendPending = false;
+        send(point.x, point.y, true, now);
+    }
+
+    private void send(final int modelX, final int modelY, final boolean bPointing, final long now)
+    {
+        final GametableFrame frame = GametableFrame.getGametableFrame();
+        frame.send(PacketManager.makePointPacket(frame.getMyPlayerIndex(), modelX, modelY, bPointing));
+        sentX = modelX;
+        sentY = modelY;
+        sendTime = now;
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * ServerMap.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+
+import com.galactanet.gametable.net.PacketWriter;
+
+
+
+/**
+ * The public map as kept by GametableServer, without any of the user interface.
+ *
+ * Lines are kept in a GametableMap, so that erasing, undo and redo work exactly as they do for players. Pogs can't be
+ * kept as Pogs, which need a canvas and their images, so each pog is kept as the packets that describe it: the
+ * PACKET_ADDPOG that created it, then the latest of each kind of change made to it since (the last move, the last
+ * rotation, and so on) and every PACKET_POGDATA. Replaying those packets in order recreates the pog.
+ *
+ * The map is written out in the same form as GametableFrame.saveState(), so saved tables can be opened by the
+ * application, and the other way round.
+ *
+ * @author iffy
+ */
+public class ServerMap
+{
+    /**
+     * A pog, as packets.
+     */
+    private static class PogRecord
+    {
+        /**
+         * The PACKET_ADDPOG that made the pog.
+         */
+        public final byte[] addPacket;
+
+        /**
+         * PACKET_POGDATA packets, in the order they were received.
+         */
+        public final List   dataPackets = new ArrayList();
+
+        /**
+         * The latest change of each kind, as packets keyed by packet type.
+         */
+        public final Map    updates     = new HashMap();
+
+        public PogRecord(final byte[] packet)
+        {
+            addPacket = packet;
+        }
+
+        /**
+         * @return Every packet needed to recreate the pog, PACKET_ADDPOG first.
+         */
+        public List getPackets()
+        {
+            final List retVal = new ArrayList();
+            retVal.add(addPacket);
+            retVal.addAll(updates.values());
+            retVal.addAll(dataPackets);
+            return retVal;
+        }
+    }
+
+    /**
+     * Length of the type and layer flag at the start of a PACKET_ADDPOG, before the pog itself.
+     */
+    private static final int   ADDPOG_HEADER = 5;
+
+    private int                gridMode      = GametableCanvas.GRID_MODE_SQUARES;
+    private final GametableMap lines         = new GametableMap(true);
+    private int                nextStateId   = 0;
+
+    /**
+     * Pogs, as PogRecords keyed by pog id, in the order they were added.
+     */
+    private final Map          pogs          = new LinkedHashMap();
+
+    /**
+     * Constructor.
+     */
+    public ServerMap()
+    {
+    }
+
+    /**
+     * Adds lines.
+     *
+     * @return The state id given to the change.
+     */
+    public int addLines(final LineSegment[] newLines, final int authorId)
+    {
+        final int stateId = nextStateId++;
+        lines.beginUndoableAction();
+        for (int i = 0; i < newLines.length; i++)
+        {
+            lines.addLine(newLines[i]);
+        }
+        lines.endUndoableAction(authorId, stateId);
+        return stateId;
+    }
+
+    /**
+     * Erases lines, as GametableCanvas.doErase() does.
+     *
+     * @return The state id given to the change.
+     */
+    public int erase(final Rectangle r, final boolean bColorSpecific, final int color, final int authorId)
+    {
+        final Point modelStart = new Point(r.x, r.y);
+        final Point modelEnd = new Point(r.x + r.width, r.y + r.height);
+
+        final List survivingLines = new ArrayList();
+        for (int i = 0; i < lines.getNumLines(); i++)
+        {
+            final LineSegment ls = lines.getLineAt(i);
+            if (!bColorSpecific || (ls.getColor().getRGB() == color))
+            {
+                final LineSegment[] result = ls.crop(modelStart, modelEnd);
+                if (result != null)
+                {
+                    for (int j = 0; j < result.length; j++)
+                    {
+                        survivingLines.add(result[j]);
+                    }
+                }
+            }
+            else
+            {
+                survivingLines.add(ls);
+            }
+        }
+
+        final int stateId = nextStateId++;
+        lines.beginUndoableAction();
+        lines.clearLines();
+        for (int i = 0; i < survivingLines.size(); i++)
+        {
+            lines.addLine((LineSegment)survivingLines.get(i));
+        }
+        lines.endUndoableAction(authorId, stateId);
+        return stateId;
+    }
+
+    public void undo(final int stateId)
+    {
+        lines.undo(stateId);
+    }
+
+    public void redo(final int stateId)
+    {
+        lines.redo(stateId);
+    }
+
+    /**
+     * Forgets the undo history, as happens whenever a player joins.
+     */
+    public void clearUndos()
+    {
+        lines.clearUndos();
+    }
+
+    /**
+     * @return The lines, as a single PACKET_LINES.
+     */
+    public byte[] makeLinesPacket()
+    {
+        final LineSegment[] all = new LineSegment[lines.getNumLines()];
+        for (int i = 0; i < all.length; i++)
+        {
+            all[i] = lines.getLineAt(i);
+        }
+        return PacketManager.makeLinesPacket(all, -1, -1);
+    }
+
+    public int getNumLines()
+    {
+        return lines.getNumLines();
+    }
+
+    public int getGridMode()
+    {
+        return gridMode;
+    }
+
+    public void setGridMode(final int mode)
+    {
+        gridMode = mode;
+    }
+
+    /**
+     * Adds a pog.
+     *
+     * @param packet The PACKET_ADDPOG, which is kept.
+     * @return The id of the pog.
+     */
+    public int addPog(final byte[] packet) throws IOException
+    {
+        final int id = getPogId(packet);
+        pogs.put(new Integer(id), new PogRecord(packet));
+        return id;
+    }
+
+    /**
+     * Notes a change to a pog: the latest packet of each type replaces the one before it, except for PACKET_POGDATA,
+     * which are all kept.
+     *
+     * @param id Id of the pog.
+     * @param packet The packet.
+     * @return False if there is no such pog.
+     */
+    public boolean updatePog(final int id, final byte[] packet)
+    {
+        final PogRecord record = (PogRecord)pogs.get(new Integer(id));
+        if (record == null)
+        {
+            return false;
+        }
+
+        final int type = PacketManager.getPacketType(packet);
+        if (type == PacketManager.PACKET_POGDATA)
+        {
+            record.dataPackets.add(packet);
+        }
+        else
+        {
+            record.updates.put(new Integer(type), packet);
+        }
+        return true;
+    }
+
+    /**
+     * Locks or unlocks every pog.
+     */
+    public void lockAllPogs(final boolean lock)
+    {
+        final Iterator iterator = pogs.keySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Integer id = (Integer)iterator.next();
+            updatePog(id.intValue(), PacketManager.makeLockPogPacket(id.intValue(), lock));
+        }
+    }
+
+    public void removePog(final int id)
+    {
+        pogs.remove(new Integer(id));
+    }
+
+    public int getNumPogs()
+    {
+        return pogs.size();
+    }
+
+    /**
+     * @return True if any pog was added with an image of the given name.
+     */
+    public boolean hasPogImage(final String filename) throws IOException
+    {
+        final Iterator iterator = pogs.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (filename.equals(getPogFilename(((PogRecord)iterator.next()).addPacket)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Every packet a player needs to see the map as it is, other than through a snapshot: the lines, then the
+     *         pogs.
+     */
+    public List getStatePackets()
+    {
+        final List retVal = new ArrayList();
+        retVal.add(makeLinesPacket());
+        final Iterator iterator = pogs.values().iterator();
+        while (iterator.hasNext())
+        {
+            retVal.addAll(((PogRecord)iterator.next()).getPackets());
+        }
+        return retVal;
+    }
+
+    /**
+     * @return The changes made to pogs since they were added, which go out after a PACKET_SNAPSHOT.
+     */
+    public List getUpdatePackets()
+    {
+        final List retVal = new ArrayList();
+        final Iterator iterator = pogs.values().iterator();
+        while (iterator.hasNext())
+        {
+            final List packets = ((PogRecord)iterator.next()).getPackets();
+            retVal.addAll(packets.subList(1, packets.size()));
+        }
+        return retVal;
+    }
+
+    /**
+     * Makes a PACKET_SNAPSHOT of the map as it was when each pog was added; getUpdatePackets() brings it up to date.
+     *
+     * @param deckNames Names of the decks in play.
+     */
+    public byte[] makeSnapshotPacket(final List deckNames)
+    {
+        try
+        {
+            final PacketWriter dos = PacketWriter.acquire();
+
+            dos.writeInt(lines.getNumLines());
+            for (int i = 0; i < lines.getNumLines(); i++)
+            {
+                lines.getLineAt(i).writeToPacket(dos);
+            }
+
+            // the pog and its image hash are laid out in a snapshot just as they are in an add pog packet
+            dos.writeInt(pogs.size());
+            final Iterator iterator = pogs.values().iterator();
+            while (iterator.hasNext())
+            {
+                final byte[] addPacket = ((PogRecord)iterator.next()).addPacket;
+                dos.write(addPacket, ADDPOG_HEADER, addPacket.length - ADDPOG_HEADER);
+            }
+
+            dos.writeInt(gridMode);
+
+            dos.writeInt(deckNames.size());
+            for (int i = 0; i < deckNames.size(); i++)
+            {
+                dos.writeUTF((String)deckNames.get(i));
+            }
+
+            return PacketManager.makeSnapshotPacket(dos.finish());
+        }
+        catch (final IOException ex)
+        {
+            Log.log(Log.SYS, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the map in the application's save file format. The file is written beside the target and then moved over
+     * it, so a crash part way through leaves the last save intact.
+     */
+    public void save(final File file) throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(baos);
+        final List packets = getStatePackets();
+        packets.add(PacketManager.makeGridModePacket(gridMode));
+        for (int i = 0; i < packets.size(); i++)
+        {
+            final byte[] packet = (byte[])packets.get(i);
+            dos.writeInt(packet.length);
+            dos.write(packet);
+        }
+
+        final byte[] saveFileData = baos.toByteArray();
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            fileOut.writeInt(GametableFrame.COMM_VERSION);
+            fileOut.writeInt(saveFileData.length);
+            fileOut.write(saveFileData);
+        }
+        finally
+        {
+            fileOut.close();
+        }
+
+        if (file.exists() && !file.delete())
+        {
+            throw new IOException("Could not replace " + file);
+        }
+        if (!temp.renameTo(file))
+        {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads the packets of a file saved by save() or by the application.
+     *
+     * @return The packets, as byte arrays, or null if the file doesn't exist.
+     */
+    public static List readSaveFile(final File file) throws IOException
+    {
+        if (!file.exists())
+        {
+            return null;
+        }
+
+        final DataInputStream infile = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if (infile.readInt() != GametableFrame.COMM_VERSION)
+            {
+                throw new IOException("Invalid save file version.");
+            }
+
+            final byte[] saveFileData = new byte[infile.readInt()];
+            infile.readFully(saveFileData);
+
+            final List retVal = new ArrayList();
+            final DataInputStream walker = new DataInputStream(new ByteArrayInputStream(saveFileData));
+            int read = 0;
+            while (read < saveFileData.length)
+            {
+                final byte[] packet = new byte[walker.readInt()];
+                walker.readFully(packet);
+                read += packet.length + 4;
+                retVal.add(packet);
+            }
+            return retVal;
+        }
+        finally
+        {
+            infile.close();
+        }
+    }
+
+    /**
+     * @return The id of the pog in a PACKET_ADDPOG.
+     */
+    public static int getPogId(final byte[] addPacket) throws IOException
+    {
+        // see Pog.writeToPacket(): the file name, x, y and face size come before the id
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(addPacket, ADDPOG_HEADER,
+            addPacket.length - ADDPOG_HEADER));
+        dis.readUTF();
+        dis.readInt();
+        dis.readInt();
+        dis.readInt();
+        return dis.readInt();
+    }
+
+    /**
+     * @return The image file name of the pog in a PACKET_ADDPOG.
+     */
+    public static String getPogFilename(final byte[] addPacket) throws IOException
+    {
+        final DataInputStream dis = new DataInputStream(new ByteArrayInputStream(addPacket, ADDPOG_HEADER,
+            addPacket.length - ADDPOG_HEADER));
+        return dis.readUTF();
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * SpectatorFeed.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.galactanet.gametable.net.Connection;
+import com.galactanet.gametable.net.NetworkThread;
+
+
+
+/**
+ * Keeps the host's spectators up to date without the live packet stream.
+ *
+ * Spectators only watch, so they have no use for every pointer movement, typing notice and intermediate change the
+ * players see. Instead, at most once every interval, whatever has changed is sent to all of them at once: the whole
+ * public map, if it has changed at all, and the chat posted since the last update. The update is made once, framed
+ * once and queued on every spectator, so what the host does for each packet the players send doesn't grow with the
+ * number of spectators.
+ *
+ * The host tells the feed about every packet it broadcasts to the players, and calls tick() as often as it likes.
+ *
+ * @author iffy
+ */
+public class SpectatorFeed
+{
+    /**
+     * Where the feed gets the state of the map from.
+     */
+    public interface Source
+    {
+        /**
+         * @return The packets that bring an empty map up to date, a PACKET_SNAPSHOT first.
+         */
+        List getSpectatorState();
+    }
+
+    /**
+     * Default milliseconds between updates.
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * Most chat messages held for the next update. Older ones are dropped.
+     */
+    private static final int MAX_TEXTS        = 50;
+
+    private long             interval         = DEFAULT_INTERVAL;
+    private long             lastUpdate       = 0;
+    private boolean          mapChanged       = false;
+    private final Source     source;
+
+    /**
+     * The spectators, as Players.
+     */
+    private final List       spectators       = new ArrayList();
+
+    /**
+     * PACKET_TEXTs posted since the last update.
+     */
+    private final List       texts            = new ArrayList();
+    private long             updateBytes      = 0;
+    private int              updates          = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param stateSource Where the state of the map comes from.
+     */
+    public SpectatorFeed(final Source stateSource)
+    {
+        source = stateSource;
+    }
+
+    /**
+     * @return Milliseconds between updates.
+     */
+    public long getInterval()
+    {
+        return interval;
+    }
+
+    /**
+     * @param ms Milliseconds between updates.
+     */
+    public void setInterval(final long ms)
+    {
+        interval = ms;
+    }
+
+    /**
+     * Adds a spectator. The host has already sent them the state of the map.
+     */
+    public void spectatorJoined(final Player spectator)
+    {
+        spectators.add(spectator);
+    }
+
+    /**
+     * Removes the spectator on a connection that has been lost.
+     *
+     * @return The spectator, or null if the connection wasn't a spectator's.
+     */
+    public Player spectatorLeft(final Connection conn)
+    {
+        for (int i = 0; i < spectators.size(); i++)
+        {
+            final Player spectator = (Player)spectators.get(i);
+            if (spectator.getConnection() == conn)
+            {
+                spectators.remove(i);
+                return spectator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The spectators, as Players.
+     */
+    public List getSpectators()
+    {
+        return spectators;
+    }
+
+    /**
+     * @return The number of updates sent so far.
+     */
+    public int getUpdateCount()
+    {
+        return updates;
+    }
+
+    /**
+     * @return The bytes in all the updates sent so far, counted once however many spectators they went to.
+     */
+    public long getUpdateBytes()
+    {
+        return updateBytes;
+    }
+
+    /**
+     * Forgets everything, as when the host stops hosting.
+     */
+    public void reset()
+    {
+        spectators.clear();
+        texts.clear();
+        mapChanged = false;
+    }
+
+    /**
+     * Notes a packet the host has broadcast to the players.
+     */
+    public void packetBroadcast(final byte[] packet)
+    {
+        if (PacketManager.getPacketType(packet) == PacketManager.PACKET_TEXT)
+        {
+            texts.add(packet);
+            if (texts.size() > MAX_TEXTS)
+            {
+                texts.remove(0);
+            }
+        }
+        else if (PacketManager.changesMap(packet))
+        {
+            mapChanged = true;
+        }
+    }
+
+    /**
+     * Sends the spectators an update, if one is due and there is anything to send.
+     *
+     * @param now The current time in milliseconds.
+     * @param network Network thread to send through.
+     */
+    public void tick(final long now, final NetworkThread network)
+    {
+        if (spectators.isEmpty())
+        {
+            // whoever joins next gets the map as it is then
+            texts.clear();
+            mapChanged = false;
+            return;
+        }
+
+        if ((now - lastUpdate < interval) || (!mapChanged && texts.isEmpty()))
+        {
+            return;
+        }
+
+        final List packets = new ArrayList();
+        if (mapChanged)
+        {
+            packets.addAll(source.getSpectatorState());
+        }
+        packets.addAll(texts);
+
+        final byte[] update = (packets.size() == 1 ? (byte[])packets.get(0) : PacketManager.makeBatchPacket(packets));
+        network.sendToSpectators(update);
+
+        updates++;
+        updateBytes += update.length;
+        lastUpdate = now;
+        mapChanged = false;
+        texts.clear();
+    }
+}
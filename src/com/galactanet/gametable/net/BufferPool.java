@@ -0,0 +1,114 @@
+/*
+ * BufferPool.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Static pool of byte arrays used to carry packet data from the network thread to the application without allocating
+ * a fresh array for every packet. Arrays are handed out in power-of-two size classes, so an acquired array is usually
+ * larger than asked for and callers must track the real length themselves.
+ *
+ * @author iffy
+ */
+public class BufferPool
+{
+    /**
+     * Smallest array handed out, as a power of two.
+     */
+    private static final int             MIN_SHIFT     = 6;
+
+    /**
+     * Largest array kept in the pool, as a power of two. Bigger requests are allocated and dropped on release.
+     */
+    private static final int             MAX_SHIFT     = 20;
+
+    /**
+     * Most arrays kept idle in any one size class.
+     */
+    private static final int             MAX_PER_CLASS = 64;
+
+    private static final Queue[]         g_pools       = new Queue[MAX_SHIFT + 1];
+    private static final AtomicInteger[] g_counts      = new AtomicInteger[MAX_SHIFT + 1];
+
+    static
+    {
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+        {
+            g_pools[i] = new ConcurrentLinkedQueue();
+            g_counts[i] = new AtomicInteger(0);
+        }
+    }
+
+    /**
+     * @param size Minimum length needed.
+     * @return An array at least size bytes long.
+     */
+    public static byte[] acquire(final int size)
+    {
+        final int shift = getShift(size);
+        if (shift > MAX_SHIFT)
+        {
+            return new byte[size];
+        }
+
+        final byte[] retVal = (byte[])g_pools[shift].poll();
+        if (retVal == null)
+        {
+            return new byte[1 << shift];
+        }
+
+        g_counts[shift].decrementAndGet();
+        return retVal;
+    }
+
+    /**
+     * Returns an array to the pool. The caller must not touch it afterwards.
+     *
+     * @param buffer Array previously returned by acquire().
+     */
+    public static void release(final byte[] buffer)
+    {
+        final int shift = getShift(buffer.length);
+        if ((shift > MAX_SHIFT) || ((1 << shift) != buffer.length))
+        {
+            // not one of ours; let the garbage collector have it
+            return;
+        }
+
+        if (g_counts[shift].incrementAndGet() > MAX_PER_CLASS)
+        {
+            g_counts[shift].decrementAndGet();
+            return;
+        }
+
+        g_pools[shift].add(buffer);
+    }
+
+    private static int getShift(final int size)
+    {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < size)
+        {
+            shift++;
+            if (shift > 30)
+            {
+                break;
+            }
+        }
+        return shift;
+    }
+
+    // prevent instantiation
+    private BufferPool()
+    {
+        throw new RuntimeException("BufferPool should not be instantiated!");
+    }
+}
@@ -0,0 +1,831 @@
+/*
+ * CompactCodec.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.galactanet.gametable.PacketManager;
+
+
+
+/**
+ * Rewrites packets in a more compact wire format and back again. Packets are made by PacketManager with
+ * DataOutputStream, which spends four bytes on every int and writes every string in full. A connection that has agreed
+ * to CAPABILITY_COMPACT instead gets frames flagged with COMPACT_FLAG, whose packet data is re-encoded as follows:
+ *
+ * <ul>
+ * <li>the packet type, as a varint</li>
+ * <li>a mode byte: MODE_RAW if the rest of the packet is copied as is, MODE_SCHEMA if it was re-encoded</li>
+ * <li>for MODE_SCHEMA, the fields of the packet as described by PacketManager.getCompactSchema(), followed by the
+ * length and bytes of anything the schema didn't cover</li>
+ * </ul>
+ *
+ * In a schema, ints and longs become zigzag varints, and line coordinates and colors become deltas against the previous
+ * point or color in the same packet. Strings marked as worth remembering are sent in full the first time and by their
+ * index in a per-connection string table after that, which is what keeps pog filenames, image hashes and attribute names
+ * from crossing the wire over and over.
+ *
+ * The re-encoding is lossless whatever the bytes are: every field is copied bit for bit, so a packet that doesn't match
+ * its schema still comes back out exactly as it went in, and one that runs out of bytes part way is sent as MODE_RAW.
+ * The receiving Connection turns compact packets back into the standard form before anything else sees them.
+ *
+ * The string table means both ends must see the same packets in the same order, so each connection has its own codec,
+ * packets are encoded in the order they are queued, and packets that may be coalesced away in the send queue only ever
+ * refer to strings already in the table, never add to it.
+ *
+ * An instance is used by one connection; encoding and decoding each need their own external synchronization.
+ *
+ * @author iffy
+ */
+public class CompactCodec
+{
+    /**
+     * Growable output buffer.
+     */
+    private static class Output
+    {
+        public byte[]    data   = new byte[256];
+        public int       length = 0;
+        public final int limit;
+
+        public Output(final int maxLength)
+        {
+            limit = maxLength;
+        }
+
+        public void ensure(final int extra)
+        {
+            if (extra > limit - length)
+            {
+                throw new IllegalStateException("Packet would be longer than " + limit + " bytes");
+            }
+
+            if (length + extra > data.length)
+            {
+                final byte[] newData = new byte[Math.max(data.length * 2, length + extra)];
+                System.arraycopy(data, 0, newData, 0, length);
+                data = newData;
+            }
+        }
+
+        public void write(final int b)
+        {
+            ensure(1);
+            data[length++] = (byte)b;
+        }
+
+        public void write(final byte[] src, final int offset, final int len)
+        {
+            ensure(len);
+            System.arraycopy(src, offset, data, length, len);
+            length += len;
+        }
+
+        public void writeInt(final int v)
+        {
+            ensure(4);
+            data[length++] = (byte)(v >>> 24);
+            data[length++] = (byte)(v >>> 16);
+            data[length++] = (byte)(v >>> 8);
+            data[length++] = (byte)v;
+        }
+
+        public void writeLong(final long v)
+        {
+            writeInt((int)(v >>> 32));
+            writeInt((int)v);
+        }
+
+        public void writeVarint(final int v)
+        {
+            int value = v;
+            while ((value & ~0x7F) != 0)
+            {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        public void writeVarlong(final long v)
+        {
+            long value = v;
+            while ((value & ~0x7FL) != 0)
+            {
+                write((int)(value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+
+        public byte[] toByteArray()
+        {
+            final byte[] retVal = new byte[length];
+            System.arraycopy(data, 0, retVal, 0, length);
+            return retVal;
+        }
+    }
+
+    /**
+     * Reader over part of an array.
+     */
+    private static class Input
+    {
+        public final byte[] data;
+        public final int    end;
+        public int          position;
+
+        public Input(final byte[] src, final int offset, final int len)
+        {
+            data = src;
+            position = offset;
+            end = offset + len;
+        }
+
+        public void require(final int count) throws EOFException
+        {
+            if ((count < 0) || (end - position < count))
+            {
+                throw new EOFException();
+            }
+        }
+
+        public int read() throws EOFException
+        {
+            require(1);
+            return data[position++] & 0xFF;
+        }
+
+        public int readInt() throws EOFException
+        {
+            require(4);
+            final int retVal = getInt(data, position);
+            position += 4;
+            return retVal;
+        }
+
+        public long readLong() throws EOFException
+        {
+            final long high = readInt();
+            return (high << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        public int readUnsignedShort() throws EOFException
+        {
+            require(2);
+            final int retVal = ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+            position += 2;
+            return retVal;
+        }
+
+        public int readVarint() throws IOException
+        {
+            int retVal = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                final int b = read();
+                retVal |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return retVal;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public long readVarlong() throws IOException
+        {
+            long retVal = 0;
+            for (int shift = 0; shift < 70; shift += 7)
+            {
+                final int b = read();
+                retVal |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return retVal;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        public int remaining()
+        {
+            return end - position;
+        }
+    }
+
+    /**
+     * Mode byte: the rest of the packet is copied as is.
+     */
+    public static final int   MODE_RAW          = 0;
+
+    /**
+     * Mode byte: the packet was re-encoded by its schema.
+     */
+    public static final int   MODE_SCHEMA       = 1;
+
+    /**
+     * Mode byte: the packet was too short to have a type, and is copied as is.
+     */
+    public static final int   MODE_SHORT        = 2;
+
+    /**
+     * Version of the format described above; CAPABILITY_COMPACT stands for this version. A change to the format needs a
+     * new capability bit.
+     */
+    public static final int   VERSION           = 1;
+
+    /**
+     * Most strings remembered per connection.
+     */
+    public static final int   MAX_TABLE_SIZE    = 4096;
+
+    /**
+     * Longest string, in bytes, worth remembering.
+     */
+    public static final int   MAX_TABLE_STRING  = 256;
+
+    // times main() runs over each file
+    private static final int  BENCHMARK_PASSES  = 10;
+
+    // string table references: a literal that was not remembered, a literal that was, or TABLE_BASE + index
+    private static final int  STRING_LITERAL    = 0;
+    private static final int  STRING_REMEMBERED = 1;
+    private static final int  TABLE_BASE        = 2;
+
+    // the delta channels used by the 'x', 'y' and 'c' schema fields
+    private static final int  CHANNEL_X         = 0;
+    private static final int  CHANNEL_Y         = 1;
+    private static final int  CHANNEL_COLOR     = 2;
+
+    /**
+     * Strings this end has sent, to their index. Guarded by the caller of encode().
+     */
+    private final Map         sentStrings       = new HashMap();
+
+    /**
+     * Strings added to sentStrings by the packet being encoded, dropped again if that packet ends up sent raw.
+     */
+    private final List        tentative         = new ArrayList();
+
+    /**
+     * Strings this end has received, by index, as byte arrays. Guarded by the caller of decode().
+     */
+    private final List        receivedStrings   = new ArrayList();
+
+    /**
+     * Re-encodes a packet in the compact format.
+     *
+     * @param packet Array holding the packet in the standard format.
+     * @param offset Index of the first byte of the packet.
+     * @param length Number of bytes of packet data.
+     * @param remember False if the packet might never reach the peer, in which case it may refer to strings already in
+     *            the table but must not add any.
+     * @return The compact packet.
+     */
+    public byte[] encode(final byte[] packet, final int offset, final int length, final boolean remember)
+    {
+        final Output out = new Output(Integer.MAX_VALUE);
+        encode(new Input(packet, offset, length), out, remember);
+        return out.toByteArray();
+    }
+
+    /**
+     * Turns a compact packet back into the standard format.
+     *
+     * @param data Array holding the compact packet.
+     * @param length Number of bytes of compact packet data.
+     * @param maxLength Most bytes the standard packet may take. Remembered strings let a small compact packet stand for
+     *            a much bigger one, so this has to be checked here rather than on the frame.
+     * @return The packet in the standard format.
+     * @throws IOException If the compact data is corrupt or too big.
+     */
+    public byte[] decode(final byte[] data, final int length, final int maxLength) throws IOException
+    {
+        final Output out = new Output(maxLength);
+        try
+        {
+            decode(new Input(data, 0, length), out);
+        }
+        catch (final IllegalStateException ex)
+        {
+            throw new IOException(ex.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    private void encode(final Input in, final Output out, final boolean remember)
+    {
+        if (in.remaining() < 4)
+        {
+            // not even a type; nothing sensible to do but copy it
+            out.writeVarint(0);
+            out.write(MODE_SHORT);
+            out.write(in.data, in.position, in.remaining());
+            return;
+        }
+
+        final int type = getInt(in.data, in.position);
+        in.position += 4;
+        out.writeVarint(type);
+        final int start = in.position;
+        final int mark = out.length;
+        final int tentativeMark = tentative.size();
+
+        final String schema = PacketManager.getCompactSchema(type);
+        if (schema != null)
+        {
+            out.write(MODE_SCHEMA);
+            try
+            {
+                encodeFields(in, out, schema, 0, schema.length(), new int[3], remember);
+                out.writeVarint(in.remaining());
+                out.write(in.data, in.position, in.remaining());
+                if (tentativeMark == 0)
+                {
+                    // the outermost packet is done, so nothing it added can be taken back now
+                    tentative.clear();
+                }
+                return;
+            }
+            catch (final IOException ex)
+            {
+                // doesn't fit its schema after all; forget anything it taught the table and send it as is
+                while (tentative.size() > tentativeMark)
+                {
+                    sentStrings.remove(tentative.remove(tentative.size() - 1));
+                }
+                in.position = start;
+                out.length = mark;
+            }
+        }
+
+        out.write(MODE_RAW);
+        out.write(in.data, in.position, in.remaining());
+    }
+
+    private void encodeFields(final Input in, final Output out, final String schema, final int begin, final int end,
+        final int[] channels, final boolean remember) throws IOException
+    {
+        for (int i = begin; i < end; i++)
+        {
+            final char field = schema.charAt(i);
+            switch (field)
+            {
+                case 'i':
+                    out.writeVarint(zigzag(in.readInt()));
+                break;
+
+                case 'l':
+                    out.writeVarlong(zigzag(in.readLong()));
+                break;
+
+                case 'x':
+                case 'y':
+                case 'c':
+                {
+                    final int channel = getChannel(field);
+                    final int value = in.readInt();
+                    out.writeVarint(zigzag(value - channels[channel]));
+                    channels[channel] = value;
+                }
+                break;
+
+                case 'z':
+                    out.write(in.read());
+                break;
+
+                case 'f':
+                case 'd':
+                {
+                    final int size = (field == 'f' ? 4 : 8);
+                    in.require(size);
+                    out.write(in.data, in.position, size);
+                    in.position += size;
+                }
+                break;
+
+                case 'u':
+                {
+                    final int len = in.readUnsignedShort();
+                    in.require(len);
+                    out.writeVarint(len);
+                    out.write(in.data, in.position, len);
+                    in.position += len;
+                }
+                break;
+
+                case 's':
+                    encodeString(in, out, remember);
+                break;
+
+                case '*':
+                {
+                    final int close = findClose(schema, i + 1);
+                    final int count = in.readInt();
+                    if (count < 0)
+                    {
+                        throw new IOException("Negative count");
+                    }
+                    out.writeVarint(count);
+                    for (int n = 0; n < count; n++)
+                    {
+                        encodeFields(in, out, schema, i + 2, close, channels, remember);
+                    }
+                    i = close;
+                }
+                break;
+
+                case '?':
+                {
+                    final int close = findClose(schema, i + 1);
+                    final int flag = in.read();
+                    out.write(flag);
+                    if (flag != 0)
+                    {
+                        encodeFields(in, out, schema, i + 2, close, channels, remember);
+                    }
+                    i = close;
+                }
+                break;
+
+                case 'p':
+                {
+                    final int len = in.readInt();
+                    in.require(len);
+                    final Output inner = new Output(out.limit - out.length);
+                    encode(new Input(in.data, in.position, len), inner, remember);
+                    in.position += len;
+                    out.writeVarint(inner.length);
+                    out.write(inner.data, 0, inner.length);
+                }
+                break;
+
+                default:
+                    throw new IllegalArgumentException("Bad schema: " + schema);
+            }
+        }
+    }
+
+    private void encodeString(final Input in, final Output out, final boolean remember) throws IOException
+    {
+        final int len = in.readUnsignedShort();
+        in.require(len);
+        final String key = toKey(in.data, in.position, len);
+        final Integer index = (Integer)sentStrings.get(key);
+        if (index != null)
+        {
+            out.writeVarint(TABLE_BASE + index.intValue());
+        }
+        else
+        {
+            if (remember && (len <= MAX_TABLE_STRING) && (sentStrings.size() < MAX_TABLE_SIZE))
+            {
+                sentStrings.put(key, new Integer(sentStrings.size()));
+                tentative.add(key);
+                out.writeVarint(STRING_REMEMBERED);
+            }
+            else
+            {
+                out.writeVarint(STRING_LITERAL);
+            }
+            out.writeVarint(len);
+            out.write(in.data, in.position, len);
+        }
+        in.position += len;
+    }
+
+    private void decode(final Input in, final Output out) throws IOException
+    {
+        final int type = in.readVarint();
+        final int mode = in.read();
+        if (mode != MODE_SHORT)
+        {
+            out.writeInt(type);
+        }
+
+        if ((mode == MODE_RAW) || (mode == MODE_SHORT))
+        {
+            out.write(in.data, in.position, in.remaining());
+            in.position = in.end;
+            return;
+        }
+
+        final String schema = PacketManager.getCompactSchema(type);
+        if ((mode != MODE_SCHEMA) || (schema == null))
+        {
+            throw new IOException("Unknown compact encoding " + mode + " for packet type " + type);
+        }
+
+        decodeFields(in, out, schema, 0, schema.length(), new int[3]);
+        final int tail = in.readVarint();
+        in.require(tail);
+        out.write(in.data, in.position, tail);
+        in.position += tail;
+    }
+
+    private void decodeFields(final Input in, final Output out, final String schema, final int begin, final int end,
+        final int[] channels) throws IOException
+    {
+        for (int i = begin; i < end; i++)
+        {
+            final char field = schema.charAt(i);
+            switch (field)
+            {
+                case 'i':
+                    out.writeInt(unzigzag(in.readVarint()));
+                break;
+
+                case 'l':
+                    out.writeLong(unzigzag(in.readVarlong()));
+                break;
+
+                case 'x':
+                case 'y':
+                case 'c':
+                {
+                    final int channel = getChannel(field);
+                    channels[channel] += unzigzag(in.readVarint());
+                    out.writeInt(channels[channel]);
+                }
+                break;
+
+                case 'z':
+                    out.write(in.read());
+                break;
+
+                case 'f':
+                case 'd':
+                {
+                    final int size = (field == 'f' ? 4 : 8);
+                    in.require(size);
+                    out.write(in.data, in.position, size);
+                    in.position += size;
+                }
+                break;
+
+                case 'u':
+                {
+                    final int len = in.readVarint();
+                    in.require(len);
+                    writeUtf(out, in.data, in.position, len);
+                    in.position += len;
+                }
+                break;
+
+                case 's':
+                    decodeString(in, out);
+                break;
+
+                case '*':
+                {
+                    final int close = findClose(schema, i + 1);
+                    final int count = in.readVarint();
+                    if (count < 0)
+                    {
+                        throw new IOException("Negative count");
+                    }
+                    out.writeInt(count);
+                    for (int n = 0; n < count; n++)
+                    {
+                        decodeFields(in, out, schema, i + 2, close, channels);
+                    }
+                    i = close;
+                }
+                break;
+
+                case '?':
+                {
+                    final int close = findClose(schema, i + 1);
+                    final int flag = in.read();
+                    out.write(flag);
+                    if (flag != 0)
+                    {
+                        decodeFields(in, out, schema, i + 2, close, channels);
+                    }
+                    i = close;
+                }
+                break;
+
+                case 'p':
+                {
+                    final int len = in.readVarint();
+                    in.require(len);
+                    final Output inner = new Output(out.limit - out.length);
+                    decode(new Input(in.data, in.position, len), inner);
+                    in.position += len;
+                    out.writeInt(inner.length);
+                    out.write(inner.data, 0, inner.length);
+                }
+                break;
+
+                default:
+                    throw new IllegalArgumentException("Bad schema: " + schema);
+            }
+        }
+    }
+
+    private void decodeString(final Input in, final Output out) throws IOException
+    {
+        final int ref = in.readVarint();
+        if (ref >= TABLE_BASE)
+        {
+            final int index = ref - TABLE_BASE;
+            if (index >= receivedStrings.size())
+            {
+                throw new IOException("Unknown string " + index);
+            }
+            final byte[] string = (byte[])receivedStrings.get(index);
+            writeUtf(out, string, 0, string.length);
+            return;
+        }
+
+        final int len = in.readVarint();
+        in.require(len);
+        if (ref == STRING_REMEMBERED)
+        {
+            final byte[] string = new byte[len];
+            System.arraycopy(in.data, in.position, string, 0, len);
+            receivedStrings.add(string);
+        }
+        writeUtf(out, in.data, in.position, len);
+        in.position += len;
+    }
+
+    private static void writeUtf(final Output out, final byte[] src, final int offset, final int len)
+        throws IOException
+    {
+        if (len > 0xFFFF)
+        {
+            throw new IOException("String too long");
+        }
+        out.write(len >>> 8);
+        out.write(len);
+        out.write(src, offset, len);
+    }
+
+    private static int getInt(final byte[] data, final int offset)
+    {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    private static int findClose(final String schema, final int open)
+    {
+        int depth = 0;
+        for (int i = open; i < schema.length(); i++)
+        {
+            final char c = schema.charAt(i);
+            if (c == '(')
+            {
+                depth++;
+            }
+            else if ((c == ')') && (--depth == 0))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Bad schema: " + schema);
+    }
+
+    private static int getChannel(final char field)
+    {
+        switch (field)
+        {
+            case 'x':
+                return CHANNEL_X;
+            case 'y':
+                return CHANNEL_Y;
+            default:
+                return CHANNEL_COLOR;
+        }
+    }
+
+    private static String toKey(final byte[] data, final int offset, final int len)
+    {
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; i++)
+        {
+            chars[i] = (char)(data[offset + i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    private static int zigzag(final int v)
+    {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static long zigzag(final long v)
+    {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int unzigzag(final int v)
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long unzigzag(final long v)
+    {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Compares the compact format with the standard one on saved maps. Each file is treated as a session sent to one new
+     * connection: every packet in it is encoded by a single codec, decoded again by another and checked against the
+     * original.
+     *
+     * Usage: CompactCodec file.grm [file.grm ...]
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length == 0)
+        {
+            System.err.println("Usage: CompactCodec file.grm [file.grm ...]");
+            return;
+        }
+
+        for (int f = 0; f < args.length; f++)
+        {
+            final List packets = readSaveFile(new File(args[f]));
+            long standardBytes = 0;
+            long compactBytes = 0;
+            long encodeTime = Long.MAX_VALUE;
+            long decodeTime = Long.MAX_VALUE;
+            int mismatches = 0;
+            int tableSize = 0;
+
+            // the first passes mostly time the JIT, so report the best
+            for (int pass = 0; pass < BENCHMARK_PASSES; pass++)
+            {
+                final CompactCodec sender = new CompactCodec();
+                final CompactCodec receiver = new CompactCodec();
+                final byte[][] encoded = new byte[packets.size()][];
+
+                standardBytes = 0;
+                compactBytes = 0;
+                final long encodeStart = System.nanoTime();
+                for (int i = 0; i < encoded.length; i++)
+                {
+                    final byte[] packet = (byte[])packets.get(i);
+                    encoded[i] = sender.encode(packet, 0, packet.length, true);
+                    standardBytes += packet.length + 4;
+                    compactBytes += encoded[i].length + 4;
+                }
+                encodeTime = Math.min(encodeTime, System.nanoTime() - encodeStart);
+
+                mismatches = 0;
+                final long decodeStart = System.nanoTime();
+                for (int i = 0; i < encoded.length; i++)
+                {
+                    final byte[] packet = receiver.decode(encoded[i], encoded[i].length, Integer.MAX_VALUE);
+                    if (!Arrays.equals(packet, (byte[])packets.get(i)))
+                    {
+                        mismatches++;
+                    }
+                }
+                decodeTime = Math.min(decodeTime, System.nanoTime() - decodeStart);
+                tableSize = sender.sentStrings.size();
+            }
+
+            System.out.println(args[f] + ": " + packets.size() + " packets, " + standardBytes + " bytes standard, "
+                + compactBytes + " bytes compact (" + (standardBytes == 0 ? 0 : compactBytes * 100 / standardBytes)
+                + "%), encode " + encodeTime / 1000 + " us, decode " + decodeTime / 1000 + " us, " + mismatches
+                + " mismatches, " + tableSize + " strings in table");
+        }
+    }
+
+    private static List readSaveFile(final File file) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            in.readInt(); // version
+            final byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+
+            final List retVal = new ArrayList();
+            final DataInputStream walker = new DataInputStream(new ByteArrayInputStream(data));
+            while (walker.available() >= 4)
+            {
+                final byte[] packet = new byte[walker.readInt()];
+                walker.readFully(packet);
+                retVal.add(packet);
+            }
+            return retVal;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
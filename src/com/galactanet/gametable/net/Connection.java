@@ -5,15 +5,21 @@
 
 package com.galactanet.gametable.net;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import com.galactanet.gametable.Log;
 import com.galactanet.gametable.PacketManager;
@@ -26,6 +32,24 @@ import com.galactanet.gametable.PacketManager;
  * receive buffers will always be kept "flipped" such that nothing need be done for the application to read or write to
  * the appropriate buffers.
  * 
+ * Peers tell each other what optional features they support with a capability mask exchanged at login; see
+ * PacketManager.makePlayerPacket() and makeCastPacket(). Deflated frames are always understood when reading, but only
+ * sent once the peer has said it can read them.
+ * 
+ * What a peer can make us hold in memory is bounded. A frame bigger than the maximum frame size is refused with a
+ * PACKET_REJECT and the connection dropped, so the receive buffer never grows past that size. Received packets waiting
+ * for the application count against a receive budget; once it is used up we stop reading from the socket until the
+ * application catches up, leaving the peer's data in the kernel buffers and, eventually, on the peer.
+ * 
+ * A logged in connection given a session token can be resumed if it is lost. Instead of being dropped it is suspended:
+ * what is sent to it waits in its send queue, and the frames it last wrote are kept in a ReplayBuffer. If the peer
+ * comes back on a new connection within the grace period, saying how many frames it had read, the new connection takes
+ * over and sends the frames it missed; see NetworkThread.resume().
+ * 
+ * Both sides ping every PING_INTERVAL, so a live peer never goes long without sending something. A connection that
+ * has read nothing for the read timeout, or has had frames waiting to be written without any of them going out for the
+ * write timeout, is taken to be dead and evicted, as a half-open connection is never reported closed by the socket.
+ * 
  * @author iffy
  */
 public class Connection
@@ -36,17 +60,174 @@ public class Connection
         public int FLUSHING           = 3;
         public int LOGGED_IN          = 2;
         public int PENDING_CONNECTION = 0;
+        public int SPECTATING         = 4;
+        public int SUSPENDED          = 5;
+        public int CLOSED             = 6;
     }
 
+    /**
+     * Capability bit: this side can read deflated frames.
+     */
+    public static final int     CAPABILITY_DEFLATE  = 0x0001;
+
+    /**
+     * Capability bit: this side can receive pog images as a chunked stream.
+     */
+    public static final int     CAPABILITY_CHUNKED  = 0x0002;
+
+    /**
+     * Capability bit: this side can load the map from a single PACKET_SNAPSHOT when joining.
+     */
+    public static final int     CAPABILITY_SNAPSHOT = 0x0004;
+
+    /**
+     * Capability bit: this side can unpack several packets sent together as a PACKET_BATCH.
+     */
+    public static final int     CAPABILITY_BATCH    = 0x0008;
+
+    /**
+     * Capability bit: this side can read packets in version 1 of CompactCodec's format.
+     */
+    public static final int     CAPABILITY_COMPACT  = 0x0010;
+
+    /**
+     * Capability bit: this side can show pogs others are dragging from PACKET_DRAGPOG.
+     */
+    public static final int     CAPABILITY_DRAG     = 0x0020;
+
+    /**
+     * Capability bit: this side reports the part of the map it can see in PACKET_VIEW, and as host holds back changes
+     * from players who can't see them.
+     */
+    public static final int     CAPABILITY_VIEW     = 0x0040;
+
+    /**
+     * Capability bit: this side can pick up a lost connection where it left off with PACKET_RESUME.
+     */
+    public static final int     CAPABILITY_RESUME   = 0x0080;
+
+    /**
+     * The capabilities this build of Gametable supports.
+     */
+    public static final int     LOCAL_CAPABILITIES  = CAPABILITY_DEFLATE | CAPABILITY_CHUNKED | CAPABILITY_SNAPSHOT
+                                                        | CAPABILITY_BATCH | CAPABILITY_COMPACT | CAPABILITY_DRAG
+                                                        | CAPABILITY_VIEW | CAPABILITY_RESUME;
+
+    /**
+     * Packets at least this big are deflated before sending, if the peer can read them.
+     */
+    public static final int     DEFLATE_THRESHOLD   = 512;
+
     private static final int    DEFAULT_BUFFER_SIZE = 1024;
 
+    /**
+     * Default for the largest frame a peer may send, in bytes.
+     */
+    public static final int     DEFAULT_MAX_FRAME   = 16 * 1024 * 1024;
+
+    /**
+     * Reason sent in the PACKET_REJECT that refuses a frame over the limit.
+     */
+    public static final int     REJECT_TOO_LARGE    = 2;
+
+    /**
+     * Default for the number of bytes of received packets that may wait for the application before we stop reading.
+     */
+    public static final int     DEFAULT_BUDGET      = 32 * 1024 * 1024;
+
+    /**
+     * A receive buffer grown past this size is given back once it empties.
+     */
+    private static final int    SHRINK_THRESHOLD    = 64 * 1024;
+
+    /**
+     * Default for the bytes of written frames kept for resuming a connection.
+     */
+    public static final int     DEFAULT_REPLAY      = 1024 * 1024;
+
+    /**
+     * Default for the milliseconds a lost connection waits to be resumed.
+     */
+    public static final int     DEFAULT_GRACE       = 60 * 1000;
+
+    /**
+     * Default for the milliseconds a connection may go without reading anything before it is evicted.
+     */
+    public static final int     DEFAULT_IDLE        = 30 * 1000;
+
+    /**
+     * Default for the milliseconds a connection may have frames waiting without writing any before it is evicted.
+     */
+    public static final int     DEFAULT_STALL       = 30 * 1000;
+
+    private static volatile int g_maxFrameSize      = DEFAULT_MAX_FRAME;
+    private static volatile int g_receiveBudget     = DEFAULT_BUDGET;
+    private static volatile int g_replayLimit       = DEFAULT_REPLAY;
+    private static volatile int g_resumeGrace       = DEFAULT_GRACE;
+    private static volatile int g_readTimeout       = DEFAULT_IDLE;
+    private static volatile int g_writeTimeout      = DEFAULT_STALL;
+
+    /**
+     * Makes session tokens, which must not be guessable since they let whoever has one take over a player's place.
+     */
+    private static final SecureRandom g_tokens      = new SecureRandom();
+
+    /**
+     * One past the highest packet type tracked individually in the compression statistics.
+     */
+    private static final int    MAX_STAT_TYPE       = 128;
+
+    /**
+     * Most frames handed to a single gathering write.
+     */
+    private static final int    MAX_GATHER          = 16;
+
+    private final long[]        bytesSaved          = new long[MAX_STAT_TYPE + 1];
     private final SocketChannel channel;
+    private final CompactCodec  codec               = new CompactCodec();
+    private final Deflater      deflater            = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * Frames read, not counting PACKET_RESUMEs; see ReplayBuffer.
+     */
+    private final AtomicLong    framesReceived      = new AtomicLong(0);
+    private final Inflater      inflater            = new Inflater();
     private SelectionKey        key;
+
+    /**
+     * When something was last read, or reading last started again after a pause, by System.currentTimeMillis().
+     */
+    private volatile long       lastReadAt;
+
+    /**
+     * When a frame last went out, or one was queued with nothing else waiting.
+     */
+    private long                lastWriteAt;
+    private final Latency       latency             = new Latency();
+    private final AtomicBoolean writeMarked         = new AtomicBoolean(false);
     private final List          queue               = new LinkedList();
+    private long                queuedBytes         = 0;
+    private final AtomicBoolean readPaused          = new AtomicBoolean(false);
+
+    /**
+     * True once a frame over the limit has been refused; nothing more is read. Network thread only.
+     */
+    private boolean             rejected            = false;
     private ByteBuffer          receiveBuffer;
-    private ByteBuffer          sendBuffer;
-    private int                 state               = State.PENDING_CONNECTION;
+    private volatile int        receiveCapacity     = DEFAULT_BUFFER_SIZE;
+    private final ReplayBuffer  replay              = new ReplayBuffer();
+    private final ByteBuffer[]  gatherBuffers       = new ByteBuffer[MAX_GATHER];
+    private final OutboundQueue sendQueue           = new OutboundQueue();
+
+    /**
+     * Token the peer gives to resume this connection, or 0 if it can't be resumed.
+     */
+    private volatile long       sessionToken        = 0;
+    private volatile int        peerCapabilities    = 0;
+    private volatile int        state               = State.PENDING_CONNECTION;
+    private long                suspendedAt;
     private NetworkThread       thread;
+    private SelectorThread      selectorThread;
 
     /**
      * Incoming Connection Constructor
@@ -54,8 +235,9 @@ public class Connection
     public Connection(final SocketChannel chan) throws IOException
     {
         channel = chan;
+        // packets are already gathered into one write per tick; holding them back for more only adds latency
+        channel.socket().setTcpNoDelay(true);
         channel.configureBlocking(false);
-        sendBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
         receiveBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
     }
 
@@ -69,24 +251,39 @@ public class Connection
         {
             markConnected();
         }
+        channel.socket().setTcpNoDelay(true);
         channel.configureBlocking(false);
-        sendBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
         receiveBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
     }
 
     /**
-     * Closes this connection.
+     * Closes this connection. A connection closed on purpose is never resumed.
      */
     public void close()
     {
+        if (state == State.SUSPENDED)
+        {
+            // given up on
+            synchronized (sendQueue)
+            {
+                sendQueue.clear();
+                replay.clear();
+                state = State.CLOSED;
+            }
+            return;
+        }
+
+        sessionToken = 0;
+
+        // anything still collected for this tick goes out before the connection does
+        flushBatch();
+
         boolean term = false;
-        synchronized (sendBuffer)
+        synchronized (sendQueue)
         {
-            sendBuffer.flip();
-            if (sendBuffer.hasRemaining())
+            if (!sendQueue.isEmpty())
             {
                 state = State.FLUSHING;
-                sendBuffer.compact();
             }
             else
             {
@@ -100,6 +297,15 @@ public class Connection
         }
     }
 
+    /**
+     * Closes this connection after it has failed, straight away since nothing more can be sent on it. One that can be
+     * resumed keeps what it was to send; see NetworkThread.resume().
+     */
+    void lost()
+    {
+        terminate();
+    }
+
     /**
      * @return Returns the channel.
      */
@@ -128,220 +334,1048 @@ public class Connection
     }
 
     /**
-     * @return True if this connection is connected.
+     * @return The largest frame accepted from a peer, in bytes.
      */
-    public boolean isConnected()
+    public static int getMaxFrameSize()
     {
-        // System.out.println(this + " connected: " + channel.socket().isConnected());
-        return channel.socket().isConnected() && (thread != null);
+        return g_maxFrameSize;
     }
 
-    public boolean isDead()
+    /**
+     * Sets the largest frame accepted from a peer. The receive budget is raised to match if need be, since a frame has
+     * to fit in it.
+     * 
+     * @param size Size in bytes.
+     */
+    public static void setMaxFrameSize(final int size)
     {
-        // System.out.println(this + " connected2: " + channel.socket().isConnected());
-        return (!channel.socket().isConnected() && (state != State.PENDING_CONNECTION));
+        g_maxFrameSize = size;
+        if (g_receiveBudget < size)
+        {
+            g_receiveBudget = size;
+        }
     }
 
     /**
-     * @return True if this connection is logged in.
+     * @return The number of bytes of received packets that may wait for the application before we stop reading.
      */
-    public boolean isLoggedIn()
+    public static int getReceiveBudget()
     {
-        return isConnected() && (state == State.LOGGED_IN);
+        return g_receiveBudget;
     }
 
-    void markConnected()
+    /**
+     * @param budget The number of bytes of received packets that may wait for the application before we stop reading.
+     *            Never less than the maximum frame size.
+     */
+    public static void setReceiveBudget(final int budget)
     {
-        if (state == State.PENDING_CONNECTION)
-        {
-            state = State.CONNECTED;
-        }
+        g_receiveBudget = Math.max(budget, g_maxFrameSize);
     }
 
-    public void markLoggedIn()
+    /**
+     * @return The most bytes of written frames kept for resuming a connection.
+     */
+    public static int getReplayLimit()
     {
-        if (state == State.CONNECTED)
-        {
-            state = State.LOGGED_IN;
-        }
+        return g_replayLimit;
     }
 
     /**
-     * Reads as much as it can from the net without blocking.
-     * 
-     * @throws IOException
+     * @param limit The most bytes of written frames to keep for resuming a connection. A suspended connection is given
+     *            up on once this much is waiting to be sent to it.
      */
-    void readFromNet() throws IOException
+    public static void setReplayLimit(final int limit)
     {
-        synchronized (receiveBuffer)
-        {
-            while (true)
-            {
-                if (receiveBuffer.limit() == receiveBuffer.position())
-                {
-                    final ByteBuffer newBuffer = ByteBuffer.allocateDirect(receiveBuffer.capacity() * 2);
-                    receiveBuffer.flip();
-                    newBuffer.put(receiveBuffer);
-                    receiveBuffer = newBuffer;
-                }
+        g_replayLimit = limit;
+    }
 
-                final int count = channel.read(receiveBuffer);
-                if (count < 1)
-                {
-                    break;
-                }
-            }
-        }
+    /**
+     * @return Milliseconds a lost connection waits to be resumed.
+     */
+    public static int getResumeGrace()
+    {
+        return g_resumeGrace;
+    }
 
-        while (true)
-        {
-            final byte[] packet = readPacket();
-            if (packet == null)
-            {
-                break;
-            }
-            Log.log(Log.NET, "Read: " + PacketManager.getPacketName(packet) + ", length = " + packet.length);
+    /**
+     * @param ms Milliseconds a lost connection is to wait to be resumed.
+     */
+    public static void setResumeGrace(final int ms)
+    {
+        g_resumeGrace = ms;
+    }
 
-            queue.add(packet);
-        }
+    /**
+     * @return Milliseconds a connection may go without reading anything before it is evicted, or 0 for no limit.
+     */
+    public static int getReadTimeout()
+    {
+        return g_readTimeout;
     }
 
     /**
-     * @return
+     * @param ms Milliseconds a connection may go without reading anything before it is evicted, or 0 for no limit.
+     *            Should be several times GametableFrame.PING_INTERVAL.
      */
-    private byte[] readPacket()
+    public static void setReadTimeout(final int ms)
     {
-        synchronized (receiveBuffer)
-        {
-            receiveBuffer.flip();
-            if (receiveBuffer.remaining() < 4)
-            {
-                receiveBuffer.compact();
-                return null;
-            }
+        g_readTimeout = ms;
+    }
 
-            final int size = receiveBuffer.getInt(0);
-            if (receiveBuffer.remaining() < size + 4)
-            {
-                receiveBuffer.compact();
-                return null;
-            }
+    /**
+     * @return Milliseconds a connection may have frames waiting without writing any before it is evicted, or 0 for no
+     *         limit.
+     */
+    public static int getWriteTimeout()
+    {
+        return g_writeTimeout;
+    }
 
-            final byte[] retVal = new byte[size];
-            receiveBuffer.getInt();
-            receiveBuffer.get(retVal);
-            receiveBuffer.compact();
+    /**
+     * @param ms Milliseconds a connection may have frames waiting without writing any before it is evicted, or 0 for
+     *            no limit.
+     */
+    public static void setWriteTimeout(final int ms)
+    {
+        g_writeTimeout = ms;
+    }
 
-            return retVal;
-        }
+    /**
+     * @return The size of the direct buffer this connection reads into.
+     */
+    public int getReceiveBufferSize()
+    {
+        return receiveCapacity;
     }
 
     /**
-     * @return
+     * @return The number of bytes of received packets waiting for the application.
      */
-    public byte[] receivePacket()
+    public long getQueuedBytes()
     {
         synchronized (queue)
         {
-            if (!hasPackets())
-            {
-                return null;
-            }
+            return queuedBytes;
+        }
+    }
 
-            return (byte[])queue.remove(0);
+    /**
+     * @return The number of bytes waiting to be written to the peer.
+     */
+    public long getPendingBytes()
+    {
+        synchronized (sendQueue)
+        {
+            return sendQueue.getPendingBytes();
         }
     }
 
-    void register(final NetworkThread t, final int ops) throws ClosedChannelException
+    /**
+     * @return True if reading has been stopped because the receive budget is used up.
+     */
+    public boolean isReadPaused()
     {
-        thread = t;
-        key = channel.register(thread.getSelector(), ops, this);
-        if (isConnected())
+        return readPaused.get();
+    }
+
+    /**
+     * @return The number of queued packets that were dropped in favor of a newer packet with the same key.
+     */
+    public int getCoalescedCount()
+    {
+        synchronized (sendQueue)
         {
-            markConnected();
-            key.interestOps(ops & ~SelectionKey.OP_CONNECT);
+            return sendQueue.getCoalescedCount();
         }
     }
 
     /**
-     * @param packet Packet data to send.
+     * @param type Packet type.
+     * @return The number of bytes deflating and compact encoding have kept off the wire for packets of the given type.
      */
-    public void sendPacket(final byte[] packet)
+    public long getBytesSaved(final int type)
     {
-        final int size = packet.length + 4;
-        Log.log(Log.NET, "Sending : " + PacketManager.getPacketName(packet) + ", length = " + packet.length);
-        synchronized (sendBuffer)
+        synchronized (bytesSaved)
         {
-            if (sendBuffer.limit() - sendBuffer.position() <= size)
-            {
-                int newCapacity = sendBuffer.capacity();
-                while (newCapacity - sendBuffer.position() <= size)
-                {
-                    newCapacity *= 2;
-                }
-                final ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
-                sendBuffer.flip();
-                newBuffer.put(sendBuffer);
-                sendBuffer = newBuffer;
-            }
+            return bytesSaved[getStatIndex(type)];
+        }
+    }
 
-            try
-            {
-                sendBuffer.putInt(packet.length);
-                sendBuffer.put(packet);
-            }
-            catch (final BufferOverflowException boe)
+    /**
+     * @return The number of bytes deflating and compact encoding have kept off the wire for all packets.
+     */
+    public long getTotalBytesSaved()
+    {
+        long retVal = 0;
+        synchronized (bytesSaved)
+        {
+            for (int i = 0; i < bytesSaved.length; i++)
             {
-                Log.log(Log.NET, boe);
+                retVal += bytesSaved[i];
             }
-
-            thread.markForWriting(this);
         }
+        return retVal;
     }
 
-    private void terminate()
+    private static int getStatIndex(final int type)
     {
-        Log.log(Log.NET, "Connection.terminate();");
-        try
-        {
-            key.cancel();
-            channel.socket().close();
-            channel.close();
-        }
-        catch (final IOException e)
+        if ((type < 0) || (type >= MAX_STAT_TYPE))
         {
-            Log.log(Log.NET, e);
+            return MAX_STAT_TYPE;
         }
+        return type;
     }
 
     /**
-     * Writes as much to the net as it can without blocking.
-     * 
-     * @throws IOException
+     * @return What the pings on this connection have measured.
      */
-    void writeToNet() throws IOException
+    public Latency getLatency()
     {
-        synchronized (sendBuffer)
-        {
-            sendBuffer.flip();
-            while (sendBuffer.hasRemaining())
-            {
-                if (channel.write(sendBuffer) < 1)
-                {
-                    break;
-                }
-            }
+        return latency;
+    }
 
-            if (!sendBuffer.hasRemaining())
-            {
-                key.interestOps(SelectionKey.OP_READ);
-                if (state == State.FLUSHING)
-                {
-                    terminate();
-                }
-            }
+    /**
+     * @param capability Capability bit to check.
+     * @return True if both this side and the peer support the given capability.
+     */
+    public boolean hasCapability(final int capability)
+    {
+        return (LOCAL_CAPABILITIES & peerCapabilities & capability) != 0;
+    }
+
+    /**
+     * Notes what the peer has said it supports.
+     * 
+     * @param capabilities Capability mask sent by the peer.
+     */
+    public void setPeerCapabilities(final int capabilities)
+    {
+        peerCapabilities = capabilities;
+    }
 
-            sendBuffer.compact();
+    /**
+     * @return True if this connection is connected.
+     */
+    public boolean isConnected()
+    {
+        // System.out.println(this + " connected: " + channel.socket().isConnected());
+        return channel.socket().isConnected() && (thread != null);
+    }
+
+    public boolean isDead()
+    {
+        // System.out.println(this + " connected2: " + channel.socket().isConnected());
+        return (!channel.socket().isConnected() && (state != State.PENDING_CONNECTION));
+    }
+
+    /**
+     * @return True if this connection is logged in.
+     */
+    public boolean isLoggedIn()
+    {
+        return isConnected() && (state == State.LOGGED_IN);
+    }
+
+    /**
+     * Notes that a write interest command has been queued for this connection.
+     * 
+     * @return False if one was already queued and not yet run.
+     */
+    boolean markForWriting()
+    {
+        return writeMarked.compareAndSet(false, true);
+    }
+
+    /**
+     * Notes that the queued write interest command has been run.
+     */
+    void clearWriteMarked()
+    {
+        writeMarked.set(false);
+    }
+
+    void markConnected()
+    {
+        if (state == State.PENDING_CONNECTION)
+        {
+            state = State.CONNECTED;
+        }
+    }
+
+    public void markLoggedIn()
+    {
+        if (state == State.CONNECTED)
+        {
+            state = State.LOGGED_IN;
+        }
+    }
+
+    /**
+     * Marks this connection as a spectator's. Spectators never count as logged in, so nothing broadcast to the players
+     * reaches them; see NetworkThread.sendToSpectators().
+     */
+    public void markSpectating()
+    {
+        if (state == State.CONNECTED)
+        {
+            state = State.SPECTATING;
+        }
+    }
+
+    /**
+     * @return True if this connection is a spectator's.
+     */
+    public boolean isSpectating()
+    {
+        return isConnected() && (state == State.SPECTATING);
+    }
+
+    /**
+     * @return True if this connection is to get what is broadcast to the players: it is logged in, or suspended
+     *         waiting to be resumed.
+     */
+    boolean receivesBroadcasts()
+    {
+        return isLoggedIn() || (state == State.SUSPENDED);
+    }
+
+    /**
+     * @return The token the peer gives to resume this connection, or 0 if it can't be resumed.
+     */
+    public long getSessionToken()
+    {
+        return sessionToken;
+    }
+
+    /**
+     * Lets this connection be resumed if it is lost, once both sides have agreed to CAPABILITY_RESUME.
+     * 
+     * @param token Token the peer is to give to resume it; not 0.
+     */
+    public void setSessionToken(final long token)
+    {
+        sessionToken = token;
+    }
+
+    /**
+     * @return A new session token, never 0.
+     */
+    public static long newSessionToken()
+    {
+        long retVal = 0;
+        while (retVal == 0)
+        {
+            retVal = g_tokens.nextLong();
+        }
+        return retVal;
+    }
+
+    /**
+     * @return True if this connection is to be suspended rather than dropped if it is lost.
+     */
+    public boolean isResumable()
+    {
+        return (sessionToken != 0) && hasCapability(CAPABILITY_RESUME)
+            && ((state == State.LOGGED_IN) || (state == State.SUSPENDED));
+    }
+
+    /**
+     * @return True if this connection has been lost and is waiting to be resumed.
+     */
+    public boolean isSuspended()
+    {
+        return (state == State.SUSPENDED);
+    }
+
+    /**
+     * Marks a lost connection as waiting to be resumed.
+     */
+    void suspend()
+    {
+        synchronized (sendQueue)
+        {
+            state = State.SUSPENDED;
+            suspendedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return True if this suspended connection has waited too long, or has too much waiting to be sent to it.
+     */
+    boolean isResumeExpired(final long now)
+    {
+        synchronized (sendQueue)
+        {
+            return (now - suspendedAt > g_resumeGrace) || (sendQueue.getPendingBytes() > g_replayLimit);
+        }
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return True if this connection has read nothing from the peer for longer than the read timeout. Time spent with
+     *         reading paused doesn't count.
+     */
+    boolean isReadIdle(final long now)
+    {
+        return (g_readTimeout > 0) && isConnected() && !isSuspended() && !readPaused.get()
+            && (now - lastReadAt > g_readTimeout);
+    }
+
+    /**
+     * @param now The current time in milliseconds.
+     * @return True if this connection has had frames waiting to be written, without writing any, for longer than the
+     *         write timeout.
+     */
+    boolean isWriteStalled(final long now)
+    {
+        if ((g_writeTimeout <= 0) || !isConnected() || isSuspended())
+        {
+            return false;
+        }
+
+        synchronized (sendQueue)
+        {
+            return !sendQueue.isEmpty() && (now - lastWriteAt > g_writeTimeout);
+        }
+    }
+
+    /**
+     * @return The number of frames read from the peer, not counting PACKET_RESUMEs.
+     */
+    public long getFramesReceived()
+    {
+        return framesReceived.get();
+    }
+
+    /**
+     * @param peerReceived The number of frames the peer says it read.
+     * @return True if every frame written after those can still be sent again.
+     */
+    public boolean canReplayFrom(final long peerReceived)
+    {
+        synchronized (sendQueue)
+        {
+            return replay.canReplayFrom(peerReceived);
+        }
+    }
+
+    /**
+     * Takes over from a suspended connection to the same peer: queues the frames the peer didn't get and whatever was
+     * waiting to be sent, then logs in. Nothing has been read from the peer on this connection but PACKET_RESUMEs.
+     * 
+     * @param old The suspended connection, which is closed.
+     * @param peerReceived The number of frames the peer read from the old connection; old.canReplayFrom() must be true
+     *            of it.
+     * @param reply Packet to send before those frames, or null.
+     */
+    void resumeFrom(final Connection old, final long peerReceived, final byte[] reply)
+    {
+        final List frames;
+        synchronized (old.sendQueue)
+        {
+            frames = old.replay.getFramesAfter(peerReceived);
+            frames.addAll(old.sendQueue.takeOriginals());
+            old.replay.clear();
+            old.state = State.CLOSED;
+        }
+
+        sessionToken = old.sessionToken;
+        peerCapabilities = old.peerCapabilities;
+        framesReceived.addAndGet(old.framesReceived.get());
+        if (reply != null)
+        {
+            queuePacket(reply);
+        }
+
+        synchronized (sendQueue)
+        {
+            replay.setSequence(peerReceived);
+        }
+        for (int i = 0; i < frames.size(); i++)
+        {
+            final OutboundFrame frame = (OutboundFrame)frames.get(i);
+            sendFrame(frame);
+            frame.release();
+        }
+
+        Log.log(Log.NET, "Resumed: " + frames.size() + " frames sent again");
+        markLoggedIn();
+    }
+
+    /**
+     * Reads as much as it can from the net without blocking, then splits off every complete packet in the receive
+     * buffer in a single pass.
+     * 
+     * @throws IOException
+     */
+    void readFromNet() throws IOException
+    {
+        boolean closed = false;
+        synchronized (receiveBuffer)
+        {
+            while (true)
+            {
+                if (isOverBudget())
+                {
+                    pauseReading();
+                    break;
+                }
+
+                final int count = channel.read(receiveBuffer);
+                if (count < 1)
+                {
+                    closed = (count < 0);
+                    break;
+                }
+                lastReadAt = System.currentTimeMillis();
+
+                if (!receiveBuffer.hasRemaining())
+                {
+                    // full; make room by pulling out what packets we can before reading more
+                    readPackets();
+                    if (rejected || !receiveBuffer.hasRemaining())
+                    {
+                        break;
+                    }
+                }
+            }
+
+            readPackets();
+        }
+
+        if (hasPackets())
+        {
+            thread.packetsArrived();
+        }
+
+        if (closed)
+        {
+            throw new EOFException("Connection closed by peer");
+        }
+    }
+
+    /**
+     * Pulls every complete packet out of the receive buffer and queues it, compacting the buffer once at the end. The
+     * receive buffer is only grown when a single packet is too big to ever fit in it.
+     * 
+     * @throws IOException If a deflated packet is corrupt.
+     */
+    private void readPackets() throws IOException
+    {
+        if (rejected)
+        {
+            return;
+        }
+
+        receiveBuffer.flip();
+        while (receiveBuffer.remaining() >= 4)
+        {
+            final int header = receiveBuffer.getInt(receiveBuffer.position());
+            final int size = header & OutboundFrame.LENGTH_MASK;
+            if (size > g_maxFrameSize)
+            {
+                rejectFrame(size);
+                return;
+            }
+
+            if (receiveBuffer.remaining() < size + 4)
+            {
+                break;
+            }
+
+            receiveBuffer.getInt();
+            Packet packet;
+            if ((header & OutboundFrame.COMPRESSED_FLAG) != 0)
+            {
+                packet = inflatePacket(size);
+                if (packet == null)
+                {
+                    return;
+                }
+            }
+            else
+            {
+                final byte[] data = BufferPool.acquire(size);
+                receiveBuffer.get(data, 0, size);
+                packet = new Packet(data, size, this, true);
+            }
+
+            if ((header & OutboundFrame.COMPACT_FLAG) != 0)
+            {
+                packet = expandPacket(packet);
+            }
+            if (packet.getType() != PacketManager.PACKET_RESUME)
+            {
+                framesReceived.incrementAndGet();
+            }
+            Log.log(Log.NET, "Read: " + PacketManager.getPacketName(packet.getType()) + ", length = " + size);
+
+            synchronized (queue)
+            {
+                queue.add(packet);
+                queuedBytes += packet.getLength();
+            }
+        }
+
+        if (receiveBuffer.remaining() >= 4)
+        {
+            // make sure the packet we stopped on will fit once the buffer is compacted
+            final int needed = (receiveBuffer.getInt(receiveBuffer.position()) & OutboundFrame.LENGTH_MASK) + 4;
+            if (needed > receiveBuffer.capacity())
+            {
+                int newCapacity = receiveBuffer.capacity();
+                while (newCapacity < needed)
+                {
+                    newCapacity *= 2;
+                }
+                newCapacity = Math.min(newCapacity, g_maxFrameSize + 4);
+                Log.log(Log.NET, "Receive buffer grown to " + newCapacity + " bytes");
+                final ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+                newBuffer.put(receiveBuffer);
+                receiveBuffer = newBuffer;
+                receiveCapacity = newCapacity;
+                return;
+            }
+        }
+
+        if (!receiveBuffer.hasRemaining() && (receiveBuffer.capacity() > SHRINK_THRESHOLD))
+        {
+            // that big packet has been dealt with; don't hang on to its buffer
+            receiveBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+            receiveCapacity = DEFAULT_BUFFER_SIZE;
+            return;
+        }
+
+        receiveBuffer.compact();
+    }
+
+    /**
+     * @return True if the packets waiting for the application have used up the receive budget.
+     */
+    private boolean isOverBudget()
+    {
+        synchronized (queue)
+        {
+            return queuedBytes >= g_receiveBudget;
+        }
+    }
+
+    /**
+     * Stops reading until the application has taken enough packets off the queue. Network thread only.
+     */
+    private void pauseReading()
+    {
+        readPaused.set(true);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        Log.log(Log.NET, "Receive budget used up; reading paused");
+
+        // the application may have emptied the queue while we were deciding to stop
+        if (canResumeReading() && readPaused.compareAndSet(true, false))
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Starts reading again after pauseReading(). Network thread only.
+     */
+    void resumeReading()
+    {
+        if (key.isValid())
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private boolean canResumeReading()
+    {
+        synchronized (queue)
+        {
+            return (queuedBytes <= g_receiveBudget / 2) && (state != State.FLUSHING);
+        }
+    }
+
+    /**
+     * Refuses a frame that is too big: tells the peer why, stops reading, and closes the connection once the refusal
+     * has been written. The receive buffer is left empty.
+     * 
+     * @param size Size the peer claimed for the frame.
+     */
+    private void rejectFrame(final int size)
+    {
+        Log.log(Log.NET, "Refused a frame of " + size + " bytes; the limit is " + g_maxFrameSize);
+        rejected = true;
+        readPaused.set(true);
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        receiveBuffer.clear();
+        sendPacket(PacketManager.makeRejectPacket(REJECT_TOO_LARGE));
+        close();
+    }
+
+    /**
+     * Turns a packet received in CompactCodec's format back into the standard format. Network thread only, so that
+     * packets reach the codec in the order they arrived.
+     * 
+     * @param compact The packet as received. It is released.
+     * @return The standard packet.
+     * @throws IOException If the packet is corrupt or would be bigger than the frame limit.
+     */
+    private Packet expandPacket(final Packet compact) throws IOException
+    {
+        try
+        {
+            final byte[] data = codec.decode(compact.getBuffer(), compact.getLength(), g_maxFrameSize);
+            return new Packet(data, data.length, this, false);
+        }
+        finally
+        {
+            compact.release();
+        }
+    }
+
+    /**
+     * Inflates a deflated frame sitting at the receive buffer's position.
+     * 
+     * @param size Length of the frame, not counting the length prefix.
+     * @return The inflated packet, or null if it was refused for being too big.
+     * @throws IOException If the frame is corrupt.
+     */
+    private Packet inflatePacket(final int size) throws IOException
+    {
+        if (size < 4)
+        {
+            throw new IOException("Deflated frame of " + size + " bytes is too short to hold its length");
+        }
+
+        final int packetLength = receiveBuffer.getInt();
+        if ((packetLength < 0) || (packetLength > g_maxFrameSize))
+        {
+            rejectFrame(packetLength);
+            return null;
+        }
+
+        final byte[] deflated = BufferPool.acquire(size - 4);
+        receiveBuffer.get(deflated, 0, size - 4);
+
+        final byte[] data = BufferPool.acquire(packetLength);
+        try
+        {
+            inflater.reset();
+            inflater.setInput(deflated, 0, size - 4);
+            int inflatedLength = 0;
+            while (!inflater.finished() && (inflatedLength < packetLength))
+            {
+                final int count = inflater.inflate(data, inflatedLength, packetLength - inflatedLength);
+                if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                inflatedLength += count;
+            }
+
+            if (inflatedLength != packetLength)
+            {
+                throw new IOException("Deflated packet is " + inflatedLength + " bytes, expected " + packetLength);
+            }
+        }
+        catch (final DataFormatException dfe)
+        {
+            BufferPool.release(data);
+            throw new IOException("Corrupt deflated packet: " + dfe.getMessage());
+        }
+        catch (final IOException ioe)
+        {
+            BufferPool.release(data);
+            throw ioe;
+        }
+        finally
+        {
+            BufferPool.release(deflated);
+        }
+
+        return new Packet(data, packetLength, this, true);
+    }
+
+    /**
+     * @return The next packet received, or null. The caller is responsible for releasing it.
+     */
+    public Packet receivePacket()
+    {
+        final Packet retVal;
+        synchronized (queue)
+        {
+            if (!hasPackets())
+            {
+                return null;
+            }
+
+            retVal = (Packet)queue.remove(0);
+            queuedBytes -= retVal.getLength();
+        }
+
+        if (readPaused.get() && canResumeReading() && readPaused.compareAndSet(true, false))
+        {
+            lastReadAt = System.currentTimeMillis();
+            thread.resumeReading(this);
+        }
+        return retVal;
+    }
+
+    /**
+     * Registers this connection with the selector of the thread that is to read and write for it. Called on that
+     * thread.
+     * 
+     * @param t The network thread the connection belongs to.
+     * @param s The thread to read and write for the connection: the network thread itself, or one of its workers.
+     * @param ops Interest ops to register for.
+     * @throws ClosedChannelException
+     */
+    void register(final NetworkThread t, final SelectorThread s, final int ops) throws ClosedChannelException
+    {
+        thread = t;
+        selectorThread = s;
+        lastReadAt = System.currentTimeMillis();
+        key = channel.register(s.getSelector(), ops, this);
+        if (isConnected())
+        {
+            markConnected();
+            key.interestOps(ops & ~SelectionKey.OP_CONNECT);
+        }
+
+        // anything sent before we were registered
+        synchronized (sendQueue)
+        {
+            if (!sendQueue.isEmpty() && isConnected())
+            {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * @return The thread reading and writing for this connection, or null if it has not been registered yet.
+     */
+    SelectorThread getSelectorThread()
+    {
+        return selectorThread;
+    }
+
+    /**
+     * Sends a packet right away, after anything the network thread has collected to send this tick.
+     * 
+     * @param packet Packet data to send.
+     */
+    public void sendPacket(final byte[] packet)
+    {
+        flushBatch();
+        queuePacket(packet);
+    }
+
+    /**
+     * Sends a packet already made into a frame, such as one from PacketWriter.finishFrame(), right away after anything
+     * the network thread has collected to send this tick. The connection takes its own reference to the frame; the
+     * caller keeps whatever reference it already had.
+     * 
+     * @param frame Frame to send.
+     */
+    public void sendPacket(final OutboundFrame frame)
+    {
+        flushBatch();
+        logSend(frame);
+        sendFrame(frame);
+    }
+
+    /**
+     * Sends a number of packets, as the given PACKET_BATCH if the peer understands it and one by one if not.
+     * 
+     * @param batchPacket The packets wrapped in a PACKET_BATCH.
+     * @param packets The packets themselves, as byte arrays.
+     */
+    void sendBatch(final byte[] batchPacket, final List packets)
+    {
+        if (hasCapability(CAPABILITY_BATCH))
+        {
+            Log.log(Log.NET, "Sending : PACKET_BATCH of " + packets.size() + ", length = " + batchPacket.length);
+            final OutboundFrame frame = new OutboundFrame(batchPacket);
+            sendFrame(frame);
+            frame.release();
+            return;
+        }
+
+        for (int i = 0; i < packets.size(); i++)
+        {
+            queuePacket((byte[])packets.get(i));
+        }
+    }
+
+    /**
+     * Frames and queues a packet.
+     * 
+     * @param packet Packet data to send.
+     */
+    void queuePacket(final byte[] packet)
+    {
+        final OutboundFrame frame = new OutboundFrame(packet);
+        logSend(frame);
+        sendFrame(frame);
+        frame.release();
+    }
+
+    private void logSend(final OutboundFrame frame)
+    {
+        Log.log(Log.NET, "Sending : " + PacketManager.getPacketName(frame.getType()) + ", length = "
+            + frame.getPacketLength());
+    }
+
+    /**
+     * Queues an encoded frame to be written to this connection. The connection takes its own reference to the frame;
+     * the caller keeps whatever reference it already had.
+     * 
+     * @param frame Frame to send.
+     */
+    public void sendFrame(final OutboundFrame frame)
+    {
+        if (!hasCapability(CAPABILITY_COMPACT))
+        {
+            queueFrame(frame, frame);
+            return;
+        }
+
+        // encode and queue in one go, so the peer's string table sees packets in the order they are sent
+        synchronized (codec)
+        {
+            final OutboundFrame compact = frame.encodeCompact(codec);
+            queueFrame(frame, compact);
+            compact.release();
+        }
+    }
+
+    /**
+     * Deflates a frame if it is worth it and queues it.
+     * 
+     * @param original The frame as it was made, for the statistics.
+     * @param frame The frame to send, which may be the original or its compact form.
+     */
+    private void queueFrame(final OutboundFrame original, final OutboundFrame frame)
+    {
+        OutboundFrame toSend = frame;
+        if (hasCapability(CAPABILITY_DEFLATE) && (frame.getPacketLength() >= DEFLATE_THRESHOLD))
+        {
+            toSend = frame.getCompressed(deflater);
+        }
+
+        final int saved = original.getFrameLength() - toSend.getFrameLength();
+        if (saved != 0)
+        {
+            synchronized (bytesSaved)
+            {
+                bytesSaved[getStatIndex(original.getType())] += saved;
+            }
+        }
+
+        synchronized (sendQueue)
+        {
+            if (sendQueue.isEmpty())
+            {
+                lastWriteAt = System.currentTimeMillis();
+            }
+            sendQueue.add(toSend, original);
+            if ((state == State.SUSPENDED) || (thread == null))
+            {
+                // it waits for the connection to be resumed, or to be registered; see register()
+                return;
+            }
+        }
+
+        thread.markForWriting(this);
+    }
+
+    private void flushBatch()
+    {
+        final NetworkThread t = thread;
+        if (t != null)
+        {
+            t.flush();
+        }
+    }
+
+    private void terminate()
+    {
+        Log.log(Log.NET, "Connection.terminate();");
+        synchronized (sendQueue)
+        {
+            if (sendQueue.getCoalescedCount() > 0)
+            {
+                Log.log(Log.NET, "Coalesced " + sendQueue.getCoalescedCount() + " superseded packets.");
+            }
+            if (!isResumable())
+            {
+                sendQueue.clear();
+                replay.clear();
+            }
+        }
+
+        if (getTotalBytesSaved() > 0)
+        {
+            Log.log(Log.NET, "Compression saved " + getTotalBytesSaved() + " bytes.");
+        }
+
+        try
+        {
+            key.cancel();
+            channel.socket().close();
+            channel.close();
+        }
+        catch (final IOException e)
+        {
+            Log.log(Log.NET, e);
+        }
+    }
+
+    /**
+     * Writes as much to the net as it can without blocking, handing several queued frames at a time to a single
+     * gathering write.
+     * 
+     * @throws IOException
+     */
+    void writeToNet() throws IOException
+    {
+        synchronized (sendQueue)
+        {
+            while (!sendQueue.isEmpty())
+            {
+                final int count = sendQueue.gather(gatherBuffers);
+                final long written = channel.write(gatherBuffers, 0, count);
+                final boolean socketFull = gatherBuffers[count - 1].hasRemaining();
+                if (written > 0)
+                {
+                    lastWriteAt = System.currentTimeMillis();
+                }
+
+                // drop the frames that went out completely
+                sendQueue.removeWritten(written, replay, (sessionToken != 0));
+
+                if (socketFull)
+                {
+                    break;
+                }
+            }
+
+            for (int i = 0; i < MAX_GATHER; i++)
+            {
+                gatherBuffers[i] = null;
+            }
+
+            if (sendQueue.isEmpty())
+            {
+                key.interestOps(readPaused.get() ? 0 : SelectionKey.OP_READ);
+                if (state == State.FLUSHING)
+                {
+                    terminate();
+                }
+            }
         }
     }
 }
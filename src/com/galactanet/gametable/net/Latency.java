@@ -0,0 +1,213 @@
+/*
+ * Latency.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+/**
+ * What the pings on a connection have measured: the round trip time, how much it varies, and how far the peer's clock
+ * is from ours.
+ *
+ * Each PACKET_PING carries a sequence number and the time it was sent, on the sender's monotonic clock. The peer sends
+ * back the same two, how long it held the ping before replying, and its wall clock time when the ping arrived. So only
+ * our own clock times the round trip, and the peer's time spent replying doesn't count towards it.
+ *
+ * The round trip time is smoothed as TCP does it (RFC 6298), and the jitter is the smoothed change between successive
+ * round trips (RFC 3550). The clock offset comes from whichever of the last few samples had the shortest round trip, as
+ * NTP does, since a quick round trip leaves the least room for the two legs to differ.
+ *
+ * Times are in microseconds on the monotonic clock given by now(), except where they are said to be wall clock
+ * milliseconds.
+ *
+ * @author iffy
+ */
+public class Latency
+{
+    /**
+     * Samples the clock offset is picked from.
+     */
+    private static final int OFFSET_SAMPLES = 8;
+
+    /**
+     * @return The monotonic clock pings are timed with, in microseconds.
+     */
+    public static long now()
+    {
+        return System.nanoTime() / 1000;
+    }
+
+    private long             jitter         = 0;
+    private int              lastSequence   = 0;
+    private long             lastRoundTrip  = 0;
+    private long             lastSampleTime = 0;
+    private int              lost           = 0;
+    private final long[]     offsets        = new long[OFFSET_SAMPLES];
+    private final long[]     roundTrips     = new long[OFFSET_SAMPLES];
+    private int              samples        = 0;
+    private long             smoothed       = 0;
+    private long             variation      = 0;
+
+    /**
+     * Constructor.
+     */
+    public Latency()
+    {
+    }
+
+    /**
+     * Notes a reply to one of our pings.
+     *
+     * @param sequence Sequence number of the ping.
+     * @param sentAt When we sent the ping, as echoed by the peer.
+     * @param holdTime How long the peer held the ping before replying.
+     * @param peerTime The peer's wall clock time when the ping arrived, in milliseconds.
+     * @param receivedAt When the reply arrived.
+     */
+    public synchronized void replyReceived(final int sequence, final long sentAt, final long holdTime,
+        final long peerTime, final long receivedAt)
+    {
+        final long roundTrip = Math.max(receivedAt - sentAt - Math.max(holdTime, 0), 0);
+        if (samples == 0)
+        {
+            smoothed = roundTrip;
+            variation = roundTrip / 2;
+        }
+        else
+        {
+            if (sequence > lastSequence + 1)
+            {
+                lost += sequence - lastSequence - 1;
+            }
+
+            variation += (Math.abs(smoothed - roundTrip) - variation) / 4;
+            smoothed += (roundTrip - smoothed) / 8;
+            jitter += (Math.abs(roundTrip - lastRoundTrip) - jitter) / 16;
+        }
+
+        // our wall clock when the ping reached the peer, taking the two legs to be equally long
+        final long wallArrived = System.currentTimeMillis() - (now() - sentAt - roundTrip / 2) / 1000;
+        offsets[samples % OFFSET_SAMPLES] = peerTime - wallArrived;
+        roundTrips[samples % OFFSET_SAMPLES] = roundTrip;
+
+        if ((samples == 0) || (sequence > lastSequence))
+        {
+            lastSequence = sequence;
+        }
+        lastRoundTrip = roundTrip;
+        lastSampleTime = receivedAt;
+        samples++;
+    }
+
+    /**
+     * @return True once at least one reply has come back.
+     */
+    public synchronized boolean hasSamples()
+    {
+        return (samples > 0);
+    }
+
+    /**
+     * @return The number of replies that have come back.
+     */
+    public synchronized int getSampleCount()
+    {
+        return samples;
+    }
+
+    /**
+     * @return The number of pings that never got a reply, as far as can be told from the replies that did.
+     */
+    public synchronized int getLostCount()
+    {
+        return lost;
+    }
+
+    /**
+     * @return When the last reply arrived, or 0 if none has.
+     */
+    public synchronized long getLastSampleTime()
+    {
+        return lastSampleTime;
+    }
+
+    /**
+     * @return The smoothed round trip time, in microseconds.
+     */
+    public synchronized long getRoundTrip()
+    {
+        return smoothed;
+    }
+
+    /**
+     * @return The smoothed round trip time, in milliseconds.
+     */
+    public synchronized int getRoundTripMillis()
+    {
+        return (int)((smoothed + 500) / 1000);
+    }
+
+    /**
+     * @return How much the round trip time varies, in microseconds: the mean deviation, as used for retransmission
+     *         timeouts.
+     */
+    public synchronized long getVariation()
+    {
+        return variation;
+    }
+
+    /**
+     * @return The smoothed change between successive round trip times, in microseconds.
+     */
+    public synchronized long getJitter()
+    {
+        return jitter;
+    }
+
+    /**
+     * @return The smoothed change between successive round trip times, in milliseconds.
+     */
+    public synchronized int getJitterMillis()
+    {
+        return (int)((jitter + 500) / 1000);
+    }
+
+    /**
+     * @return How far the peer's wall clock is ahead of ours, in milliseconds; negative if it is behind.
+     */
+    public synchronized long getClockOffset()
+    {
+        int best = -1;
+        for (int i = 0; i < Math.min(samples, OFFSET_SAMPLES); i++)
+        {
+            if ((best < 0) || (roundTrips[i] < roundTrips[best]))
+            {
+                best = i;
+            }
+        }
+        return (best < 0 ? 0 : offsets[best]);
+    }
+
+    /**
+     * Turns a time on the peer's wall clock into one on ours.
+     *
+     * @param peerTime Peer's wall clock time, in milliseconds.
+     * @return The same moment on our wall clock.
+     */
+    public long toLocalTime(final long peerTime)
+    {
+        return peerTime - getClockOffset();
+    }
+
+    /**
+     * @return A short description for showing to the user, such as "45 ms +/- 3 ms", or "?" if nothing is known yet.
+     */
+    public synchronized String toString()
+    {
+        if (samples == 0)
+        {
+            return "?";
+        }
+        return getRoundTripMillis() + " ms +/- " + getJitterMillis() + " ms";
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * LoopbackBenchmark.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+
+import com.galactanet.gametable.PacketManager;
+
+
+
+/**
+ * Measures how a hosting NetworkThread holds up as players are added. For each number of worker threads and each
+ * number of clients, the clients connect over loopback and each sends a small packet a number of times a second. A
+ * relay thread plays the host, broadcasting every packet received to all the other clients the way the host relays
+ * moves. Every client notes how long each packet took to reach it; the throughput and the latency percentiles are
+ * then printed, one line per run.
+ *
+ * The clients are plain blocking sockets with a thread each for reading and writing, so that only the host side is
+ * being measured.
+ *
+ * Two smaller runs measure the network threads themselves, host and client both: "idle" reports how much CPU they
+ * use with a connection open and nothing to send, and "pingpong" reports the round trip of one packet at a time,
+ * echoed straight back by the host.
+ *
+ * Usage: LoopbackBenchmark [clients,clients,...] [workers,workers,...] [packets per second] [seconds]
+ * <br>LoopbackBenchmark idle [seconds]
+ * <br>LoopbackBenchmark pingpong [round trips]
+ *
+ * @author iffy
+ */
+public class LoopbackBenchmark
+{
+    /**
+     * A client: a socket, a thread sending on it and a thread reading from it.
+     */
+    private static class Client
+    {
+        public final DataInputStream  in;
+        public int[]                  latencies = new int[1024];
+        public int                    latencyCount;
+        public final DataOutputStream out;
+        public final Thread           reader;
+        public volatile boolean       recording;
+        public volatile long          sent;
+        public final Socket           socket;
+        public final Thread           writer;
+
+        public Client(final int port, final int rate) throws IOException
+        {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            reader = new Thread()
+            {
+                public void run()
+                {
+                    read();
+                }
+            };
+            writer = new Thread()
+            {
+                public void run()
+                {
+                    write(rate);
+                }
+            };
+            reader.start();
+            writer.start();
+        }
+
+        public void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (final IOException ioe)
+            {
+                // done with it anyway
+            }
+        }
+
+        private void read()
+        {
+            try
+            {
+                while (true)
+                {
+                    final int size = in.readInt() & OutboundFrame.LENGTH_MASK;
+                    final int type = in.readInt();
+                    if ((type != PacketManager.PACKET_PING) || (size != PACKET_SIZE))
+                    {
+                        in.skipBytes(size - 4);
+                        continue;
+                    }
+
+                    final long latency = System.nanoTime() - in.readLong();
+                    if (recording)
+                    {
+                        if (latencyCount == latencies.length)
+                        {
+                            final int[] bigger = new int[latencies.length * 2];
+                            System.arraycopy(latencies, 0, bigger, 0, latencyCount);
+                            latencies = bigger;
+                        }
+                        latencies[latencyCount++] = (int)(latency / 1000);
+                    }
+                }
+            }
+            catch (final IOException ioe)
+            {
+                // closed at the end of the run
+            }
+        }
+
+        private void write(final int rate)
+        {
+            final long interval = 1000000000L / rate;
+            long next = System.nanoTime();
+            try
+            {
+                while (true)
+                {
+                    final long wait = next - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    }
+                    next += interval;
+
+                    out.writeInt(PACKET_SIZE);
+                    out.writeInt(PacketManager.PACKET_PING);
+                    out.writeLong(System.nanoTime());
+                    out.flush();
+                    if (recording)
+                    {
+                        sent++;
+                    }
+                }
+            }
+            catch (final IOException ioe)
+            {
+                // closed at the end of the run
+            }
+            catch (final InterruptedException ie)
+            {
+                // closed at the end of the run
+            }
+        }
+    }
+
+    /**
+     * Plays the host: hands every packet received to the network thread to broadcast to everyone else.
+     */
+    private static class Relay extends Thread
+    {
+        private final NetworkThread network;
+        public volatile long        relayed;
+
+        public Relay(final NetworkThread thread)
+        {
+            super(Relay.class.getName());
+            network = thread;
+        }
+
+        public void run()
+        {
+            try
+            {
+                while (!isInterrupted())
+                {
+                    network.waitForPackets(25);
+                    final List packets = network.getPackets();
+                    for (int i = 0, size = packets.size(); i < size; ++i)
+                    {
+                        final Packet packet = (Packet)packets.get(i);
+                        final byte[] data = new byte[packet.getLength()];
+                        System.arraycopy(packet.getBuffer(), 0, data, 0, data.length);
+                        packet.getSource().markLoggedIn();
+                        network.broadcast(data, packet.getSource());
+                        packet.release();
+                    }
+                    network.flush();
+                    network.getLostConnections();
+                    relayed += packets.size();
+                }
+            }
+            catch (final InterruptedException ie)
+            {
+                // end of the run
+            }
+        }
+    }
+
+    private static final int[] DEFAULT_CLIENTS     = {
+        10, 20, 40, 60
+    };
+    private static final int   DEFAULT_IDLE        = 3;
+    private static final int   DEFAULT_RATE        = 20;
+    private static final int   DEFAULT_ROUND_TRIPS = 10000;
+    private static final int   DEFAULT_SECONDS     = 5;
+    private static final int[] DEFAULT_WORKERS     = {
+        0, 2, 4
+    };
+
+    /**
+     * Bytes in each benchmark packet: the type and the time it was sent.
+     */
+    private static final int   PACKET_SIZE         = 12;
+
+    /**
+     * Milliseconds the clients run before anything is counted, for connecting and warming up the JIT.
+     */
+    private static final long  WARMUP              = 1000;
+
+    public static void main(final String[] args) throws Exception
+    {
+        if ((args.length > 0) && args[0].equals("idle"))
+        {
+            idle(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_IDLE);
+            return;
+        }
+        if ((args.length > 0) && args[0].equals("pingpong"))
+        {
+            pingPong(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUND_TRIPS);
+            return;
+        }
+
+        final int[] clientCounts = (args.length > 0 ? parseList(args[0]) : DEFAULT_CLIENTS);
+        final int[] workerCounts = (args.length > 1 ? parseList(args[1]) : DEFAULT_WORKERS);
+        final int rate = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_RATE);
+        final int seconds = (args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SECONDS);
+
+        System.out.println("Each client sends " + rate + " packets a second for " + seconds + " seconds.");
+        System.out.println("workers clients   sent/s  delivered/s  expected/s   p50 ms   p99 ms p99.9 ms   max ms");
+        for (int w = 0; w < workerCounts.length; w++)
+        {
+            for (int c = 0; c < clientCounts.length; c++)
+            {
+                run(workerCounts[w], clientCounts[c], rate, seconds);
+            }
+        }
+    }
+
+    private static void run(final int workers, final int clientCount, final int rate, final int seconds)
+        throws Exception
+    {
+        final int port = freePort();
+        final NetworkThread network = startHost(port, workers);
+        final Relay relay = new Relay(network);
+        relay.start();
+
+        final Client[] clients = new Client[clientCount];
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i] = new Client(port, rate);
+        }
+
+        Thread.sleep(WARMUP);
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i].recording = true;
+        }
+        Thread.sleep(seconds * 1000L);
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i].recording = false;
+        }
+
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i].close();
+            clients[i].writer.interrupt();
+        }
+        relay.interrupt();
+        relay.join();
+        network.interrupt();
+        network.join();
+
+        long sent = 0;
+        int delivered = 0;
+        for (int i = 0; i < clients.length; i++)
+        {
+            clients[i].reader.join();
+            clients[i].writer.join();
+            sent += clients[i].sent;
+            delivered += clients[i].latencyCount;
+        }
+
+        final int[] latencies = new int[delivered];
+        int pos = 0;
+        for (int i = 0; i < clients.length; i++)
+        {
+            System.arraycopy(clients[i].latencies, 0, latencies, pos, clients[i].latencyCount);
+            pos += clients[i].latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        final StringBuffer line = new StringBuffer();
+        pad(line, String.valueOf(workers), 7);
+        pad(line, String.valueOf(clientCount), 8);
+        pad(line, String.valueOf(sent / seconds), 9);
+        pad(line, String.valueOf(delivered / seconds), 13);
+        pad(line, String.valueOf(sent * (clientCount - 1) / seconds), 12);
+        pad(line, millis(percentile(latencies, 0.5)), 9);
+        pad(line, millis(percentile(latencies, 0.99)), 9);
+        pad(line, millis(percentile(latencies, 0.999)), 9);
+        pad(line, millis(percentile(latencies, 1)), 9);
+        System.out.println(line);
+    }
+
+    /**
+     * Prints the CPU time the host and client network threads use with one connection open between them and nothing
+     * being sent.
+     */
+    private static void idle(final int seconds) throws Exception
+    {
+        final int port = freePort();
+        final NetworkThread host = startHost(port, 0);
+        final NetworkThread client = new NetworkThread();
+        client.start();
+        client.add(new Connection("127.0.0.1", port));
+        Thread.sleep(WARMUP);
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long hostStart = threads.getThreadCpuTime(host.getId());
+        final long clientStart = threads.getThreadCpuTime(client.getId());
+        Thread.sleep(seconds * 1000L);
+        final long hostCpu = threads.getThreadCpuTime(host.getId()) - hostStart;
+        final long clientCpu = threads.getThreadCpuTime(client.getId()) - clientStart;
+
+        System.out.println("Idle for " + seconds + " seconds: host network thread " + (hostCpu / 1000000)
+            + " ms CPU, client network thread " + (clientCpu / 1000000) + " ms CPU");
+
+        client.interrupt();
+        client.join();
+        host.interrupt();
+        host.join();
+    }
+
+    /**
+     * Prints the round trip of packets sent one at a time from a client network thread to a host network thread that
+     * echoes each one straight back.
+     */
+    private static void pingPong(final int roundTrips) throws Exception
+    {
+        final int port = freePort();
+        final NetworkThread host = startHost(port, 0);
+        final Thread echo = new Thread("Echo")
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!isInterrupted())
+                    {
+                        host.waitForPackets(25);
+                        final List packets = host.getPackets();
+                        for (int i = 0, size = packets.size(); i < size; ++i)
+                        {
+                            final Packet packet = (Packet)packets.get(i);
+                            final byte[] data = new byte[packet.getLength()];
+                            System.arraycopy(packet.getBuffer(), 0, data, 0, data.length);
+                            host.send(data, packet.getSource());
+                            packet.release();
+                        }
+                        host.flush();
+                        host.getLostConnections();
+                    }
+                }
+                catch (final InterruptedException ie)
+                {
+                    // end of the run
+                }
+            }
+        };
+        echo.start();
+
+        final NetworkThread client = new NetworkThread();
+        client.start();
+        final Connection connection = new Connection("127.0.0.1", port);
+        client.add(connection);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(PACKET_SIZE);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(PacketManager.PACKET_PING);
+        out.writeLong(0);
+        final byte[] data = bytes.toByteArray();
+
+        // the first tenth warms up the JIT and isn't counted
+        final int warmup = roundTrips / 10;
+        final int[] latencies = new int[roundTrips];
+        for (int i = -warmup; i < roundTrips; i++)
+        {
+            final long start = System.nanoTime();
+            connection.sendPacket(data);
+            List packets = client.getPackets();
+            while (packets.isEmpty())
+            {
+                client.waitForPackets(1000);
+                packets = client.getPackets();
+            }
+            final long latency = System.nanoTime() - start;
+            for (int j = 0, size = packets.size(); j < size; ++j)
+            {
+                ((Packet)packets.get(j)).release();
+            }
+            if (i >= 0)
+            {
+                latencies[i] = (int)(latency / 1000);
+            }
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(roundTrips + " round trips: p50 " + percentile(latencies, 0.5) + " us, p99 "
+            + percentile(latencies, 0.99) + " us, max " + percentile(latencies, 1) + " us");
+
+        client.interrupt();
+        client.join();
+        echo.interrupt();
+        echo.join();
+        host.interrupt();
+        host.join();
+    }
+
+    /**
+     * @return A port nothing is listening on.
+     */
+    private static int freePort() throws IOException
+    {
+        final ServerSocket probe = new ServerSocket(0);
+        final int port = probe.getLocalPort();
+        probe.close();
+        return port;
+    }
+
+    /**
+     * Starts a hosting network thread and waits for it to be listening.
+     */
+    private static NetworkThread startHost(final int port, final int workers) throws Exception
+    {
+        final NetworkThread network = new NetworkThread(port, workers);
+        network.start();
+        for (int i = 0; (i < 100) && (network.getSelector() == null); i++)
+        {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        return network;
+    }
+
+    private static int percentile(final int[] sorted, final double fraction)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))];
+    }
+
+    private static String millis(final int micros)
+    {
+        return (micros / 1000) + "." + ((micros / 100) % 10);
+    }
+
+    private static void pad(final StringBuffer buffer, final String s, final int width)
+    {
+        for (int i = s.length(); i < width; i++)
+        {
+            buffer.append(' ');
+        }
+        buffer.append(s);
+    }
+
+    private static int[] parseList(final String s)
+    {
+        final StringTokenizer tokens = new StringTokenizer(s, ",");
+        final int[] retVal = new int[tokens.countTokens()];
+        for (int i = 0; i < retVal.length; i++)
+        {
+            retVal[i] = Integer.parseInt(tokens.nextToken().trim());
+        }
+        return retVal;
+    }
+}
@@ -11,15 +11,24 @@ import java.nio.channels.*;
 import java.util.*;
 
 import com.galactanet.gametable.Log;
+import com.galactanet.gametable.PacketManager;
 
 
 
 /**
  * Multiplexed network thread for all the network stuff.
  * 
+ * By default this one thread accepts, reads and writes for every connection. A host expecting a crowd can give it a
+ * number of worker threads instead, each with its own selector; this thread then only accepts, and hands each new
+ * connection to the next worker in turn. Either way, packets and lost connections are collected from every connection
+ * through getPackets() and getLostConnections().
+ * 
+ * Connections the socket still calls connected, but which have read nothing or written nothing for too long, are
+ * evicted when lost connections are collected; see Connection.isReadIdle() and Connection.isWriteStalled().
+ * 
  * @author iffy
  */
-public class NetworkThread extends Thread
+public class NetworkThread extends SelectorThread
 {
     /**
      * Private command class to set the interest ops between selections.
@@ -39,6 +48,8 @@ public class NetworkThread extends Thread
         {
             try
             {
+                // clear the mark before touching the key, so a send racing with us queues a fresh command
+                connection.clearWriteMarked();
                 connection.getKey().interestOps(connection.getKey().interestOps() | SelectionKey.OP_WRITE);
             }
             catch (final Throwable t)
@@ -48,6 +59,33 @@ public class NetworkThread extends Thread
         }
     }
 
+    /**
+     * Private command class to start reading from a connection again once its receive queue has drained.
+     * 
+     * @author iffy
+     */
+    private class ResumeReading implements Runnable
+    {
+        private final Connection connection;
+
+        public ResumeReading(final Connection c)
+        {
+            connection = c;
+        }
+
+        public void run()
+        {
+            try
+            {
+                connection.resumeReading();
+            }
+            catch (final Throwable t)
+            {
+                Log.log(Log.NET, t);
+            }
+        }
+    }
+
     /**
      * Private command class to set the interest ops between selections.
      * 
@@ -55,12 +93,14 @@ public class NetworkThread extends Thread
      */
     private class RegisterConnection implements Runnable
     {
-        private final Connection connection;
-        private final int        interestOps;
+        private final Connection     connection;
+        private final int            interestOps;
+        private final SelectorThread selectorThread;
 
-        public RegisterConnection(final Connection c, final int ops)
+        public RegisterConnection(final Connection c, final SelectorThread t, final int ops)
         {
             connection = c;
+            selectorThread = t;
             interestOps = ops;
         }
 
@@ -68,7 +108,7 @@ public class NetworkThread extends Thread
         {
             try
             {
-                connection.register(NetworkThread.this, interestOps);
+                connection.register(NetworkThread.this, selectorThread, interestOps);
             }
             catch (final Throwable t)
             {
@@ -77,11 +117,63 @@ public class NetworkThread extends Thread
         }
     }
 
+    /**
+     * Thread reading and writing for the connections assigned to it.
+     * 
+     * @author iffy
+     */
+    private class Worker extends SelectorThread
+    {
+        public Worker(final int index)
+        {
+            super(NetworkThread.class.getName() + "-" + index);
+        }
+
+        protected void handleKey(final SelectionKey key) throws IOException
+        {
+            NetworkThread.this.handleKey(key);
+        }
+
+        protected void closed()
+        {
+            // the network thread closes the connections; the selector is ours to close
+            try
+            {
+                closeSelector();
+            }
+            catch (final IOException ioe)
+            {
+                Log.log(Log.NET, ioe);
+            }
+        }
+    }
+
+    /**
+     * Packets sent this tick, waiting to go out together.
+     */
+    private final OutboundBatch batch           = new OutboundBatch(this);
+
     private final Set           connections     = new HashSet();
+
+    /**
+     * Connections evicted as idle or stalled, and the bytes they had waiting to be sent when they were.
+     */
+    private long                evictedBytes    = 0;
+    private int                 evictions       = 0;
     private final Set           lostConnections = new HashSet();
-    private final List          pendingCommands = new LinkedList();
 
-    private Selector            selector;
+    /**
+     * Threads the connections are handed to in turn; empty if this thread handles them all.
+     */
+    private final Worker[]      workers;
+    private int                 nextWorker      = 0;
+
+    /**
+     * Lock signalled whenever a connection has queued packets; see waitForPackets().
+     */
+    private final Object        packetLock      = new Object();
+    private boolean             packetsWaiting  = false;
+
     private final int           serverPort;
     private ServerSocketChannel serverSocketChannel;
     private boolean             startServer     = false;
@@ -92,20 +184,36 @@ public class NetworkThread extends Thread
     public NetworkThread()
     {
         super(NetworkThread.class.getName());
-        setPriority(NORM_PRIORITY + 1);
         serverPort = -1;
         startServer = false;
+        workers = new Worker[0];
     }
 
     /**
      * Server Constructor.
      */
     public NetworkThread(final int port)
+    {
+        this(port, 0);
+    }
+
+    /**
+     * Server Constructor, with worker threads.
+     * 
+     * @param port Port to listen on.
+     * @param workerCount Number of worker threads to spread the connections over. If 0, this thread handles every
+     *            connection itself.
+     */
+    public NetworkThread(final int port, final int workerCount)
     {
         super(NetworkThread.class.getName());
-        setPriority(NORM_PRIORITY + 1);
         serverPort = port;
         startServer = true;
+        workers = new Worker[Math.max(0, workerCount)];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new Worker(i);
+        }
     }
 
     public void add(final Connection connection)
@@ -137,16 +245,33 @@ public class NetworkThread extends Thread
         synchronized (connections)
         {
             connections.add(connection);
-            synchronized (pendingCommands)
-            {
-                pendingCommands.add(new RegisterConnection(connection, ops));
-            }
         }
 
-        if (selector != null)
+        final SelectorThread t = nextSelectorThread();
+        t.queueCommand(new RegisterConnection(connection, t, ops));
+    }
+
+    /**
+     * @return The thread to hand the next connection to.
+     */
+    private synchronized SelectorThread nextSelectorThread()
+    {
+        if (workers.length == 0)
         {
-            selector.wakeup();
+            return this;
         }
+
+        final SelectorThread retVal = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        return retVal;
+    }
+
+    /**
+     * @return The number of worker threads, or 0 if this thread handles every connection itself.
+     */
+    public int getWorkerCount()
+    {
+        return workers.length;
     }
 
     public void closeAllConnections()
@@ -164,10 +289,11 @@ public class NetworkThread extends Thread
                 connections.clear();
             }
 
-            if (selector != null)
+            closeSelector();
+            for (int i = 0; i < workers.length; i++)
             {
-                selector.close();
-                selector = null;
+                // wakes the worker, which then closes its own selector
+                workers[i].interrupt();
             }
 
             if (serverSocketChannel != null)
@@ -184,27 +310,199 @@ public class NetworkThread extends Thread
 
     private void cullLostConnections()
     {
+        final long now = System.currentTimeMillis();
         final Set lost = new HashSet();
+        final Set suspended = new HashSet();
+        final Set stalled = new HashSet();
         synchronized (connections)
         {
             final Iterator iterator = connections.iterator();
             while (iterator.hasNext())
             {
                 final Connection connection = (Connection)iterator.next();
-                if (connection.isDead())
+                if (connection.isSuspended())
                 {
-                    lost.add(connection);
+                    if (connection.isResumeExpired(now))
+                    {
+                        lost.add(connection);
+                    }
+                }
+                else if (connection.isDead())
+                {
+                    if (connection.isResumable())
+                    {
+                        suspended.add(connection);
+                    }
+                    else
+                    {
+                        lost.add(connection);
+                    }
+                }
+                else if (connection.isReadIdle(now) || connection.isWriteStalled(now))
+                {
+                    stalled.add(connection);
                 }
             }
         }
 
-        final Iterator iterator = lost.iterator();
+        // the socket doesn't know these are gone, so they are treated as lost from here on
+        Iterator iterator = stalled.iterator();
+        while (iterator.hasNext())
+        {
+            final Connection connection = (Connection)iterator.next();
+            final long pending = connection.getPendingBytes();
+            final String what = (connection.isReadIdle(now) ? "read" : "written");
+            Log.log(Log.NET, "Evicted a connection with nothing " + what + " for too long; " + pending
+                + " bytes were unsent");
+            synchronized (this)
+            {
+                evictions++;
+                evictedBytes += pending;
+            }
+
+            final boolean resumable = connection.isResumable();
+            connection.lost();
+            if (resumable)
+            {
+                suspended.add(connection);
+            }
+            else
+            {
+                lost.add(connection);
+            }
+        }
+
+        // a suspended connection is reported lost, but stays to collect what is sent to it until it is resumed or
+        // given up on, when it is reported lost again
+        iterator = suspended.iterator();
+        while (iterator.hasNext())
+        {
+            final Connection connection = (Connection)iterator.next();
+            connection.suspend();
+            Log.log(Log.NET, "Suspended a lost connection for resuming");
+            synchronized (lostConnections)
+            {
+                lostConnections.add(connection);
+            }
+        }
+
+        iterator = lost.iterator();
         while (iterator.hasNext())
         {
             remove((Connection)iterator.next());
         }
     }
 
+    /**
+     * @return The number of connections evicted for reading or writing nothing for too long.
+     */
+    public synchronized int getEvictionCount()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return The bytes evicted connections had waiting to be sent when they were evicted, in all.
+     */
+    public synchronized long getEvictedBytes()
+    {
+        return evictedBytes;
+    }
+
+    /**
+     * @return The bytes waiting to be sent on every connection, suspended ones included.
+     */
+    public long getPendingBytes()
+    {
+        long retVal = 0;
+        synchronized (connections)
+        {
+            final Iterator iterator = connections.iterator();
+            while (iterator.hasNext())
+            {
+                retVal += ((Connection)iterator.next()).getPendingBytes();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @return The bytes of direct buffer every connection reads into.
+     */
+    public long getReceiveBufferBytes()
+    {
+        long retVal = 0;
+        synchronized (connections)
+        {
+            final Iterator iterator = connections.iterator();
+            while (iterator.hasNext())
+            {
+                retVal += ((Connection)iterator.next()).getReceiveBufferSize();
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * @param token Session token of the connection.
+     * @return The suspended connection with the given session token, or null if there isn't one.
+     */
+    public Connection getSuspended(final long token)
+    {
+        synchronized (connections)
+        {
+            final Iterator iterator = connections.iterator();
+            while (iterator.hasNext())
+            {
+                final Connection connection = (Connection)iterator.next();
+                if (connection.isSuspended() && (connection.getSessionToken() == token))
+                {
+                    return connection;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a new connection to a peer whose earlier connection to us is suspended. It isn't logged in, so gets nothing
+     * broadcast, until resume() hands it over.
+     * 
+     * @param connection The new connection.
+     */
+    public void addForResume(final Connection connection)
+    {
+        add(connection, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Hands a suspended connection over to a new connection to the same peer. The new connection sends the frames the
+     * peer didn't get, then whatever was waiting to be sent to the old one, and logs in. The old connection goes away
+     * without being reported lost again.
+     * 
+     * @param old The suspended connection.
+     * @param connection The new connection.
+     * @param peerReceived The number of frames the peer read from the old connection.
+     * @param reply Packet to send on the new connection before the frames, or null.
+     * @return False if the old connection isn't suspended any more, or has already let go of frames the peer missed.
+     */
+    public boolean resume(final Connection old, final Connection connection, final long peerReceived,
+        final byte[] reply)
+    {
+        batch.flush();
+        synchronized (connections)
+        {
+            if (!old.isSuspended() || !old.canReplayFrom(peerReceived))
+            {
+                return false;
+            }
+
+            connections.remove(old);
+            connection.resumeFrom(old, peerReceived, reply);
+        }
+        return true;
+    }
+
     public Set getConnections()
     {
         final Set retVal = new HashSet();
@@ -230,6 +528,9 @@ public class NetworkThread extends Thread
         }
     }
 
+    /**
+     * @return All the packets received since the last call. Each must be released once it has been dispatched.
+     */
     public List getPackets()
     {
         final List retVal = new ArrayList();
@@ -241,12 +542,44 @@ public class NetworkThread extends Thread
                 final Connection connection = (Connection)iter.next();
                 while (connection.hasPackets())
                 {
-                    final byte[] data = connection.receivePacket();
-                    if (data == null)
+                    final Packet packet = connection.receivePacket();
+                    if (packet == null)
                     {
                         break;
                     }
-                    retVal.add(new Packet(data, connection));
+                    retVal.add(packet);
+                }
+            }
+        }
+        return retVal;
+    }
+
+    /**
+     * Takes up to the given number of the packets received, a packet from each connection in turn so that one busy
+     * connection can't crowd out the rest.
+     * 
+     * @param max Most packets to take.
+     * @return The packets, each in the order its connection received them. Each must be released once it has been
+     *         dispatched.
+     */
+    public List getPackets(final int max)
+    {
+        final List retVal = new ArrayList();
+        synchronized (connections)
+        {
+            boolean more = true;
+            while (more && (retVal.size() < max))
+            {
+                more = false;
+                final Iterator iter = connections.iterator();
+                while (iter.hasNext() && (retVal.size() < max))
+                {
+                    final Packet packet = ((Connection)iter.next()).receivePacket();
+                    if (packet != null)
+                    {
+                        retVal.add(packet);
+                        more = true;
+                    }
                 }
             }
         }
@@ -254,21 +587,47 @@ public class NetworkThread extends Thread
     }
 
     /**
-     * @return Returns this thread's selector.
+     * Called by a connection after it has queued received packets.
+     */
+    void packetsArrived()
+    {
+        synchronized (packetLock)
+        {
+            packetsWaiting = true;
+            packetLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until packets have been received since the last call, or until the timeout runs out.
+     * 
+     * @param timeout Most milliseconds to wait.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
      */
-    public Selector getSelector()
+    public void waitForPackets(final long timeout) throws InterruptedException
     {
-        return selector;
+        synchronized (packetLock)
+        {
+            if (!packetsWaiting)
+            {
+                packetLock.wait(timeout);
+            }
+            packetsWaiting = false;
+        }
     }
 
     public void markForWriting(final Connection c)
     {
-        synchronized (pendingCommands)
+        // a connection already marked has a command in the queue that will pick up this data as well
+        if (c.markForWriting())
         {
-            pendingCommands.add(new MarkForWriting(c));
+            c.getSelectorThread().queueCommand(new MarkForWriting(c));
         }
+    }
 
-        selector.wakeup();
+    void resumeReading(final Connection c)
+    {
+        c.getSelectorThread().queueCommand(new ResumeReading(c));
     }
 
     public void remove(final Connection connection)
@@ -284,161 +643,326 @@ public class NetworkThread extends Thread
         }
     }
 
-    /*
-     * @see java.lang.Thread#run()
-     */
-    public void run()
+    protected void opened() throws IOException
     {
-        try
+        if (startServer)
+        {
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.configureBlocking(false);
+            serverSocketChannel.socket().bind(new InetSocketAddress(serverPort));
+            serverSocketChannel.register(getSelector(), SelectionKey.OP_ACCEPT, this);
+            startServer = false;
+        }
+
+        for (int i = 0; i < workers.length; i++)
         {
-            selector = Selector.open();
+            workers[i].start();
+        }
+    }
 
-            while (true)
+    /**
+     * Handles a key selected by this thread or one of the workers.
+     * 
+     * @param key The key.
+     */
+    protected void handleKey(final SelectionKey key) throws IOException
+    {
+        if (key.isAcceptable())
+        {
+            final ServerSocketChannel keyChannel = (ServerSocketChannel)key.channel();
+            final SocketChannel newChannel = keyChannel.accept();
+            if (newChannel == null)
             {
-                sleep(1);
+                return;
+            }
+            final Connection connection = new Connection(newChannel);
+            add(connection, SelectionKey.OP_READ);
+        }
 
-                if (startServer)
+        if (key.isConnectable())
+        {
+            final SocketChannel keyChannel = (SocketChannel)key.channel();
+            final Connection connection = (Connection)key.attachment();
+            try
+            {
+                while (!keyChannel.finishConnect())
                 {
-                    serverSocketChannel = ServerSocketChannel.open();
-                    serverSocketChannel.configureBlocking(false);
-                    serverSocketChannel.socket().bind(new InetSocketAddress(serverPort));
-                    serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT, this);
-                    startServer = false;
+                    // keep going
                 }
+                key.interestOps(SelectionKey.OP_READ);
+                connection.markConnected();
+                connection.markLoggedIn();
+            }
+            catch (final IOException ioe)
+            {
+                Log.log(Log.NET, ioe);
+                keyChannel.close();
+                connection.close();
+            }
+        }
 
-                synchronized (pendingCommands)
-                {
-                    while (pendingCommands.size() > 0)
-                    {
-                        final Runnable r = (Runnable)pendingCommands.remove(0);
+        if (key.isReadable())
+        {
+            final Connection connection = (Connection)key.attachment();
+            try
+            {
+                connection.readFromNet();
+            }
+            catch (final IOException ioe)
+            {
+                Log.log(Log.NET, ioe);
+                connection.lost();
+            }
+            catch (final RuntimeException re)
+            {
+                // a peer sending garbage must not take the other connections down with it
+                Log.log(Log.NET, re);
+                connection.lost();
+            }
+        }
 
-                        try
-                        {
-                            r.run();
-                        }
-                        catch (final Exception e)
-                        {
-                            Log.log(Log.NET, e);
-                        }
-                    }
-                }
+        if (key.isValid() && key.isWritable())
+        {
+            final Connection connection = (Connection)key.attachment();
+            try
+            {
+                connection.writeToNet();
+            }
+            catch (final IOException ioe)
+            {
+                Log.log(Log.NET, ioe);
+                connection.lost();
+            }
+            catch (final RuntimeException re)
+            {
+                // a peer sending garbage must not take the other connections down with it
+                Log.log(Log.NET, re);
+                connection.lost();
+            }
+        }
+    }
 
-                if (selector.selectNow() == 0)
-                {
-                    continue;
-                }
+    protected void closed()
+    {
+        closeAllConnections();
+    }
 
-                sleep(1);
+    /**
+     * Sends a packet to every logged in connection. The packet may wait for the next flush(); see OutboundBatch.
+     * 
+     * @param packet Packet data to send.
+     */
+    public void send(final byte[] packet)
+    {
+        broadcast(packet, (Connection)null);
+    }
 
-                final Set keys = selector.selectedKeys();
-                final Iterator keyIterator = keys.iterator();
-                while (keyIterator.hasNext())
-                {
-                    try
-                    {
-                        final SelectionKey key = (SelectionKey)keyIterator.next();
+    /**
+     * Sends a packet to every logged in connection but one. The packet may wait for the next flush(); see OutboundBatch.
+     * 
+     * @param packet Packet data to send.
+     * @param exclude Connection not to send to, usually the one the packet came from. May be null.
+     */
+    public void broadcast(final byte[] packet, final Connection exclude)
+    {
+        batch.broadcast(packet, exclude);
+    }
 
-                        if (key.isAcceptable())
-                        {
-                            final ServerSocketChannel keyChannel = (ServerSocketChannel)key.channel();
-                            final SocketChannel newChannel = keyChannel.accept();
-                            final Connection connection = new Connection(newChannel);
-                            add(connection, SelectionKey.OP_READ);
-                        }
+    /**
+     * Sends a packet to every logged in connection but some. The packet may wait for the next flush(); see
+     * OutboundBatch.
+     * 
+     * @param packet Packet data to send.
+     * @param excluded Connections not to send to.
+     */
+    public void broadcast(final byte[] packet, final Set excluded)
+    {
+        batch.broadcast(packet, excluded);
+    }
 
-                        if (key.isConnectable())
-                        {
-                            final SocketChannel keyChannel = (SocketChannel)key.channel();
-                            final Connection connection = (Connection)key.attachment();
-                            try
-                            {
-                                while (!keyChannel.finishConnect())
-                                {
-                                    // keep going
-                                }
-                                key.interestOps(SelectionKey.OP_READ);
-                                connection.markConnected();
-                                connection.markLoggedIn();
-                            }
-                            catch (final IOException ioe)
-                            {
-                                Log.log(Log.NET, ioe);
-                                keyChannel.close();
-                                connection.close();
-                            }
-                        }
+    /**
+     * Sends everything that send() and broadcast() have collected.
+     */
+    public void flush()
+    {
+        batch.flush();
+    }
 
-                        if (key.isReadable())
-                        {
-                            final Connection connection = (Connection)key.attachment();
-                            try
-                            {
-                                connection.readFromNet();
-                            }
-                            catch (final IOException ioe)
-                            {
-                                Log.log(Log.NET, ioe);
-                                connection.close();
-                            }
-                        }
+    /**
+     * @return The batcher collecting packets sent through this thread.
+     */
+    public OutboundBatch getBatch()
+    {
+        return batch;
+    }
 
-                        if (key.isWritable())
-                        {
-                            final Connection connection = (Connection)key.attachment();
-                            try
-                            {
-                                connection.writeToNet();
-                            }
-                            catch (final IOException ioe)
-                            {
-                                Log.log(Log.NET, ioe);
-                                connection.close();
-                            }
-                        }
-                    }
-                    catch (final CancelledKeyException cke)
-                    {
-                        Log.log(Log.NET, cke);
-                    }
-                    finally
-                    {
-                        keyIterator.remove();
-                    }
+    /**
+     * Sends a packet to every logged in connection but one right away. The packet is framed once and the same frame is
+     * queued on every recipient.
+     * 
+     * @param packet Packet data to send.
+     * @param exclude Connection not to send to. May be null.
+     */
+    void broadcastNow(final byte[] packet, final Connection exclude)
+    {
+        broadcastNow(packet, exclude, null, 0);
+    }
+
+    /**
+     * Sends a packet to every logged in connection but some right away; see broadcastNow(byte[], Connection).
+     * 
+     * @param packet Packet data to send.
+     * @param exclude Connection not to send to. May be null.
+     * @param excluded Further connections not to send to. May be null.
+     */
+    void broadcastNow(final byte[] packet, final Connection exclude, final Set excluded)
+    {
+        broadcastNow(packet, exclude, excluded, 0);
+    }
+
+    /**
+     * Sends a packet right away to every logged in connection but one that has agreed to the given capability, after
+     * anything collected so far.
+     * 
+     * @param packet Packet data to send.
+     * @param capability Capability bit the recipients must have.
+     * @param exclude Connection not to send to, usually the one the packet came from. May be null.
+     */
+    public void broadcastToCapable(final byte[] packet, final int capability, final Connection exclude)
+    {
+        batch.flush();
+        broadcastNow(packet, exclude, null, capability);
+    }
+
+    /**
+     * Sends a packet right away to every spectating connection, after anything collected so far. The packet is framed
+     * once and the same frame is queued on every spectator.
+     *
+     * @param packet Packet data to send.
+     * @return The number of spectators it went to.
+     */
+    public int sendToSpectators(final byte[] packet)
+    {
+        batch.flush();
+
+        final OutboundFrame frame = new OutboundFrame(packet);
+        int recipients = 0;
+        synchronized (connections)
+        {
+            final Iterator iter = connections.iterator();
+            while (iter.hasNext())
+            {
+                final Connection connection = (Connection)iter.next();
+                if (connection.isSpectating())
+                {
+                    connection.sendFrame(frame);
+                    recipients++;
                 }
             }
         }
-        catch (final InterruptedException ie)
-        {
-            Log.log(Log.SYS, ie);
-        }
-        catch (final Throwable t)
-        {
-            Log.log(Log.SYS, t);
-        }
-        finally
+        frame.release();
+
+        Log.log(Log.NET, "To spectators: " + PacketManager.getPacketName(frame.getType()) + ", length = "
+            + frame.getPacketLength() + ", recipients = " + recipients);
+        return recipients;
+    }
+
+    private void broadcastNow(final byte[] packet, final Connection exclude, final Set excluded, final int capability)
+    {
+        final OutboundFrame frame = new OutboundFrame(packet);
+        int recipients = 0;
+        synchronized (connections)
         {
-            closeAllConnections();
+            final Iterator iter = connections.iterator();
+            while (iter.hasNext())
+            {
+                final Connection connection = (Connection)iter.next();
+                if ((connection != exclude) && connection.receivesBroadcasts()
+                    && ((excluded == null) || !excluded.contains(connection))
+                    && ((capability == 0) || connection.hasCapability(capability)))
+                {
+                    connection.sendFrame(frame);
+                    recipients++;
+                }
+            }
         }
+        frame.release();
+
+        Log.log(Log.NET, "Broadcast: " + PacketManager.getPacketName(frame.getType()) + ", length = "
+            + frame.getPacketLength() + ", recipients = " + recipients);
     }
 
-    public void send(final byte[] packet)
+    /**
+     * Sends a number of packets to every logged in connection but one: as the given PACKET_BATCH to those that
+     * understand it, and one frame per packet to the rest. Each form is framed once and shared.
+     * 
+     * @param batchPacket The packets wrapped in a PACKET_BATCH.
+     * @param packets The packets themselves, as byte arrays.
+     * @param exclude Connection not to send to. May be null.
+     * @param excluded Further connections not to send to. May be null.
+     */
+    void broadcastBatch(final byte[] batchPacket, final List packets, final Connection exclude, final Set excluded)
     {
+        final OutboundFrame batchFrame = new OutboundFrame(batchPacket);
+        OutboundFrame[] frames = null;
+        int recipients = 0;
         synchronized (connections)
         {
             final Iterator iter = connections.iterator();
             while (iter.hasNext())
             {
                 final Connection connection = (Connection)iter.next();
-                if (connection.isLoggedIn())
+                if ((connection == exclude) || !connection.receivesBroadcasts()
+                    || ((excluded != null) && excluded.contains(connection)))
+                {
+                    continue;
+                }
+
+                if (connection.hasCapability(Connection.CAPABILITY_BATCH))
                 {
-                    connection.sendPacket(packet);
+                    connection.sendFrame(batchFrame);
                 }
+                else
+                {
+                    if (frames == null)
+                    {
+                        frames = new OutboundFrame[packets.size()];
+                        for (int i = 0; i < frames.length; i++)
+                        {
+                            frames[i] = new OutboundFrame((byte[])packets.get(i));
+                        }
+                    }
+
+                    for (int i = 0; i < frames.length; i++)
+                    {
+                        connection.sendFrame(frames[i]);
+                    }
+                }
+                recipients++;
             }
         }
+
+        batchFrame.release();
+        if (frames != null)
+        {
+            for (int i = 0; i < frames.length; i++)
+            {
+                frames[i].release();
+            }
+        }
+
+        Log.log(Log.NET, "Broadcast: PACKET_BATCH of " + packets.size() + ", length = " + batchFrame.getPacketLength()
+            + ", recipients = " + recipients);
     }
 
+    /**
+     * Sends a packet to one connection. The packet may wait for the next flush(); see OutboundBatch.
+     * 
+     * @param packet Packet data to send.
+     * @param connection Connection to send to.
+     */
     public void send(final byte[] packet, final Connection connection)
     {
-        connection.sendPacket(packet);
+        batch.send(packet, connection);
     }
 }
@@ -0,0 +1,231 @@
+/*
+ * OutboundBatch.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.galactanet.gametable.PacketManager;
+
+
+
+/**
+ * Collects the packets sent during one tick so that a burst of them goes to each peer as a single PACKET_BATCH frame,
+ * costing one wakeup of the network thread and one write rather than one of each per packet. Packets collect for as
+ * long as they are all headed the same way. Sending somewhere else, sending a packet that may be coalesced, or
+ * collecting more than FLUSH_THRESHOLD bytes sends what has been collected so far. Whatever is left goes out on
+ * flush(), which GametableFrame calls at the end of every tick.
+ *
+ * Peers that don't understand PACKET_BATCH get the packets one frame apiece, as before.
+ *
+ * Packets are only ever sent from the event thread, but the network thread may flush when it closes a connection, so
+ * the collected packets are taken under a lock and then sent outside it.
+ *
+ * @author iffy
+ */
+public class OutboundBatch
+{
+    /**
+     * Packets collected for one destination.
+     */
+    private static class Batch
+    {
+        public final boolean    broadcast;
+        public int              bytes   = 0;
+        public final Connection connection;
+
+        /**
+         * Further connections a broadcast doesn't go to, or null.
+         */
+        public final Set        excluded;
+        public final List       packets = new ArrayList();
+
+        public Batch(final boolean toAll, final Connection conn, final Set excludedConnections)
+        {
+            broadcast = toAll;
+            connection = conn;
+            excluded = excludedConnections;
+        }
+    }
+
+    /**
+     * Number of bytes of collected packets at which they are sent without waiting for the end of the tick. Packets
+     * this big are never collected at all.
+     */
+    public static final int     FLUSH_THRESHOLD = 16 * 1024;
+
+    private long                batchCount      = 0;
+    private long                batchedCount    = 0;
+    private Batch               current         = null;
+    private final NetworkThread network;
+
+    /**
+     * Constructor.
+     *
+     * @param thread Network thread that owns the connections.
+     */
+    OutboundBatch(final NetworkThread thread)
+    {
+        network = thread;
+    }
+
+    /**
+     * Collects a packet for every logged in connection but one.
+     *
+     * @param packet Packet data to send.
+     * @param exclude Connection not to send to. May be null.
+     */
+    public void broadcast(final byte[] packet, final Connection exclude)
+    {
+        add(packet, true, exclude, null);
+    }
+
+    /**
+     * Collects a packet for every logged in connection but some. Packets collect into one batch only for as long as
+     * they leave out the same connections.
+     *
+     * @param packet Packet data to send.
+     * @param excluded Connections not to send to.
+     */
+    public void broadcast(final byte[] packet, final Set excluded)
+    {
+        add(packet, true, null, excluded);
+    }
+
+    /**
+     * Collects a packet for one connection.
+     *
+     * @param packet Packet data to send.
+     * @param connection Connection to send to.
+     */
+    public void send(final byte[] packet, final Connection connection)
+    {
+        add(packet, false, connection, null);
+    }
+
+    /**
+     * Sends whatever has been collected.
+     */
+    public void flush()
+    {
+        final Batch batch;
+        synchronized (this)
+        {
+            batch = current;
+            current = null;
+        }
+
+        if (batch != null)
+        {
+            deliver(batch);
+        }
+    }
+
+    /**
+     * @return The number of PACKET_BATCH packets made.
+     */
+    public synchronized long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * @return The number of packets that have gone out inside a PACKET_BATCH.
+     */
+    public synchronized long getBatchedPacketCount()
+    {
+        return batchedCount;
+    }
+
+    private void add(final byte[] packet, final boolean toAll, final Connection conn, final Set excluded)
+    {
+        // coalescable packets need a frame of their own so the send queue can drop them
+        final boolean alone = (packet.length >= FLUSH_THRESHOLD)
+            || (PacketManager.getCoalesceKey(packet, 0, packet.length) != null);
+
+        Batch ready = null;
+        synchronized (this)
+        {
+            if ((current != null)
+                && (alone || (current.broadcast != toAll) || (current.connection != conn)
+                    || !sameExclusions(current.excluded, excluded) || (current.bytes + packet.length > FLUSH_THRESHOLD)))
+            {
+                ready = current;
+                current = null;
+            }
+
+            if (!alone)
+            {
+                if (current == null)
+                {
+                    current = new Batch(toAll, conn, excluded);
+                }
+                current.packets.add(packet);
+                current.bytes += packet.length;
+            }
+        }
+
+        if (ready != null)
+        {
+            deliver(ready);
+        }
+
+        if (alone)
+        {
+            sendNow(packet, toAll, conn, excluded);
+        }
+    }
+
+    private static boolean sameExclusions(final Set a, final Set b)
+    {
+        if ((a == null) || (b == null))
+        {
+            return (a == b);
+        }
+        return a.equals(b);
+    }
+
+    private void deliver(final Batch batch)
+    {
+        final byte[] batchPacket = (batch.packets.size() > 1 ? PacketManager.makeBatchPacket(batch.packets) : null);
+        if (batchPacket == null)
+        {
+            for (int i = 0; i < batch.packets.size(); i++)
+            {
+                sendNow((byte[])batch.packets.get(i), batch.broadcast, batch.connection, batch.excluded);
+            }
+            return;
+        }
+
+        synchronized (this)
+        {
+            batchCount++;
+            batchedCount += batch.packets.size();
+        }
+
+        if (batch.broadcast)
+        {
+            network.broadcastBatch(batchPacket, batch.packets, batch.connection, batch.excluded);
+        }
+        else
+        {
+            batch.connection.sendBatch(batchPacket, batch.packets);
+        }
+    }
+
+    private void sendNow(final byte[] packet, final boolean toAll, final Connection conn, final Set excluded)
+    {
+        if (toAll)
+        {
+            network.broadcastNow(packet, conn, excluded);
+        }
+        else
+        {
+            conn.queuePacket(packet);
+        }
+    }
+}
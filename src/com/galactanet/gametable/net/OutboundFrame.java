@@ -0,0 +1,288 @@
+/*
+ * OutboundFrame.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import com.galactanet.gametable.PacketManager;
+
+
+
+/**
+ * An encoded packet ready to go out on the wire: the four byte length prefix followed by the packet data. A frame is
+ * encoded once and may be queued on any number of connections at the same time; each connection writes from its own
+ * view of the shared bytes. Frames are reference counted so the backing array can go back to the BufferPool once the
+ * last connection has finished with it.
+ *
+ * Frames for packets that only carry the latest value of something (where a pog is, where a player is pointing) have a
+ * coalesce key; see OutboundQueue.
+ *
+ * A large frame can also be sent deflated to connections that have agreed to it. A deflated frame has the
+ * COMPRESSED_FLAG bit set in its length prefix, followed by the inflated length of the packet and the deflated data. The
+ * deflated form is made at most once per frame and shared just like the plain one.
+ *
+ * A connection that has agreed to CAPABILITY_COMPACT gets its own re-encoding of each frame instead, with the
+ * COMPACT_FLAG bit set in the length prefix; see CompactCodec. Such a frame can then be deflated in turn.
+ *
+ * @author iffy
+ */
+public class OutboundFrame
+{
+    /**
+     * Bit set in the length prefix of a deflated frame.
+     */
+    public static final int     COMPRESSED_FLAG = 0x80000000;
+
+    /**
+     * Bit set in the length prefix of a frame whose packet is in CompactCodec's format.
+     */
+    public static final int     COMPACT_FLAG    = 0x40000000;
+
+    /**
+     * The bits of the length prefix that hold the length.
+     */
+    public static final int     LENGTH_MASK     = ~(COMPRESSED_FLAG | COMPACT_FLAG);
+
+    private final byte[]        buffer;
+    private final Object        coalesceKey;
+    private OutboundFrame       compressed;
+    private boolean             compressionTried;
+    private final int           flags;
+    private final int           length;
+    private final int           packetLength;
+    private final AtomicInteger references      = new AtomicInteger(1);
+    private final int           type;
+
+    /**
+     * Constructor. The new frame holds one reference on behalf of its creator.
+     *
+     * @param packet Packet data to frame.
+     */
+    public OutboundFrame(final byte[] packet)
+    {
+        this(packet, packet.length);
+    }
+
+    /**
+     * Constructor. The new frame holds one reference on behalf of its creator.
+     *
+     * @param packet Array holding the packet data.
+     * @param packetLen Number of bytes of packet data in the array.
+     */
+    public OutboundFrame(final byte[] packet, final int packetLen)
+    {
+        packetLength = packetLen;
+        length = packetLen + 4;
+        buffer = BufferPool.acquire(length);
+        putInt(buffer, 0, packetLen);
+        System.arraycopy(packet, 0, buffer, 4, packetLen);
+        type = (packetLen < 4 ? -1 : getInt(packet, 0));
+        coalesceKey = PacketManager.getCoalesceKey(packet, 0, packetLen);
+        flags = 0;
+    }
+
+    /**
+     * Constructor for a frame carrying the packet of another frame in a different encoding. The new frame holds one
+     * reference on behalf of its creator.
+     * 
+     * @param data Array holding the encoded packet.
+     * @param dataLen Number of bytes of encoded packet.
+     * @param flag Bit marking the encoding in the length prefix.
+     * @param original Frame holding the packet as it was made.
+     */
+    private OutboundFrame(final byte[] data, final int dataLen, final int flag, final OutboundFrame original)
+    {
+        packetLength = dataLen;
+        length = dataLen + 4;
+        buffer = BufferPool.acquire(length);
+        putInt(buffer, 0, dataLen | flag);
+        System.arraycopy(data, 0, buffer, 4, dataLen);
+        type = original.type;
+        coalesceKey = original.coalesceKey;
+        flags = flag;
+    }
+
+    /**
+     * Constructor for a frame whose wire bytes have already been built.
+     */
+    private OutboundFrame(final byte[] frameBuffer, final int frameLength, final int packetLen, final int packetType,
+        final Object key, final int flag)
+    {
+        buffer = frameBuffer;
+        length = frameLength;
+        packetLength = packetLen;
+        type = packetType;
+        coalesceKey = key;
+        flags = flag;
+    }
+
+    /**
+     * Makes a frame around a packet already written four bytes into a pooled array, taking the array over rather than
+     * copying the packet out of it. See PacketWriter.
+     * 
+     * @param frameBuffer Array from the BufferPool holding the packet at offset 4.
+     * @param packetLen Number of bytes of packet data.
+     * @return A new frame, holding one reference on behalf of the caller.
+     */
+    static OutboundFrame wrap(final byte[] frameBuffer, final int packetLen)
+    {
+        putInt(frameBuffer, 0, packetLen);
+        final int packetType = (packetLen < 4 ? -1 : getInt(frameBuffer, 4));
+        return new OutboundFrame(frameBuffer, packetLen + 4, packetLen, packetType, PacketManager.getCoalesceKey(
+            frameBuffer, 4, packetLen), 0);
+    }
+
+    /**
+     * Makes the compact form of this frame for one connection. Must only be called on a frame made from a packet.
+     * 
+     * @param codec The connection's codec. Frames that may be coalesced away are encoded without adding to its string
+     *            table.
+     * @return A new frame, holding one reference on behalf of the caller.
+     */
+    OutboundFrame encodeCompact(final CompactCodec codec)
+    {
+        final byte[] compact = codec.encode(buffer, 4, packetLength, coalesceKey == null);
+        return new OutboundFrame(compact, compact.length, COMPACT_FLAG, this);
+    }
+
+    /**
+     * @return The key identifying what this frame updates if a newer frame with the same key makes it obsolete, or null
+     *         if this frame must always be delivered.
+     */
+    public Object getCoalesceKey()
+    {
+        return coalesceKey;
+    }
+
+    /**
+     * Gets the deflated form of this frame, making it with the given deflater the first time through. The returned frame
+     * belongs to this one and stays valid for as long as the caller holds a reference to this frame.
+     *
+     * @param deflater Deflater to use if the frame has not been deflated yet.
+     * @return The deflated frame, or this frame if deflating did not make it any smaller.
+     */
+    public synchronized OutboundFrame getCompressed(final Deflater deflater)
+    {
+        if (!compressionTried)
+        {
+            compressionTried = true;
+            compressed = compress(deflater);
+        }
+
+        return (compressed == null ? this : compressed);
+    }
+
+    /**
+     * @return The number of bytes this frame puts on the wire, including the length prefix.
+     */
+    public int getFrameLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return The length of the packet data, not counting the length prefix. For a deflated frame this is the inflated
+     *         length.
+     */
+    public int getPacketLength()
+    {
+        return packetLength;
+    }
+
+    /**
+     * @return The packet type.
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * @return A new read-only view of the whole frame, positioned at its start.
+     */
+    ByteBuffer newView()
+    {
+        return ByteBuffer.wrap(buffer, 0, length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops a reference. The frame must not be used by the caller afterwards.
+     */
+    public void release()
+    {
+        final int count = references.decrementAndGet();
+        if (count == 0)
+        {
+            BufferPool.release(buffer);
+            synchronized (this)
+            {
+                if (compressed != null)
+                {
+                    compressed.release();
+                    compressed = null;
+                }
+            }
+        }
+        else if (count < 0)
+        {
+            throw new IllegalStateException("OutboundFrame released too many times");
+        }
+    }
+
+    /**
+     * Adds a reference.
+     */
+    public void retain()
+    {
+        if (references.getAndIncrement() <= 0)
+        {
+            throw new IllegalStateException("OutboundFrame retained after release");
+        }
+    }
+
+    private OutboundFrame compress(final Deflater deflater)
+    {
+        // anything that doesn't fit in the space the plain frame takes isn't worth sending
+        final byte[] out = BufferPool.acquire(length);
+        int outLength = 8;
+        synchronized (deflater)
+        {
+            deflater.reset();
+            deflater.setInput(buffer, 4, packetLength);
+            deflater.finish();
+            while (!deflater.finished() && (outLength < length))
+            {
+                outLength += deflater.deflate(out, outLength, length - outLength);
+            }
+
+            if (!deflater.finished() || (outLength >= length))
+            {
+                BufferPool.release(out);
+                return null;
+            }
+        }
+
+        putInt(out, 0, (outLength - 4) | COMPRESSED_FLAG | flags);
+        putInt(out, 4, packetLength);
+        return new OutboundFrame(out, outLength, packetLength, type, coalesceKey, flags);
+    }
+
+    private static int getInt(final byte[] data, final int offset)
+    {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    private static void putInt(final byte[] data, final int offset, final int value)
+    {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * OutboundQueue.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * The frames waiting to be written to one connection. Most frames are sent strictly in the order they were queued, but
+ * frames carrying a coalesce key are "last writer wins": if a frame with the same key is still waiting and none of it
+ * has been written yet, the new frame takes its place in the queue instead of being added behind it. A client that
+ * falls behind thus gets the latest position of a pog rather than every step along the way.
+ *
+ * Not thread safe; the owning Connection synchronizes access.
+ *
+ * @author iffy
+ */
+public class OutboundQueue
+{
+    /**
+     * One queued frame, this connection's view of its bytes and the frame as made, before it was encoded for this
+     * connection.
+     */
+    private static class Entry
+    {
+        public OutboundFrame frame;
+        public OutboundFrame original;
+        public ByteBuffer    view;
+
+        public Entry(final OutboundFrame f, final OutboundFrame o)
+        {
+            frame = f;
+            original = o;
+            view = f.newView();
+        }
+
+        public void release()
+        {
+            frame.release();
+            original.release();
+        }
+    }
+
+    private int              coalescedCount = 0;
+    private final LinkedList entries        = new LinkedList();
+    private final Map        keyedEntries   = new HashMap();
+    private long             pendingBytes   = 0;
+
+    /**
+     * Queues a frame encoded for this connection, replacing an unsent frame with the same coalesce key if there is one.
+     * The queue takes its own reference to both frames.
+     *
+     * @param frame Frame to queue.
+     * @param original The frame as made, which frame was encoded from; see ReplayBuffer.
+     * @return True if the frame replaced an earlier one.
+     */
+    public boolean add(final OutboundFrame frame, final OutboundFrame original)
+    {
+        frame.retain();
+        original.retain();
+
+        final Object key = frame.getCoalesceKey();
+        if (key != null)
+        {
+            final Entry existing = (Entry)keyedEntries.get(key);
+            if ((existing != null) && (existing.view.position() == 0))
+            {
+                pendingBytes -= existing.view.remaining();
+                existing.release();
+                existing.frame = frame;
+                existing.original = original;
+                existing.view = frame.newView();
+                pendingBytes += existing.view.remaining();
+                coalescedCount++;
+                return true;
+            }
+        }
+
+        final Entry entry = new Entry(frame, original);
+        entries.add(entry);
+        pendingBytes += entry.view.remaining();
+        if (key != null)
+        {
+            keyedEntries.put(key, entry);
+        }
+        return false;
+    }
+
+    /**
+     * Releases every queued frame.
+     */
+    public void clear()
+    {
+        final Iterator iterator = entries.iterator();
+        while (iterator.hasNext())
+        {
+            ((Entry)iterator.next()).release();
+        }
+        entries.clear();
+        keyedEntries.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * Empties the queue, keeping the frames as made so they can be queued on another connection.
+     *
+     * @return The frames as made, in order. The caller gets the queue's reference to each.
+     */
+    public List takeOriginals()
+    {
+        final List retVal = new ArrayList(entries.size());
+        final Iterator iterator = entries.iterator();
+        while (iterator.hasNext())
+        {
+            final Entry entry = (Entry)iterator.next();
+            retVal.add(entry.original);
+            entry.frame.release();
+        }
+        entries.clear();
+        keyedEntries.clear();
+        pendingBytes = 0;
+        return retVal;
+    }
+
+    /**
+     * Fills the given array with views of the frames at the head of the queue, ready for a gathering write.
+     *
+     * @param buffers Array to fill.
+     * @return The number of views placed in the array.
+     */
+    public int gather(final ByteBuffer[] buffers)
+    {
+        int count = 0;
+        final Iterator iterator = entries.iterator();
+        while (iterator.hasNext() && (count < buffers.length))
+        {
+            buffers[count++] = ((Entry)iterator.next()).view;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of frames that have been dropped in favor of a newer frame with the same key.
+     */
+    public int getCoalescedCount()
+    {
+        return coalescedCount;
+    }
+
+    /**
+     * @return The number of bytes still waiting to be written.
+     */
+    public long getPendingBytes()
+    {
+        return pendingBytes;
+    }
+
+    /**
+     * @return True if there is nothing left to write.
+     */
+    public boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Drops the frames at the head of the queue that have been completely written.
+     *
+     * @param written Number of bytes just written from the gathered views.
+     * @param replay Where to note the frames written.
+     * @param keep True if the replay buffer is to keep them.
+     */
+    public void removeWritten(final long written, final ReplayBuffer replay, final boolean keep)
+    {
+        pendingBytes -= written;
+        while (!entries.isEmpty())
+        {
+            final Entry entry = (Entry)entries.getFirst();
+            if (entry.view.hasRemaining())
+            {
+                break;
+            }
+
+            entries.removeFirst();
+            final Object key = entry.frame.getCoalesceKey();
+            if ((key != null) && (keyedEntries.get(key) == entry))
+            {
+                keyedEntries.remove(key);
+            }
+            replay.written(entry.original, keep);
+            entry.release();
+        }
+    }
+}
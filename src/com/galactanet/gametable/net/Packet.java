@@ -6,32 +6,63 @@
 package com.galactanet.gametable.net;
 
 /**
- * Encapsulation for a packet as it moves through the system.
+ * Encapsulation for a packet as it moves through the system. Packets read off the network are views onto arrays
+ * borrowed from the BufferPool; the backing array may be longer than the packet, and must be handed back with release()
+ * once the packet has been dispatched.
  * 
  * @author iffy
  */
 public class Packet
 {
-    private final byte[]     data;
+    private byte[]           data;
+    private final int        length;
+    private final boolean    pooled;
+    private final long       receivedAt = Latency.now();
     private final Connection source;
 
     /**
      * Constructor
      */
     public Packet(final byte[] dat, final Connection src)
+    {
+        this(dat, dat.length, src, false);
+    }
+
+    /**
+     * Pooled Constructor
+     */
+    Packet(final byte[] dat, final int len, final Connection src, final boolean isPooled)
     {
         data = dat;
+        length = len;
         source = src;
+        pooled = isPooled;
     }
 
     /**
-     * @return Returns the data.
+     * @return Returns the backing array. Only the first getLength() bytes belong to this packet.
      */
-    public byte[] getData()
+    public byte[] getBuffer()
     {
         return data;
     }
 
+    /**
+     * @return Returns the number of bytes of packet data in the backing array.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * @return When the packet was read off the network, by Latency.now().
+     */
+    public long getReceivedAt()
+    {
+        return receivedAt;
+    }
+
     /**
      * @return Returns the source.
      */
@@ -40,4 +71,28 @@ public class Packet
         return source;
     }
 
+    /**
+     * @return The packet type, as found in the first four bytes of the data.
+     */
+    public int getType()
+    {
+        if (length < 4)
+        {
+            return -1;
+        }
+
+        return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+    }
+
+    /**
+     * Hands the backing array back to the pool. The packet must not be used afterwards.
+     */
+    public void release()
+    {
+        if (pooled && (data != null))
+        {
+            BufferPool.release(data);
+        }
+        data = null;
+    }
 }
@@ -0,0 +1,179 @@
+/*
+ * PacketWriter.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * A DataOutputStream that writes a packet straight into an array from the BufferPool, so that making a packet allocates
+ * nothing but the finished result. Space for the frame length prefix is left at the front of the array, which lets
+ * finishFrame() turn the packet into an OutboundFrame without copying it at all.
+ *
+ * Writers are kept per thread. Get one with acquire(), write the packet, then call finish() or finishFrame(), which
+ * put the writer back for the next packet made on that thread. A writer abandoned part way through (because writing
+ * threw) is simply never reused.
+ *
+ * @author iffy
+ */
+public class PacketWriter extends DataOutputStream
+{
+    /**
+     * Growable sink over a pooled array, with the first PREFIX_SIZE bytes left free.
+     */
+    private static class Sink extends OutputStream
+    {
+        public byte[] buffer = null;
+        public int    count  = PREFIX_SIZE;
+
+        public void write(final int b)
+        {
+            ensure(1);
+            buffer[count++] = (byte)b;
+        }
+
+        public void write(final byte[] b, final int off, final int len)
+        {
+            ensure(len);
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        public void ensure(final int len)
+        {
+            if (buffer == null)
+            {
+                buffer = BufferPool.acquire(Math.max(INITIAL_SIZE, count + len));
+            }
+            else if (count + len > buffer.length)
+            {
+                final byte[] bigger = BufferPool.acquire(Math.max(buffer.length * 2, count + len));
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                BufferPool.release(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+
+    /**
+     * Size of the array a writer starts with; enough for almost every packet.
+     */
+    private static final int         INITIAL_SIZE = 256;
+
+    /**
+     * Largest array an idle writer keeps; the occasional huge packet shouldn't pin its array for good.
+     */
+    private static final int         MAX_KEPT     = 64 * 1024;
+
+    /**
+     * Most idle writers kept for any one thread. Only nested packets (such as the state inside a snapshot) need more
+     * than one.
+     */
+    private static final int         MAX_IDLE     = 4;
+
+    /**
+     * Bytes left free at the front of the array for the frame length prefix.
+     */
+    private static final int         PREFIX_SIZE  = 4;
+
+    private static final ThreadLocal g_idle       = new ThreadLocal()
+                                                  {
+                                                      protected Object initialValue()
+                                                      {
+                                                          return new ArrayList();
+                                                      }
+                                                  };
+
+    private final Sink               sink;
+
+    /**
+     * @return An empty writer for use by the calling thread.
+     */
+    public static PacketWriter acquire()
+    {
+        final List idle = (List)g_idle.get();
+        if (idle.isEmpty())
+        {
+            return new PacketWriter(new Sink());
+        }
+
+        return (PacketWriter)idle.remove(idle.size() - 1);
+    }
+
+    private PacketWriter(final Sink s)
+    {
+        super(s);
+        sink = s;
+    }
+
+    /**
+     * Copies out the packet written so far and puts the writer back for reuse. The writer must not be used by the
+     * caller afterwards.
+     *
+     * @return The packet data.
+     */
+    public byte[] finish()
+    {
+        final int length = getLength();
+        final byte[] retVal = new byte[length];
+        if (length > 0)
+        {
+            System.arraycopy(sink.buffer, PREFIX_SIZE, retVal, 0, length);
+        }
+        recycle();
+        return retVal;
+    }
+
+    /**
+     * Hands the packet written so far over to a new frame, without copying it, and puts the writer back for reuse. The
+     * writer must not be used by the caller afterwards.
+     *
+     * @return A new frame holding the packet, with one reference on behalf of the caller.
+     */
+    public OutboundFrame finishFrame()
+    {
+        sink.ensure(0);
+        final OutboundFrame retVal = OutboundFrame.wrap(sink.buffer, getLength());
+        sink.buffer = null;
+        recycle();
+        return retVal;
+    }
+
+    /**
+     * @return The number of bytes of packet written so far.
+     */
+    public int getLength()
+    {
+        return sink.count - PREFIX_SIZE;
+    }
+
+    private void recycle()
+    {
+        sink.count = PREFIX_SIZE;
+        written = 0;
+
+        if ((sink.buffer != null) && (sink.buffer.length > MAX_KEPT))
+        {
+            BufferPool.release(sink.buffer);
+            sink.buffer = null;
+        }
+
+        final List idle = (List)g_idle.get();
+        if (idle.size() < MAX_IDLE)
+        {
+            idle.add(this);
+        }
+        else if (sink.buffer != null)
+        {
+            BufferPool.release(sink.buffer);
+            sink.buffer = null;
+        }
+    }
+}
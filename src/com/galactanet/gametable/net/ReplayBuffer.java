@@ -0,0 +1,138 @@
+/*
+ * ReplayBuffer.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.galactanet.gametable.PacketManager;
+
+
+
+/**
+ * The frames most recently written to one connection, kept so they can be sent again if the connection is lost and the
+ * peer comes back on a new one; see NetworkThread.resume().
+ *
+ * Frames are numbered in the order they were completely written, starting from 1. The peer numbers the frames it reads
+ * the same way, so the number of frames it says it has read is the sequence number of the last one it got. Only the
+ * newest frames are kept, up to a limit in bytes. The frames kept are the ones as made, not as they were encoded for
+ * this connection, since the new connection encodes them afresh.
+ *
+ * PACKET_RESUMEs, which set up the new connection, aren't numbered on either side.
+ *
+ * Not thread safe; the owning Connection synchronizes access.
+ *
+ * @author iffy
+ */
+public class ReplayBuffer
+{
+    private long             bytes    = 0;
+
+    /**
+     * The frames kept, oldest first.
+     */
+    private final LinkedList frames   = new LinkedList();
+    private long             sequence = 0;
+
+    /**
+     * Constructor.
+     */
+    public ReplayBuffer()
+    {
+    }
+
+    /**
+     * Notes that a frame has been completely written, keeping it if the peer is able to resume.
+     *
+     * @param frame The frame as made. The buffer takes its own reference to it.
+     * @param keep False to only count the frame.
+     */
+    public void written(final OutboundFrame frame, final boolean keep)
+    {
+        if (frame.getType() == PacketManager.PACKET_RESUME)
+        {
+            return;
+        }
+
+        sequence++;
+        if (!keep)
+        {
+            return;
+        }
+
+        frame.retain();
+        frames.add(frame);
+        bytes += frame.getFrameLength();
+        while ((bytes > Connection.getReplayLimit()) && !frames.isEmpty())
+        {
+            final OutboundFrame oldest = (OutboundFrame)frames.removeFirst();
+            bytes -= oldest.getFrameLength();
+            oldest.release();
+        }
+    }
+
+    /**
+     * @return The sequence number of the last frame written.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Carries on the numbering of an earlier connection.
+     *
+     * @param last The sequence number of the last frame the peer got.
+     */
+    public void setSequence(final long last)
+    {
+        sequence = last;
+    }
+
+    /**
+     * @return The bytes in the frames kept.
+     */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * @param peerReceived The number of frames the peer has read.
+     * @return True if every frame written after those is still kept.
+     */
+    public boolean canReplayFrom(final long peerReceived)
+    {
+        return (peerReceived <= sequence) && (peerReceived >= sequence - frames.size());
+    }
+
+    /**
+     * @param peerReceived The number of frames the peer has read; canReplayFrom() must be true of it.
+     * @return The frames written after those, oldest first. The caller gets a reference to each.
+     */
+    public List getFramesAfter(final long peerReceived)
+    {
+        final List retVal = new ArrayList(frames.subList(frames.size() - (int)(sequence - peerReceived), frames.size()));
+        for (int i = 0; i < retVal.size(); i++)
+        {
+            ((OutboundFrame)retVal.get(i)).retain();
+        }
+        return retVal;
+    }
+
+    /**
+     * Releases every frame kept.
+     */
+    public void clear()
+    {
+        while (!frames.isEmpty())
+        {
+            ((OutboundFrame)frames.removeFirst()).release();
+        }
+        bytes = 0;
+    }
+}
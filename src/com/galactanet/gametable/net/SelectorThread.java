@@ -0,0 +1,199 @@
+/*
+ * SelectorThread.java: GameTable is in the Public Domain.
+ */
+
+
+package com.galactanet.gametable.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.galactanet.gametable.Log;
+
+
+
+/**
+ * A thread running one Selector. Every change to the keys of that selector is made on this thread, by queueing a
+ * command with queueCommand(); the command runs between selections.
+ *
+ * The NetworkThread is one of these. When it is given worker threads, the workers are too, and each handles the
+ * connections assigned to it.
+ *
+ * @author iffy
+ */
+abstract class SelectorThread extends Thread
+{
+    /**
+     * Commands to run on this thread between selections. Any number of threads may add to this queue, only this thread
+     * ever drains it.
+     */
+    private final Queue       pendingCommands = new ConcurrentLinkedQueue();
+
+    /**
+     * True if a wakeup has been issued to the selector that this thread has not yet acted upon. Used to avoid waking
+     * the selector once for every queued command.
+     */
+    private volatile boolean  wakeupPending   = false;
+
+    private volatile Selector selector;
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the thread.
+     */
+    SelectorThread(final String name)
+    {
+        super(name);
+        setPriority(NORM_PRIORITY + 1);
+    }
+
+    /**
+     * @return Returns this thread's selector.
+     */
+    public Selector getSelector()
+    {
+        return selector;
+    }
+
+    /**
+     * Closes this thread's selector, which stops the thread if it is running.
+     */
+    void closeSelector() throws IOException
+    {
+        final Selector s = selector;
+        if (s != null)
+        {
+            s.close();
+            selector = null;
+        }
+    }
+
+    /**
+     * Queues a command to be run on this thread, waking the selector if it is not already awake.
+     *
+     * @param r Command to run.
+     */
+    void queueCommand(final Runnable r)
+    {
+        pendingCommands.add(r);
+
+        if (!wakeupPending)
+        {
+            wakeupPending = true;
+            final Selector s = selector;
+            if (s != null)
+            {
+                s.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Runs all the queued commands. Only ever called from this thread.
+     */
+    private void runPendingCommands()
+    {
+        wakeupPending = false;
+        while (true)
+        {
+            final Runnable r = (Runnable)pendingCommands.poll();
+            if (r == null)
+            {
+                break;
+            }
+
+            try
+            {
+                r.run();
+            }
+            catch (final Exception e)
+            {
+                Log.log(Log.NET, e);
+            }
+        }
+    }
+
+    /**
+     * Called on this thread once the selector is open, before the first selection.
+     */
+    protected void opened() throws IOException
+    {
+    }
+
+    /**
+     * Called on this thread for every key selected.
+     *
+     * @param key The key.
+     */
+    protected abstract void handleKey(SelectionKey key) throws IOException;
+
+    /**
+     * Called on this thread as it stops, however it stops.
+     */
+    protected abstract void closed();
+
+    /*
+     * @see java.lang.Thread#run()
+     */
+    public void run()
+    {
+        try
+        {
+            final Selector s = Selector.open();
+            selector = s;
+            opened();
+
+            while (!isInterrupted())
+            {
+                runPendingCommands();
+
+                // block until there is network activity or someone queues a command and wakes us up
+                if (s.select() == 0)
+                {
+                    continue;
+                }
+
+                final Set keys = s.selectedKeys();
+                final Iterator keyIterator = keys.iterator();
+                while (keyIterator.hasNext())
+                {
+                    try
+                    {
+                        handleKey((SelectionKey)keyIterator.next());
+                    }
+                    catch (final CancelledKeyException cke)
+                    {
+                        Log.log(Log.NET, cke);
+                    }
+                    finally
+                    {
+                        keyIterator.remove();
+                    }
+                }
+            }
+
+            Log.log(Log.NET, getName() + " interrupted, shutting down.");
+        }
+        catch (final ClosedSelectorException cse)
+        {
+            // the selector was closed from another thread while we were selecting
+            Log.log(Log.NET, getName() + " selector closed, shutting down.");
+        }
+        catch (final Throwable t)
+        {
+            Log.log(Log.SYS, t);
+        }
+        finally
+        {
+            closed();
+        }
+    }
+}
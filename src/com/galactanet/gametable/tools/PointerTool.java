@@ -85,9 +85,16 @@ public class PointerTool extends NullTool
         }
     }
 
-    private static final String PREF_DRAG   = "com.galactanet.gametable.tools.PointerTool.drag";
+    private static final String PREF_DRAG         = "com.galactanet.gametable.tools.PointerTool.drag";
 
-    private static final List   PREFERENCES = createPreferenceList();
+    private static final String PREF_DRAG_RATE    = "com.galactanet.gametable.tools.PointerTool.dragRate";
+
+    /**
+     * Times a second other players are told where a pog being dragged is, unless the preference says otherwise.
+     */
+    private static final int    DEFAULT_DRAG_RATE = 15;
+
+    private static final List   PREFERENCES       = createPreferenceList();
 
     /**
      * @return The static, unmodifiable list of preferences for this tool.
@@ -97,6 +104,8 @@ public class PointerTool extends NullTool
         final List retVal = new ArrayList();
         retVal.add(new PreferenceDescriptor(PREF_DRAG, "Drag map when not over Pog", PreferenceDescriptor.TYPE_FLAG,
             Boolean.TRUE));
+        retVal.add(new PreferenceDescriptor(PREF_DRAG_RATE, "Drag updates per second (0 for none)",
+            PreferenceDescriptor.TYPE_TEXT_ENTRY, String.valueOf(DEFAULT_DRAG_RATE)));
         return Collections.unmodifiableList(retVal);
     }
 
@@ -139,6 +148,7 @@ public class PointerTool extends NullTool
 
     public void endAction()
     {
+        m_canvas.endPogDrag(false);
         m_grabbedPog = null;
         m_ghostPog = null;
         m_grabOffset = null;
@@ -156,6 +166,22 @@ public class PointerTool extends NullTool
         return PREFERENCES;
     }
 
+    /**
+     * @return The most drag updates to send per second.
+     */
+    private int getDragRate()
+    {
+        try
+        {
+            return Integer.parseInt(GametableFrame.getGametableFrame().getPreferences().getStringValue(PREF_DRAG_RATE)
+                .trim());
+        }
+        catch (final NumberFormatException ex)
+        {
+            return DEFAULT_DRAG_RATE;
+        }
+    }
+
     private void hoverCursorCheck()
     {
         if (GametableFrame.getGametableFrame().getPreferences().getBooleanValue(PREF_DRAG))
@@ -230,11 +256,13 @@ public class PointerTool extends NullTool
                     {
                         //If pog not locked, do remove
                         m_canvas.removePog(m_grabbedPog.getId());
+                        m_canvas.endPogDrag(true);
                     }                    
                 }
                 else
                 {
                     m_canvas.movePog(m_grabbedPog.getId(), m_ghostPog.getX(), m_ghostPog.getY());
+                    m_canvas.endPogDrag(true);
                 }
             }
         }
@@ -262,6 +290,7 @@ public class PointerTool extends NullTool
             {
                 m_ghostPog.setPosition(m_mousePosition.x + m_grabOffset.x, m_mousePosition.y + m_grabOffset.y);
             }
+            m_canvas.dragPog(m_grabbedPog.getId(), m_ghostPog.getX(), m_ghostPog.getY(), getDragRate());
             m_canvas.repaint();
         }
         else if (m_startScroll != null)